@@ -0,0 +1,153 @@
+package com.transerve.locationservices.manager.track;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.transerve.locationservices.manager.LocationFix;
+import com.transerve.locationservices.manager.LocationQuality;
+import com.transerve.locationservices.manager.TTNewLocation;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the batched WAL inserts of {@link SqliteTrackStore} with one transaction per fix, and
+ * measures query latency. Results are logged under the {@code SqliteTrackStoreBenchmark} tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SqliteTrackStoreBenchmark {
+
+    private static final String TAG = "SqliteTrackStoreBenchmark";
+
+    private static final String BATCHED = "benchmark_batched.db";
+
+    private static final String SINGLE = "benchmark_single.db";
+
+    private static final int FIXES = 20000;
+
+    // One transaction per fix is slow, time fewer of them
+    private static final int SINGLE_FIXES = 1000;
+
+    private static final int QUERIES = 20;
+
+    private Context context;
+
+    private TTNewLocation[] fixes;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getTargetContext();
+        context.deleteDatabase(BATCHED);
+        context.deleteDatabase(SINGLE);
+        // A 1 Hz random walk around a city
+        Random random = new Random(32);
+        fixes = new TTNewLocation[FIXES];
+        double lat = 12.97;
+        double lng = 77.59;
+        long time = 1500000000000L;
+        for (int i = 0; i < FIXES; i++) {
+            lat += (random.nextDouble() - 0.5) * 2e-4;
+            lng += (random.nextDouble() - 0.5) * 2e-4;
+            time += 1000;
+            fixes[i] = new TTNewLocation(lat, lng, 5 + random.nextFloat() * 10, time * 1000000L, time,
+                    true, random.nextFloat() * 15, true, random.nextFloat() * 360, LocationQuality.FILTERED);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        context.deleteDatabase(BATCHED);
+        context.deleteDatabase(SINGLE);
+    }
+
+    @Test
+    public void insertRate_batchedVersusOnePerFix() {
+        double batched = insertRate(BATCHED, 256, FIXES);
+        double single = insertRate(SINGLE, 1, SINGLE_FIXES);
+        Log.i(TAG, String.format("Inserts per second: batched %.0f, one per fix %.0f", batched, single));
+        assertTrue(batched > single);
+    }
+
+    @Test
+    public void queryLatency() {
+        SqliteTrackStore store = new SqliteTrackStore(context, BATCHED, 256);
+        try {
+            for (TTNewLocation fix : fixes) {
+                store.add(fix);
+            }
+            store.flushPending();
+
+            Counter counter = new Counter();
+            long from = fixes[FIXES / 2].getTime();
+            long to = from + 10 * 60 * 1000;
+            long start = System.nanoTime();
+            for (int i = 0; i < QUERIES; i++) {
+                counter.count = 0;
+                store.queryTime(from, to, counter);
+            }
+            double timeMillis = (System.nanoTime() - start) / 1e6 / QUERIES;
+            assertEquals(600, counter.count);
+
+            // About 2 km around the middle of the walk
+            double lat = fixes[FIXES / 2].getLat();
+            double lng = fixes[FIXES / 2].getLng();
+            double minLat = lat - 0.01;
+            double maxLat = lat + 0.01;
+            double minLng = lng - 0.01;
+            double maxLng = lng + 0.01;
+            start = System.nanoTime();
+            for (int i = 0; i < QUERIES; i++) {
+                counter.count = 0;
+                store.queryArea(minLat, minLng, maxLat, maxLng, Long.MIN_VALUE, Long.MAX_VALUE, counter);
+            }
+            double areaMillis = (System.nanoTime() - start) / 1e6 / QUERIES;
+            int expected = 0;
+            for (TTNewLocation fix : fixes) {
+                if (fix.getLat() >= minLat && fix.getLat() <= maxLat
+                        && fix.getLng() >= minLng && fix.getLng() <= maxLng) {
+                    expected++;
+                }
+            }
+            assertEquals(expected, counter.count);
+            Log.i(TAG, String.format("Query latency: 10 min window %.2f ms, 2 km box %.2f ms (%d fixes)",
+                    timeMillis, areaMillis, expected));
+        } finally {
+            store.close();
+        }
+    }
+
+    private double insertRate(String name, int batchSize, int count) {
+        SqliteTrackStore store = new SqliteTrackStore(context, name, batchSize);
+        try {
+            // Create the database outside the timed part
+            store.getWritableDatabase();
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                store.add(fixes[i]);
+            }
+            store.flushPending();
+            return count / ((System.nanoTime() - start) / 1e9);
+        } finally {
+            store.close();
+        }
+    }
+
+    private static final class Counter implements FixVisitor {
+        int count;
+
+        @Override
+        public boolean onFix(LocationFix fix) {
+            count++;
+            return true;
+        }
+    }
+}
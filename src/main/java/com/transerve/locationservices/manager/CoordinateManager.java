@@ -4,7 +4,9 @@ import android.Manifest;
 import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.app.Application;
+import android.content.Context;
 import android.content.pm.PackageManager;
+import android.hardware.SensorManager;
 import android.location.Location;
 import android.os.Build;
 import android.os.Looper;
@@ -26,6 +28,7 @@ import com.google.android.gms.tasks.OnCompleteListener;
 import com.google.android.gms.tasks.OnFailureListener;
 import com.google.android.gms.tasks.OnSuccessListener;
 import com.google.android.gms.tasks.Task;
+import com.transerve.locationservices.manager.geo.GeoidModel;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -38,8 +41,7 @@ public class CoordinateManager {
     private static final int REQUEST_PERMISSIONS_REQUEST_CODE = 34;
     private static final int REQUEST_CHECK_SETTINGS = 0x1;
     private static final long UPDATE_INTERVAL_IN_MILLISECONDS = 5000;
-    private static final long FASTEST_UPDATE_INTERVAL_IN_MILLISECONDS =
-            UPDATE_INTERVAL_IN_MILLISECONDS / 2;
+    private static final int LOCATION_RING_CAPACITY = 256;
     private FusedLocationProviderClient mFusedLocationClient;
     private ActivityCallbackProvider activityCallback;
     private LocationRequest mLocationRequest;
@@ -52,8 +54,15 @@ public class CoordinateManager {
     long runStartTimeInMillis;
     float currentSpeed = 0.0f; // meters/second
     private LocationObserver disposeBag;
+    private final LocationRing locationRing = new LocationRing(LOCATION_RING_CAPACITY);
+    private final LocationCursor sinkCursor = locationRing.openCursor();
+    private final List<LocationSink> sinks = new ArrayList<>();
+    private Application application;
+    private DeadReckoner deadReckoner;
+    private volatile GeoidModel geoidModel;
 
     public CoordinateManager(Application application) {
+        this.application = application;
         disposeBag = new LocationObserver();
         mFusedLocationClient = LocationServices.getFusedLocationProviderClient(application);
         kalmanFilter = new KalmanLatLong(3);
@@ -91,11 +100,64 @@ public class CoordinateManager {
     private void createLocationRequest() {
         runStartTimeInMillis = (long) (SystemClock.elapsedRealtimeNanos() / 1000000);
         mLocationRequest = new LocationRequest();
-        mLocationRequest.setInterval(UPDATE_INTERVAL_IN_MILLISECONDS);
-        mLocationRequest.setFastestInterval(FASTEST_UPDATE_INTERVAL_IN_MILLISECONDS);
+        setUpdateInterval(UPDATE_INTERVAL_IN_MILLISECONDS);
         mLocationRequest.setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY);
     }
 
+    private void setUpdateInterval(long intervalInMillis) {
+        mLocationRequest.setInterval(intervalInMillis);
+        mLocationRequest.setFastestInterval(intervalInMillis / 2);
+    }
+
+    /**
+     * Fills the gaps between GNSS fixes with sensor based dead reckoning, which lets the
+     * GNSS run at a much lower rate. Dead reckoned positions are sent to the observers like
+     * any other location.
+     *
+     * @param gnssIntervalInMillis GNSS update interval to use while dead reckoning is enabled
+     * @return false if the device doesn't have the sensors needed for dead reckoning
+     */
+    public boolean enableDeadReckoning(long gnssIntervalInMillis) {
+        if (deadReckoner == null) {
+            SensorManager sensorManager = (SensorManager) application.getSystemService(Context.SENSOR_SERVICE);
+            if (sensorManager == null) {
+                return false;
+            }
+            deadReckoner = new DeadReckoner(sensorManager, new DeadReckoner.Listener() {
+                @Override
+                public void onDeadReckonedPosition(double lat, double lng, float accuracy, long elapsedRealtimeNanos) {
+                    long ageInMillis = (SystemClock.elapsedRealtimeNanos() - elapsedRealtimeNanos) / 1000000;
+                    dispatch(lat, lng, accuracy, elapsedRealtimeNanos,
+                            System.currentTimeMillis() - ageInMillis, false, 0f, false, 0f,
+                            LocationQuality.DEAD_RECKONED, false, 0, Double.NaN);
+                }
+            });
+        }
+        if (!deadReckoner.start()) {
+            deadReckoner = null;
+            return false;
+        }
+        setUpdateInterval(gnssIntervalInMillis);
+        restartLocationUpdates();
+        return true;
+    }
+
+    public void disableDeadReckoning() {
+        if (deadReckoner != null) {
+            deadReckoner.stop();
+            deadReckoner = null;
+            setUpdateInterval(UPDATE_INTERVAL_IN_MILLISECONDS);
+            restartLocationUpdates();
+        }
+    }
+
+    private void restartLocationUpdates() {
+        if (locationUpdateStarted) {
+            //Requesting again with the same callback replaces the old request
+            requestLocationUpdates();
+        }
+    }
+
     private void buildLocationSettingsRequest() {
         LocationSettingsRequest.Builder builder = new LocationSettingsRequest.Builder();
         builder.addLocationRequest(mLocationRequest);
@@ -258,7 +320,8 @@ public class CoordinateManager {
         if (horizontalAccuracy > 10) { //10meter filter
             Log.d(TAG, "Accuracy is too low.");
             // inaccurateLocationList.add(location);
-            disposeBag.notifyAll(new TTNewLocation(location.getLatitude(), location.getLongitude(), false, location.getAccuracy()));
+            dispatch(location, location.getLatitude(), location.getLongitude(), location.getAccuracy(),
+                    LocationQuality.INACCURATE);
             return false;
         }
 
@@ -300,11 +363,41 @@ public class CoordinateManager {
         System.out.println("lat" + predictedLocation.getLatitude()
                 + "lon" + predictedLocation.getLongitude());
         Log.d(TAG, "Location quality is good enough.");
+        if (deadReckoner != null) {
+            deadReckoner.onFix(predictedLat, predictedLng, kalmanFilter.get_accuracy(), location.getElapsedRealtimeNanos());
+        }
         //Code to notify all observers that we got a good location
-        disposeBag.notifyAll(new TTNewLocation(predictedLocation.getLatitude(), predictedLocation.getLongitude(), true, predictedLocation.getAccuracy()));
+        dispatch(location, predictedLat, predictedLng, kalmanFilter.get_accuracy(), LocationQuality.FILTERED);
         return true;
     }
 
+    private void dispatch(Location location, double lat, double lng, float accuracy, LocationQuality quality) {
+        boolean hasAltitude = location.hasAltitude();
+        double altitude = location.getAltitude();
+        GeoidModel geoid = geoidModel;
+        double altitudeMsl = hasAltitude && geoid != null ? geoid.toMeanSeaLevel(lat, lng, altitude) : Double.NaN;
+        dispatch(lat, lng, accuracy, location.getElapsedRealtimeNanos(), location.getTime(),
+                location.hasSpeed(), location.getSpeed(), location.hasBearing(), location.getBearing(), quality,
+                hasAltitude, altitude, altitudeMsl);
+    }
+
+    //Publishes to the ring first so sinks and cursors never cause an allocation, the
+    //TTNewLocation is only created when there are observers to receive it
+    private void dispatch(double lat, double lng, float accuracy, long elapsedRealtimeNanos, long time,
+                          boolean hasSpeed, float speed, boolean hasBearing, float bearing,
+                          LocationQuality quality, boolean hasAltitude, double altitude, double altitudeMsl) {
+        long sequence = locationRing.publish(lat, lng, accuracy, elapsedRealtimeNanos, time,
+                hasSpeed, speed, hasBearing, bearing, quality, hasAltitude, altitude, altitudeMsl);
+        for (int i = 0; i < sinks.size(); i++) {
+            sinkCursor.moveTo(sequence);
+            sinks.get(i).onLocation(sinkCursor);
+        }
+        if (!disposeBag.isEmpty()) {
+            disposeBag.notifyAll(new TTNewLocation(lat, lng, accuracy, elapsedRealtimeNanos, time,
+                    hasSpeed, speed, hasBearing, bearing, quality, hasAltitude, altitude, altitudeMsl));
+        }
+    }
+
     public void addObserver(DisposableObserver<TTNewLocation> observer) {
         disposeBag.add(observer);
     }
@@ -317,13 +410,53 @@ public class CoordinateManager {
         disposeBag.remove(observer);
     }
 
+    /**
+     * Geoid used to give fixes an altitude above mean sea level, see
+     * {@link TTNewLocation#getAltitudeMsl()}. Null, the default, leaves it unknown.
+     */
+    public void setGeoidModel(GeoidModel geoidModel) {
+        this.geoidModel = geoidModel;
+    }
+
+    /**
+     * Adds a sink that is called on the location callback thread for every published fix,
+     * without allocating
+     */
+    public void addSink(LocationSink sink) {
+        if (sink != null && !sinks.contains(sink)) {
+            sinks.add(sink);
+        }
+    }
+
+    public void removeSink(LocationSink sink) {
+        sinks.remove(sink);
+    }
+
+    /**
+     * Opens a cursor over the fixes published from now on. Cursors can be polled from any
+     * thread; a cursor that falls more than {@link LocationRing#getCapacity()} fixes behind
+     * skips the overwritten ones.
+     */
+    public LocationCursor openCursor() {
+        return locationRing.openCursor();
+    }
+
     private void clearObservers() {
         // TODO: 03-11-2018 Call this from onstop
         disposeBag.clear();
     }
 
 
+    /**
+     * Stops GNSS updates and dead reckoning, call {@link #enableDeadReckoning(long)} again to
+     * dead reckon after updates restart
+     */
     public void stopLocationUpdates() {
+        if (deadReckoner != null) {
+            deadReckoner.stop();
+            deadReckoner = null;
+            setUpdateInterval(UPDATE_INTERVAL_IN_MILLISECONDS);
+        }
         if (mFusedLocationClient != null) {
             mFusedLocationClient.removeLocationUpdates(mLocationCallback);
             mFusedLocationClient.removeLocationUpdates(mLocationCallback)
@@ -377,6 +510,10 @@ public class CoordinateManager {
             }
         }
 
+        public boolean isEmpty() {
+            return locationObservers == null || locationObservers.isEmpty();
+        }
+
         public void notifyAll(TTNewLocation newLocation) {
             if (locationObservers == null) {
                 init();
@@ -0,0 +1,257 @@
+package com.transerve.locationservices.manager;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.util.Log;
+
+import com.transerve.locationservices.manager.geo.GeoMath;
+import com.transerve.locationservices.manager.gps.util.DeclinationCache;
+
+/**
+ * Pedestrian dead reckoning between GNSS fixes.
+ * <p>
+ * Heading comes from the rotation vector sensor and steps are detected from peaks in the
+ * accelerometer magnitude. Every accepted GNSS fix re-anchors the estimate, and each detected
+ * step advances it by the estimated step length along the current heading. The reported
+ * accuracy grows with the distance walked since the anchor, and no more positions are reported
+ * once it passes {@link #setMaxAccuracy(float)} or the anchor is older than
+ * {@link #setMaxAgeMillis(long)}, so the error stays bounded until the next fix arrives.
+ */
+public class DeadReckoner implements SensorEventListener {
+
+    private static final String TAG = "DeadReckoner";
+
+    // Weinberg step length constant, meters / (m/s^2)^(1/4)
+    private static final float WEINBERG_K = 0.48f;
+
+    private static final float MIN_STEP_LENGTH = 0.3f;
+
+    private static final float MAX_STEP_LENGTH = 1.2f;
+
+    // Rise above local gravity needed before a peak is counted as a step, m/s^2
+    private static final float STEP_THRESHOLD = 1.2f;
+
+    private static final long MIN_STEP_INTERVAL_NANOS = 250000000L;
+
+    // Fraction of the walked distance added to the accuracy, covers heading and length errors
+    private static final float DRIFT_PER_METER = 0.08f;
+
+    public interface Listener {
+        void onDeadReckonedPosition(double lat, double lng, float accuracy,
+                                    long elapsedRealtimeNanos);
+    }
+
+    private final SensorManager sensorManager;
+
+    private final Listener listener;
+
+    private final float[] rotationMatrix = new float[16];
+
+    private final float[] orientation = new float[3];
+
+    private final float[] truncatedRotationVector = new float[4];
+
+    private boolean truncateVector = false;
+
+    private boolean registered;
+
+    private float maxAccuracy = 30f;
+
+    private long maxAgeNanos = 60L * 1000000000L;
+
+    // Heading, radians clockwise from true north. NaN until the first rotation vector event.
+    private double heading = Double.NaN;
+
+    private final DeclinationCache declinationCache = new DeclinationCache();
+
+    // Step detection state
+    private float gravity = SensorManager.GRAVITY_EARTH;
+
+    private float filteredMagnitude = SensorManager.GRAVITY_EARTH;
+
+    private boolean aboveThreshold;
+
+    private float peak;
+
+    private float valley = SensorManager.GRAVITY_EARTH;
+
+    private long lastStepNanos;
+
+    // Step length scale, learned from the distance between consecutive anchors
+    private float stepScale = 1f;
+
+    // Anchor and current estimate
+    private boolean anchored;
+
+    private double lat;
+
+    private double lng;
+
+    private float anchorAccuracy;
+
+    private long anchorNanos;
+
+    private float walkedMeters;
+
+    private double anchorLat;
+
+    private double anchorLng;
+
+    public DeadReckoner(SensorManager sensorManager, Listener listener) {
+        this.sensorManager = sensorManager;
+        this.listener = listener;
+    }
+
+    /**
+     * Starts listening to the heading and accelerometer sensors
+     *
+     * @return false if the device lacks one of the required sensors
+     */
+    public boolean start() {
+        if (registered) {
+            return true;
+        }
+        Sensor rotation = sensorManager.getDefaultSensor(Sensor.TYPE_ROTATION_VECTOR);
+        Sensor accelerometer = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+        if (rotation == null || accelerometer == null) {
+            Log.w(TAG, "Dead reckoning needs rotation vector and accelerometer sensors");
+            return false;
+        }
+        sensorManager.registerListener(this, rotation, SensorManager.SENSOR_DELAY_UI);
+        sensorManager.registerListener(this, accelerometer, SensorManager.SENSOR_DELAY_GAME);
+        registered = true;
+        return true;
+    }
+
+    public void stop() {
+        if (registered) {
+            sensorManager.unregisterListener(this);
+            registered = false;
+        }
+        anchored = false;
+    }
+
+    public boolean isStarted() {
+        return registered;
+    }
+
+    public void setMaxAccuracy(float maxAccuracy) {
+        this.maxAccuracy = maxAccuracy;
+    }
+
+    public void setMaxAgeMillis(long maxAgeMillis) {
+        this.maxAgeNanos = maxAgeMillis * 1000000L;
+    }
+
+    /**
+     * Re-anchors the estimate on a filtered GNSS fix
+     */
+    public void onFix(double lat, double lng, float accuracy, long elapsedRealtimeNanos) {
+        if (anchored && walkedMeters > 10 && accuracy < walkedMeters) {
+            // Compare the walked distance with what GNSS saw to calibrate the step length
+            double gnssMeters = GeoMath.fastDistance(anchorLat, anchorLng, lat, lng);
+            float ratio = (float) (gnssMeters / (walkedMeters / stepScale));
+            ratio = Math.max(0.5f, Math.min(1.5f, ratio));
+            stepScale = 0.8f * stepScale + 0.2f * ratio;
+        }
+        this.lat = lat;
+        this.lng = lng;
+        anchorLat = lat;
+        anchorLng = lng;
+        anchorAccuracy = accuracy;
+        anchorNanos = elapsedRealtimeNanos;
+        walkedMeters = 0;
+        anchored = true;
+        declinationCache.update(lat, lng, 0, System.currentTimeMillis());
+    }
+
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        switch (event.sensor.getType()) {
+            case Sensor.TYPE_ROTATION_VECTOR:
+                onRotationVector(event.values);
+                break;
+            case Sensor.TYPE_ACCELEROMETER:
+                onAcceleration(event.values, event.timestamp);
+                break;
+            default:
+        }
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+    }
+
+    private void onRotationVector(float[] values) {
+        if (!truncateVector) {
+            try {
+                SensorManager.getRotationMatrixFromVector(rotationMatrix, values);
+            } catch (IllegalArgumentException e) {
+                // Same Samsung issue as in GpsInfoProvider, only the first four values are usable
+                Log.e(TAG, "Samsung device error? Will truncate vectors - " + e);
+                truncateVector = true;
+            }
+        }
+        if (truncateVector) {
+            System.arraycopy(values, 0, truncatedRotationVector, 0, 4);
+            SensorManager.getRotationMatrixFromVector(rotationMatrix, truncatedRotationVector);
+        }
+        SensorManager.getOrientation(rotationMatrix, orientation);
+        heading = orientation[0] + Math.toRadians(declinationCache.getDeclination());
+    }
+
+    private void onAcceleration(float[] values, long timestampNanos) {
+        float magnitude = (float) Math.sqrt(values[0] * values[0] + values[1] * values[1]
+                + values[2] * values[2]);
+        // Slow filter tracks gravity, fast filter smooths out sensor noise
+        gravity += 0.02f * (magnitude - gravity);
+        filteredMagnitude += 0.3f * (magnitude - filteredMagnitude);
+
+        float rise = filteredMagnitude - gravity;
+        if (!aboveThreshold) {
+            valley = Math.min(valley, filteredMagnitude);
+            if (rise > STEP_THRESHOLD) {
+                aboveThreshold = true;
+                peak = filteredMagnitude;
+            }
+        } else {
+            peak = Math.max(peak, filteredMagnitude);
+            if (rise < 0) {
+                aboveThreshold = false;
+                if (timestampNanos - lastStepNanos >= MIN_STEP_INTERVAL_NANOS) {
+                    lastStepNanos = timestampNanos;
+                    onStep(peak - valley, timestampNanos);
+                }
+                valley = filteredMagnitude;
+            }
+        }
+    }
+
+    private void onStep(float swing, long timestampNanos) {
+        if (!anchored || Double.isNaN(heading)) {
+            return;
+        }
+        if (timestampNanos - anchorNanos > maxAgeNanos) {
+            anchored = false;
+            return;
+        }
+        float stepLength = WEINBERG_K * (float) Math.sqrt(Math.sqrt(Math.max(swing, 0f)));
+        stepLength = Math.max(MIN_STEP_LENGTH, Math.min(MAX_STEP_LENGTH, stepLength)) * stepScale;
+
+        double north = stepLength * Math.cos(heading);
+        double east = stepLength * Math.sin(heading);
+        lat += Math.toDegrees(north / GeoMath.EARTH_RADIUS);
+        lng += Math.toDegrees(east / (GeoMath.EARTH_RADIUS * Math.cos(Math.toRadians(lat))));
+        walkedMeters += stepLength;
+
+        float accuracy = anchorAccuracy + walkedMeters * DRIFT_PER_METER;
+        if (accuracy > maxAccuracy) {
+            // Too far from the last fix to be useful, wait for the next one
+            anchored = false;
+            return;
+        }
+        listener.onDeadReckonedPosition(lat, lng, accuracy, timestampNanos);
+    }
+}
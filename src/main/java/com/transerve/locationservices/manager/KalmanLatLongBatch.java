@@ -0,0 +1,279 @@
+package com.transerve.locationservices.manager;
+
+import android.os.Build;
+
+import androidx.annotation.RequiresApi;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Batch variant of {@link KalmanLatLong} for stepping many tracks at once.
+ * <p>
+ * Filter state is kept in parallel primitive arrays indexed by track id, and measurements are
+ * queued with {@link #submit} and applied by {@link #processPending}. Measurements of one track
+ * are always applied in submission order, so every track ends in exactly the state a dedicated
+ * {@link KalmanLatLong} fed the same sequence through {@link KalmanLatLong#Process} would reach.
+ * <p>
+ * {@link ForkJoinPool} is only available from API 21, so on older devices use
+ * {@link #processPending()} which runs on the calling thread.
+ */
+public class KalmanLatLongBatch {
+    private static final float MinAccuracy = 1;
+    private static final int INITIAL_CAPACITY = 16;
+    // Number of tracks a single fork-join leaf task steps before splitting stops
+    private static final int TRACKS_PER_TASK = 512;
+
+    // Filter state, one slot per track
+    private int trackCount;
+    private float[] q;
+    private long[] timeStamp;
+    private double[] lat;
+    private double[] lng;
+    private float[] variance; // Negative means track uninitialised.
+
+    // Pending measurements, in submission order
+    private int pendingCount;
+    private int[] pendingTrack;
+    private double[] pendingLat;
+    private double[] pendingLng;
+    private float[] pendingAccuracy;
+    private long[] pendingTime;
+    private float[] pendingQ;
+
+    // Measurements grouped by track, rebuilt on every processPending()
+    private int[] trackStart;
+    private int[] order;
+
+    public KalmanLatLongBatch() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public KalmanLatLongBatch(int initialTracks) {
+        int capacity = Math.max(1, initialTracks);
+        q = new float[capacity];
+        timeStamp = new long[capacity];
+        lat = new double[capacity];
+        lng = new double[capacity];
+        variance = new float[capacity];
+        trackStart = new int[capacity + 1];
+
+        pendingTrack = new int[INITIAL_CAPACITY];
+        pendingLat = new double[INITIAL_CAPACITY];
+        pendingLng = new double[INITIAL_CAPACITY];
+        pendingAccuracy = new float[INITIAL_CAPACITY];
+        pendingTime = new long[INITIAL_CAPACITY];
+        pendingQ = new float[INITIAL_CAPACITY];
+        order = new int[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Adds a new, uninitialised track
+     *
+     * @param Q_metres_per_second initial process noise of the track
+     * @return the id of the track, used for all other calls
+     */
+    public int addTrack(float Q_metres_per_second) {
+        if (trackCount == q.length) {
+            int capacity = trackCount * 2;
+            q = Arrays.copyOf(q, capacity);
+            timeStamp = Arrays.copyOf(timeStamp, capacity);
+            lat = Arrays.copyOf(lat, capacity);
+            lng = Arrays.copyOf(lng, capacity);
+            variance = Arrays.copyOf(variance, capacity);
+            trackStart = new int[capacity + 1];
+        }
+        int track = trackCount++;
+        q[track] = Q_metres_per_second;
+        variance[track] = -1;
+        return track;
+    }
+
+    /**
+     * Returns the track to its uninitialised state, the same as creating a new
+     * {@link KalmanLatLong} for it
+     */
+    public void reset(int track) {
+        checkTrack(track);
+        timeStamp[track] = 0;
+        lat[track] = 0;
+        lng[track] = 0;
+        variance[track] = -1;
+    }
+
+    public int getTrackCount() {
+        return trackCount;
+    }
+
+    public int getPendingCount() {
+        return pendingCount;
+    }
+
+    public long getTimeStamp(int track) {
+        return timeStamp[track];
+    }
+
+    public double getLat(int track) {
+        return lat[track];
+    }
+
+    public double getLng(int track) {
+        return lng[track];
+    }
+
+    public float getAccuracy(int track) {
+        return (float) Math.sqrt(variance[track]);
+    }
+
+    public void setState(int track, double lat, double lng, float accuracy,
+                         long TimeStamp_milliseconds) {
+        checkTrack(track);
+        this.lat[track] = lat;
+        this.lng[track] = lng;
+        variance[track] = accuracy * accuracy;
+        timeStamp[track] = TimeStamp_milliseconds;
+    }
+
+    /**
+     * Queues a measurement for the track. Arguments are the same as {@link KalmanLatLong#Process}.
+     */
+    public void submit(int track, double lat_measurement, double lng_measurement,
+                       float accuracy, long TimeStamp_milliseconds, float Q_metres_per_second) {
+        checkTrack(track);
+        if (pendingCount == pendingTrack.length) {
+            int capacity = pendingCount * 2;
+            pendingTrack = Arrays.copyOf(pendingTrack, capacity);
+            pendingLat = Arrays.copyOf(pendingLat, capacity);
+            pendingLng = Arrays.copyOf(pendingLng, capacity);
+            pendingAccuracy = Arrays.copyOf(pendingAccuracy, capacity);
+            pendingTime = Arrays.copyOf(pendingTime, capacity);
+            pendingQ = Arrays.copyOf(pendingQ, capacity);
+            order = new int[capacity];
+        }
+        int m = pendingCount++;
+        pendingTrack[m] = track;
+        pendingLat[m] = lat_measurement;
+        pendingLng[m] = lng_measurement;
+        pendingAccuracy[m] = accuracy;
+        pendingTime[m] = TimeStamp_milliseconds;
+        pendingQ[m] = Q_metres_per_second;
+    }
+
+    /**
+     * Applies all pending measurements on the calling thread
+     */
+    public void processPending() {
+        if (groupPending()) {
+            step(0, trackCount);
+            pendingCount = 0;
+        }
+    }
+
+    /**
+     * Applies all pending measurements, partitioning the tracks across the given pool
+     */
+    @RequiresApi(Build.VERSION_CODES.LOLLIPOP)
+    public void processPending(ForkJoinPool pool) {
+        if (groupPending()) {
+            pool.invoke(new StepTask(0, trackCount));
+            pendingCount = 0;
+        }
+    }
+
+    /**
+     * Counting sort of the pending measurements by track. The sort is stable so each track keeps
+     * its submission order.
+     *
+     * @return false if there is nothing to process
+     */
+    private boolean groupPending() {
+        if (pendingCount == 0) {
+            return false;
+        }
+        int[] start = trackStart;
+        Arrays.fill(start, 0, trackCount + 1, 0);
+        for (int m = 0; m < pendingCount; m++) {
+            start[pendingTrack[m] + 1]++;
+        }
+        for (int t = 0; t < trackCount; t++) {
+            start[t + 1] += start[t];
+        }
+        // Use start[t] as the insertion cursor, then shift back
+        for (int m = 0; m < pendingCount; m++) {
+            order[start[pendingTrack[m]]++] = m;
+        }
+        for (int t = trackCount; t > 0; t--) {
+            start[t] = start[t - 1];
+        }
+        start[0] = 0;
+        return true;
+    }
+
+    private void step(int fromTrack, int toTrack) {
+        final int[] start = trackStart;
+        for (int t = fromTrack; t < toTrack; t++) {
+            for (int k = start[t], end = start[t + 1]; k < end; k++) {
+                apply(t, order[k]);
+            }
+        }
+    }
+
+    // Mirrors KalmanLatLong.Process statement for statement; keep both in sync.
+    private void apply(int t, int m) {
+        float Q_metres_per_second = pendingQ[m];
+        long TimeStamp_milliseconds = pendingTime[m];
+        float accuracy = pendingAccuracy[m];
+        q[t] = Q_metres_per_second;
+
+        if (accuracy < MinAccuracy)
+            accuracy = MinAccuracy;
+        if (variance[t] < 0) {
+            timeStamp[t] = TimeStamp_milliseconds;
+            lat[t] = pendingLat[m];
+            lng[t] = pendingLng[m];
+            variance[t] = accuracy * accuracy;
+        } else {
+            float v = variance[t];
+            long TimeInc_milliseconds = TimeStamp_milliseconds - timeStamp[t];
+            if (TimeInc_milliseconds > 0) {
+                v += TimeInc_milliseconds * Q_metres_per_second
+                        * Q_metres_per_second / 1000;
+                timeStamp[t] = TimeStamp_milliseconds;
+            }
+            float K = v / (v + accuracy * accuracy);
+            lat[t] += K * (pendingLat[m] - lat[t]);
+            lng[t] += K * (pendingLng[m] - lng[t]);
+            variance[t] = (1 - K) * v;
+        }
+    }
+
+    private void checkTrack(int track) {
+        if (track < 0 || track >= trackCount) {
+            throw new IllegalArgumentException("Unknown track " + track);
+        }
+    }
+
+    @RequiresApi(Build.VERSION_CODES.LOLLIPOP)
+    private class StepTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+
+        StepTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= TRACKS_PER_TASK) {
+                step(from, to);
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new StepTask(from, mid), new StepTask(mid, to));
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.transerve.locationservices.manager;
+
+/**
+ * Flyweight reader over a {@link LocationRing}. The getters read the current slot in place, so
+ * iterating over fixes allocates nothing.
+ * <pre>
+ * while (cursor.next()) {
+ *     double lat = cursor.getLat();
+ *     ...
+ *     if (!cursor.isValid()) {
+ *         // the writer lapped us while reading, drop what was read
+ *     }
+ * }
+ * </pre>
+ * A cursor must only be used from one thread at a time.
+ */
+public final class LocationCursor implements LocationFix {
+    private final LocationRing ring;
+    private long nextSequence;
+    private long sequence = -1;
+    // Index of the current slot's stamp in the ring's array
+    private int base;
+    private long lostCount;
+
+    LocationCursor(LocationRing ring, long nextSequence) {
+        this.ring = ring;
+        this.nextSequence = nextSequence;
+    }
+
+    /**
+     * Moves to the next published fix. If the writer overwrote fixes this cursor had not read
+     * yet, they are skipped and added to {@link #getLostCount()}.
+     *
+     * @return false if there is no new fix
+     */
+    public boolean next() {
+        long published = ring.published;
+        if (nextSequence > published) {
+            return false;
+        }
+        // Keep one slot of margin for the fix the writer may be writing right now
+        long oldestReadable = published - ring.capacity + 2;
+        if (nextSequence < oldestReadable) {
+            lostCount += oldestReadable - nextSequence;
+            nextSequence = oldestReadable;
+        }
+        moveTo(nextSequence++);
+        return true;
+    }
+
+    /**
+     * @return number of fixes published but not yet read by this cursor
+     */
+    public long available() {
+        return ring.published - nextSequence + 1;
+    }
+
+    /**
+     * Skips everything already published, the next call to {@link #next()} returns the first
+     * fix published after this call
+     */
+    public void skipToEnd() {
+        nextSequence = ring.published + 1;
+    }
+
+    void moveTo(long sequence) {
+        this.sequence = sequence;
+        this.base = ((int) sequence & ring.mask) * LocationRing.FIELDS;
+    }
+
+    /**
+     * @return true if the current slot was not overwritten since the cursor moved to it, so
+     * the fields read so far all belong to the current fix. Check this after reading the fields
+     * of a fix from a thread other than the writer's.
+     */
+    public boolean isValid() {
+        return sequence >= 0 && ring.slots.get(base + LocationRing.STAMP) == sequence;
+    }
+
+    /**
+     * @return sequence number of the current fix
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return total number of fixes this cursor skipped because the writer overwrote them
+     */
+    public long getLostCount() {
+        return lostCount;
+    }
+
+    @Override
+    public double getLat() {
+        return Double.longBitsToDouble(ring.slots.get(base + LocationRing.LAT));
+    }
+
+    @Override
+    public double getLng() {
+        return Double.longBitsToDouble(ring.slots.get(base + LocationRing.LNG));
+    }
+
+    @Override
+    public float getAccuracy() {
+        return Float.intBitsToFloat((int) ring.slots.get(base + LocationRing.ACCURACY));
+    }
+
+    @Override
+    public long getElapsedRealtimeNanos() {
+        return ring.slots.get(base + LocationRing.ELAPSED);
+    }
+
+    @Override
+    public long getTime() {
+        return ring.slots.get(base + LocationRing.TIME);
+    }
+
+    @Override
+    public boolean hasSpeed() {
+        return (ring.slots.get(base + LocationRing.FLAGS) & LocationRing.FLAG_HAS_SPEED) != 0;
+    }
+
+    @Override
+    public float getSpeed() {
+        return Float.intBitsToFloat((int) ring.slots.get(base + LocationRing.SPEED));
+    }
+
+    @Override
+    public boolean hasBearing() {
+        return (ring.slots.get(base + LocationRing.FLAGS) & LocationRing.FLAG_HAS_BEARING) != 0;
+    }
+
+    @Override
+    public float getBearing() {
+        return Float.intBitsToFloat((int) ring.slots.get(base + LocationRing.BEARING));
+    }
+
+    @Override
+    public LocationQuality getQuality() {
+        return LocationRing.QUALITIES[(int) (ring.slots.get(base + LocationRing.FLAGS) >> 8)];
+    }
+
+    /**
+     * @return full precision {@link com.transerve.locationservices.manager.geo.GeoHash} cell of
+     * the fix, computed once when it was published
+     */
+    public long getCellId() {
+        return ring.slots.get(base + LocationRing.CELL_ID);
+    }
+
+    @Override
+    public boolean hasAltitude() {
+        return (ring.slots.get(base + LocationRing.FLAGS) & LocationRing.FLAG_HAS_ALTITUDE) != 0;
+    }
+
+    /**
+     * @return altitude above the WGS84 ellipsoid in meters, 0 if {@link #hasAltitude()} is false
+     */
+    @Override
+    public double getAltitude() {
+        return Double.longBitsToDouble(ring.slots.get(base + LocationRing.ALTITUDE));
+    }
+
+    /**
+     * @return altitude above mean sea level in meters, NaN if unknown
+     */
+    @Override
+    public double getAltitudeMsl() {
+        return Double.longBitsToDouble(ring.slots.get(base + LocationRing.ALTITUDE_MSL));
+    }
+}
@@ -0,0 +1,41 @@
+package com.transerve.locationservices.manager;
+
+/**
+ * Read access to the fields of a location fix. Implemented by the immutable
+ * {@link TTNewLocation} and by flyweights such as {@link LocationCursor} that read the fields
+ * in place, so consumers can handle both without copying.
+ */
+public interface LocationFix {
+
+    double getLat();
+
+    double getLng();
+
+    float getAccuracy();
+
+    long getElapsedRealtimeNanos();
+
+    long getTime();
+
+    boolean hasSpeed();
+
+    float getSpeed();
+
+    boolean hasBearing();
+
+    float getBearing();
+
+    LocationQuality getQuality();
+
+    boolean hasAltitude();
+
+    /**
+     * @return altitude above the WGS84 ellipsoid in meters, 0 if {@link #hasAltitude()} is false
+     */
+    double getAltitude();
+
+    /**
+     * @return altitude above mean sea level in meters, NaN if unknown
+     */
+    double getAltitudeMsl();
+}
@@ -0,0 +1,19 @@
+package com.transerve.locationservices.manager;
+
+/**
+ * Where a {@link TTNewLocation} came from and how far it can be trusted
+ */
+public enum LocationQuality {
+    /**
+     * Passed the accuracy filter and was smoothed by the Kalman filter
+     */
+    FILTERED,
+    /**
+     * Raw fix that was rejected by the accuracy filter
+     */
+    INACCURATE,
+    /**
+     * Estimated from sensors between GNSS fixes, see {@link DeadReckoner}
+     */
+    DEAD_RECKONED
+}
@@ -0,0 +1,133 @@
+package com.transerve.locationservices.manager;
+
+import com.transerve.locationservices.manager.geo.GeoHash;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Preallocated ring of location fix slots with a single writer and any number of
+ * {@link LocationCursor} readers.
+ * <p>
+ * Every published fix gets the next sequence number and is stored in slot
+ * {@code sequence & (capacity - 1)}. Readers never block the writer: a reader that falls more
+ * than a ring behind loses the overwritten fixes and is told about it through
+ * {@link LocationCursor#getLostCount()}.
+ * <p>
+ * Each slot is a run of longs in one {@link AtomicLongArray}, floats and doubles stored as
+ * their raw bits, led by a stamp. The writer sets the stamp to the complement of the sequence,
+ * writes the fields, then sets it to the sequence. All of these are volatile, so a reader that
+ * saw any field of a later fix also sees the stamp change, and no long or double is ever torn.
+ * {@link LocationCursor#isValid()} compares the stamp after the fields were read.
+ */
+public class LocationRing {
+    static final byte FLAG_HAS_SPEED = 1;
+    static final byte FLAG_HAS_BEARING = 1 << 1;
+    static final byte FLAG_HAS_ALTITUDE = 1 << 2;
+
+    static final LocationQuality[] QUALITIES = LocationQuality.values();
+
+    // Offsets of the fields within a slot
+    static final int STAMP = 0;
+    static final int LAT = 1;
+    static final int LNG = 2;
+    static final int ACCURACY = 3;
+    static final int ELAPSED = 4;
+    static final int TIME = 5;
+    static final int SPEED = 6;
+    static final int BEARING = 7;
+    // Flags in the low byte, quality ordinal in the next one
+    static final int FLAGS = 8;
+    static final int CELL_ID = 9;
+    static final int ALTITUDE = 10;
+    static final int ALTITUDE_MSL = 11;
+    static final int FIELDS = 12;
+
+    final int capacity;
+    final int mask;
+
+    final AtomicLongArray slots;
+
+    // Sequence of the last fully written slot, -1 before the first publish
+    volatile long published = -1;
+
+    /**
+     * @param capacity number of slots, rounded up to a power of two
+     */
+    public LocationRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.capacity = size;
+        this.mask = size - 1;
+        slots = new AtomicLongArray(size * FIELDS);
+        for (int slot = 0; slot < size; slot++) {
+            // No sequence is negative, empty slots never look valid
+            slots.set(slot * FIELDS + STAMP, -1);
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return sequence of the latest published fix, -1 if nothing was published yet
+     */
+    public long getPublishedSequence() {
+        return published;
+    }
+
+    /**
+     * Writes a fix into the next slot. Must only be called from one thread.
+     *
+     * @return the sequence number of the fix
+     */
+    public long publish(double lat, double lng, float accuracy, long elapsedRealtimeNanos,
+                        long time, boolean hasSpeed, float speed, boolean hasBearing,
+                        float bearing, LocationQuality quality) {
+        return publish(lat, lng, accuracy, elapsedRealtimeNanos, time, hasSpeed, speed, hasBearing,
+                bearing, quality, false, 0, Double.NaN);
+    }
+
+    /**
+     * Writes a fix with altitudes into the next slot. Must only be called from one thread.
+     *
+     * @param altitudeMsl altitude above mean sea level, NaN if unknown
+     * @return the sequence number of the fix
+     */
+    public long publish(double lat, double lng, float accuracy, long elapsedRealtimeNanos,
+                        long time, boolean hasSpeed, float speed, boolean hasBearing,
+                        float bearing, LocationQuality quality, boolean hasAltitude,
+                        double altitude, double altitudeMsl) {
+        long sequence = published + 1;
+        int base = ((int) sequence & mask) * FIELDS;
+        slots.set(base + STAMP, ~sequence);
+        slots.set(base + LAT, Double.doubleToRawLongBits(lat));
+        slots.set(base + LNG, Double.doubleToRawLongBits(lng));
+        slots.set(base + ACCURACY, Float.floatToRawIntBits(accuracy));
+        slots.set(base + ELAPSED, elapsedRealtimeNanos);
+        slots.set(base + TIME, time);
+        slots.set(base + SPEED, Float.floatToRawIntBits(hasSpeed ? speed : 0f));
+        slots.set(base + BEARING, Float.floatToRawIntBits(hasBearing ? bearing : 0f));
+        int flags = (hasSpeed ? FLAG_HAS_SPEED : 0) | (hasBearing ? FLAG_HAS_BEARING : 0)
+                | (hasAltitude ? FLAG_HAS_ALTITUDE : 0);
+        slots.set(base + FLAGS, flags | quality.ordinal() << 8);
+        slots.set(base + CELL_ID, GeoHash.encode(lat, lng, GeoHash.MAX_PRECISION));
+        slots.set(base + ALTITUDE, Double.doubleToRawLongBits(hasAltitude ? altitude : 0));
+        slots.set(base + ALTITUDE_MSL, Double.doubleToRawLongBits(hasAltitude ? altitudeMsl : Double.NaN));
+        slots.set(base + STAMP, sequence);
+        published = sequence;
+        return sequence;
+    }
+
+    public long publish(LocationFix fix) {
+        return publish(fix.getLat(), fix.getLng(), fix.getAccuracy(), fix.getElapsedRealtimeNanos(),
+                fix.getTime(), fix.hasSpeed(), fix.getSpeed(), fix.hasBearing(), fix.getBearing(),
+                fix.getQuality(), fix.hasAltitude(), fix.getAltitude(), fix.getAltitudeMsl());
+    }
+
+    /**
+     * Opens a cursor that starts at the next fix to be published
+     */
+    public LocationCursor openCursor() {
+        return new LocationCursor(this, published + 1);
+    }
+}
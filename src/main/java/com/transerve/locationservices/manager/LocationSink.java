@@ -0,0 +1,13 @@
+package com.transerve.locationservices.manager;
+
+/**
+ * Allocation free alternative to observing {@link TTNewLocation}s. Sinks are called on the
+ * location callback thread with a cursor positioned on the fix that was just published. The
+ * cursor is only valid for the duration of the call and must not be kept.
+ *
+ * @see CoordinateManager#addSink(LocationSink)
+ */
+public interface LocationSink {
+
+    void onLocation(LocationCursor fix);
+}
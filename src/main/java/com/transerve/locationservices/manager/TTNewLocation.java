@@ -1,46 +1,224 @@
 package com.transerve.locationservices.manager;
 
-public class TTNewLocation {
-    private Double lat, lng;
-    private Boolean isAccurate;
-    private Float accuracy;
+import android.location.Location;
 
-    public TTNewLocation(Double lat, Double lng, Boolean isAccurate, Float accuracy) {
+import com.transerve.locationservices.manager.geo.GeoHash;
+
+/**
+ * Immutable location fix handed to the observers of {@link CoordinateManager}. All fields are
+ * primitives, so a single instance can be shared between any number of observers.
+ * <p>
+ * Earlier versions were mutable and returned boxed values. The setters are gone and the
+ * getters return primitives, so callers that modify a fix or call methods on the returned
+ * values, such as {@code getLat().toString()}, must be updated.
+ */
+public final class TTNewLocation implements LocationFix {
+    private final double lat, lng;
+    private final float accuracy;
+    private final long elapsedRealtimeNanos;
+    private final long time;
+    private final float speed, bearing;
+    private final boolean hasSpeed, hasBearing;
+    private final LocationQuality quality;
+    private final long cellId;
+    private final boolean hasAltitude;
+    private final double altitude, altitudeMsl;
+
+    public TTNewLocation(double lat, double lng, float accuracy, long elapsedRealtimeNanos,
+                         long time, boolean hasSpeed, float speed, boolean hasBearing,
+                         float bearing, LocationQuality quality) {
+        this(lat, lng, accuracy, elapsedRealtimeNanos, time, hasSpeed, speed, hasBearing, bearing,
+                quality, false, 0, Double.NaN);
+    }
+
+    /**
+     * @param altitude    altitude above the WGS84 ellipsoid, ignored if {@code hasAltitude} is false
+     * @param altitudeMsl altitude above mean sea level, NaN if unknown
+     */
+    public TTNewLocation(double lat, double lng, float accuracy, long elapsedRealtimeNanos,
+                         long time, boolean hasSpeed, float speed, boolean hasBearing,
+                         float bearing, LocationQuality quality, boolean hasAltitude,
+                         double altitude, double altitudeMsl) {
         this.lat = lat;
         this.lng = lng;
-        this.isAccurate = isAccurate;
         this.accuracy = accuracy;
+        this.elapsedRealtimeNanos = elapsedRealtimeNanos;
+        this.time = time;
+        this.hasSpeed = hasSpeed;
+        this.speed = hasSpeed ? speed : 0f;
+        this.hasBearing = hasBearing;
+        this.bearing = hasBearing ? bearing : 0f;
+        this.quality = quality;
+        this.cellId = GeoHash.encode(lat, lng, GeoHash.MAX_PRECISION);
+        this.hasAltitude = hasAltitude;
+        this.altitude = hasAltitude ? altitude : 0;
+        this.altitudeMsl = hasAltitude ? altitudeMsl : Double.NaN;
     }
 
-    public Double getLat() {
-        return lat;
+    /**
+     * @deprecated carries no timestamp, speed or bearing. Use one of the other constructors or
+     * {@link #fromLocation}.
+     */
+    @Deprecated
+    public TTNewLocation(double lat, double lng, boolean isAccurate, float accuracy) {
+        this(lat, lng, accuracy, 0, 0, false, 0f, false, 0f,
+                isAccurate ? LocationQuality.FILTERED : LocationQuality.INACCURATE);
     }
 
-    public void setLat(Double lat) {
-        this.lat = lat;
+    /**
+     * Copies the timestamps, speed, bearing and altitude of the platform location, but uses the
+     * given position and accuracy. The mean sea level altitude is left unknown.
+     */
+    public static TTNewLocation fromLocation(Location location, double lat, double lng,
+                                             float accuracy, LocationQuality quality) {
+        return new TTNewLocation(lat, lng, accuracy, location.getElapsedRealtimeNanos(),
+                location.getTime(), location.hasSpeed(), location.getSpeed(),
+                location.hasBearing(), location.getBearing(), quality,
+                location.hasAltitude(), location.getAltitude(), Double.NaN);
     }
 
-    public Double getLng() {
-        return lng;
+    public static TTNewLocation fromLocation(Location location, LocationQuality quality) {
+        return fromLocation(location, location.getLatitude(), location.getLongitude(),
+                location.getAccuracy(), quality);
     }
 
-    public void setLng(Double lng) {
-        this.lng = lng;
+    @Override
+    public double getLat() {
+        return lat;
     }
 
-    public Boolean getAccurate() {
-        return isAccurate;
+    @Override
+    public double getLng() {
+        return lng;
     }
 
-    public void setAccurate(Boolean accurate) {
-        isAccurate = accurate;
+    /**
+     * @return true if the fix passed the accuracy filter, false for rejected and
+     * {@link LocationQuality#DEAD_RECKONED} fixes
+     */
+    public boolean getAccurate() {
+        return quality == LocationQuality.FILTERED;
     }
 
-    public Float getAccuracy() {
+    /**
+     * @return estimated horizontal accuracy in meters
+     */
+    @Override
+    public float getAccuracy() {
         return accuracy;
     }
 
-    public void setAccuracy(Float accuracy) {
-        this.accuracy = accuracy;
+    /**
+     * @return time of the fix on the {@link android.os.SystemClock#elapsedRealtimeNanos()} clock,
+     * use this to order and age fixes
+     */
+    @Override
+    public long getElapsedRealtimeNanos() {
+        return elapsedRealtimeNanos;
+    }
+
+    /**
+     * @return UTC time of the fix in milliseconds since epoch
+     */
+    @Override
+    public long getTime() {
+        return time;
+    }
+
+    @Override
+    public boolean hasSpeed() {
+        return hasSpeed;
+    }
+
+    /**
+     * @return speed in meters/second, 0 if {@link #hasSpeed()} is false
+     */
+    @Override
+    public float getSpeed() {
+        return speed;
+    }
+
+    @Override
+    public boolean hasBearing() {
+        return hasBearing;
+    }
+
+    /**
+     * @return bearing in degrees east of true north, 0 if {@link #hasBearing()} is false
+     */
+    @Override
+    public float getBearing() {
+        return bearing;
+    }
+
+    @Override
+    public LocationQuality getQuality() {
+        return quality;
+    }
+
+    /**
+     * @return full precision {@link GeoHash} cell of the fix, use
+     * {@link GeoHash#truncate(long, int)} to key by a coarser cell
+     */
+    public long getCellId() {
+        return cellId;
+    }
+
+    @Override
+    public boolean hasAltitude() {
+        return hasAltitude;
+    }
+
+    /**
+     * @return altitude above the WGS84 ellipsoid in meters, 0 if {@link #hasAltitude()} is false
+     */
+    @Override
+    public double getAltitude() {
+        return altitude;
+    }
+
+    /**
+     * @return altitude above mean sea level in meters, from the geoid model given to
+     * {@link CoordinateManager#setGeoidModel}, NaN if unknown
+     */
+    @Override
+    public double getAltitudeMsl() {
+        return altitudeMsl;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof TTNewLocation)) {
+            return false;
+        }
+        TTNewLocation that = (TTNewLocation) o;
+        return Double.compare(that.lat, lat) == 0
+                && Double.compare(that.lng, lng) == 0
+                && Float.compare(that.accuracy, accuracy) == 0
+                && elapsedRealtimeNanos == that.elapsedRealtimeNanos
+                && time == that.time
+                && hasSpeed == that.hasSpeed
+                && Float.compare(that.speed, speed) == 0
+                && hasBearing == that.hasBearing
+                && Float.compare(that.bearing, bearing) == 0
+                && quality == that.quality
+                && hasAltitude == that.hasAltitude
+                && Double.compare(that.altitude, altitude) == 0
+                && Double.compare(that.altitudeMsl, altitudeMsl) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        long bits = Double.doubleToLongBits(lat);
+        int result = (int) (bits ^ (bits >>> 32));
+        bits = Double.doubleToLongBits(lng);
+        result = 31 * result + (int) (bits ^ (bits >>> 32));
+        result = 31 * result + Float.floatToIntBits(accuracy);
+        result = 31 * result + (int) (elapsedRealtimeNanos ^ (elapsedRealtimeNanos >>> 32));
+        result = 31 * result + quality.hashCode();
+        return result;
     }
 }
@@ -0,0 +1,282 @@
+package com.transerve.locationservices.manager.export;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Buffered UTF-8 text writer for the exporters. Numbers and timestamps are formatted straight
+ * into the byte buffer, so writing a fix doesn't allocate. One instance can be reused for
+ * many exports with {@link #reset(OutputStream)}.
+ */
+public final class ExportWriter {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final long[] POWERS_OF_TEN = {
+            1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L
+    };
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    // Digits are produced backwards into this scratch space
+    private final byte[] digits = new byte[20];
+
+    private int length;
+
+    private OutputStream out;
+
+    public void reset(OutputStream out) {
+        this.out = out;
+        length = 0;
+    }
+
+    public void flush() throws IOException {
+        if (length > 0) {
+            out.write(buffer, 0, length);
+            length = 0;
+        }
+        out.flush();
+    }
+
+    public ExportWriter append(char c) throws IOException {
+        if (c < 0x80) {
+            ensure(1);
+            buffer[length++] = (byte) c;
+        } else {
+            appendCodePoint(c);
+        }
+        return this;
+    }
+
+    /**
+     * Appends the text as is, for markup
+     */
+    public ExportWriter append(String text) throws IOException {
+        for (int i = 0, n = text.length(); i < n; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                ensure(1);
+                buffer[length++] = (byte) c;
+            } else {
+                i = appendNonAscii(text, i);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Appends the text escaped for XML content and attribute values. Control characters that
+     * XML 1.0 doesn't allow, even as references, are dropped. Appends nothing for null.
+     */
+    public ExportWriter appendXml(String text) throws IOException {
+        if (text == null) {
+            return this;
+        }
+        for (int i = 0, n = text.length(); i < n; i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&':
+                    append("&amp;");
+                    break;
+                case '<':
+                    append("&lt;");
+                    break;
+                case '>':
+                    append("&gt;");
+                    break;
+                case '"':
+                    append("&quot;");
+                    break;
+                case '\t':
+                case '\n':
+                case '\r':
+                    append(c);
+                    break;
+                default:
+                    if (c < 0x20 || c == '\uFFFE' || c == '\uFFFF') {
+                        break;
+                    }
+                    if (c < 0x80) {
+                        append(c);
+                    } else {
+                        i = appendNonAscii(text, i);
+                    }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Appends the text as a quoted JSON string, or null
+     */
+    public ExportWriter appendJsonString(String text) throws IOException {
+        if (text == null) {
+            return append("null");
+        }
+        append('"');
+        for (int i = 0, n = text.length(); i < n; i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                append('\\').append(c);
+            } else if (c < 0x20) {
+                append("\\u00").append(hexDigit(c >> 4)).append(hexDigit(c & 0xF));
+            } else if (c < 0x80) {
+                append(c);
+            } else {
+                i = appendNonAscii(text, i);
+            }
+        }
+        return append('"');
+    }
+
+    public ExportWriter appendLong(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            return append(Long.toString(value));
+        }
+        ensure(20);
+        if (value < 0) {
+            buffer[length++] = '-';
+            value = -value;
+        }
+        int n = 0;
+        do {
+            digits[n++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        while (n > 0) {
+            buffer[length++] = digits[--n];
+        }
+        return this;
+    }
+
+    /**
+     * Appends the value rounded to a fixed number of decimals, at most 9. Trailing zeros of the
+     * fraction are dropped.
+     */
+    public ExportWriter appendFixed(double value, int decimals) throws IOException {
+        if (decimals < 0 || decimals >= POWERS_OF_TEN.length) {
+            throw new IllegalArgumentException("Unsupported number of decimals " + decimals);
+        }
+        long scale = POWERS_OF_TEN[decimals];
+        if (Double.isNaN(value) || Double.isInfinite(value) || Math.abs(value) >= Long.MAX_VALUE / scale) {
+            // Not representable as a plain decimal, rare enough to allow the allocation
+            return append(Double.toString(value));
+        }
+        long scaled = Math.round(Math.abs(value) * scale);
+        if (value < 0 && scaled != 0) {
+            append('-');
+        }
+        appendLong(scaled / scale);
+        long fraction = scaled % scale;
+        if (fraction != 0) {
+            int width = decimals;
+            while (fraction % 10 == 0) {
+                fraction /= 10;
+                width--;
+            }
+            ensure(1 + width);
+            buffer[length++] = '.';
+            for (int i = width - 1; i >= 0; i--) {
+                buffer[length + i] = (byte) ('0' + fraction % 10);
+                fraction /= 10;
+            }
+            length += width;
+        }
+        return this;
+    }
+
+    /**
+     * Appends the time as an ISO 8601 UTC timestamp, like {@code 2019-03-01T08:15:30.250Z}
+     */
+    public ExportWriter appendIsoTime(long millis) throws IOException {
+        long days = floorDiv(millis, 86400000L);
+        long millisOfDay = millis - days * 86400000L;
+
+        // Civil date from days since 1970-01-01, proleptic Gregorian calendar
+        long z = days + 719468;
+        long era = floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        if (year >= 0 && year <= 9999) {
+            appendPadded(year, 4);
+        } else {
+            appendLong(year);
+        }
+        append('-');
+        appendPadded(month, 2);
+        append('-');
+        appendPadded(day, 2);
+        append('T');
+        appendPadded(millisOfDay / 3600000, 2);
+        append(':');
+        appendPadded(millisOfDay / 60000 % 60, 2);
+        append(':');
+        appendPadded(millisOfDay / 1000 % 60, 2);
+        append('.');
+        appendPadded(millisOfDay % 1000, 3);
+        return append('Z');
+    }
+
+    private void appendPadded(long value, int width) throws IOException {
+        ensure(width);
+        for (int i = width - 1; i >= 0; i--) {
+            buffer[length + i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += width;
+    }
+
+    // Math.floorDiv needs API 24
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        return (x % y != 0 && (x ^ y) < 0) ? q - 1 : q;
+    }
+
+    private static char hexDigit(int value) {
+        return (char) (value < 10 ? '0' + value : 'a' + value - 10);
+    }
+
+    // Encodes the character at i, and its low surrogate if any. Returns the last index used.
+    private int appendNonAscii(String text, int i) throws IOException {
+        char c = text.charAt(i);
+        if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                && Character.isLowSurrogate(text.charAt(i + 1))) {
+            appendCodePoint(Character.toCodePoint(c, text.charAt(i + 1)));
+            return i + 1;
+        }
+        appendCodePoint(Character.isSurrogate(c) ? '?' : c);
+        return i;
+    }
+
+    private void appendCodePoint(int codePoint) throws IOException {
+        ensure(4);
+        if (codePoint < 0x80) {
+            buffer[length++] = (byte) codePoint;
+        } else if (codePoint < 0x800) {
+            buffer[length++] = (byte) (0xC0 | codePoint >> 6);
+            buffer[length++] = (byte) (0x80 | codePoint & 0x3F);
+        } else if (codePoint < 0x10000) {
+            buffer[length++] = (byte) (0xE0 | codePoint >> 12);
+            buffer[length++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+            buffer[length++] = (byte) (0x80 | codePoint & 0x3F);
+        } else {
+            buffer[length++] = (byte) (0xF0 | codePoint >> 18);
+            buffer[length++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+            buffer[length++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+            buffer[length++] = (byte) (0x80 | codePoint & 0x3F);
+        }
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (length + bytes > buffer.length) {
+            out.write(buffer, 0, length);
+            length = 0;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.transerve.locationservices.manager.export;
+
+import com.transerve.locationservices.manager.LocationFix;
+
+import java.io.IOException;
+
+/**
+ * Writes a GeoJSON Feature with the track as a LineString. The name and the time span go into
+ * the properties, which follow the geometry so they can be written once the span is known.
+ * A LineString needs two positions, so a single fix is written as a Point and an empty track
+ * with a null geometry.
+ */
+public class GeoJsonExporter extends TrackExporter {
+
+    private String name;
+
+    private long startTime;
+
+    private long endTime;
+
+    // Held back until the second fix tells which geometry to write
+    private double firstLat;
+
+    private double firstLng;
+
+    @Override
+    protected void writeHeader(String name) throws IOException {
+        this.name = name;
+        writer.append("{\"type\":\"Feature\",\"geometry\":");
+    }
+
+    @Override
+    protected void writeFix(LocationFix fix, long index) throws IOException {
+        endTime = fix.getTime();
+        if (index == 0) {
+            startTime = fix.getTime();
+            firstLat = fix.getLat();
+            firstLng = fix.getLng();
+            return;
+        }
+        if (index == 1) {
+            writer.append("{\"type\":\"LineString\",\"coordinates\":[");
+            writePosition(firstLat, firstLng);
+        }
+        writer.append(',');
+        writePosition(fix.getLat(), fix.getLng());
+    }
+
+    @Override
+    protected void writeFooter(long count) throws IOException {
+        if (count == 0) {
+            writer.append("null");
+        } else if (count == 1) {
+            writer.append("{\"type\":\"Point\",\"coordinates\":");
+            writePosition(firstLat, firstLng).append('}');
+        } else {
+            writer.append("]}");
+        }
+        writer.append(",\"properties\":{\"name\":").appendJsonString(name);
+        if (count > 0) {
+            writer.append(",\"startTime\":\"").appendIsoTime(startTime)
+                    .append("\",\"endTime\":\"").appendIsoTime(endTime).append('"');
+        }
+        writer.append(",\"count\":").appendLong(count).append("}}\n");
+        name = null;
+    }
+
+    private ExportWriter writePosition(double lat, double lng) throws IOException {
+        return writer.append('[').appendFixed(lng, 7).append(',').appendFixed(lat, 7).append(']');
+    }
+}
@@ -0,0 +1,31 @@
+package com.transerve.locationservices.manager.export;
+
+import com.transerve.locationservices.manager.LocationFix;
+
+import java.io.IOException;
+
+/**
+ * Writes GPX 1.1 with one track segment of timestamped points
+ */
+public class GpxExporter extends TrackExporter {
+
+    @Override
+    protected void writeHeader(String name) throws IOException {
+        writer.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+                .append("<gpx version=\"1.1\" creator=\"LocationService\" xmlns=\"http://www.topografix.com/GPX/1/1\">\n")
+                .append("<trk><name>").appendXml(name).append("</name><trkseg>\n");
+    }
+
+    @Override
+    protected void writeFix(LocationFix fix, long index) throws IOException {
+        writer.append("<trkpt lat=\"").appendFixed(fix.getLat(), 7)
+                .append("\" lon=\"").appendFixed(fix.getLng(), 7)
+                .append("\"><time>").appendIsoTime(fix.getTime())
+                .append("</time></trkpt>\n");
+    }
+
+    @Override
+    protected void writeFooter(long count) throws IOException {
+        writer.append("</trkseg></trk>\n</gpx>\n");
+    }
+}
@@ -0,0 +1,54 @@
+package com.transerve.locationservices.manager.export;
+
+import com.transerve.locationservices.manager.LocationFix;
+
+import java.io.IOException;
+
+/**
+ * Writes KML 2.2 with the track as a single LineString placemark. A LineString needs two
+ * coordinates, so a single fix is written as a Point and an empty track as a placemark without
+ * geometry.
+ */
+public class KmlExporter extends TrackExporter {
+
+    // Held back until the second fix tells which geometry to write
+    private double firstLat;
+
+    private double firstLng;
+
+    @Override
+    protected void writeHeader(String name) throws IOException {
+        writer.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+                .append("<kml xmlns=\"http://www.opengis.net/kml/2.2\"><Document>\n")
+                .append("<Placemark><name>").appendXml(name).append("</name>\n");
+    }
+
+    @Override
+    protected void writeFix(LocationFix fix, long index) throws IOException {
+        if (index == 0) {
+            firstLat = fix.getLat();
+            firstLng = fix.getLng();
+            return;
+        }
+        if (index == 1) {
+            writer.append("<LineString><tessellate>1</tessellate><coordinates>\n");
+            writeCoordinates(firstLat, firstLng).append('\n');
+        }
+        writeCoordinates(fix.getLat(), fix.getLng()).append('\n');
+    }
+
+    @Override
+    protected void writeFooter(long count) throws IOException {
+        if (count == 1) {
+            writer.append("<Point><coordinates>");
+            writeCoordinates(firstLat, firstLng).append("</coordinates></Point>");
+        } else if (count > 1) {
+            writer.append("</coordinates></LineString>");
+        }
+        writer.append("</Placemark>\n</Document></kml>\n");
+    }
+
+    private ExportWriter writeCoordinates(double lat, double lng) throws IOException {
+        return writer.appendFixed(lng, 7).append(',').appendFixed(lat, 7);
+    }
+}
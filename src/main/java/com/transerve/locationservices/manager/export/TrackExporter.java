@@ -0,0 +1,97 @@
+package com.transerve.locationservices.manager.export;
+
+import com.transerve.locationservices.manager.LocationFix;
+import com.transerve.locationservices.manager.track.FixVisitor;
+import com.transerve.locationservices.manager.track.TrackReader;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Streams recorded fixes into a track file format.
+ * <p>
+ * Fixes are written one at a time as they are read, so an export runs in constant memory
+ * whatever the track length. Exporters are {@link FixVisitor}s, so besides
+ * {@link #export(TrackReader, OutputStream, String)} they can be fed by any query, like
+ * {@link com.transerve.locationservices.manager.track.TrackTimeIndex#queryRange}:
+ * <pre>
+ * exporter.begin(out, name);
+ * index.queryRange(from, to, exporter);
+ * exporter.end();
+ * </pre>
+ * An exporter and its buffer can be reused for the next export once {@link #end()} returned.
+ */
+public abstract class TrackExporter implements FixVisitor {
+
+    protected final ExportWriter writer = new ExportWriter();
+
+    private IOException error;
+
+    private long count;
+
+    /**
+     * Writes the whole track of the reader
+     */
+    public void export(TrackReader reader, OutputStream out, String name) throws IOException {
+        begin(out, name);
+        reader.seek(0);
+        while (reader.next()) {
+            if (!onFix(reader)) {
+                break;
+            }
+        }
+        end();
+    }
+
+    /**
+     * Writes the header, the track name may be null
+     */
+    public void begin(OutputStream out, String name) throws IOException {
+        writer.reset(out);
+        error = null;
+        count = 0;
+        writeHeader(name);
+    }
+
+    /**
+     * Writes one fix. Stops the query with false if writing failed, the error is then thrown
+     * from {@link #end()}.
+     */
+    @Override
+    public boolean onFix(LocationFix fix) {
+        try {
+            writeFix(fix, count++);
+            return true;
+        } catch (IOException e) {
+            error = e;
+            return false;
+        }
+    }
+
+    /**
+     * Finishes the document and flushes it to the stream, the stream is left open
+     */
+    public void end() throws IOException {
+        if (error != null) {
+            throw error;
+        }
+        writeFooter(count);
+        writer.flush();
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    protected abstract void writeHeader(String name) throws IOException;
+
+    /**
+     * @param index number of fixes written before this one
+     */
+    protected abstract void writeFix(LocationFix fix, long index) throws IOException;
+
+    /**
+     * @param count number of fixes written
+     */
+    protected abstract void writeFooter(long count) throws IOException;
+}
@@ -0,0 +1,275 @@
+package com.transerve.locationservices.manager.geo;
+
+import java.util.Arrays;
+
+/**
+ * Geohash cells packed into a {@code long}, so keying data by cell never allocates.
+ * <p>
+ * The interleaved hash bits, longitude first, are left aligned in bits 63..4 and the precision
+ * in characters (0 to {@link #MAX_PRECISION}) is kept in bits 3..0. Parent, children and
+ * neighbors are computed with bit operations, and the geohash string is only built on request
+ * with {@link #toString(long)}.
+ * <p>
+ * Because the bits are left aligned, every hash inside a cell, at its precision or finer, lies
+ * between {@link #rangeStart(long)} and {@link #rangeEnd(long)} of that cell, so a prefix
+ * search on sorted hashes is a single range scan. The order is unsigned: cells with a
+ * longitude from 0 east have the sign bit set, so sort and compare hashes with
+ * {@link #compare(long, long)}, not {@code <}.
+ */
+public final class GeoHash {
+
+    public static final int MAX_PRECISION = 12;
+
+    /**
+     * Returned for neighbors beyond the poles, never a valid hash
+     */
+    public static final long NONE = -1L;
+
+    private static final int BITS_PER_CHAR = 5;
+
+    private static final int PRECISION_BITS = 4;
+
+    private static final long PRECISION_MASK = (1L << PRECISION_BITS) - 1;
+
+    // Bits per axis at full precision, 60 bits split evenly
+    private static final int AXIS_BITS = 30;
+
+    private static final long AXIS_MASK = (1L << AXIS_BITS) - 1;
+
+    private static final char[] BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz".toCharArray();
+
+    private static final byte[] BASE32_INDEX = new byte[128];
+
+    static {
+        Arrays.fill(BASE32_INDEX, (byte) -1);
+        for (int i = 0; i < BASE32.length; i++) {
+            BASE32_INDEX[BASE32[i]] = (byte) i;
+        }
+    }
+
+    private GeoHash() {
+    }
+
+    public static long encode(double lat, double lng, int precision) {
+        checkPrecision(precision);
+        long latBits = quantize(lat, -90, 180);
+        long lngBits = quantize(GeoMath.wrapLongitude(lng), -180, 360);
+        return withPrecision(pack(latBits, lngBits), precision);
+    }
+
+    public static int precision(long hash) {
+        return (int) (hash & PRECISION_MASK);
+    }
+
+    /**
+     * @return the cell containing this one with the given lower or equal precision
+     */
+    public static long truncate(long hash, int precision) {
+        checkPrecision(precision);
+        if (precision > precision(hash)) {
+            throw new IllegalArgumentException("Can't refine " + toString(hash) + " to precision " + precision);
+        }
+        return withPrecision(hash, precision);
+    }
+
+    public static long parent(long hash) {
+        int precision = precision(hash);
+        if (precision == 0) {
+            throw new IllegalArgumentException("The world cell has no parent");
+        }
+        return withPrecision(hash, precision - 1);
+    }
+
+    /**
+     * @param index 0 to 31, the base32 digit appended to the hash
+     */
+    public static long child(long hash, int index) {
+        int precision = precision(hash);
+        if (precision == MAX_PRECISION) {
+            throw new IllegalArgumentException("Cell is at maximum precision");
+        }
+        int shift = 64 - BITS_PER_CHAR * (precision + 1);
+        return (hash & ~PRECISION_MASK) | ((long) (index & 31) << shift) | (precision + 1);
+    }
+
+    /**
+     * @return the cell the given number of cells north and east of this one, longitude wraps
+     * around and {@link #NONE} is returned past a pole
+     */
+    public static long neighbor(long hash, int north, int east) {
+        int precision = precision(hash);
+        int bits = BITS_PER_CHAR * precision;
+        int lngBits = (bits + 1) / 2;
+        int latBits = bits / 2;
+        long full = hash >>> PRECISION_BITS;
+        long lng = squash(full >>> 1);
+        long lat = squash(full);
+        if (latBits > 0) {
+            lat += (long) north << (AXIS_BITS - latBits);
+            if (lat < 0 || lat > AXIS_MASK) {
+                return NONE;
+            }
+        } else if (north != 0) {
+            return NONE;
+        }
+        if (lngBits > 0) {
+            lng = (lng + ((long) east << (AXIS_BITS - lngBits))) & AXIS_MASK;
+        }
+        return withPrecision(pack(lat, lng), precision);
+    }
+
+    /**
+     * Writes the 8 neighbors, clockwise from north, into {@code out}. Neighbors past a pole are
+     * {@link #NONE}.
+     */
+    public static void neighbors(long hash, long[] out) {
+        out[0] = neighbor(hash, 1, 0);
+        out[1] = neighbor(hash, 1, 1);
+        out[2] = neighbor(hash, 0, 1);
+        out[3] = neighbor(hash, -1, 1);
+        out[4] = neighbor(hash, -1, 0);
+        out[5] = neighbor(hash, -1, -1);
+        out[6] = neighbor(hash, 0, -1);
+        out[7] = neighbor(hash, 1, -1);
+    }
+
+    /**
+     * @return lowest hash of any precision inside the cell
+     */
+    public static long rangeStart(long hash) {
+        return hash & ~PRECISION_MASK;
+    }
+
+    /**
+     * @return highest hash of any precision inside the cell, the last full precision cell.
+     * Never {@link #NONE}, even for the world cell.
+     */
+    public static long rangeEnd(long hash) {
+        int bits = BITS_PER_CHAR * precision(hash);
+        return (hash | (-1L >>> bits)) & ~PRECISION_MASK | MAX_PRECISION;
+    }
+
+    /**
+     * Unsigned order of hashes, the order of {@link #rangeStart(long)} and
+     * {@link #rangeEnd(long)}. {@code Long.compareUnsigned} needs API 26.
+     */
+    public static int compare(long a, long b) {
+        a ^= Long.MIN_VALUE;
+        b ^= Long.MIN_VALUE;
+        return a < b ? -1 : a == b ? 0 : 1;
+    }
+
+    /**
+     * @return true if the cell contains the other cell
+     */
+    public static boolean contains(long cell, long hash) {
+        int precision = precision(cell);
+        return precision <= precision(hash) && withPrecision(hash, precision) == cell;
+    }
+
+    /**
+     * Writes the bounds of the cell into {@code out}: min lat, min lng, max lat, max lng
+     */
+    public static void bounds(long hash, double[] out) {
+        int bits = BITS_PER_CHAR * precision(hash);
+        int lngBits = (bits + 1) / 2;
+        int latBits = bits / 2;
+        long full = hash >>> PRECISION_BITS;
+        double latHeight = 180.0 / (1L << latBits);
+        double lngWidth = 360.0 / (1L << lngBits);
+        out[0] = -90 + (squash(full) >>> (AXIS_BITS - latBits)) * latHeight;
+        out[1] = -180 + (squash(full >>> 1) >>> (AXIS_BITS - lngBits)) * lngWidth;
+        out[2] = out[0] + latHeight;
+        out[3] = out[1] + lngWidth;
+    }
+
+    public static double centerLat(long hash) {
+        int latBits = BITS_PER_CHAR * precision(hash) / 2;
+        double latHeight = 180.0 / (1L << latBits);
+        return -90 + ((squash(hash >>> PRECISION_BITS) >>> (AXIS_BITS - latBits)) + 0.5) * latHeight;
+    }
+
+    public static double centerLng(long hash) {
+        int lngBits = (BITS_PER_CHAR * precision(hash) + 1) / 2;
+        double lngWidth = 360.0 / (1L << lngBits);
+        return -180 + ((squash(hash >>> (PRECISION_BITS + 1)) >>> (AXIS_BITS - lngBits)) + 0.5) * lngWidth;
+    }
+
+    /**
+     * Writes the geohash characters into {@code out}
+     *
+     * @return number of characters written
+     */
+    public static int toChars(long hash, char[] out) {
+        int precision = precision(hash);
+        for (int i = 0; i < precision; i++) {
+            out[i] = BASE32[(int) (hash >>> (64 - BITS_PER_CHAR * (i + 1))) & 31];
+        }
+        return precision;
+    }
+
+    public static String toString(long hash) {
+        char[] chars = new char[MAX_PRECISION];
+        return new String(chars, 0, toChars(hash, chars));
+    }
+
+    public static long parse(CharSequence geohash) {
+        int precision = geohash.length();
+        checkPrecision(precision);
+        long hash = 0;
+        for (int i = 0; i < precision; i++) {
+            char c = Character.toLowerCase(geohash.charAt(i));
+            int value = c < 128 ? BASE32_INDEX[c] : -1;
+            if (value < 0) {
+                throw new IllegalArgumentException("Invalid geohash " + geohash);
+            }
+            hash |= (long) value << (64 - BITS_PER_CHAR * (i + 1));
+        }
+        return hash | precision;
+    }
+
+    private static void checkPrecision(int precision) {
+        if (precision < 0 || precision > MAX_PRECISION) {
+            throw new IllegalArgumentException("Precision must be 0 to " + MAX_PRECISION);
+        }
+    }
+
+    // Keeps the leading bits of the given precision
+    private static long withPrecision(long hash, int precision) {
+        int bits = BITS_PER_CHAR * precision;
+        long keep = bits == 0 ? 0 : -1L << (64 - bits);
+        return (hash & keep) | precision;
+    }
+
+    private static long quantize(double value, double min, double range) {
+        long q = (long) Math.floor((value - min) / range * (1L << AXIS_BITS));
+        return Math.max(0, Math.min(AXIS_MASK, q));
+    }
+
+    // Interleaves 30 bit lat and lng, longitude in the higher bit of each pair, left aligned
+    private static long pack(long lat, long lng) {
+        return ((spread(lng) << 1) | spread(lat)) << PRECISION_BITS;
+    }
+
+    // Moves the low 32 bits to the even bit positions
+    private static long spread(long x) {
+        x &= 0xFFFFFFFFL;
+        x = (x | (x << 16)) & 0x0000FFFF0000FFFFL;
+        x = (x | (x << 8)) & 0x00FF00FF00FF00FFL;
+        x = (x | (x << 4)) & 0x0F0F0F0F0F0F0F0FL;
+        x = (x | (x << 2)) & 0x3333333333333333L;
+        x = (x | (x << 1)) & 0x5555555555555555L;
+        return x;
+    }
+
+    // Inverse of spread, gathers the even bit positions
+    private static long squash(long x) {
+        x &= 0x5555555555555555L;
+        x = (x | (x >>> 1)) & 0x3333333333333333L;
+        x = (x | (x >>> 2)) & 0x0F0F0F0F0F0F0F0FL;
+        x = (x | (x >>> 4)) & 0x00FF00FF00FF00FFL;
+        x = (x | (x >>> 8)) & 0x0000FFFF0000FFFFL;
+        x = (x | (x >>> 16)) & 0x00000000FFFFFFFFL;
+        return x;
+    }
+}
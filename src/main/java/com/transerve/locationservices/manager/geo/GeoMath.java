@@ -0,0 +1,137 @@
+package com.transerve.locationservices.manager.geo;
+
+/**
+ * Distance and interpolation kernels on a spherical earth. All methods work on primitives and
+ * write multi-valued results into caller supplied arrays, so they never allocate.
+ */
+public final class GeoMath {
+
+    /**
+     * Mean earth radius in meters
+     */
+    public static final double EARTH_RADIUS = 6371008.8;
+
+    /**
+     * Meters per degree of latitude, and of longitude on the equator, for local planes
+     */
+    public static final double METERS_PER_DEGREE = 111195.0;
+
+    private GeoMath() {
+    }
+
+    /**
+     * Great circle distance in meters, using the haversine formula
+     */
+    public static double distance(double lat1, double lng1, double lat2, double lng2) {
+        double phi1 = Math.toRadians(lat1);
+        double phi2 = Math.toRadians(lat2);
+        double sinDPhi = Math.sin((phi2 - phi1) / 2);
+        double sinDLambda = Math.sin(Math.toRadians(lng2 - lng1) / 2);
+        double h = sinDPhi * sinDPhi + Math.cos(phi1) * Math.cos(phi2) * sinDLambda * sinDLambda;
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(h)));
+    }
+
+    /**
+     * Equirectangular approximation of the distance in meters. Much cheaper than
+     * {@link #distance}, and within 0.1% of it for points a few kilometers apart.
+     */
+    public static double fastDistance(double lat1, double lng1, double lat2, double lng2) {
+        double x = Math.toRadians(wrapLongitude(lng2 - lng1)) * Math.cos(Math.toRadians((lat1 + lat2) / 2));
+        double y = Math.toRadians(lat2 - lat1);
+        return Math.sqrt(x * x + y * y) * EARTH_RADIUS;
+    }
+
+    /**
+     * Initial bearing of the great circle from the first to the second point, in degrees
+     * clockwise from true north in [0, 360)
+     */
+    public static double bearing(double lat1, double lng1, double lat2, double lng2) {
+        double phi1 = Math.toRadians(lat1);
+        double phi2 = Math.toRadians(lat2);
+        double dLambda = Math.toRadians(lng2 - lng1);
+        double y = Math.sin(dLambda) * Math.cos(phi2);
+        double x = Math.cos(phi1) * Math.sin(phi2) - Math.sin(phi1) * Math.cos(phi2) * Math.cos(dLambda);
+        double degrees = Math.toDegrees(Math.atan2(y, x));
+        return degrees < 0 ? degrees + 360 : degrees;
+    }
+
+    /**
+     * Point at the given fraction along the great circle between two points
+     *
+     * @param out receives the latitude at index 0 and the longitude at index 1
+     */
+    public static void interpolate(double lat1, double lng1, double lat2, double lng2,
+                                   double fraction, double[] out) {
+        double phi1 = Math.toRadians(lat1);
+        double lambda1 = Math.toRadians(lng1);
+        double phi2 = Math.toRadians(lat2);
+        double lambda2 = Math.toRadians(lng2);
+        double cosPhi1 = Math.cos(phi1);
+        double cosPhi2 = Math.cos(phi2);
+        double x1 = cosPhi1 * Math.cos(lambda1);
+        double y1 = cosPhi1 * Math.sin(lambda1);
+        double z1 = Math.sin(phi1);
+        double x2 = cosPhi2 * Math.cos(lambda2);
+        double y2 = cosPhi2 * Math.sin(lambda2);
+        double z2 = Math.sin(phi2);
+
+        double dot = Math.max(-1, Math.min(1, x1 * x2 + y1 * y2 + z1 * z2));
+        double angle = Math.acos(dot);
+        double a;
+        double b;
+        if (angle < 1e-9) {
+            // Too close for the spherical weights, straight line is exact enough
+            a = 1 - fraction;
+            b = fraction;
+        } else {
+            double sinAngle = Math.sin(angle);
+            a = Math.sin((1 - fraction) * angle) / sinAngle;
+            b = Math.sin(fraction * angle) / sinAngle;
+        }
+        double x = a * x1 + b * x2;
+        double y = a * y1 + b * y2;
+        double z = a * z1 + b * z2;
+        out[0] = Math.toDegrees(Math.atan2(z, Math.sqrt(x * x + y * y)));
+        out[1] = Math.toDegrees(Math.atan2(y, x));
+    }
+
+    /**
+     * Moves a point by a distance along a bearing
+     *
+     * @param out receives the latitude at index 0 and the longitude at index 1
+     */
+    public static void destination(double lat, double lng, double bearingDegrees,
+                                   double meters, double[] out) {
+        double delta = meters / EARTH_RADIUS;
+        double theta = Math.toRadians(bearingDegrees);
+        double phi1 = Math.toRadians(lat);
+        double sinPhi2 = Math.sin(phi1) * Math.cos(delta) + Math.cos(phi1) * Math.sin(delta) * Math.cos(theta);
+        double phi2 = Math.asin(sinPhi2);
+        double lambda = Math.toRadians(lng) + Math.atan2(Math.sin(theta) * Math.sin(delta) * Math.cos(phi1),
+                Math.cos(delta) - Math.sin(phi1) * sinPhi2);
+        out[0] = Math.toDegrees(phi2);
+        out[1] = wrapLongitude(Math.toDegrees(lambda));
+    }
+
+    /**
+     * Closest point to the origin on a segment of a local plane, the segment going from
+     * {@code (x0, y0)} to {@code (x0 + dx, y0 + dy)}
+     *
+     * @return fraction along the segment of the closest point, 0 to 1
+     */
+    public static double projectOnSegment(double x0, double y0, double dx, double dy) {
+        double lengthSquared = dx * dx + dy * dy;
+        return lengthSquared == 0 ? 0 : Math.max(0, Math.min(1, -(x0 * dx + y0 * dy) / lengthSquared));
+    }
+
+    /**
+     * @return the longitude wrapped into [-180, 180)
+     */
+    public static double wrapLongitude(double lng) {
+        if (lng >= -180 && lng < 180) {
+            return lng;
+        }
+        double wrapped = (lng + 180) % 360;
+        return (wrapped < 0 ? wrapped + 360 : wrapped) - 180;
+    }
+}
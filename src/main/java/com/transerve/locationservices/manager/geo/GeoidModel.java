@@ -0,0 +1,98 @@
+package com.transerve.locationservices.manager.geo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * EGM96 geoid heights, to turn the ellipsoidal altitude of a GNSS fix into an altitude above
+ * mean sea level without parsing NMEA.
+ * <p>
+ * Reads the grid in the layout of the NGA file {@code WW15MGH.DAC}: big endian 16 bit geoid
+ * heights in centimeters, rows from 90 N to 90 S inclusive, each row from 0 E up to one
+ * spacing short of 360 E, so 721 by 1440 heights for the 15' grid. Lookups east of the last
+ * column wrap around to 0 E. The spacing is found from the file size, so the 15' grid and coarser resamplings of it both
+ * work. The file is memory mapped and only the pages around the fixes are ever read, a few KB
+ * for a day of driving instead of 2 MB for the whole 15' grid.
+ * <pre>
+ * GeoidModel geoid = GeoidModel.load(new File(dir, "WW15MGH.DAC"));
+ * double msl = geoid.toMeanSeaLevel(lat, lng, location.getAltitude());
+ * </pre>
+ * Lookups don't allocate and are thread safe.
+ */
+public final class GeoidModel {
+
+    // Grid spacings in degrees the file size is checked against
+    private static final double[] SPACINGS = {0.25, 0.5, 1.0, 2.0, 2.5, 5.0};
+
+    private final ShortBuffer heights;
+
+    private final double spacing;
+
+    private final int rows;
+
+    private final int cols;
+
+    private GeoidModel(ShortBuffer heights, double spacing, int rows, int cols) {
+        this.heights = heights;
+        this.spacing = spacing;
+        this.rows = rows;
+        this.cols = cols;
+    }
+
+    public static GeoidModel load(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        MappedByteBuffer buffer;
+        try {
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        for (double spacing : SPACINGS) {
+            int rows = (int) Math.round(180 / spacing) + 1;
+            int cols = (int) Math.round(360 / spacing);
+            if (buffer.capacity() == rows * cols * 2) {
+                // Big endian is the default order of a mapped buffer
+                return new GeoidModel(buffer.asShortBuffer(), spacing, rows, cols);
+            }
+        }
+        throw new IOException("Not an EGM96 geoid grid: " + file);
+    }
+
+    /**
+     * @return grid spacing in degrees
+     */
+    public double getSpacing() {
+        return spacing;
+    }
+
+    /**
+     * @return height of the geoid above the WGS84 ellipsoid in meters, bilinearly interpolated
+     */
+    public float undulation(double lat, double lng) {
+        double row = (90 - Math.max(-90, Math.min(90, lat))) / spacing;
+        double east = GeoMath.wrapLongitude(lng);
+        double col = (east < 0 ? east + 360 : east) / spacing;
+        int r = Math.min(rows - 2, (int) row);
+        int c = (int) col;
+        double fr = row - r;
+        double fc = col - c;
+        // The column east of the last one is the first one again
+        int i = r * cols + c % cols;
+        int j = r * cols + (c + 1) % cols;
+        double north = heights.get(i) + fc * (heights.get(j) - heights.get(i));
+        double south = heights.get(i + cols) + fc * (heights.get(j + cols) - heights.get(i + cols));
+        return (float) ((north + fr * (south - north)) / 100);
+    }
+
+    /**
+     * @param ellipsoidalAltitude altitude above the WGS84 ellipsoid, as reported by GNSS
+     * @return altitude above mean sea level in meters
+     */
+    public double toMeanSeaLevel(double lat, double lng, double ellipsoidalAltitude) {
+        return ellipsoidalAltitude - undulation(lat, lng);
+    }
+}
@@ -0,0 +1,432 @@
+package com.transerve.locationservices.manager.geo;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Static 2-d tree over points of interest for nearest and radius queries.
+ * <p>
+ * The tree is implicit: points are stored in three flat columns (lat, lng, id) ordered so that
+ * the median of every range is its node, the left half its left subtree and the right half its
+ * right subtree. Levels alternate between splitting on latitude and longitude. There are no
+ * node objects, and queries walk index ranges without allocating, so they are thread safe.
+ * <p>
+ * Distances are great circle distances from {@link GeoMath#distance}, and subtrees are pruned
+ * with exact lower bounds on the sphere. Trees don't wrap around the antimeridian.
+ * <p>
+ * Building parses the POI file once. {@link #save(File)} writes the tree in its final order,
+ * and {@link #load(File)} maps that file straight into the columns, so later startups don't
+ * parse or sort anything:
+ * <pre>
+ * PoiKdTree stores = PoiKdTree.open(new File(dir, "stores.csv"), new File(cacheDir, "stores.kdt"));
+ * </pre>
+ */
+public final class PoiKdTree {
+
+    public static final int MAGIC = 0x54444B54; // "TKDT" little endian
+    public static final short VERSION = 1;
+    public static final int HEADER_SIZE = 16;
+
+    private static final int STOPPED = Integer.MIN_VALUE;
+
+    public interface PoiVisitor {
+        /**
+         * @param index position of the point in the tree, for {@link #getId(int)} and friends
+         * @return false to stop the query
+         */
+        boolean onPoi(int index, long id, double lat, double lng, double meters);
+    }
+
+    private final int size;
+
+    private final DoubleBuffer lat;
+
+    private final DoubleBuffer lng;
+
+    private final LongBuffer ids;
+
+    private PoiKdTree(int size, DoubleBuffer lat, DoubleBuffer lng, LongBuffer ids) {
+        this.size = size;
+        this.lat = lat;
+        this.lng = lng;
+        this.ids = ids;
+    }
+
+    /**
+     * Builds a tree, the arrays are reordered in place and used as the columns
+     */
+    public static PoiKdTree build(double[] lat, double[] lng, long[] ids) {
+        if (lat.length != lng.length || lat.length != ids.length) {
+            throw new IllegalArgumentException("Columns must have the same length");
+        }
+        arrange(lat, lng, ids, 0, lat.length, 0);
+        return new PoiKdTree(lat.length, DoubleBuffer.wrap(lat), DoubleBuffer.wrap(lng),
+                LongBuffer.wrap(ids));
+    }
+
+    /**
+     * Builds a tree from a text file with one {@code id,lat,lng} point per line. Extra columns,
+     * empty lines and lines starting with {@code #} are ignored.
+     */
+    public static PoiKdTree readCsv(File file) throws IOException {
+        double[] lat = new double[1024];
+        double[] lng = new double[1024];
+        long[] ids = new long[1024];
+        int count = 0;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            int number = 0;
+            while ((line = reader.readLine()) != null) {
+                number++;
+                line = line.trim();
+                if (line.isEmpty() || line.charAt(0) == '#') {
+                    continue;
+                }
+                int first = line.indexOf(',');
+                int second = first < 0 ? -1 : line.indexOf(',', first + 1);
+                if (second < 0) {
+                    throw new IOException("Expected id,lat,lng on line " + number + " of " + file);
+                }
+                int third = line.indexOf(',', second + 1);
+                if (count == lat.length) {
+                    lat = Arrays.copyOf(lat, count * 2);
+                    lng = Arrays.copyOf(lng, count * 2);
+                    ids = Arrays.copyOf(ids, count * 2);
+                }
+                try {
+                    ids[count] = Long.parseLong(line.substring(0, first).trim());
+                    lat[count] = Double.parseDouble(line.substring(first + 1, second).trim());
+                    lng[count] = Double.parseDouble(line.substring(second + 1, third < 0 ? line.length() : third).trim());
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid point on line " + number + " of " + file, e);
+                }
+                count++;
+            }
+        } finally {
+            reader.close();
+        }
+        return build(Arrays.copyOf(lat, count), Arrays.copyOf(lng, count), Arrays.copyOf(ids, count));
+    }
+
+    /**
+     * Maps a tree written by {@link #save(File)}
+     */
+    public static PoiKdTree load(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        MappedByteBuffer buffer;
+        try {
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a POI tree: " + file);
+        }
+        if (buffer.getShort(4) > VERSION) {
+            throw new IOException("Unsupported POI tree version " + buffer.getShort(4));
+        }
+        int size = buffer.getInt(8);
+        if (buffer.capacity() < HEADER_SIZE + (long) size * 24) {
+            throw new IOException("Truncated POI tree: " + file);
+        }
+        return new PoiKdTree(size, column(buffer, HEADER_SIZE, size).asDoubleBuffer(),
+                column(buffer, HEADER_SIZE + size * 8, size).asDoubleBuffer(),
+                column(buffer, HEADER_SIZE + size * 16, size).asLongBuffer());
+    }
+
+    /**
+     * Loads the tree cached for the POI file, rebuilding the cache if the file is newer
+     */
+    public static PoiKdTree open(File csv, File cache) throws IOException {
+        if (cache.exists() && cache.lastModified() >= csv.lastModified()) {
+            try {
+                return load(cache);
+            } catch (IOException e) {
+                // Fall through and rebuild
+            }
+        }
+        readCsv(csv).save(cache);
+        return load(cache);
+    }
+
+    private static ByteBuffer column(ByteBuffer buffer, int offset, int size) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.limit(offset + size * 8);
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public void save(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            ByteBuffer chunk = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+            chunk.putInt(MAGIC).putShort(VERSION).putShort((short) 0).putInt(size).putInt(0);
+            for (int column = 0; column < 3; column++) {
+                for (int i = 0; i < size; i++) {
+                    if (chunk.remaining() < 8) {
+                        out.write(chunk.array(), 0, chunk.position());
+                        chunk.clear();
+                    }
+                    if (column == 0) {
+                        chunk.putDouble(lat.get(i));
+                    } else if (column == 1) {
+                        chunk.putDouble(lng.get(i));
+                    } else {
+                        chunk.putLong(ids.get(i));
+                    }
+                }
+            }
+            out.write(chunk.array(), 0, chunk.position());
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Can't write " + file);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getId(int index) {
+        return ids.get(index);
+    }
+
+    public double getLat(int index) {
+        return lat.get(index);
+    }
+
+    public double getLng(int index) {
+        return lng.get(index);
+    }
+
+    /**
+     * Finds the k nearest points
+     *
+     * @param outIndex receives the tree indices of the points, nearest first. Its length is k.
+     * @param outMeters receives their distances, at least as long as {@code outIndex}
+     * @return number of points found, less than k if the tree is smaller
+     */
+    public int nearest(double lat, double lng, int[] outIndex, double[] outMeters) {
+        int k = outIndex.length;
+        if (k == 0 || size == 0) {
+            return 0;
+        }
+        // outIndex/outMeters hold a max heap on distance while searching
+        int count = nearest(lat, lng, 0, size, 0, outIndex, outMeters, 0, k);
+        // Heap sort into ascending order
+        for (int end = count - 1; end > 0; end--) {
+            swap(outIndex, outMeters, 0, end);
+            siftDown(outIndex, outMeters, 0, end);
+        }
+        return count;
+    }
+
+    /**
+     * Visits the points within the radius, in no particular order
+     *
+     * @return number of points visited
+     */
+    public int withinRadius(double lat, double lng, double meters, PoiVisitor visitor) {
+        if (size == 0) {
+            return 0;
+        }
+        return withinRadius(lat, lng, meters, 0, size, 0, visitor) & ~STOPPED;
+    }
+
+    private int nearest(double qLat, double qLng, int lo, int hi, int depth,
+                        int[] heap, double[] heapMeters, int count, int k) {
+        if (lo >= hi) {
+            return count;
+        }
+        int mid = (lo + hi) >>> 1;
+        double meters = GeoMath.distance(qLat, qLng, lat.get(mid), lng.get(mid));
+        if (count < k) {
+            heap[count] = mid;
+            heapMeters[count] = meters;
+            siftUp(heap, heapMeters, count);
+            count++;
+        } else if (meters < heapMeters[0]) {
+            heap[0] = mid;
+            heapMeters[0] = meters;
+            siftDown(heap, heapMeters, 0, count);
+        }
+        boolean latAxis = (depth & 1) == 0;
+        double split = latAxis ? lat.get(mid) : lng.get(mid);
+        double query = latAxis ? qLat : qLng;
+        boolean leftFirst = query < split;
+        count = leftFirst
+                ? nearest(qLat, qLng, lo, mid, depth + 1, heap, heapMeters, count, k)
+                : nearest(qLat, qLng, mid + 1, hi, depth + 1, heap, heapMeters, count, k);
+        if (count < k || splitDistance(qLat, qLng, split, latAxis) < heapMeters[0]) {
+            count = leftFirst
+                    ? nearest(qLat, qLng, mid + 1, hi, depth + 1, heap, heapMeters, count, k)
+                    : nearest(qLat, qLng, lo, mid, depth + 1, heap, heapMeters, count, k);
+        }
+        return count;
+    }
+
+    // Returns the number of points visited in the range, with STOPPED set if the visitor stopped
+    private int withinRadius(double qLat, double qLng, double radius, int lo, int hi, int depth,
+                             PoiVisitor visitor) {
+        if (lo >= hi) {
+            return 0;
+        }
+        int mid = (lo + hi) >>> 1;
+        double pLat = lat.get(mid);
+        double pLng = lng.get(mid);
+        int visited = 0;
+        double meters = GeoMath.distance(qLat, qLng, pLat, pLng);
+        if (meters <= radius) {
+            visited++;
+            if (!visitor.onPoi(mid, ids.get(mid), pLat, pLng, meters)) {
+                return visited | STOPPED;
+            }
+        }
+        boolean latAxis = (depth & 1) == 0;
+        double split = latAxis ? pLat : pLng;
+        double query = latAxis ? qLat : qLng;
+        boolean crosses = splitDistance(qLat, qLng, split, latAxis) <= radius;
+        if (query < split || crosses) {
+            int result = withinRadius(qLat, qLng, radius, lo, mid, depth + 1, visitor);
+            visited += result & ~STOPPED;
+            if (result < 0) {
+                return visited | STOPPED;
+            }
+        }
+        if (query >= split || crosses) {
+            int result = withinRadius(qLat, qLng, radius, mid + 1, hi, depth + 1, visitor);
+            visited += result & ~STOPPED;
+            if (result < 0) {
+                return visited | STOPPED;
+            }
+        }
+        return visited;
+    }
+
+    /**
+     * Lower bound of the distance from the query to any point on the other side of the split:
+     * the meridian arc for latitude splits, the distance to the split meridian for longitude
+     */
+    private static double splitDistance(double qLat, double qLng, double split, boolean latAxis) {
+        if (latAxis) {
+            return Math.toRadians(Math.abs(qLat - split)) * GeoMath.EARTH_RADIUS;
+        }
+        double dLng = Math.toRadians(Math.abs(qLng - split));
+        if (dLng >= Math.PI / 2) {
+            return 0;
+        }
+        double sin = Math.cos(Math.toRadians(qLat)) * Math.sin(dLng);
+        return Math.asin(Math.min(1, sin)) * GeoMath.EARTH_RADIUS;
+    }
+
+    // Orders [lo, hi) so its median is the node and the halves are the subtrees
+    private static void arrange(double[] lat, double[] lng, long[] ids, int lo, int hi, int depth) {
+        while (hi - lo > 1) {
+            int mid = (lo + hi) >>> 1;
+            select(lat, lng, ids, lo, hi - 1, mid, (depth & 1) == 0);
+            arrange(lat, lng, ids, lo, mid, depth + 1);
+            lo = mid + 1;
+            depth++;
+        }
+    }
+
+    // Quickselect, puts the k-th smallest on the axis at k
+    private static void select(double[] lat, double[] lng, long[] ids, int left, int right, int k,
+                               boolean latAxis) {
+        double[] key = latAxis ? lat : lng;
+        while (right > left) {
+            int pivotIndex = medianOfThree(key, left, (left + right) >>> 1, right);
+            double pivot = key[pivotIndex];
+            swap(lat, lng, ids, pivotIndex, right);
+            int store = left;
+            for (int i = left; i < right; i++) {
+                if (key[i] < pivot) {
+                    swap(lat, lng, ids, i, store++);
+                }
+            }
+            swap(lat, lng, ids, store, right);
+            if (store == k) {
+                return;
+            } else if (store < k) {
+                left = store + 1;
+            } else {
+                right = store - 1;
+            }
+        }
+    }
+
+    private static int medianOfThree(double[] key, int a, int b, int c) {
+        if (key[a] < key[b]) {
+            return key[b] < key[c] ? b : (key[a] < key[c] ? c : a);
+        }
+        return key[a] < key[c] ? a : (key[b] < key[c] ? c : b);
+    }
+
+    private static void swap(double[] lat, double[] lng, long[] ids, int i, int j) {
+        double d = lat[i];
+        lat[i] = lat[j];
+        lat[j] = d;
+        d = lng[i];
+        lng[i] = lng[j];
+        lng[j] = d;
+        long l = ids[i];
+        ids[i] = ids[j];
+        ids[j] = l;
+    }
+
+    private static void swap(int[] heap, double[] meters, int i, int j) {
+        int index = heap[i];
+        heap[i] = heap[j];
+        heap[j] = index;
+        double d = meters[i];
+        meters[i] = meters[j];
+        meters[j] = d;
+    }
+
+    private static void siftUp(int[] heap, double[] meters, int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (meters[parent] >= meters[i]) {
+                return;
+            }
+            swap(heap, meters, i, parent);
+            i = parent;
+        }
+    }
+
+    private static void siftDown(int[] heap, double[] meters, int i, int count) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= count) {
+                return;
+            }
+            if (child + 1 < count && meters[child + 1] > meters[child]) {
+                child++;
+            }
+            if (meters[i] >= meters[child]) {
+                return;
+            }
+            swap(heap, meters, i, child);
+            i = child;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.transerve.locationservices.manager.geocode;
+
+import java.util.Arrays;
+
+/**
+ * Result of a {@link ReverseGeocoder} lookup, reusable across lookups. Names are decoded once
+ * per feature and shared.
+ */
+public final class Address {
+
+    public static final int NONE = -1;
+
+    final int[] areas = new int[GeocoderFormat.MAX_LEVELS];
+
+    int street = NONE;
+
+    ReverseGeocoder source;
+
+    public Address() {
+        Arrays.fill(areas, NONE);
+    }
+
+    /**
+     * @return feature index of the area of that level containing the point, or {@link #NONE}
+     */
+    public int getAreaFeature(int level) {
+        return areas[level];
+    }
+
+    /**
+     * @return name of the area of that level containing the point, or null
+     */
+    public String getArea(int level) {
+        return areas[level] == NONE ? null : source.getName(areas[level]);
+    }
+
+    /**
+     * @return feature index of the nearest street within the snapping distance, or {@link #NONE}
+     */
+    public int getStreetFeature() {
+        return street;
+    }
+
+    /**
+     * @return name of the nearest street within the snapping distance, or null
+     */
+    public String getStreet() {
+        return street == NONE ? null : source.getName(street);
+    }
+
+    public boolean isEmpty() {
+        if (street != NONE) {
+            return false;
+        }
+        for (int area : areas) {
+            if (area != NONE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void clear() {
+        Arrays.fill(areas, NONE);
+        street = NONE;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        if (street != NONE) {
+            builder.append(getStreet());
+        }
+        for (int level = areas.length - 1; level >= 0; level--) {
+            if (areas[level] != NONE) {
+                if (builder.length() > 0) {
+                    builder.append(", ");
+                }
+                builder.append(getArea(level));
+            }
+        }
+        return builder.toString();
+    }
+}
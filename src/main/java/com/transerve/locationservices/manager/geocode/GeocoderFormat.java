@@ -0,0 +1,61 @@
+package com.transerve.locationservices.manager.geocode;
+
+/**
+ * Layout of the packed reverse geocoding file, all little endian.
+ * <pre>
+ * Header
+ *  0 int    magic "TTRG"
+ *  4 short  version
+ *  6 short  number of area levels
+ *  8 double cell size in degrees
+ * 16 double min lat of the grid
+ * 24 double min lng of the grid
+ * 32 int    rows
+ * 36 int    columns
+ * 40 int    feature count
+ * 44 float  street snap distance, meters
+ * 48 long   offset of the feature table
+ * 56 long   offset of the name bytes
+ * 64 long   offset of the cell directory
+ * 72 long   offset of the cell blocks
+ *
+ * Feature table, 12 bytes per feature
+ *  byte  kind, 0 area, 1 street
+ *  byte  area level, 0 is the coarsest
+ *  short unused
+ *  int   offset of the UTF-8 name in the name bytes
+ *  int   name length in bytes
+ *
+ * Cell directory, rows * columns ints in row major order: offset of the cell block relative to
+ * the cell blocks, -1 for empty cells
+ *
+ * Cell block
+ *  int area count, then per area:
+ *      int feature, int 1 if the cell center is inside else 0, int edge count,
+ *      edges as 4 ints lat0, lng0, lat1, lng1 in 1e-7 degrees
+ *  int street count, then per street:
+ *      int feature, int segment count, segments as 4 ints like edges
+ * </pre>
+ * An area's block only holds the edges crossing the cell, so whether a point is inside follows
+ * from the center flag and the parity of the edges crossed on the way from the center.
+ */
+final class GeocoderFormat {
+
+    static final int MAGIC = 0x47525454; // "TTRG" little endian
+    static final short VERSION = 1;
+    static final int HEADER_SIZE = 80;
+
+    static final int KIND_AREA = 0;
+    static final int KIND_STREET = 1;
+
+    static final int FEATURE_SIZE = 12;
+
+    static final int MAX_LEVELS = 8;
+
+    static final double E7 = 1e7;
+
+    static final int EMPTY_CELL = -1;
+
+    private GeocoderFormat() {
+    }
+}
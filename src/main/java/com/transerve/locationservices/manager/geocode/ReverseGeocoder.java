@@ -0,0 +1,395 @@
+package com.transerve.locationservices.manager.geocode;
+
+import com.transerve.locationservices.manager.geo.GeoHash;
+import com.transerve.locationservices.manager.geo.GeoMath;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Offline reverse geocoder over a file written by {@link ReverseGeocoderBuilder}.
+ * <p>
+ * The file is memory mapped. A point is located in a uniform grid, and its cell block lists the
+ * areas overlapping the cell, each with the few edges crossing it and whether the cell center
+ * is inside, and the street segments within snapping distance. A cold lookup therefore reads
+ * one directory entry and one block, usually a page or two, whatever the size of the areas.
+ * <p>
+ * {@link #lookup} answers from an LRU cache keyed by the {@link GeoHash} cell of the point, so
+ * fixes near the same place cost a hash probe. A cached answer is the one for the center of the
+ * geohash cell, pick the cache precision to match the accuracy you need from street names,
+ * the default cells are about 38 x 19 m. {@link #lookupExact} skips the cache.
+ * <pre>
+ * ReverseGeocoder geocoder = ReverseGeocoder.open(new File(dir, "places.rgc"));
+ * Address address = new Address();
+ * if (geocoder.lookup(lat, lng, address)) {
+ *     label.setText(address.toString());
+ * }
+ * </pre>
+ */
+public final class ReverseGeocoder {
+
+    public static final int DEFAULT_CACHE_SIZE = 1024;
+
+    public static final int DEFAULT_CACHE_PRECISION = 8;
+
+    private static final int NONE = -1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final MappedByteBuffer buffer;
+
+    private final int levelCount;
+    private final double cellDegrees;
+    private final double minLat;
+    private final double minLng;
+    private final int rows;
+    private final int cols;
+    private final int featureCount;
+    private final float streetSnapMeters;
+    private final int featureOffset;
+    private final int nameOffset;
+    private final int directoryOffset;
+    private final int blockOffset;
+
+    // Decoded on first use, racing threads decode the same immutable string
+    private final String[] names;
+
+    private final int cachePrecision;
+
+    // LRU cache of answers keyed by geohash, slots chained in hash buckets and in recency order
+    private final int cacheCapacity;
+    private final long[] cacheKeys;
+    private final int[] cacheAreas;
+    private final int[] cacheStreet;
+    private final int[] buckets;
+    private final int[] chain;
+    private final int[] newer;
+    private final int[] older;
+    private int cacheSize;
+    private int newest = NONE;
+    private int oldest = NONE;
+
+    private long hits;
+    private long misses;
+
+    private ReverseGeocoder(MappedByteBuffer buffer, int cacheCapacity, int cachePrecision) throws IOException {
+        this.buffer = buffer;
+        levelCount = buffer.getShort(6);
+        cellDegrees = buffer.getDouble(8);
+        minLat = buffer.getDouble(16);
+        minLng = buffer.getDouble(24);
+        rows = buffer.getInt(32);
+        cols = buffer.getInt(36);
+        featureCount = buffer.getInt(40);
+        streetSnapMeters = buffer.getFloat(44);
+        featureOffset = offset(buffer.getLong(48));
+        nameOffset = offset(buffer.getLong(56));
+        directoryOffset = offset(buffer.getLong(64));
+        blockOffset = offset(buffer.getLong(72));
+        if (levelCount < 0 || levelCount > GeocoderFormat.MAX_LEVELS || rows <= 0 || cols <= 0
+                || directoryOffset + (long) rows * cols * 4 > buffer.capacity()) {
+            throw new IOException("Corrupt geocoder header");
+        }
+        names = new String[featureCount];
+
+        this.cachePrecision = cachePrecision;
+        this.cacheCapacity = cacheCapacity;
+        cacheKeys = new long[cacheCapacity];
+        cacheAreas = new int[cacheCapacity * GeocoderFormat.MAX_LEVELS];
+        cacheStreet = new int[cacheCapacity];
+        buckets = new int[Integer.highestOneBit(cacheCapacity * 2 - 1) << 1];
+        Arrays.fill(buckets, NONE);
+        chain = new int[cacheCapacity];
+        newer = new int[cacheCapacity];
+        older = new int[cacheCapacity];
+    }
+
+    public static ReverseGeocoder open(File file) throws IOException {
+        return open(file, DEFAULT_CACHE_SIZE, DEFAULT_CACHE_PRECISION);
+    }
+
+    /**
+     * @param cacheSize      number of geohash cells remembered
+     * @param cachePrecision geohash precision of the cache cells, 1 to {@link GeoHash#MAX_PRECISION}
+     */
+    public static ReverseGeocoder open(File file, int cacheSize, int cachePrecision) throws IOException {
+        if (cacheSize <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive");
+        }
+        if (cachePrecision < 1 || cachePrecision > GeoHash.MAX_PRECISION) {
+            throw new IllegalArgumentException("Cache precision must be 1 to " + GeoHash.MAX_PRECISION);
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        MappedByteBuffer buffer;
+        try {
+            if (raf.length() > Integer.MAX_VALUE) {
+                throw new IOException("Geocoder file too large: " + file);
+            }
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.capacity() < GeocoderFormat.HEADER_SIZE || buffer.getInt(0) != GeocoderFormat.MAGIC) {
+            throw new IOException("Not a geocoder file: " + file);
+        }
+        if (buffer.getShort(4) > GeocoderFormat.VERSION) {
+            throw new IOException("Unsupported geocoder version " + buffer.getShort(4));
+        }
+        return new ReverseGeocoder(buffer, cacheSize, cachePrecision);
+    }
+
+    private static int offset(long offset) throws IOException {
+        if (offset < GeocoderFormat.HEADER_SIZE || offset > Integer.MAX_VALUE) {
+            throw new IOException("Corrupt geocoder header");
+        }
+        return (int) offset;
+    }
+
+    public int getLevelCount() {
+        return levelCount;
+    }
+
+    public int getFeatureCount() {
+        return featureCount;
+    }
+
+    public float getStreetSnapMeters() {
+        return streetSnapMeters;
+    }
+
+    public String getName(int feature) {
+        String name = names[feature];
+        if (name == null) {
+            int entry = featureOffset + feature * GeocoderFormat.FEATURE_SIZE;
+            byte[] bytes = new byte[buffer.getInt(entry + 8)];
+            int start = nameOffset + buffer.getInt(entry + 4);
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = buffer.get(start + i);
+            }
+            name = new String(bytes, UTF_8);
+            names[feature] = name;
+        }
+        return name;
+    }
+
+    /**
+     * Looks up the point through the cache
+     *
+     * @return false if nothing is known at that place
+     */
+    public synchronized boolean lookup(double lat, double lng, Address out) {
+        long key = GeoHash.encode(lat, lng, cachePrecision);
+        int slot = find(key);
+        if (slot == NONE) {
+            misses++;
+            slot = insert(key);
+            cacheStreet[slot] = resolve(GeoHash.centerLat(key), GeoHash.centerLng(key),
+                    cacheAreas, slot * GeocoderFormat.MAX_LEVELS);
+        } else {
+            hits++;
+            touch(slot);
+        }
+        out.source = this;
+        System.arraycopy(cacheAreas, slot * GeocoderFormat.MAX_LEVELS, out.areas, 0, GeocoderFormat.MAX_LEVELS);
+        out.street = cacheStreet[slot];
+        return !out.isEmpty();
+    }
+
+    /**
+     * Looks up the exact point, bypassing the cache. Safe to call from any thread.
+     *
+     * @return false if nothing is known at that place
+     */
+    public boolean lookupExact(double lat, double lng, Address out) {
+        out.source = this;
+        out.street = resolve(lat, lng, out.areas, 0);
+        return !out.isEmpty();
+    }
+
+    public synchronized long getCacheHits() {
+        return hits;
+    }
+
+    public synchronized long getCacheMisses() {
+        return misses;
+    }
+
+    public synchronized void clearCache() {
+        Arrays.fill(buckets, NONE);
+        cacheSize = 0;
+        newest = NONE;
+        oldest = NONE;
+    }
+
+    /**
+     * Fills the areas containing the point at {@code areas[at + level]}
+     *
+     * @return the nearest street within the snapping distance, or {@link Address#NONE}
+     */
+    private int resolve(double lat, double lng, int[] areas, int at) {
+        Arrays.fill(areas, at, at + GeocoderFormat.MAX_LEVELS, Address.NONE);
+        int row = (int) Math.floor((lat - minLat) / cellDegrees);
+        int col = (int) Math.floor((lng - minLng) / cellDegrees);
+        // Points on the north or east edge of the grid belong to the last cell, as when building
+        if (row == rows && lat - minLat <= rows * cellDegrees) {
+            row--;
+        }
+        if (col == cols && lng - minLng <= cols * cellDegrees) {
+            col--;
+        }
+        if (row < 0 || row >= rows || col < 0 || col >= cols) {
+            return Address.NONE;
+        }
+        int block = buffer.getInt(directoryOffset + (row * cols + col) * 4);
+        if (block == GeocoderFormat.EMPTY_CELL) {
+            return Address.NONE;
+        }
+        int p = blockOffset + block;
+
+        // An area contains the point if it contains the cell center and the way from the center
+        // to the point crosses its border an even number of times, or the reverse
+        double centerLat = minLat + (row + 0.5) * cellDegrees;
+        double centerLng = minLng + (col + 0.5) * cellDegrees;
+        double pathLat = lat - centerLat;
+        double pathLng = lng - centerLng;
+        int areaCount = buffer.getInt(p);
+        p += 4;
+        for (int a = 0; a < areaCount; a++) {
+            int feature = buffer.getInt(p);
+            boolean inside = buffer.getInt(p + 4) != 0;
+            int edges = buffer.getInt(p + 8);
+            p += 12;
+            for (int e = 0; e < edges; e++, p += 16) {
+                double lat0 = buffer.getInt(p) / GeocoderFormat.E7 - centerLat;
+                double lng0 = buffer.getInt(p + 4) / GeocoderFormat.E7 - centerLng;
+                double lat1 = buffer.getInt(p + 8) / GeocoderFormat.E7 - centerLat;
+                double lng1 = buffer.getInt(p + 12) / GeocoderFormat.E7 - centerLng;
+                // Edge ends on both sides of the path, a shared vertex counts for one edge only
+                if ((pathLng * lat0 - pathLat * lng0 > 0) == (pathLng * lat1 - pathLat * lng1 > 0)) {
+                    continue;
+                }
+                // Path ends on both sides of the edge
+                double edgeLng = lng1 - lng0;
+                double edgeLat = lat1 - lat0;
+                double fromCenter = edgeLng * -lat0 - edgeLat * -lng0;
+                double fromPoint = edgeLng * (pathLat - lat0) - edgeLat * (pathLng - lng0);
+                if ((fromCenter > 0) != (fromPoint > 0)) {
+                    inside = !inside;
+                }
+            }
+            if (inside) {
+                int level = buffer.get(featureOffset + feature * GeocoderFormat.FEATURE_SIZE + 1);
+                if (areas[at + level] == Address.NONE) {
+                    areas[at + level] = feature;
+                }
+            }
+        }
+
+        int street = Address.NONE;
+        double best = (double) streetSnapMeters * streetSnapMeters;
+        double metersPerDegreeLng = GeoMath.METERS_PER_DEGREE * Math.cos(Math.toRadians(lat));
+        int streetCount = buffer.getInt(p);
+        p += 4;
+        for (int s = 0; s < streetCount; s++) {
+            int feature = buffer.getInt(p);
+            int segments = buffer.getInt(p + 4);
+            p += 8;
+            for (int i = 0; i < segments; i++, p += 16) {
+                // Local plane in meters with the point at the origin
+                double x0 = (buffer.getInt(p + 4) / GeocoderFormat.E7 - lng) * metersPerDegreeLng;
+                double y0 = (buffer.getInt(p) / GeocoderFormat.E7 - lat) * GeoMath.METERS_PER_DEGREE;
+                double x1 = (buffer.getInt(p + 12) / GeocoderFormat.E7 - lng) * metersPerDegreeLng;
+                double y1 = (buffer.getInt(p + 8) / GeocoderFormat.E7 - lat) * GeoMath.METERS_PER_DEGREE;
+                double dx = x1 - x0;
+                double dy = y1 - y0;
+                double t = GeoMath.projectOnSegment(x0, y0, dx, dy);
+                double px = x0 + t * dx;
+                double py = y0 + t * dy;
+                double distance = px * px + py * py;
+                if (distance <= best) {
+                    best = distance;
+                    street = feature;
+                }
+            }
+        }
+        return street;
+    }
+
+    private int find(long key) {
+        for (int slot = buckets[bucket(key)]; slot != NONE; slot = chain[slot]) {
+            if (cacheKeys[slot] == key) {
+                return slot;
+            }
+        }
+        return NONE;
+    }
+
+    private int insert(long key) {
+        int slot;
+        if (cacheSize < cacheCapacity) {
+            slot = cacheSize++;
+        } else {
+            slot = oldest;
+            unlink(slot);
+            int b = bucket(cacheKeys[slot]);
+            if (buckets[b] == slot) {
+                buckets[b] = chain[slot];
+            } else {
+                int previous = buckets[b];
+                while (chain[previous] != slot) {
+                    previous = chain[previous];
+                }
+                chain[previous] = chain[slot];
+            }
+        }
+        cacheKeys[slot] = key;
+        int b = bucket(key);
+        chain[slot] = buckets[b];
+        buckets[b] = slot;
+        linkNewest(slot);
+        return slot;
+    }
+
+    private void touch(int slot) {
+        if (slot != newest) {
+            unlink(slot);
+            linkNewest(slot);
+        }
+    }
+
+    private void unlink(int slot) {
+        if (newer[slot] != NONE) {
+            older[newer[slot]] = older[slot];
+        } else {
+            newest = older[slot];
+        }
+        if (older[slot] != NONE) {
+            newer[older[slot]] = newer[slot];
+        } else {
+            oldest = newer[slot];
+        }
+    }
+
+    private void linkNewest(int slot) {
+        newer[slot] = NONE;
+        older[slot] = newest;
+        if (newest != NONE) {
+            newer[newest] = slot;
+        } else {
+            oldest = slot;
+        }
+        newest = slot;
+    }
+
+    private int bucket(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & (buckets.length - 1);
+    }
+}
@@ -0,0 +1,471 @@
+package com.transerve.locationservices.manager.geocode;
+
+import com.transerve.locationservices.manager.geo.GeoMath;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Packs admin areas, localities and streets into the file read by {@link ReverseGeocoder}.
+ * <p>
+ * Areas are polygons with a level, coarsest first, for example 0 for states, 1 for districts
+ * and 2 for localities. Streets are polylines. Coordinates are rounded to 1e-7 degrees.
+ * <p>
+ * Building is meant to run once, offline or on first install, and trades memory for a file in
+ * which every lookup touches one directory entry and one cell block. Data must not cross the
+ * antimeridian.
+ */
+public final class ReverseGeocoderBuilder {
+
+    public static final double DEFAULT_CELL_DEGREES = 0.01;
+
+    public static final float DEFAULT_STREET_SNAP_METERS = 50f;
+
+    // Keeps features on a cell border in both cells despite rounding
+    private static final double EPSILON = 1e-9;
+
+    private static final long MAX_CELLS = 1L << 26;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final double cellDegrees;
+
+    private float streetSnapMeters = DEFAULT_STREET_SNAP_METERS;
+
+    private final List<String> names = new ArrayList<String>();
+    private final List<int[][]> shapes = new ArrayList<int[][]>();
+    private int[] kinds = new int[64];
+    private int[] levels = new int[64];
+    private int levelCount;
+
+    public ReverseGeocoderBuilder() {
+        this(DEFAULT_CELL_DEGREES);
+    }
+
+    /**
+     * @param cellDegrees grid cell size, smaller cells hold fewer edges but grow the directory
+     */
+    public ReverseGeocoderBuilder(double cellDegrees) {
+        if (cellDegrees <= 0 || cellDegrees > 90) {
+            throw new IllegalArgumentException("Invalid cell size " + cellDegrees);
+        }
+        this.cellDegrees = cellDegrees;
+    }
+
+    /**
+     * Streets further than this from a point are not reported for it
+     */
+    public ReverseGeocoderBuilder setStreetSnapMeters(float meters) {
+        if (meters <= 0) {
+            throw new IllegalArgumentException("Snap distance must be positive");
+        }
+        this.streetSnapMeters = meters;
+        return this;
+    }
+
+    /**
+     * Adds an area, holes and separate parts are extra rings combined with the even-odd rule
+     *
+     * @param level 0 for the coarsest areas, below {@link GeocoderFormat#MAX_LEVELS}
+     * @param rings each ring is {@code lat0, lng0, lat1, lng1, ...} with at least 3 points
+     * @return feature index, as reported by {@link Address}
+     */
+    public int addArea(int level, String name, double[][] rings) {
+        if (level < 0 || level >= GeocoderFormat.MAX_LEVELS) {
+            throw new IllegalArgumentException("Level must be 0 to " + (GeocoderFormat.MAX_LEVELS - 1));
+        }
+        int[][] shape = new int[rings.length][];
+        for (int r = 0; r < rings.length; r++) {
+            if (rings[r].length < 6 || rings[r].length % 2 != 0) {
+                throw new IllegalArgumentException("A ring needs at least 3 lat, lng pairs");
+            }
+            shape[r] = quantize(rings[r]);
+        }
+        levelCount = Math.max(levelCount, level + 1);
+        return addFeature(GeocoderFormat.KIND_AREA, level, name, shape);
+    }
+
+    /**
+     * @param points {@code lat0, lng0, lat1, lng1, ...} with at least 2 points
+     * @return feature index, as reported by {@link Address}
+     */
+    public int addStreet(String name, double[] points) {
+        if (points.length < 4 || points.length % 2 != 0) {
+            throw new IllegalArgumentException("A street needs at least 2 lat, lng pairs");
+        }
+        return addFeature(GeocoderFormat.KIND_STREET, 0, name, new int[][]{quantize(points)});
+    }
+
+    public int getFeatureCount() {
+        return names.size();
+    }
+
+    public void write(File file) throws IOException {
+        int featureCount = names.size();
+        double snapLat = streetSnapMeters / GeoMath.METERS_PER_DEGREE;
+        double minLat = Double.MAX_VALUE;
+        double minLng = Double.MAX_VALUE;
+        double maxLat = -Double.MAX_VALUE;
+        double maxLng = -Double.MAX_VALUE;
+        for (int f = 0; f < featureCount; f++) {
+            double margin = kinds[f] == GeocoderFormat.KIND_STREET ? snapLat : 0;
+            double[] box = bounds(shapes.get(f));
+            double marginLng = margin / cos(box);
+            minLat = Math.min(minLat, box[0] - margin);
+            minLng = Math.min(minLng, box[1] - marginLng);
+            maxLat = Math.max(maxLat, box[2] + margin);
+            maxLng = Math.max(maxLng, box[3] + marginLng);
+        }
+        if (featureCount == 0) {
+            minLat = minLng = maxLat = maxLng = 0;
+        }
+        int rows = Math.max(1, (int) Math.ceil((maxLat - minLat) / cellDegrees));
+        int cols = Math.max(1, (int) Math.ceil((maxLng - minLng) / cellDegrees));
+        if ((long) rows * cols > MAX_CELLS) {
+            throw new IllegalStateException("Grid of " + rows + " x " + cols + " cells is too large, use larger cells");
+        }
+        Grid grid = new Grid(minLat, minLng, rows, cols);
+
+        // Cell blocks, areas and streets kept apart as they are written one after the other
+        Map<Integer, IntList> areaBlocks = new HashMap<Integer, IntList>();
+        Map<Integer, IntList> streetBlocks = new HashMap<Integer, IntList>();
+        for (int f = 0; f < featureCount; f++) {
+            if (kinds[f] == GeocoderFormat.KIND_AREA) {
+                addArea(grid, f, areaBlocks);
+            } else {
+                addStreet(grid, f, snapLat, streetBlocks);
+            }
+        }
+
+        byte[][] encoded = new byte[featureCount][];
+        int nameBytes = 0;
+        for (int f = 0; f < featureCount; f++) {
+            encoded[f] = names.get(f).getBytes(UTF_8);
+            nameBytes += encoded[f].length;
+        }
+        long featureOffset = GeocoderFormat.HEADER_SIZE;
+        long nameOffset = featureOffset + (long) featureCount * GeocoderFormat.FEATURE_SIZE;
+        long directoryOffset = nameOffset + nameBytes;
+        long blockOffset = directoryOffset + (long) rows * cols * 4;
+
+        File temp = new File(file.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            Chunk chunk = new Chunk(out);
+            chunk.reserve(GeocoderFormat.HEADER_SIZE).putInt(GeocoderFormat.MAGIC)
+                    .putShort(GeocoderFormat.VERSION).putShort((short) levelCount)
+                    .putDouble(cellDegrees).putDouble(minLat).putDouble(minLng)
+                    .putInt(rows).putInt(cols).putInt(featureCount).putFloat(streetSnapMeters)
+                    .putLong(featureOffset).putLong(nameOffset).putLong(directoryOffset).putLong(blockOffset);
+            int nameAt = 0;
+            for (int f = 0; f < featureCount; f++) {
+                chunk.reserve(GeocoderFormat.FEATURE_SIZE).put((byte) kinds[f]).put((byte) levels[f])
+                        .putShort((short) 0).putInt(nameAt).putInt(encoded[f].length);
+                nameAt += encoded[f].length;
+            }
+            for (int f = 0; f < featureCount; f++) {
+                chunk.write(encoded[f]);
+            }
+            long blockAt = 0;
+            for (int cell = 0; cell < rows * cols; cell++) {
+                IntList areas = areaBlocks.get(cell);
+                IntList streets = streetBlocks.get(cell);
+                if (areas == null && streets == null) {
+                    chunk.reserve(4).putInt(GeocoderFormat.EMPTY_CELL);
+                } else {
+                    if (blockOffset + blockAt > Integer.MAX_VALUE) {
+                        throw new IllegalStateException("Geocoder file exceeds 2 GB");
+                    }
+                    chunk.reserve(4).putInt((int) blockAt);
+                    blockAt += 4 * (2 + size(areas) + size(streets));
+                }
+            }
+            for (int cell = 0; cell < rows * cols; cell++) {
+                IntList areas = areaBlocks.get(cell);
+                IntList streets = streetBlocks.get(cell);
+                if (areas != null || streets != null) {
+                    writeList(chunk, areas);
+                    writeList(chunk, streets);
+                }
+            }
+            chunk.flush();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Can't replace " + file);
+        }
+    }
+
+    private int addFeature(int kind, int level, String name, int[][] shape) {
+        int f = names.size();
+        if (f == kinds.length) {
+            kinds = Arrays.copyOf(kinds, f * 2);
+            levels = Arrays.copyOf(levels, f * 2);
+        }
+        names.add(name);
+        shapes.add(shape);
+        kinds[f] = kind;
+        levels[f] = level;
+        return f;
+    }
+
+    private void addArea(Grid grid, int feature, Map<Integer, IntList> blocks) {
+        int[][] shape = shapes.get(feature);
+        double[] box = bounds(shape);
+        int firstRow = grid.row(box[0] - EPSILON);
+        int lastRow = grid.row(box[2] + EPSILON);
+        int firstCol = grid.col(box[1] - EPSILON);
+        int lastCol = grid.col(box[3] + EPSILON);
+
+        // Edges crossing each cell of the area's box
+        Map<Integer, IntList> cellEdges = new HashMap<Integer, IntList>();
+        for (int[] ring : shape) {
+            int points = ring.length / 2;
+            for (int i = 0; i < points; i++) {
+                int j = (i + 1) % points;
+                int lat0 = ring[i * 2];
+                int lng0 = ring[i * 2 + 1];
+                int lat1 = ring[j * 2];
+                int lng1 = ring[j * 2 + 1];
+                int rowTo = grid.row(Math.max(lat0, lat1) / GeocoderFormat.E7 + EPSILON);
+                int colFrom = grid.col(Math.min(lng0, lng1) / GeocoderFormat.E7 - EPSILON);
+                int colTo = grid.col(Math.max(lng0, lng1) / GeocoderFormat.E7 + EPSILON);
+                for (int row = grid.row(Math.min(lat0, lat1) / GeocoderFormat.E7 - EPSILON); row <= rowTo; row++) {
+                    for (int col = colFrom; col <= colTo; col++) {
+                        list(cellEdges, grid.cell(row, col)).add(lat0, lng0, lat1, lng1);
+                    }
+                }
+            }
+        }
+
+        double[] crossings = new double[16];
+        for (int row = firstRow; row <= lastRow; row++) {
+            // Where the row's center line crosses the area, to classify the cell centers
+            double lat = grid.centerLat(row);
+            int crossingCount = 0;
+            for (int[] ring : shape) {
+                int points = ring.length / 2;
+                for (int i = 0; i < points; i++) {
+                    int j = (i + 1) % points;
+                    double lat0 = ring[i * 2] / GeocoderFormat.E7;
+                    double lat1 = ring[j * 2] / GeocoderFormat.E7;
+                    if ((lat0 > lat) != (lat1 > lat)) {
+                        double lng0 = ring[i * 2 + 1] / GeocoderFormat.E7;
+                        double lng1 = ring[j * 2 + 1] / GeocoderFormat.E7;
+                        if (crossingCount == crossings.length) {
+                            crossings = Arrays.copyOf(crossings, crossingCount * 2);
+                        }
+                        crossings[crossingCount++] = lng0 + (lat - lat0) * (lng1 - lng0) / (lat1 - lat0);
+                    }
+                }
+            }
+            Arrays.sort(crossings, 0, crossingCount);
+            int passed = 0;
+            for (int col = firstCol; col <= lastCol; col++) {
+                double lng = grid.centerLng(col);
+                while (passed < crossingCount && crossings[passed] <= lng) {
+                    passed++;
+                }
+                // Even-odd rule, the ray to the east crosses the remaining edges
+                boolean inside = ((crossingCount - passed) & 1) == 1;
+                int cell = grid.cell(row, col);
+                IntList edges = cellEdges.get(cell);
+                if (edges == null && !inside) {
+                    continue;
+                }
+                IntList block = list(blocks, cell);
+                block.entries++;
+                block.add(feature);
+                block.add(inside ? 1 : 0);
+                block.add(edges == null ? 0 : edges.size / 4);
+                if (edges != null) {
+                    block.addAll(edges);
+                }
+            }
+        }
+    }
+
+    private void addStreet(Grid grid, int feature, double snapLat, Map<Integer, IntList> blocks) {
+        int[] points = shapes.get(feature)[0];
+        // Segments within snapping distance of each cell
+        Map<Integer, IntList> cellSegments = new HashMap<Integer, IntList>();
+        for (int i = 0; i + 3 < points.length; i += 2) {
+            double south = Math.min(points[i], points[i + 2]) / GeocoderFormat.E7 - snapLat;
+            double north = Math.max(points[i], points[i + 2]) / GeocoderFormat.E7 + snapLat;
+            double snapLng = snapLat / Math.max(Math.cos(Math.toRadians(Math.max(Math.abs(south), Math.abs(north)))), 1e-6);
+            int rowTo = grid.row(north + EPSILON);
+            int colFrom = grid.col(Math.min(points[i + 1], points[i + 3]) / GeocoderFormat.E7 - snapLng - EPSILON);
+            int colTo = grid.col(Math.max(points[i + 1], points[i + 3]) / GeocoderFormat.E7 + snapLng + EPSILON);
+            for (int row = grid.row(south - EPSILON); row <= rowTo; row++) {
+                for (int col = colFrom; col <= colTo; col++) {
+                    list(cellSegments, grid.cell(row, col)).add(points[i], points[i + 1], points[i + 2], points[i + 3]);
+                }
+            }
+        }
+        for (Map.Entry<Integer, IntList> entry : cellSegments.entrySet()) {
+            IntList block = list(blocks, entry.getKey());
+            block.entries++;
+            block.add(feature);
+            block.add(entry.getValue().size / 4);
+            block.addAll(entry.getValue());
+        }
+    }
+
+    private static void writeList(Chunk chunk, IntList list) throws IOException {
+        // Entries are counted by feature, each list starts with its own count
+        chunk.reserve(4).putInt(list == null ? 0 : list.entries);
+        if (list != null) {
+            for (int i = 0; i < list.size; i++) {
+                chunk.reserve(4).putInt(list.values[i]);
+            }
+        }
+    }
+
+    private static int size(IntList list) {
+        return list == null ? 0 : list.size;
+    }
+
+    private static IntList list(Map<Integer, IntList> map, int key) {
+        IntList list = map.get(key);
+        if (list == null) {
+            list = new IntList();
+            map.put(key, list);
+        }
+        return list;
+    }
+
+    private static int[] quantize(double[] points) {
+        int[] quantized = new int[points.length];
+        for (int i = 0; i < points.length; i++) {
+            quantized[i] = (int) Math.round(points[i] * GeocoderFormat.E7);
+        }
+        return quantized;
+    }
+
+    // min lat, min lng, max lat, max lng
+    private static double[] bounds(int[][] shape) {
+        int south = Integer.MAX_VALUE;
+        int west = Integer.MAX_VALUE;
+        int north = Integer.MIN_VALUE;
+        int east = Integer.MIN_VALUE;
+        for (int[] ring : shape) {
+            for (int i = 0; i < ring.length; i += 2) {
+                south = Math.min(south, ring[i]);
+                north = Math.max(north, ring[i]);
+                west = Math.min(west, ring[i + 1]);
+                east = Math.max(east, ring[i + 1]);
+            }
+        }
+        return new double[]{south / GeocoderFormat.E7, west / GeocoderFormat.E7,
+                north / GeocoderFormat.E7, east / GeocoderFormat.E7};
+    }
+
+    // Smallest cosine of latitude over the box, for widening it by a distance
+    private static double cos(double[] box) {
+        double lat = Math.min(89.9, Math.max(Math.abs(box[0]), Math.abs(box[2])) + 1);
+        return Math.cos(Math.toRadians(lat));
+    }
+
+    private final class Grid {
+        final double minLat;
+        final double minLng;
+        final int rows;
+        final int cols;
+
+        Grid(double minLat, double minLng, int rows, int cols) {
+            this.minLat = minLat;
+            this.minLng = minLng;
+            this.rows = rows;
+            this.cols = cols;
+        }
+
+        int row(double lat) {
+            return Math.max(0, Math.min(rows - 1, (int) Math.floor((lat - minLat) / cellDegrees)));
+        }
+
+        int col(double lng) {
+            return Math.max(0, Math.min(cols - 1, (int) Math.floor((lng - minLng) / cellDegrees)));
+        }
+
+        int cell(int row, int col) {
+            return row * cols + col;
+        }
+
+        double centerLat(int row) {
+            return minLat + (row + 0.5) * cellDegrees;
+        }
+
+        double centerLng(int col) {
+            return minLng + (col + 0.5) * cellDegrees;
+        }
+    }
+
+    private static final class IntList {
+        int[] values = new int[16];
+        int size;
+        // Features in a cell block
+        int entries;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        void add(int a, int b, int c, int d) {
+            add(a);
+            add(b);
+            add(c);
+            add(d);
+        }
+
+        void addAll(IntList other) {
+            for (int i = 0; i < other.size; i++) {
+                add(other.values[i]);
+            }
+        }
+    }
+
+    private static final class Chunk {
+        private final OutputStream out;
+        private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+
+        Chunk(OutputStream out) {
+            this.out = out;
+        }
+
+        ByteBuffer reserve(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+            return buffer;
+        }
+
+        void write(byte[] bytes) throws IOException {
+            if (bytes.length > buffer.capacity()) {
+                flush();
+                out.write(bytes);
+            } else {
+                reserve(bytes.length).put(bytes);
+            }
+        }
+
+        void flush() throws IOException {
+            out.write(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
+    }
+}
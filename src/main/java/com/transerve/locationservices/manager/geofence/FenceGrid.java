@@ -0,0 +1,209 @@
+package com.transerve.locationservices.manager.geofence;
+
+import com.transerve.locationservices.manager.geo.GeoMath;
+
+import java.util.Arrays;
+
+/**
+ * Uniform lat/lng grid from cells to the fences overlapping them.
+ * <p>
+ * Cells are kept in an open addressing hash table of packed {@code (row << 32) | col} keys.
+ * Each cell heads a linked list of entries stored in parallel int arrays, so registering a
+ * fence allocates nothing once the arrays have grown, and a lookup is one hash probe.
+ */
+final class FenceGrid {
+
+    static final int NONE = -1;
+
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private final double cellDegrees;
+
+    private final int columns;
+
+    // Hash table, cell key to first entry
+    private long[] keys = new long[64];
+    private int[] heads = new int[64];
+    private int cellCount;
+
+    // Entries: fence and next entry in the same cell
+    private int[] entryFence = new int[64];
+    private int[] entryNext = new int[64];
+    private int entryCount;
+    private int freeEntry = NONE;
+
+    FenceGrid(double cellDegrees) {
+        this.cellDegrees = cellDegrees;
+        this.columns = (int) Math.ceil(360 / cellDegrees);
+        Arrays.fill(keys, EMPTY);
+    }
+
+    double getCellDegrees() {
+        return cellDegrees;
+    }
+
+    long cellOf(double lat, double lng) {
+        return key(row(lat), column(lng));
+    }
+
+    /**
+     * @return first entry of the cell, {@link #NONE} if it is empty
+     */
+    int first(long cell) {
+        int slot = find(cell);
+        return keys[slot] == EMPTY ? NONE : heads[slot];
+    }
+
+    int next(int entry) {
+        return entryNext[entry];
+    }
+
+    int fence(int entry) {
+        return entryFence[entry];
+    }
+
+    /**
+     * Registers the fence in every cell its bounding box overlaps
+     */
+    void add(int fence, double minLat, double minLng, double maxLat, double maxLng) {
+        update(fence, minLat, minLng, maxLat, maxLng, true);
+    }
+
+    void remove(int fence, double minLat, double minLng, double maxLat, double maxLng) {
+        update(fence, minLat, minLng, maxLat, maxLng, false);
+    }
+
+    private void update(int fence, double minLat, double minLng, double maxLat, double maxLng,
+                        boolean add) {
+        int fromRow = row(minLat);
+        int toRow = row(maxLat);
+        int fromColumn = column(minLng);
+        // Boxes crossing the antimeridian wrap around to the first columns
+        int span = maxLng - minLng >= 360 ? columns
+                : Math.min(columns, (column(maxLng) - fromColumn + columns) % columns + 1);
+        for (int row = fromRow; row <= toRow; row++) {
+            for (int i = 0; i < span; i++) {
+                long cell = key(row, (fromColumn + i) % columns);
+                if (add) {
+                    link(cell, fence);
+                } else {
+                    unlink(cell, fence);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return degrees of latitude covering the given distance
+     */
+    static double latitudeDegrees(double meters) {
+        return meters / GeoMath.METERS_PER_DEGREE;
+    }
+
+    /**
+     * @return degrees of longitude covering the given distance at the latitude, capped at 360
+     */
+    static double longitudeDegrees(double meters, double lat) {
+        double cos = Math.cos(Math.toRadians(Math.min(89.9, Math.abs(lat))));
+        return Math.min(360, meters / (GeoMath.METERS_PER_DEGREE * cos));
+    }
+
+    private int row(double lat) {
+        return (int) Math.floor((Math.max(-90, Math.min(90, lat)) + 90) / cellDegrees);
+    }
+
+    private int column(double lng) {
+        double wrapped = ((lng + 180) % 360 + 360) % 360;
+        return Math.min(columns - 1, (int) Math.floor(wrapped / cellDegrees));
+    }
+
+    private static long key(int row, int column) {
+        return ((long) row << 32) | (column & 0xFFFFFFFFL);
+    }
+
+    private void link(long cell, int fence) {
+        int entry;
+        if (freeEntry != NONE) {
+            entry = freeEntry;
+            freeEntry = entryNext[entry];
+        } else {
+            if (entryCount == entryFence.length) {
+                entryFence = Arrays.copyOf(entryFence, entryCount * 2);
+                entryNext = Arrays.copyOf(entryNext, entryCount * 2);
+            }
+            entry = entryCount++;
+        }
+        int slot = find(cell);
+        if (keys[slot] == EMPTY) {
+            keys[slot] = cell;
+            heads[slot] = NONE;
+            cellCount++;
+        }
+        entryFence[entry] = fence;
+        entryNext[entry] = heads[slot];
+        heads[slot] = entry;
+        if (cellCount * 2 > keys.length) {
+            rehash();
+        }
+    }
+
+    private void unlink(long cell, int fence) {
+        int slot = find(cell);
+        if (keys[slot] == EMPTY) {
+            return;
+        }
+        int previous = NONE;
+        for (int entry = heads[slot]; entry != NONE; entry = entryNext[entry]) {
+            if (entryFence[entry] == fence) {
+                if (previous == NONE) {
+                    heads[slot] = entryNext[entry];
+                } else {
+                    entryNext[previous] = entryNext[entry];
+                }
+                entryNext[entry] = freeEntry;
+                freeEntry = entry;
+                return;
+            }
+            previous = entry;
+        }
+        // Empty cells keep their slot, they are dropped on the next rehash
+    }
+
+    private int find(long cell) {
+        int mask = keys.length - 1;
+        int slot = mix(cell) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != cell) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        int[] oldHeads = heads;
+        int live = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY && oldHeads[i] != NONE) {
+                live++;
+            }
+        }
+        int capacity = Integer.highestOneBit(Math.max(64, live * 4 - 1)) << 1;
+        keys = new long[capacity];
+        heads = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        cellCount = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY && oldHeads[i] != NONE) {
+                int slot = find(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                heads[slot] = oldHeads[i];
+                cellCount++;
+            }
+        }
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,291 @@
+package com.transerve.locationservices.manager.geofence;
+
+import com.transerve.locationservices.manager.CoordinateManager;
+import com.transerve.locationservices.manager.LocationCursor;
+import com.transerve.locationservices.manager.LocationQuality;
+import com.transerve.locationservices.manager.LocationSink;
+import com.transerve.locationservices.manager.geo.GeoMath;
+
+import java.util.Arrays;
+
+/**
+ * Evaluates geofences against the fixes of a {@link CoordinateManager}. Fences are circles or
+ * {@link PolygonFence}s.
+ * <p>
+ * Fences are registered in a uniform grid of {@code cellDegrees} cells, in every cell their
+ * bounding box overlaps. A fix only tests the fences of its own cell and the fences it is
+ * currently inside, so the cost per fix depends on the local fence density, not on the number
+ * of fences. Pick a cell size close to the typical fence size, large fences are registered in
+ * many cells.
+ * <p>
+ * Fence state lives in parallel primitive arrays indexed by the handle returned when adding
+ * the fence. Transitions are collected while a fix is evaluated and reported afterwards, so
+ * listeners may add and remove fences. {@link LocationQuality#INACCURATE} fixes are ignored.
+ * <pre>
+ * GeofenceEngine engine = new GeofenceEngine(listener);
+ * int depot = engine.addCircle(lat, lng, 150, 5 * 60 * 1000);
+ * coordinateManager.addSink(engine);
+ * </pre>
+ */
+public class GeofenceEngine implements LocationSink {
+
+    public static final int TRANSITION_ENTER = 1;
+
+    public static final int TRANSITION_EXIT = 2;
+
+    public static final int TRANSITION_DWELL = 4;
+
+    public static final double DEFAULT_CELL_DEGREES = 0.01;
+
+    public interface Listener {
+        /**
+         * @param fence      handle returned when the fence was added
+         * @param transition one of the {@code TRANSITION_} constants
+         */
+        void onGeofenceTransition(int fence, int transition, double lat, double lng, long time);
+    }
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final Listener listener;
+
+    private final FenceGrid grid;
+
+    private float exitHysteresis = 10f;
+
+    // Fences, indexed by handle
+    private int capacity = INITIAL_CAPACITY;
+    private int fenceCount;
+    private int slotCount;
+    private boolean[] active = new boolean[INITIAL_CAPACITY];
+    private double[] centerLat = new double[INITIAL_CAPACITY];
+    private double[] centerLng = new double[INITIAL_CAPACITY];
+    private float[] radius = new float[INITIAL_CAPACITY];
+    // Null for circles
+    private PolygonFence[] polygons = new PolygonFence[INITIAL_CAPACITY];
+    private long[] dwellMillis = new long[INITIAL_CAPACITY];
+    private double[] box = new double[INITIAL_CAPACITY * 4];
+    private boolean[] inside = new boolean[INITIAL_CAPACITY];
+    private boolean[] dwelled = new boolean[INITIAL_CAPACITY];
+    private long[] enterTime = new long[INITIAL_CAPACITY];
+    private int[] visited = new int[INITIAL_CAPACITY];
+    private int[] freeSlots = new int[INITIAL_CAPACITY];
+    private int freeCount;
+
+    // Fences the last fix was inside
+    private int[] insideList = new int[16];
+    private int insideCount;
+
+    // Transitions of the fix being evaluated
+    private int[] eventFence = new int[16];
+    private int[] eventTransition = new int[16];
+    private int eventCount;
+
+    private int generation;
+
+    public GeofenceEngine(Listener listener) {
+        this(listener, DEFAULT_CELL_DEGREES);
+    }
+
+    public GeofenceEngine(Listener listener, double cellDegrees) {
+        if (cellDegrees <= 0 || cellDegrees > 90) {
+            throw new IllegalArgumentException("Invalid cell size " + cellDegrees);
+        }
+        this.listener = listener;
+        this.grid = new FenceGrid(cellDegrees);
+    }
+
+    /**
+     * Extra distance past the border before an exit is reported, keeps fixes jittering on the
+     * border from flapping between enter and exit
+     */
+    public synchronized void setExitHysteresisMeters(float meters) {
+        this.exitHysteresis = meters;
+    }
+
+    public synchronized int getFenceCount() {
+        return fenceCount;
+    }
+
+    /**
+     * Adds a circular fence
+     *
+     * @param dwellMillis time inside before a dwell transition is reported, 0 for none
+     * @return handle of the fence
+     */
+    public synchronized int addCircle(double lat, double lng, float radiusMeters, long dwellMillis) {
+        if (radiusMeters <= 0) {
+            throw new IllegalArgumentException("Radius must be positive");
+        }
+        int fence = allocate();
+        polygons[fence] = null;
+        centerLat[fence] = lat;
+        centerLng[fence] = lng;
+        radius[fence] = radiusMeters;
+        this.dwellMillis[fence] = dwellMillis;
+        double dLat = FenceGrid.latitudeDegrees(radiusMeters);
+        double dLng = FenceGrid.longitudeDegrees(radiusMeters, Math.abs(lat) + dLat);
+        box[fence * 4] = lat - dLat;
+        box[fence * 4 + 1] = lng - dLng;
+        box[fence * 4 + 2] = lat + dLat;
+        box[fence * 4 + 3] = lng + dLng;
+        grid.add(fence, box[fence * 4], box[fence * 4 + 1], box[fence * 4 + 2], box[fence * 4 + 3]);
+        return fence;
+    }
+
+    /**
+     * Adds a polygon fence, possibly with holes or several parts
+     *
+     * @param dwellMillis time inside before a dwell transition is reported, 0 for none
+     * @return handle of the fence
+     */
+    public synchronized int addPolygon(PolygonFence shape, long dwellMillis) {
+        int fence = allocate();
+        polygons[fence] = shape;
+        this.dwellMillis[fence] = dwellMillis;
+        box[fence * 4] = shape.getMinLat();
+        box[fence * 4 + 1] = shape.getMinLng();
+        box[fence * 4 + 2] = shape.getMaxLat();
+        box[fence * 4 + 3] = shape.getMaxLng();
+        grid.add(fence, box[fence * 4], box[fence * 4 + 1], box[fence * 4 + 2], box[fence * 4 + 3]);
+        return fence;
+    }
+
+    /**
+     * Removes a fence without reporting an exit. The handle may be reused by the next fence.
+     */
+    public synchronized void remove(int fence) {
+        if (fence < 0 || fence >= slotCount || !active[fence]) {
+            throw new IllegalArgumentException("Unknown fence " + fence);
+        }
+        grid.remove(fence, box[fence * 4], box[fence * 4 + 1], box[fence * 4 + 2], box[fence * 4 + 3]);
+        if (inside[fence]) {
+            removeInside(fence);
+        }
+        active[fence] = false;
+        polygons[fence] = null;
+        fenceCount--;
+        freeSlots[freeCount++] = fence;
+    }
+
+    public synchronized boolean isInside(int fence) {
+        return inside[fence];
+    }
+
+    @Override
+    public void onLocation(LocationCursor fix) {
+        if (fix.getQuality() != LocationQuality.INACCURATE) {
+            evaluate(fix.getLat(), fix.getLng(), fix.getTime());
+        }
+    }
+
+    /**
+     * Evaluates one position and reports the transitions it causes
+     */
+    public synchronized void evaluate(double lat, double lng, long time) {
+        collect(lat, lng, time);
+        // Reported once the state is consistent, listeners may change the fences
+        for (int i = 0, count = eventCount; i < count; i++) {
+            listener.onGeofenceTransition(eventFence[i], eventTransition[i], lat, lng, time);
+        }
+        eventCount = 0;
+    }
+
+    private void collect(double lat, double lng, long time) {
+        int stamp = ++generation;
+        eventCount = 0;
+
+        // Fences we were inside, checked directly, the fix may have left their cells
+        for (int i = insideCount - 1; i >= 0; i--) {
+            int fence = insideList[i];
+            visited[fence] = stamp;
+            if (!contains(fence, lat, lng, exitHysteresis)) {
+                removeInside(fence);
+                addEvent(fence, TRANSITION_EXIT);
+            } else if (dwellMillis[fence] > 0 && !dwelled[fence]
+                    && time - enterTime[fence] >= dwellMillis[fence]) {
+                dwelled[fence] = true;
+                addEvent(fence, TRANSITION_DWELL);
+            }
+        }
+
+        for (int entry = grid.first(grid.cellOf(lat, lng)); entry != FenceGrid.NONE; entry = grid.next(entry)) {
+            int fence = grid.fence(entry);
+            if (visited[fence] == stamp) {
+                continue;
+            }
+            visited[fence] = stamp;
+            if (contains(fence, lat, lng, 0)) {
+                inside[fence] = true;
+                dwelled[fence] = false;
+                enterTime[fence] = time;
+                if (insideCount == insideList.length) {
+                    insideList = Arrays.copyOf(insideList, insideCount * 2);
+                }
+                insideList[insideCount++] = fence;
+                addEvent(fence, TRANSITION_ENTER);
+            }
+        }
+    }
+
+    private boolean contains(int fence, double lat, double lng, float margin) {
+        PolygonFence polygon = polygons[fence];
+        if (polygon != null) {
+            return polygon.contains(lat, lng, margin);
+        }
+        return GeoMath.fastDistance(lat, lng, centerLat[fence], centerLng[fence]) <= radius[fence] + margin;
+    }
+
+    private void removeInside(int fence) {
+        inside[fence] = false;
+        for (int i = 0; i < insideCount; i++) {
+            if (insideList[i] == fence) {
+                insideList[i] = insideList[--insideCount];
+                return;
+            }
+        }
+    }
+
+    private void addEvent(int fence, int transition) {
+        if (eventCount == eventFence.length) {
+            eventFence = Arrays.copyOf(eventFence, eventCount * 2);
+            eventTransition = Arrays.copyOf(eventTransition, eventCount * 2);
+        }
+        eventFence[eventCount] = fence;
+        eventTransition[eventCount] = transition;
+        eventCount++;
+    }
+
+    private int allocate() {
+        int fence;
+        if (freeCount > 0) {
+            fence = freeSlots[--freeCount];
+        } else {
+            if (slotCount == capacity) {
+                grow(capacity * 2);
+            }
+            fence = slotCount++;
+        }
+        active[fence] = true;
+        inside[fence] = false;
+        dwelled[fence] = false;
+        fenceCount++;
+        return fence;
+    }
+
+    private void grow(int newCapacity) {
+        capacity = newCapacity;
+        active = Arrays.copyOf(active, newCapacity);
+        centerLat = Arrays.copyOf(centerLat, newCapacity);
+        centerLng = Arrays.copyOf(centerLng, newCapacity);
+        radius = Arrays.copyOf(radius, newCapacity);
+        polygons = Arrays.copyOf(polygons, newCapacity);
+        dwellMillis = Arrays.copyOf(dwellMillis, newCapacity);
+        box = Arrays.copyOf(box, newCapacity * 4);
+        inside = Arrays.copyOf(inside, newCapacity);
+        dwelled = Arrays.copyOf(dwelled, newCapacity);
+        enterTime = Arrays.copyOf(enterTime, newCapacity);
+        visited = Arrays.copyOf(visited, newCapacity);
+        freeSlots = Arrays.copyOf(freeSlots, newCapacity);
+    }
+}
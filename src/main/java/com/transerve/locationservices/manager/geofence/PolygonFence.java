@@ -0,0 +1,200 @@
+package com.transerve.locationservices.manager.geofence;
+
+import com.transerve.locationservices.manager.geo.GeoMath;
+
+/**
+ * Polygon fence shape, including holes and multipolygons.
+ * <p>
+ * The shape is given as rings of {@code lat, lng} pairs, implicitly closed. Containment uses
+ * the even-odd rule over all rings, so holes are simply rings inside another ring, and the
+ * parts of a multipolygon are separate rings.
+ * <p>
+ * Edges are kept in flat arrays and bucketed into horizontal bands of latitude, an edge being
+ * listed in every band it spans. A point test only walks the edges of the point's band, so a
+ * zone with thousands of vertices is decided by a handful of crossing tests. Shapes must not
+ * cross the antimeridian.
+ */
+public final class PolygonFence {
+
+    // Average number of edges per band
+    private static final int EDGES_PER_BAND = 4;
+
+    private final int edgeCount;
+
+    // Edge e goes from (lat0, lng0) to (lat1, lng1), stored at 4 * e
+    private final double[] edges;
+
+    private final double minLat;
+    private final double minLng;
+    private final double maxLat;
+    private final double maxLng;
+
+    private final int bandCount;
+    private final double bandHeight;
+
+    // Band b holds bandEdges[bandStart[b] .. bandStart[b + 1])
+    private final int[] bandStart;
+    private final int[] bandEdges;
+
+    /**
+     * @param rings each ring is {@code lat0, lng0, lat1, lng1, ...} with at least 3 points
+     */
+    public PolygonFence(double[][] rings) {
+        int count = 0;
+        for (double[] ring : rings) {
+            if (ring.length < 6 || ring.length % 2 != 0) {
+                throw new IllegalArgumentException("A ring needs at least 3 lat, lng pairs");
+            }
+            count += ring.length / 2;
+        }
+        edgeCount = count;
+        edges = new double[count * 4];
+        double south = Double.MAX_VALUE;
+        double west = Double.MAX_VALUE;
+        double north = -Double.MAX_VALUE;
+        double east = -Double.MAX_VALUE;
+        int e = 0;
+        for (double[] ring : rings) {
+            int points = ring.length / 2;
+            for (int i = 0; i < points; i++) {
+                int j = (i + 1) % points;
+                edges[e * 4] = ring[i * 2];
+                edges[e * 4 + 1] = ring[i * 2 + 1];
+                edges[e * 4 + 2] = ring[j * 2];
+                edges[e * 4 + 3] = ring[j * 2 + 1];
+                south = Math.min(south, ring[i * 2]);
+                north = Math.max(north, ring[i * 2]);
+                west = Math.min(west, ring[i * 2 + 1]);
+                east = Math.max(east, ring[i * 2 + 1]);
+                e++;
+            }
+        }
+        minLat = south;
+        minLng = west;
+        maxLat = north;
+        maxLng = east;
+
+        bandCount = Math.max(1, edgeCount / EDGES_PER_BAND);
+        bandHeight = Math.max((maxLat - minLat) / bandCount, Double.MIN_NORMAL);
+        bandStart = new int[bandCount + 1];
+        for (e = 0; e < edgeCount; e++) {
+            for (int b = firstBand(e), last = lastBand(e); b <= last; b++) {
+                bandStart[b + 1]++;
+            }
+        }
+        for (int b = 0; b < bandCount; b++) {
+            bandStart[b + 1] += bandStart[b];
+        }
+        bandEdges = new int[bandStart[bandCount]];
+        int[] fill = new int[bandCount];
+        for (e = 0; e < edgeCount; e++) {
+            for (int b = firstBand(e), last = lastBand(e); b <= last; b++) {
+                bandEdges[bandStart[b] + fill[b]++] = e;
+            }
+        }
+    }
+
+    public int getEdgeCount() {
+        return edgeCount;
+    }
+
+    public double getMinLat() {
+        return minLat;
+    }
+
+    public double getMinLng() {
+        return minLng;
+    }
+
+    public double getMaxLat() {
+        return maxLat;
+    }
+
+    public double getMaxLng() {
+        return maxLng;
+    }
+
+    /**
+     * Even-odd point in polygon test
+     */
+    public boolean contains(double lat, double lng) {
+        if (lat < minLat || lat > maxLat || lng < minLng || lng > maxLng) {
+            return false;
+        }
+        boolean inside = false;
+        int b = band(lat);
+        for (int k = bandStart[b], end = bandStart[b + 1]; k < end; k++) {
+            int e = bandEdges[k] * 4;
+            double lat0 = edges[e];
+            double lat1 = edges[e + 2];
+            if ((lat0 > lat) != (lat1 > lat)) {
+                double lng0 = edges[e + 1];
+                double crossing = lng0 + (lat - lat0) * (edges[e + 3] - lng0) / (lat1 - lat0);
+                if (lng < crossing) {
+                    inside = !inside;
+                }
+            }
+        }
+        return inside;
+    }
+
+    /**
+     * @return true if the point is inside, or outside but within the margin of the boundary
+     */
+    public boolean contains(double lat, double lng, float marginMeters) {
+        if (contains(lat, lng)) {
+            return true;
+        }
+        return marginMeters > 0 && isNearBoundary(lat, lng, marginMeters);
+    }
+
+    /**
+     * @return true if an edge is within the given distance of the point
+     */
+    public boolean isNearBoundary(double lat, double lng, float meters) {
+        double dLat = meters / GeoMath.METERS_PER_DEGREE;
+        if (lat < minLat - dLat || lat > maxLat + dLat) {
+            return false;
+        }
+        double metersPerDegreeLng = GeoMath.METERS_PER_DEGREE * Math.cos(Math.toRadians(lat));
+        double dLng = meters / Math.max(metersPerDegreeLng, 1e-9);
+        if (lng < minLng - dLng || lng > maxLng + dLng) {
+            return false;
+        }
+        double limit = (double) meters * meters;
+        // Edges near the point are listed in the bands within the margin, edges spanning
+        // several of them are simply tested more than once
+        for (int b = band(lat - dLat), last = band(lat + dLat); b <= last; b++) {
+            for (int k = bandStart[b], end = bandStart[b + 1]; k < end; k++) {
+                int e = bandEdges[k] * 4;
+                // Local plane in meters with the point at the origin
+                double x0 = (edges[e + 1] - lng) * metersPerDegreeLng;
+                double y0 = (edges[e] - lat) * GeoMath.METERS_PER_DEGREE;
+                double x1 = (edges[e + 3] - lng) * metersPerDegreeLng;
+                double y1 = (edges[e + 2] - lat) * GeoMath.METERS_PER_DEGREE;
+                double dx = x1 - x0;
+                double dy = y1 - y0;
+                double t = GeoMath.projectOnSegment(x0, y0, dx, dy);
+                double px = x0 + t * dx;
+                double py = y0 + t * dy;
+                if (px * px + py * py <= limit) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private int band(double lat) {
+        int b = (int) ((lat - minLat) / bandHeight);
+        return Math.max(0, Math.min(bandCount - 1, b));
+    }
+
+    private int firstBand(int e) {
+        return band(Math.min(edges[e * 4], edges[e * 4 + 2]));
+    }
+
+    private int lastBand(int e) {
+        return band(Math.max(edges[e * 4], edges[e * 4 + 2]));
+    }
+}
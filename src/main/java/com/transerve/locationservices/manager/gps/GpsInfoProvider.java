@@ -22,7 +22,6 @@ import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.hardware.GeomagneticField;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
@@ -52,6 +51,7 @@ import androidx.annotation.StringRes;
 import androidx.core.view.MenuItemCompat;
 
 import com.transerve.locationservices.R;
+import com.transerve.locationservices.manager.gps.util.DeclinationCache;
 import com.transerve.locationservices.manager.gps.util.GpsTestUtil;
 import com.transerve.locationservices.manager.gps.util.MathUtils;
 import com.transerve.locationservices.manager.gps.util.PreferenceUtils;
@@ -134,7 +134,7 @@ public class GpsInfoProvider implements LocationListener, SensorEventListener {
 
     private Location mLastLocation;
 
-    private GeomagneticField mGeomagneticField;
+    private final DeclinationCache mDeclinationCache = new DeclinationCache();
 
     private long minTime; // Min Time between location updates, in milliseconds
 
@@ -740,8 +740,8 @@ public class GpsInfoProvider implements LocationListener, SensorEventListener {
         }
 
         // Correct for true north, if preference is set
-        if (mFaceTrueNorth && mGeomagneticField != null) {
-            orientation += mGeomagneticField.getDeclination();
+        if (mFaceTrueNorth && mDeclinationCache.hasDeclination()) {
+            orientation += mDeclinationCache.getDeclination();
             // Make sure value is between 0-360
             orientation = MathUtils.mod((float) orientation, 360.0f);
         }
@@ -762,9 +762,8 @@ public class GpsInfoProvider implements LocationListener, SensorEventListener {
     }
 
     private void updateGeomagneticField() {
-        mGeomagneticField = new GeomagneticField((float) mLastLocation.getLatitude(),
-                (float) mLastLocation.getLongitude(), (float) mLastLocation.getAltitude(),
-                mLastLocation.getTime());
+        mDeclinationCache.update(mLastLocation.getLatitude(), mLastLocation.getLongitude(),
+                mLastLocation.getAltitude(), mLastLocation.getTime());
     }
 
     String getString(@StringRes int res) {
@@ -0,0 +1,108 @@
+package com.transerve.locationservices.manager.gps.util;
+
+import android.hardware.GeomagneticField;
+
+/**
+ * Magnetic declination of the cell the device is in.
+ * <p>
+ * Building a {@link GeomagneticField} evaluates the whole spherical harmonic model, yet the
+ * declination barely changes over tens of kilometers or a few weeks. Positions are quantized
+ * into a lat/lng cell, an altitude bucket centered on sea level and a date bucket, and the
+ * model is only evaluated, at the middle of the cell, when a position falls outside the
+ * current one. Sensor callbacks then read the cached value with {@link #getDeclination()}.
+ * <p>
+ * A position only leaves the current buckets once it is a tenth of a bucket past their
+ * borders, so fixes jittering around a cell border or a clock on a bucket boundary don't
+ * evaluate the model on every update.
+ */
+public class DeclinationCache {
+
+    public static final double DEFAULT_CELL_DEGREES = 0.5;
+
+    public static final float DEFAULT_ALTITUDE_BUCKET_METERS = 1000f;
+
+    public static final long DEFAULT_DATE_BUCKET_MILLIS = 30L * 24 * 60 * 60 * 1000;
+
+    // Part of a bucket a position may stray past the current one before it moves
+    private static final double HYSTERESIS = 0.1;
+
+    private final double cellDegrees;
+
+    private final float altitudeBucketMeters;
+
+    private final long dateBucketMillis;
+
+    private boolean valid;
+    private int row;
+    private int col;
+    private int altitudeBucket;
+    private long dateBucket;
+
+    // Read from sensor threads
+    private volatile float declination;
+    private volatile boolean hasDeclination;
+
+    public DeclinationCache() {
+        this(DEFAULT_CELL_DEGREES, DEFAULT_ALTITUDE_BUCKET_METERS, DEFAULT_DATE_BUCKET_MILLIS);
+    }
+
+    public DeclinationCache(double cellDegrees, float altitudeBucketMeters, long dateBucketMillis) {
+        if (cellDegrees <= 0 || altitudeBucketMeters <= 0 || dateBucketMillis <= 0) {
+            throw new IllegalArgumentException("Bucket sizes must be positive");
+        }
+        this.cellDegrees = cellDegrees;
+        this.altitudeBucketMeters = altitudeBucketMeters;
+        this.dateBucketMillis = dateBucketMillis;
+    }
+
+    /**
+     * Moves the cache to the given position, evaluating the model only if it left the cell
+     *
+     * @param time UTC milliseconds since epoch
+     * @return declination in degrees east of true north
+     */
+    public synchronized float update(double lat, double lng, double altitude, long time) {
+        double rowUnits = lat / cellDegrees;
+        double colUnits = lng / cellDegrees;
+        // Buckets are centered on sea level, bucket k covers k - 0.5 to k + 0.5
+        double altitudeUnits = altitude / altitudeBucketMeters + 0.5;
+        double dateUnits = (double) time / dateBucketMillis;
+        if (!valid || !inBucket(rowUnits, row) || !inBucket(colUnits, col)
+                || !inBucket(altitudeUnits, altitudeBucket) || !inBucket(dateUnits, dateBucket)) {
+            row = (int) Math.floor(rowUnits);
+            col = (int) Math.floor(colUnits);
+            altitudeBucket = (int) Math.floor(altitudeUnits);
+            dateBucket = (long) Math.floor(dateUnits);
+            declination = evaluate(
+                    (float) Math.max(-90, Math.min(90, (row + 0.5) * cellDegrees)),
+                    (float) ((col + 0.5) * cellDegrees),
+                    altitudeBucket * altitudeBucketMeters,
+                    dateBucket * dateBucketMillis + dateBucketMillis / 2);
+            hasDeclination = true;
+            valid = true;
+        }
+        return declination;
+    }
+
+    // True if the value, in bucket units, is in the bucket or less than HYSTERESIS past it
+    private static boolean inBucket(double units, long bucket) {
+        return units >= bucket - HYSTERESIS && units < bucket + 1 + HYSTERESIS;
+    }
+
+    // Evaluates the model, package private so tests can count evaluations
+    float evaluate(float lat, float lng, float altitude, long time) {
+        return new GeomagneticField(lat, lng, altitude, time).getDeclination();
+    }
+
+    public boolean hasDeclination() {
+        return hasDeclination;
+    }
+
+    /**
+     * @return declination in degrees east of true north for the last position given to
+     * {@link #update}, 0 before the first one
+     */
+    public float getDeclination() {
+        return declination;
+    }
+}
@@ -0,0 +1,486 @@
+package com.transerve.locationservices.manager.match;
+
+import com.transerve.locationservices.manager.CoordinateManager;
+import com.transerve.locationservices.manager.LocationCursor;
+import com.transerve.locationservices.manager.LocationQuality;
+import com.transerve.locationservices.manager.LocationSink;
+import com.transerve.locationservices.manager.geo.GeoMath;
+
+import java.util.Arrays;
+
+/**
+ * Incremental hidden Markov map matcher snapping the fixes of a {@link CoordinateManager} onto
+ * a {@link RoadGraph}.
+ * <p>
+ * Each fix gets up to {@code maxCandidates} candidate positions, its projections on the edges
+ * within the search radius. Candidates are scored with a Gaussian on their distance to the fix,
+ * and moves between candidates with an exponential on the difference between the distance
+ * driven on the graph and the distance between the fixes, as in Newson and Krumm. The Viterbi
+ * trellis only keeps the undecided fixes and the last decided one: once a fix is {@code lag}
+ * fixes old it is decided by backtracking from the best current candidate and reported to the
+ * listener. Only paths through the reported candidate are kept afterwards, so the reported fixes
+ * stay connected. Route distances come from a Dijkstra bounded by a few times the distance
+ * between the fixes. When more roads than can be searched are near a fix, the search radius is
+ * halved until they fit.
+ * <p>
+ * A fix without any road nearby, or that no candidate can reach, ends the current match: the
+ * pending fixes are reported and matching starts over. Fixes without a road are reported
+ * unmatched with their own position. All state lives in preallocated arrays, a fix only
+ * allocates if the heap of the route search has to grow.
+ * <pre>
+ * MapMatcher matcher = new MapMatcher(RoadGraph.load(file), listener);
+ * coordinateManager.addSink(matcher);
+ * </pre>
+ * For bulk re-matching of a recorded track call {@link #matchAll}.
+ */
+public class MapMatcher implements LocationSink {
+
+    public static final int NONE = -1;
+
+    public static final int DEFAULT_LAG = 5;
+
+    public static final int DEFAULT_MAX_CANDIDATES = 8;
+
+    public static final float DEFAULT_SEARCH_RADIUS = 50f;
+
+    public static final float DEFAULT_SIGMA = 5f;
+
+    public static final float DEFAULT_BETA = 5f;
+
+    public interface Listener {
+        /**
+         * Called once per fix, in order, {@code lag} fixes late
+         *
+         * @param edge     matched edge, or {@link #NONE} when no road was near and lat, lng are
+         *                 the position of the fix
+         * @param fraction position along the edge from its origin, 0 to 1
+         */
+        void onMatch(long time, double lat, double lng, int edge, float fraction);
+    }
+
+    // Routes longer than this many times the distance between the fixes are not searched
+    private static final double MAX_DETOUR = 3;
+
+    private static final int MAX_NEAR_EDGES = 256;
+
+    private final RoadGraph graph;
+
+    private final Listener listener;
+
+    private final int lag;
+
+    private final int maxCandidates;
+
+    private final int window;
+
+    private float searchRadius = DEFAULT_SEARCH_RADIUS;
+
+    private float sigma = DEFAULT_SIGMA;
+
+    private float beta = DEFAULT_BETA;
+
+    // Trellis ring of the last lag + 2 fixes, candidate c of slot s at s * maxCandidates + c
+    private final long[] time;
+    private final double[] rawLat;
+    private final double[] rawLng;
+    private final int[] candidateCount;
+    private final int[] candidateEdge;
+    private final float[] candidateFraction;
+    private final double[] candidateLat;
+    private final double[] candidateLng;
+    private final double[] candidateDistance;
+    private final double[] score;
+    private final int[] back;
+    private int oldest;
+    private int pending;
+    // The slot before the oldest holds the last decided fix, the next fix continues from it
+    private boolean chained;
+
+    private final RoadGraph.EdgeSearch nearEdges;
+    private final int[] path;
+
+    // Route search, node state is valid when its stamp is the current search
+    private final float[] nodeDistance;
+    private final int[] nodeStamp;
+    private int search;
+    private int[] heapNode = new int[256];
+    private float[] heapKey = new float[256];
+    private int heapSize;
+
+    public MapMatcher(RoadGraph graph, Listener listener) {
+        this(graph, listener, DEFAULT_LAG, DEFAULT_MAX_CANDIDATES);
+    }
+
+    /**
+     * @param lag           fixes held back before a fix is decided, 0 decides every fix at once
+     * @param maxCandidates road positions kept per fix, the closest ones
+     */
+    public MapMatcher(RoadGraph graph, Listener listener, int lag, int maxCandidates) {
+        if (lag < 0) {
+            throw new IllegalArgumentException("Lag must not be negative");
+        }
+        if (maxCandidates <= 0) {
+            throw new IllegalArgumentException("Need at least one candidate");
+        }
+        this.graph = graph;
+        this.listener = listener;
+        this.lag = lag;
+        this.maxCandidates = maxCandidates;
+        window = lag + 2;
+        time = new long[window];
+        rawLat = new double[window];
+        rawLng = new double[window];
+        candidateCount = new int[window];
+        int slots = window * maxCandidates;
+        candidateEdge = new int[slots];
+        candidateFraction = new float[slots];
+        candidateLat = new double[slots];
+        candidateLng = new double[slots];
+        candidateDistance = new double[slots];
+        score = new double[slots];
+        back = new int[slots];
+        path = new int[window];
+        nearEdges = new RoadGraph.EdgeSearch(graph, MAX_NEAR_EDGES);
+        nodeDistance = new float[graph.getNodeCount()];
+        nodeStamp = new int[graph.getNodeCount()];
+    }
+
+    /**
+     * Roads further than this from a fix are not considered
+     */
+    public synchronized void setSearchRadiusMeters(float meters) {
+        this.searchRadius = meters;
+    }
+
+    /**
+     * Standard deviation of the GPS error, in meters
+     */
+    public synchronized void setSigmaMeters(float meters) {
+        this.sigma = meters;
+    }
+
+    /**
+     * Tolerated difference between the distance driven and the distance between fixes, in
+     * meters. Larger values allow more detours between fixes.
+     */
+    public synchronized void setBetaMeters(float meters) {
+        this.beta = meters;
+    }
+
+    @Override
+    public void onLocation(LocationCursor fix) {
+        if (fix.getQuality() != LocationQuality.INACCURATE) {
+            match(fix.getLat(), fix.getLng(), fix.getTime());
+        }
+    }
+
+    /**
+     * Adds a fix, the listener hears about the fix {@code lag} fixes later
+     */
+    public synchronized void match(double lat, double lng, long fixTime) {
+        int slot = (oldest + pending) % window;
+        int count = findCandidates(slot, lat, lng);
+        if (count == 0) {
+            flush();
+            listener.onMatch(fixTime, lat, lng, NONE, 0);
+            return;
+        }
+        time[slot] = fixTime;
+        rawLat[slot] = lat;
+        rawLng[slot] = lng;
+        candidateCount[slot] = count;
+
+        boolean previous = pending > 0 || chained;
+        boolean connected = previous && transition((slot + window - 1) % window, slot);
+        if (!connected) {
+            if (previous) {
+                // Nothing reachable from the previous fix, close that match and start over,
+                // the new fix becomes the oldest one in place
+                flush();
+            }
+            int base = slot * maxCandidates;
+            for (int c = 0; c < count; c++) {
+                score[base + c] = emission(candidateDistance[base + c]);
+                back[base + c] = NONE;
+            }
+        }
+        pending++;
+        if (pending > lag) {
+            decide(1);
+            chained = true;
+        }
+    }
+
+    /**
+     * Matches a whole track and reports every fix before returning
+     */
+    public synchronized void matchAll(double[] lat, double[] lng, long[] times, int count) {
+        for (int i = 0; i < count; i++) {
+            match(lat[i], lng[i], times[i]);
+        }
+        flush();
+    }
+
+    /**
+     * Decides and reports the fixes held back, call at the end of a track
+     */
+    public synchronized void flush() {
+        if (pending > 0) {
+            decide(pending);
+        }
+        chained = false;
+    }
+
+    /**
+     * Drops the fixes held back without reporting them
+     */
+    public synchronized void reset() {
+        pending = 0;
+        chained = false;
+    }
+
+    // Backtracks from the best candidate of the newest fix and reports the oldest fixes
+    private void decide(int fixes) {
+        int newest = (oldest + pending - 1) % window;
+        int base = newest * maxCandidates;
+        int best = 0;
+        for (int c = 1; c < candidateCount[newest]; c++) {
+            if (score[base + c] > score[base + best]) {
+                best = c;
+            }
+        }
+        for (int k = pending - 1; k >= 0; k--) {
+            int slot = (oldest + k) % window;
+            path[k] = best;
+            best = back[slot * maxCandidates + best];
+        }
+        for (int k = 0; k < fixes; k++) {
+            int slot = (oldest + k) % window;
+            int c = slot * maxCandidates + path[k];
+            listener.onMatch(time[slot], candidateLat[c], candidateLng[c], candidateEdge[c], candidateFraction[c]);
+        }
+        // Only paths through the reported candidate may go on, so the next fix chains from it
+        // and later decisions agree with it
+        int decided = (oldest + fixes - 1) % window;
+        for (int c = 0; c < candidateCount[decided]; c++) {
+            if (c != path[fixes - 1]) {
+                score[decided * maxCandidates + c] = Double.NEGATIVE_INFINITY;
+            }
+        }
+        for (int k = fixes; k < pending; k++) {
+            int previous = (oldest + k - 1) % window * maxCandidates;
+            int slot = (oldest + k) % window;
+            for (int c = slot * maxCandidates, end = c + candidateCount[slot]; c < end; c++) {
+                if (back[c] == NONE || score[previous + back[c]] == Double.NEGATIVE_INFINITY) {
+                    score[c] = Double.NEGATIVE_INFINITY;
+                }
+            }
+        }
+        oldest = (oldest + fixes) % window;
+        pending -= fixes;
+    }
+
+    // Projects the fix on the nearby edges and keeps the closest candidates, sorted
+    private int findCandidates(int slot, double lat, double lng) {
+        int base = slot * maxCandidates;
+        int count = 0;
+        double metersPerDegreeLng = GeoMath.METERS_PER_DEGREE * Math.cos(Math.toRadians(lat));
+        float radius = searchRadius;
+        int near = graph.nearEdges(lat, lng, radius, nearEdges);
+        while (nearEdges.isTruncated() && radius > 1) {
+            // Too many roads around, the dropped ones may be the closest, search a smaller area
+            radius /= 2;
+            near = graph.nearEdges(lat, lng, radius, nearEdges);
+        }
+        for (int i = 0; i < near; i++) {
+            int edge = nearEdges.getEdge(i);
+            int from = graph.getEdgeFrom(edge);
+            int to = graph.getEdgeTo(edge);
+            // Local plane in meters with the fix at the origin
+            double x0 = (graph.getNodeLng(from) - lng) * metersPerDegreeLng;
+            double y0 = (graph.getNodeLat(from) - lat) * GeoMath.METERS_PER_DEGREE;
+            double dx = (graph.getNodeLng(to) - lng) * metersPerDegreeLng - x0;
+            double dy = (graph.getNodeLat(to) - lat) * GeoMath.METERS_PER_DEGREE - y0;
+            double t = GeoMath.projectOnSegment(x0, y0, dx, dy);
+            double px = x0 + t * dx;
+            double py = y0 + t * dy;
+            double distance = Math.sqrt(px * px + py * py);
+            if (distance > radius || (count == maxCandidates && distance >= candidateDistance[base + count - 1])) {
+                continue;
+            }
+            int at = Math.min(count, maxCandidates - 1);
+            while (at > 0 && candidateDistance[base + at - 1] > distance) {
+                moveCandidate(base + at - 1, base + at);
+                at--;
+            }
+            int c = base + at;
+            candidateEdge[c] = edge;
+            candidateFraction[c] = (float) t;
+            candidateLat[c] = lat + py / GeoMath.METERS_PER_DEGREE;
+            candidateLng[c] = lng + px / metersPerDegreeLng;
+            candidateDistance[c] = distance;
+            count = Math.min(count + 1, maxCandidates);
+        }
+        return count;
+    }
+
+    private void moveCandidate(int from, int to) {
+        candidateEdge[to] = candidateEdge[from];
+        candidateFraction[to] = candidateFraction[from];
+        candidateLat[to] = candidateLat[from];
+        candidateLng[to] = candidateLng[from];
+        candidateDistance[to] = candidateDistance[from];
+    }
+
+    /**
+     * Viterbi step from the previous fix to the new one
+     *
+     * @return false if no candidate of the new fix is reachable
+     */
+    private boolean transition(int previous, int slot) {
+        int previousBase = previous * maxCandidates;
+        int base = slot * maxCandidates;
+        int count = candidateCount[slot];
+        double straight = GeoMath.fastDistance(rawLat[previous], rawLng[previous], rawLat[slot], rawLng[slot]);
+        double limit = straight * MAX_DETOUR + 2 * searchRadius;
+        for (int c = 0; c < count; c++) {
+            score[base + c] = Double.NEGATIVE_INFINITY;
+            back[base + c] = NONE;
+        }
+        for (int p = 0; p < candidateCount[previous]; p++) {
+            int fromCandidate = previousBase + p;
+            int fromEdge = candidateEdge[fromCandidate];
+            float fromLength = graph.getEdgeLength(fromEdge);
+            double start = (1 - candidateFraction[fromCandidate]) * fromLength;
+            boolean searched = false;
+            for (int c = 0; c < count; c++) {
+                int toCandidate = base + c;
+                int toEdge = candidateEdge[toCandidate];
+                double route;
+                if (toEdge == fromEdge) {
+                    // Standing still jitters back and forth along the edge
+                    route = Math.abs(candidateFraction[toCandidate] - candidateFraction[fromCandidate]) * fromLength;
+                } else {
+                    if (!searched) {
+                        searchRoutes(graph.getEdgeTo(fromEdge), (float) start, (float) limit, base, count);
+                        searched = true;
+                    }
+                    int node = graph.getEdgeFrom(toEdge);
+                    if (nodeStamp[node] != search) {
+                        continue;
+                    }
+                    route = nodeDistance[node] + candidateFraction[toCandidate] * graph.getEdgeLength(toEdge);
+                }
+                if (route > limit) {
+                    continue;
+                }
+                double candidate = score[fromCandidate] - Math.abs(route - straight) / beta;
+                if (candidate > score[toCandidate]) {
+                    score[toCandidate] = candidate;
+                    back[toCandidate] = p;
+                }
+            }
+        }
+        // Scores relative to the best one, so they don't drift on long tracks
+        double best = Double.NEGATIVE_INFINITY;
+        for (int c = 0; c < count; c++) {
+            score[base + c] += emission(candidateDistance[base + c]);
+            best = Math.max(best, score[base + c]);
+        }
+        if (best == Double.NEGATIVE_INFINITY) {
+            return false;
+        }
+        for (int c = 0; c < count; c++) {
+            score[base + c] -= best;
+        }
+        return true;
+    }
+
+    private double emission(double distance) {
+        double z = distance / sigma;
+        return -0.5 * z * z;
+    }
+
+    // Dijkstra from a node until the origins of all candidates are settled or the limit is hit
+    private void searchRoutes(int source, float start, float limit, int base, int count) {
+        if (++search == Integer.MAX_VALUE) {
+            Arrays.fill(nodeStamp, 0);
+            search = 1;
+        }
+        int targets = 0;
+        for (int c = 0; c < count; c++) {
+            int node = graph.getEdgeFrom(candidateEdge[base + c]);
+            if (nodeStamp[node] != -search) {
+                nodeStamp[node] = -search;
+                targets++;
+            }
+        }
+        heapSize = 0;
+        push(source, start);
+        while (heapSize > 0 && targets > 0) {
+            int node = heapNode[0];
+            float distance = heapKey[0];
+            pop();
+            if (distance > limit) {
+                break;
+            }
+            if (nodeStamp[node] == search) {
+                continue;
+            }
+            // Settled, negative stamps only mark targets not reached yet
+            if (nodeStamp[node] == -search) {
+                targets--;
+            }
+            nodeStamp[node] = search;
+            nodeDistance[node] = distance;
+            for (int e = graph.getFirstEdge(node), end = graph.getFirstEdge(node + 1); e < end; e++) {
+                int next = graph.getEdgeTo(e);
+                if (nodeStamp[next] != search) {
+                    push(next, distance + graph.getEdgeLength(e));
+                }
+            }
+        }
+    }
+
+    private void push(int node, float key) {
+        if (heapSize == heapNode.length) {
+            heapNode = Arrays.copyOf(heapNode, heapSize * 2);
+            heapKey = Arrays.copyOf(heapKey, heapSize * 2);
+        }
+        int i = heapSize++;
+        while (i > 0) {
+            int parent = (i - 1) >> 1;
+            if (heapKey[parent] <= key) {
+                break;
+            }
+            heapNode[i] = heapNode[parent];
+            heapKey[i] = heapKey[parent];
+            i = parent;
+        }
+        heapNode[i] = node;
+        heapKey[i] = key;
+    }
+
+    private void pop() {
+        int node = heapNode[--heapSize];
+        float key = heapKey[heapSize];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && heapKey[child + 1] < heapKey[child]) {
+                child++;
+            }
+            if (heapKey[child] >= key) {
+                break;
+            }
+            heapNode[i] = heapNode[child];
+            heapKey[i] = heapKey[child];
+            i = child;
+        }
+        heapNode[i] = node;
+        heapKey[i] = key;
+    }
+}
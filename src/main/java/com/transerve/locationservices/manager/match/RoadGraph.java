@@ -0,0 +1,262 @@
+package com.transerve.locationservices.manager.match;
+
+import com.transerve.locationservices.manager.geo.GeoMath;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Directed road graph mapped from a file written by {@link RoadGraphBuilder}.
+ * <p>
+ * Nodes are points in 1e-7 degrees, edges are straight directed segments between two nodes,
+ * two way roads having one edge per direction. Edges are sorted by their origin, so the edges
+ * leaving node {@code n} are {@link #getFirstEdge(int)} up to {@link #getFirstEdge(int)} of
+ * {@code n + 1}. A uniform grid lists the edges crossing each cell for {@link #nearEdges}.
+ * <pre>
+ * Header
+ *  0 int    magic "TTRD"
+ *  4 short  version
+ *  6 short  unused
+ *  8 int    node count
+ * 12 int    edge count
+ * 16 double cell size in degrees
+ * 24 double min lat of the grid
+ * 32 double min lng of the grid
+ * 40 int    rows
+ * 44 int    columns
+ * Sections, in order
+ *  nodes       int lat, int lng per node
+ *  edges       int from, int to, float length in meters per edge
+ *  first edge  int per node plus one
+ *  cell start  int per cell plus one, row major
+ *  cell edges  int per listed edge
+ * </pre>
+ * The graph is read only and safe to share between threads.
+ */
+public final class RoadGraph {
+
+    public static final int MAGIC = 0x44525454; // "TTRD" little endian
+    public static final short VERSION = 1;
+    public static final int HEADER_SIZE = 48;
+
+    private static final double E7 = 1e7;
+
+    private final int nodeCount;
+    private final int edgeCount;
+    private final double cellDegrees;
+    private final double minLat;
+    private final double minLng;
+    private final int rows;
+    private final int cols;
+
+    private final IntBuffer nodes;
+    private final ByteBuffer edges;
+    private final IntBuffer firstEdge;
+    private final IntBuffer cellStart;
+    private final IntBuffer cellEdges;
+
+    private RoadGraph(ByteBuffer buffer) throws IOException {
+        nodeCount = buffer.getInt(8);
+        edgeCount = buffer.getInt(12);
+        cellDegrees = buffer.getDouble(16);
+        minLat = buffer.getDouble(24);
+        minLng = buffer.getDouble(32);
+        rows = buffer.getInt(40);
+        cols = buffer.getInt(44);
+        if (nodeCount < 0 || edgeCount < 0 || rows <= 0 || cols <= 0 || cellDegrees <= 0) {
+            throw new IOException("Corrupt road graph header");
+        }
+        long offset = HEADER_SIZE;
+        long cells = (long) rows * cols;
+        nodes = slice(buffer, offset, nodeCount * 8L).asIntBuffer();
+        offset += nodeCount * 8L;
+        edges = slice(buffer, offset, edgeCount * 12L);
+        offset += edgeCount * 12L;
+        firstEdge = slice(buffer, offset, (nodeCount + 1) * 4L).asIntBuffer();
+        offset += (nodeCount + 1) * 4L;
+        cellStart = slice(buffer, offset, (cells + 1) * 4L).asIntBuffer();
+        offset += (cells + 1) * 4L;
+        cellEdges = slice(buffer, offset, cellStart.get((int) cells) * 4L).asIntBuffer();
+    }
+
+    public static RoadGraph load(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        MappedByteBuffer buffer;
+        try {
+            if (raf.length() > Integer.MAX_VALUE) {
+                throw new IOException("Road graph too large: " + file);
+            }
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a road graph: " + file);
+        }
+        if (buffer.getShort(4) > VERSION) {
+            throw new IOException("Unsupported road graph version " + buffer.getShort(4));
+        }
+        return new RoadGraph(buffer);
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, long offset, long length) throws IOException {
+        if (offset + length > buffer.capacity()) {
+            throw new IOException("Truncated road graph");
+        }
+        ByteBuffer view = buffer.duplicate();
+        view.position((int) offset);
+        view.limit((int) (offset + length));
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public int getEdgeCount() {
+        return edgeCount;
+    }
+
+    public double getNodeLat(int node) {
+        return nodes.get(node * 2) / E7;
+    }
+
+    public double getNodeLng(int node) {
+        return nodes.get(node * 2 + 1) / E7;
+    }
+
+    /**
+     * @return first edge leaving the node, edges leaving it end at the first edge of the next node
+     */
+    public int getFirstEdge(int node) {
+        return firstEdge.get(node);
+    }
+
+    public int getEdgeFrom(int edge) {
+        return edges.getInt(edge * 12);
+    }
+
+    public int getEdgeTo(int edge) {
+        return edges.getInt(edge * 12 + 4);
+    }
+
+    public float getEdgeLength(int edge) {
+        return edges.getFloat(edge * 12 + 8);
+    }
+
+    /**
+     * Finds the edges whose bounding box comes within the given distance of a point. Edges are
+     * listed once, the caller measures the actual distance.
+     *
+     * @return number of edges found, at most the capacity of the search. When more edges are
+     * near, {@link EdgeSearch#isTruncated()} is set and an arbitrary subset is returned.
+     */
+    public int nearEdges(double lat, double lng, float meters, EdgeSearch out) {
+        double dLat = meters / GeoMath.METERS_PER_DEGREE;
+        double dLng = dLat / Math.max(Math.cos(Math.toRadians(Math.min(89, Math.abs(lat) + dLat))), 1e-6);
+        int south = (int) Math.floor((lat - dLat) * E7);
+        int north = (int) Math.ceil((lat + dLat) * E7);
+        int west = (int) Math.floor((lng - dLng) * E7);
+        int east = (int) Math.ceil((lng + dLng) * E7);
+        int firstRow = Math.max(0, (int) Math.floor((lat - dLat - minLat) / cellDegrees));
+        int lastRow = Math.min(rows - 1, (int) Math.floor((lat + dLat - minLat) / cellDegrees));
+        int firstCol = Math.max(0, (int) Math.floor((lng - dLng - minLng) / cellDegrees));
+        int lastCol = Math.min(cols - 1, (int) Math.floor((lng + dLng - minLng) / cellDegrees));
+        int stamp = out.nextStamp();
+        int[] stamps = out.stamps;
+        int[] found = out.edges;
+        int count = 0;
+        out.truncated = false;
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int col = firstCol; col <= lastCol; col++) {
+                int cell = row * cols + col;
+                for (int k = cellStart.get(cell), end = cellStart.get(cell + 1); k < end; k++) {
+                    int edge = cellEdges.get(k);
+                    if (stamps[edge] == stamp) {
+                        continue;
+                    }
+                    stamps[edge] = stamp;
+                    // Edges crossing the cells may still pass far from the point
+                    int from = getEdgeFrom(edge);
+                    int to = getEdgeTo(edge);
+                    int lat0 = nodes.get(from * 2);
+                    int lat1 = nodes.get(to * 2);
+                    int lng0 = nodes.get(from * 2 + 1);
+                    int lng1 = nodes.get(to * 2 + 1);
+                    if (Math.max(lat0, lat1) < south || Math.min(lat0, lat1) > north
+                            || Math.max(lng0, lng1) < west || Math.min(lng0, lng1) > east) {
+                        continue;
+                    }
+                    if (count == found.length) {
+                        out.truncated = true;
+                        out.count = count;
+                        return count;
+                    }
+                    found[count++] = edge;
+                }
+            }
+        }
+        out.count = count;
+        return count;
+    }
+
+    /**
+     * Result and scratch space of {@link #nearEdges}. Not thread safe, each thread searching the
+     * graph needs its own.
+     */
+    public static final class EdgeSearch {
+
+        final int[] edges;
+
+        // Edges already seen by the current search, sized to the graph
+        final int[] stamps;
+
+        int stamp;
+
+        int count;
+
+        boolean truncated;
+
+        /**
+         * @param capacity most edges returned by one search
+         */
+        public EdgeSearch(RoadGraph graph, int capacity) {
+            if (capacity <= 0) {
+                throw new IllegalArgumentException("Capacity must be positive");
+            }
+            edges = new int[capacity];
+            stamps = new int[graph.getEdgeCount()];
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public int getEdge(int i) {
+            return edges[i];
+        }
+
+        /**
+         * @return true if the last search found more edges than the capacity
+         */
+        public boolean isTruncated() {
+            return truncated;
+        }
+
+        int nextStamp() {
+            if (++stamp == Integer.MAX_VALUE) {
+                Arrays.fill(stamps, 0);
+                stamp = 1;
+            }
+            return stamp;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package com.transerve.locationservices.manager.match;
+
+import com.transerve.locationservices.manager.geo.GeoMath;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes the road graph file read by {@link RoadGraph}.
+ * <p>
+ * Roads are added as polylines. Points are rounded to 1e-7 degrees and roads sharing a point
+ * are connected there, so junctions only need to appear in every road meeting at them. Data
+ * must not cross the antimeridian.
+ */
+public final class RoadGraphBuilder {
+
+    public static final double DEFAULT_CELL_DEGREES = 0.005;
+
+    private static final double E7 = 1e7;
+
+    private static final long MAX_CELLS = 1L << 26;
+
+    private final double cellDegrees;
+
+    private final Map<Long, Integer> nodeIds = new HashMap<Long, Integer>();
+    private int[] nodeLat = new int[1024];
+    private int[] nodeLng = new int[1024];
+    private int nodeCount;
+
+    private int[] edgeFrom = new int[1024];
+    private int[] edgeTo = new int[1024];
+    private int edgeCount;
+
+    public RoadGraphBuilder() {
+        this(DEFAULT_CELL_DEGREES);
+    }
+
+    public RoadGraphBuilder(double cellDegrees) {
+        if (cellDegrees <= 0 || cellDegrees > 90) {
+            throw new IllegalArgumentException("Invalid cell size " + cellDegrees);
+        }
+        this.cellDegrees = cellDegrees;
+    }
+
+    /**
+     * @param points {@code lat0, lng0, lat1, lng1, ...} with at least 2 points
+     * @param oneWay true if the road may only be driven from the first point to the last
+     */
+    public void addRoad(double[] points, boolean oneWay) {
+        if (points.length < 4 || points.length % 2 != 0) {
+            throw new IllegalArgumentException("A road needs at least 2 lat, lng pairs");
+        }
+        int previous = node(points[0], points[1]);
+        for (int i = 2; i < points.length; i += 2) {
+            int next = node(points[i], points[i + 1]);
+            if (next != previous) {
+                addEdge(previous, next);
+                if (!oneWay) {
+                    addEdge(next, previous);
+                }
+            }
+            previous = next;
+        }
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public int getEdgeCount() {
+        return edgeCount;
+    }
+
+    public void write(File file) throws IOException {
+        // Edges sorted by origin, counting sort keeps the order of each node's edges
+        int[] firstEdge = new int[nodeCount + 1];
+        for (int e = 0; e < edgeCount; e++) {
+            firstEdge[edgeFrom[e] + 1]++;
+        }
+        for (int n = 0; n < nodeCount; n++) {
+            firstEdge[n + 1] += firstEdge[n];
+        }
+        int[] order = new int[edgeCount];
+        int[] fill = Arrays.copyOf(firstEdge, nodeCount);
+        for (int e = 0; e < edgeCount; e++) {
+            order[fill[edgeFrom[e]]++] = e;
+        }
+
+        int south = Integer.MAX_VALUE;
+        int west = Integer.MAX_VALUE;
+        int north = Integer.MIN_VALUE;
+        int east = Integer.MIN_VALUE;
+        for (int n = 0; n < nodeCount; n++) {
+            south = Math.min(south, nodeLat[n]);
+            north = Math.max(north, nodeLat[n]);
+            west = Math.min(west, nodeLng[n]);
+            east = Math.max(east, nodeLng[n]);
+        }
+        double minLat = nodeCount == 0 ? 0 : south / E7;
+        double minLng = nodeCount == 0 ? 0 : west / E7;
+        int rows = Math.max(1, (int) Math.ceil((north / E7 - minLat) / cellDegrees) + 1);
+        int cols = Math.max(1, (int) Math.ceil((east / E7 - minLng) / cellDegrees) + 1);
+        if (nodeCount == 0) {
+            rows = cols = 1;
+        }
+        if ((long) rows * cols > MAX_CELLS) {
+            throw new IllegalStateException("Grid of " + rows + " x " + cols + " cells is too large, use larger cells");
+        }
+
+        // Each edge is listed in the cells its box overlaps, both directions of a road included
+        int cells = rows * cols;
+        int[] cellStart = new int[cells + 1];
+        for (int pass = 0; pass < 2; pass++) {
+            int[] cellFill = pass == 0 ? null : Arrays.copyOf(cellStart, cells);
+            int[] cellEdges = pass == 0 ? null : new int[cellStart[cells]];
+            for (int k = 0; k < edgeCount; k++) {
+                int e = order[k];
+                int from = edgeFrom[e];
+                int to = edgeTo[e];
+                int firstRow = cell(Math.min(nodeLat[from], nodeLat[to]) / E7 - minLat, rows);
+                int lastRow = cell(Math.max(nodeLat[from], nodeLat[to]) / E7 - minLat, rows);
+                int firstCol = cell(Math.min(nodeLng[from], nodeLng[to]) / E7 - minLng, cols);
+                int lastCol = cell(Math.max(nodeLng[from], nodeLng[to]) / E7 - minLng, cols);
+                for (int row = firstRow; row <= lastRow; row++) {
+                    for (int col = firstCol; col <= lastCol; col++) {
+                        int c = row * cols + col;
+                        if (pass == 0) {
+                            cellStart[c + 1]++;
+                        } else {
+                            cellEdges[cellFill[c]++] = k;
+                        }
+                    }
+                }
+            }
+            if (pass == 0) {
+                for (int c = 0; c < cells; c++) {
+                    cellStart[c + 1] += cellStart[c];
+                }
+            } else {
+                write(file, order, firstEdge, minLat, minLng, rows, cols, cellStart, cellEdges);
+            }
+        }
+    }
+
+    private void write(File file, int[] order, int[] firstEdge, double minLat, double minLng,
+                       int rows, int cols, int[] cellStart, int[] cellEdges) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            ByteBuffer chunk = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+            chunk.putInt(RoadGraph.MAGIC).putShort(RoadGraph.VERSION).putShort((short) 0)
+                    .putInt(nodeCount).putInt(edgeCount).putDouble(cellDegrees)
+                    .putDouble(minLat).putDouble(minLng).putInt(rows).putInt(cols);
+            for (int n = 0; n < nodeCount; n++) {
+                chunk = room(out, chunk, 8);
+                chunk.putInt(nodeLat[n]).putInt(nodeLng[n]);
+            }
+            for (int k = 0; k < edgeCount; k++) {
+                int e = order[k];
+                int from = edgeFrom[e];
+                int to = edgeTo[e];
+                float length = (float) GeoMath.distance(nodeLat[from] / E7, nodeLng[from] / E7,
+                        nodeLat[to] / E7, nodeLng[to] / E7);
+                chunk = room(out, chunk, 12);
+                chunk.putInt(from).putInt(to).putFloat(length);
+            }
+            for (int value : firstEdge) {
+                chunk = room(out, chunk, 4);
+                chunk.putInt(value);
+            }
+            for (int value : cellStart) {
+                chunk = room(out, chunk, 4);
+                chunk.putInt(value);
+            }
+            for (int value : cellEdges) {
+                chunk = room(out, chunk, 4);
+                chunk.putInt(value);
+            }
+            out.write(chunk.array(), 0, chunk.position());
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Can't replace " + file);
+        }
+    }
+
+    private static ByteBuffer room(OutputStream out, ByteBuffer chunk, int bytes) throws IOException {
+        if (chunk.remaining() < bytes) {
+            out.write(chunk.array(), 0, chunk.position());
+            chunk.clear();
+        }
+        return chunk;
+    }
+
+    private int cell(double offsetDegrees, int count) {
+        return Math.max(0, Math.min(count - 1, (int) Math.floor(offsetDegrees / cellDegrees)));
+    }
+
+    private int node(double lat, double lng) {
+        int qLat = (int) Math.round(lat * E7);
+        int qLng = (int) Math.round(lng * E7);
+        Long key = ((long) qLat << 32) | (qLng & 0xFFFFFFFFL);
+        Integer id = nodeIds.get(key);
+        if (id != null) {
+            return id;
+        }
+        if (nodeCount == nodeLat.length) {
+            nodeLat = Arrays.copyOf(nodeLat, nodeCount * 2);
+            nodeLng = Arrays.copyOf(nodeLng, nodeCount * 2);
+        }
+        nodeLat[nodeCount] = qLat;
+        nodeLng[nodeCount] = qLng;
+        nodeIds.put(key, nodeCount);
+        return nodeCount++;
+    }
+
+    private void addEdge(int from, int to) {
+        if (edgeCount == edgeFrom.length) {
+            edgeFrom = Arrays.copyOf(edgeFrom, edgeCount * 2);
+            edgeTo = Arrays.copyOf(edgeTo, edgeCount * 2);
+        }
+        edgeFrom[edgeCount] = from;
+        edgeTo[edgeCount] = to;
+        edgeCount++;
+    }
+}
@@ -0,0 +1,329 @@
+package com.transerve.locationservices.manager.route;
+
+import com.transerve.locationservices.manager.CoordinateManager;
+import com.transerve.locationservices.manager.LocationCursor;
+import com.transerve.locationservices.manager.LocationQuality;
+import com.transerve.locationservices.manager.LocationSink;
+import com.transerve.locationservices.manager.geo.GeoMath;
+
+import java.util.Arrays;
+
+/**
+ * Follows the fixes of a {@link CoordinateManager} along a planned route.
+ * <p>
+ * The route is a polyline with precomputed cumulative distances. While on the route a fix is
+ * only compared with a window of segments around the last matched one, a few behind and up to
+ * {@code MAX_AHEAD_SEGMENTS} or the search distance ahead, so the cost per fix doesn't depend
+ * on the route length. Where the route passes the same place twice, the segment closest in
+ * progress to the last match wins, going back counting more than going ahead so that a route
+ * turning back on itself is followed past the turn.
+ * <p>
+ * After {@code offRouteFixes} fixes in a row further than the off-route distance, or their
+ * accuracy if worse, an off-route event is reported. From then on, and before the route is
+ * first joined, fixes are looked up in a uniform grid over all segments until one is within
+ * half that distance.
+ * <pre>
+ * RouteTracker tracker = new RouteTracker(plannedLatLng, listener);
+ * coordinateManager.addSink(tracker);
+ * </pre>
+ */
+public class RouteTracker implements LocationSink {
+
+    public static final float DEFAULT_OFF_ROUTE_METERS = 50f;
+
+    public static final int DEFAULT_OFF_ROUTE_FIXES = 3;
+
+    public static final float DEFAULT_SEARCH_AHEAD_METERS = 500f;
+
+    public interface Listener {
+        /**
+         * @param traveledMeters  distance along the route to the matched position
+         * @param remainingMeters distance along the route left to the end
+         * @param offsetMeters    distance from the fix to the route
+         */
+        void onProgress(double lat, double lng, double traveledMeters, double remainingMeters,
+                        float offsetMeters, long time);
+
+        /**
+         * @param traveledMeters distance along the route at the last matched position
+         */
+        void onOffRoute(double lat, double lng, double traveledMeters, long time);
+
+        void onBackOnRoute(double lat, double lng, double traveledMeters, long time);
+    }
+
+    private static final int BEHIND_SEGMENTS = 2;
+
+    private static final int MAX_AHEAD_SEGMENTS = 64;
+
+    // Part of the off-route distance a fix must be within to join the route, keeps fixes
+    // wandering along the limit from flapping between on and off the route
+    private static final double JOIN_RATIO = 0.5;
+
+    // Meters of distance traded for a meter of progress away from the last match
+    private static final double PROGRESS_WEIGHT = 0.05;
+
+    // Same for a meter back from the last match
+    private static final double REGRESS_WEIGHT = 0.2;
+
+    private final Listener listener;
+
+    private final int segmentCount;
+
+    // Point i at 2 * i, segment i goes from point i to point i + 1
+    private final double[] points;
+
+    // Distance along the route to point i
+    private final double[] cumulative;
+
+    // Uniform grid over the segments, cell c holds cellSegments[cellStart[c] .. cellStart[c + 1])
+    private final double minLat;
+    private final double minLng;
+    private final double cellDegrees;
+    private final int rows;
+    private final int cols;
+    private final int[] cellStart;
+    private final int[] cellSegments;
+    private final int[] visited;
+    private int generation;
+
+    private float offRouteMeters = DEFAULT_OFF_ROUTE_METERS;
+    private int offRouteFixes = DEFAULT_OFF_ROUTE_FIXES;
+    private float searchAheadMeters = DEFAULT_SEARCH_AHEAD_METERS;
+
+    private boolean onRoute;
+    private boolean offRouteReported;
+    private int misses;
+    private int segment;
+    private double traveled;
+
+    // Result of the last search
+    private int foundSegment;
+    private double foundTraveled;
+    private double foundDistance;
+    private double foundLat;
+    private double foundLng;
+
+    /**
+     * @param route {@code lat0, lng0, lat1, lng1, ...} with at least 2 points
+     */
+    public RouteTracker(double[] route, Listener listener) {
+        if (route.length < 4 || route.length % 2 != 0) {
+            throw new IllegalArgumentException("A route needs at least 2 lat, lng pairs");
+        }
+        this.listener = listener;
+        this.points = route.clone();
+        int pointCount = route.length / 2;
+        segmentCount = pointCount - 1;
+        cumulative = new double[pointCount];
+        double south = Double.MAX_VALUE;
+        double west = Double.MAX_VALUE;
+        double north = -Double.MAX_VALUE;
+        double east = -Double.MAX_VALUE;
+        for (int i = 0; i < pointCount; i++) {
+            if (i > 0) {
+                cumulative[i] = cumulative[i - 1]
+                        + GeoMath.distance(points[i * 2 - 2], points[i * 2 - 1], points[i * 2], points[i * 2 + 1]);
+            }
+            south = Math.min(south, points[i * 2]);
+            north = Math.max(north, points[i * 2]);
+            west = Math.min(west, points[i * 2 + 1]);
+            east = Math.max(east, points[i * 2 + 1]);
+        }
+
+        // About one cell per segment
+        double area = Math.max((north - south) * (east - west), 1e-12);
+        cellDegrees = Math.max(Math.sqrt(area / segmentCount), 1e-4);
+        minLat = south;
+        minLng = west;
+        rows = (int) ((north - south) / cellDegrees) + 1;
+        cols = (int) ((east - west) / cellDegrees) + 1;
+        cellStart = new int[rows * cols + 1];
+        int[] fill = null;
+        int[] listed = null;
+        for (int pass = 0; pass < 2; pass++) {
+            for (int s = 0; s < segmentCount; s++) {
+                int lastRow = row(Math.max(points[s * 2], points[s * 2 + 2]));
+                int firstCol = col(Math.min(points[s * 2 + 1], points[s * 2 + 3]));
+                int lastCol = col(Math.max(points[s * 2 + 1], points[s * 2 + 3]));
+                for (int r = row(Math.min(points[s * 2], points[s * 2 + 2])); r <= lastRow; r++) {
+                    for (int c = firstCol; c <= lastCol; c++) {
+                        if (pass == 0) {
+                            cellStart[r * cols + c + 1]++;
+                        } else {
+                            listed[fill[r * cols + c]++] = s;
+                        }
+                    }
+                }
+            }
+            if (pass == 0) {
+                for (int c = 0; c < rows * cols; c++) {
+                    cellStart[c + 1] += cellStart[c];
+                }
+                fill = cellStart.clone();
+                listed = new int[cellStart[rows * cols]];
+            }
+        }
+        cellSegments = listed;
+        visited = new int[segmentCount];
+    }
+
+    /**
+     * Distance from the route beyond which fixes count as off the route
+     */
+    public synchronized void setOffRouteMeters(float meters) {
+        this.offRouteMeters = meters;
+    }
+
+    /**
+     * Fixes in a row off the route before it is reported
+     */
+    public synchronized void setOffRouteFixes(int fixes) {
+        this.offRouteFixes = Math.max(1, fixes);
+    }
+
+    /**
+     * How far ahead of the last match the next fix may be matched
+     */
+    public synchronized void setSearchAheadMeters(float meters) {
+        this.searchAheadMeters = meters;
+    }
+
+    public double getLengthMeters() {
+        return cumulative[segmentCount];
+    }
+
+    public synchronized boolean isOnRoute() {
+        return onRoute;
+    }
+
+    public synchronized double getTraveledMeters() {
+        return traveled;
+    }
+
+    public synchronized double getRemainingMeters() {
+        return cumulative[segmentCount] - traveled;
+    }
+
+    /**
+     * @return segment of the last match, segment i starts at point i of the route
+     */
+    public synchronized int getSegment() {
+        return segment;
+    }
+
+    @Override
+    public void onLocation(LocationCursor fix) {
+        if (fix.getQuality() != LocationQuality.INACCURATE) {
+            update(fix.getLat(), fix.getLng(), fix.getAccuracy(), fix.getTime());
+        }
+    }
+
+    public synchronized void update(double lat, double lng, float accuracy, long time) {
+        double limit = Math.max(offRouteMeters, accuracy);
+        if (onRoute) {
+            searchWindow(lat, lng);
+            if (foundDistance <= limit) {
+                misses = 0;
+                accept(lat, lng, time);
+            } else if (++misses >= offRouteFixes) {
+                onRoute = false;
+                offRouteReported = true;
+                listener.onOffRoute(lat, lng, traveled, time);
+            }
+            return;
+        }
+        searchGrid(lat, lng, limit * JOIN_RATIO);
+        if (foundSegment >= 0) {
+            onRoute = true;
+            misses = 0;
+            if (offRouteReported) {
+                offRouteReported = false;
+                listener.onBackOnRoute(lat, lng, foundTraveled, time);
+            }
+            accept(lat, lng, time);
+        } else if (!offRouteReported && ++misses >= offRouteFixes) {
+            offRouteReported = true;
+            listener.onOffRoute(lat, lng, traveled, time);
+        }
+    }
+
+    private void accept(double lat, double lng, long time) {
+        segment = foundSegment;
+        traveled = foundTraveled;
+        listener.onProgress(foundLat, foundLng, traveled, cumulative[segmentCount] - traveled,
+                (float) foundDistance, time);
+    }
+
+    private void searchWindow(double lat, double lng) {
+        foundSegment = -1;
+        double best = Double.MAX_VALUE;
+        double aheadLimit = traveled + searchAheadMeters;
+        int last = Math.min(segmentCount - 1, segment + MAX_AHEAD_SEGMENTS);
+        for (int s = Math.max(0, segment - BEHIND_SEGMENTS); s <= last && cumulative[s] <= aheadLimit; s++) {
+            best = test(s, lat, lng, Double.MAX_VALUE, best);
+        }
+    }
+
+    private void searchGrid(double lat, double lng, double meters) {
+        foundSegment = -1;
+        double best = Double.MAX_VALUE;
+        if (++generation == 0) {
+            Arrays.fill(visited, 0);
+            generation = 1;
+        }
+        double dLat = meters / GeoMath.METERS_PER_DEGREE;
+        double dLng = dLat / Math.max(Math.cos(Math.toRadians(Math.min(89, Math.abs(lat) + dLat))), 1e-6);
+        int lastRow = row(lat + dLat);
+        int firstCol = col(lng - dLng);
+        int lastCol = col(lng + dLng);
+        for (int r = row(lat - dLat); r <= lastRow; r++) {
+            for (int c = firstCol; c <= lastCol; c++) {
+                for (int k = cellStart[r * cols + c], end = cellStart[r * cols + c + 1]; k < end; k++) {
+                    int s = cellSegments[k];
+                    if (visited[s] != generation) {
+                        visited[s] = generation;
+                        best = test(s, lat, lng, meters, best);
+                    }
+                }
+            }
+        }
+    }
+
+    // Projects the fix on a segment and keeps it if close enough and the best score so far
+    private double test(int s, double lat, double lng, double maxDistance, double best) {
+        double metersPerDegreeLng = GeoMath.METERS_PER_DEGREE * Math.cos(Math.toRadians(lat));
+        // Local plane in meters with the fix at the origin
+        double x0 = (points[s * 2 + 1] - lng) * metersPerDegreeLng;
+        double y0 = (points[s * 2] - lat) * GeoMath.METERS_PER_DEGREE;
+        double dx = (points[s * 2 + 3] - lng) * metersPerDegreeLng - x0;
+        double dy = (points[s * 2 + 2] - lat) * GeoMath.METERS_PER_DEGREE - y0;
+        double t = GeoMath.projectOnSegment(x0, y0, dx, dy);
+        double px = x0 + t * dx;
+        double py = y0 + t * dy;
+        double distance = Math.sqrt(px * px + py * py);
+        if (distance > maxDistance) {
+            return best;
+        }
+        double along = cumulative[s] + t * (cumulative[s + 1] - cumulative[s]);
+        double score = distance + (along >= traveled
+                ? PROGRESS_WEIGHT * (along - traveled) : REGRESS_WEIGHT * (traveled - along));
+        if (score >= best) {
+            return best;
+        }
+        foundSegment = s;
+        foundTraveled = along;
+        foundDistance = distance;
+        foundLat = lat + py / GeoMath.METERS_PER_DEGREE;
+        foundLng = lng + px / metersPerDegreeLng;
+        return score;
+    }
+
+    private int row(double lat) {
+        return Math.max(0, Math.min(rows - 1, (int) Math.floor((lat - minLat) / cellDegrees)));
+    }
+
+    private int col(double lng) {
+        return Math.max(0, Math.min(cols - 1, (int) Math.floor((lng - minLng) / cellDegrees)));
+    }
+}
@@ -0,0 +1,60 @@
+package com.transerve.locationservices.manager.track;
+
+/**
+ * Predicates and projected columns of a {@link ColumnarTrackReader} scan. Unset predicates
+ * match everything.
+ */
+public class ColumnarQuery {
+    long fromTime = Long.MIN_VALUE;
+    long toTime = Long.MAX_VALUE;
+    boolean hasTime;
+
+    double minLat = Double.NEGATIVE_INFINITY;
+    double maxLat = Double.POSITIVE_INFINITY;
+    double minLng = Double.NEGATIVE_INFINITY;
+    double maxLng = Double.POSITIVE_INFINITY;
+    boolean hasBoundingBox;
+
+    float maxAccuracy = Float.POSITIVE_INFINITY;
+    boolean hasAccuracy;
+
+    int columns = ColumnarTrackFormat.ALL_COLUMNS;
+
+    /**
+     * Matches rows with {@code from <= time < to}
+     */
+    public ColumnarQuery setTimeRange(long from, long to) {
+        fromTime = from;
+        toTime = to;
+        hasTime = true;
+        return this;
+    }
+
+    public ColumnarQuery setBoundingBox(double minLat, double minLng, double maxLat, double maxLng) {
+        this.minLat = minLat;
+        this.minLng = minLng;
+        this.maxLat = maxLat;
+        this.maxLng = maxLng;
+        hasBoundingBox = true;
+        return this;
+    }
+
+    /**
+     * Matches rows with an accuracy of at most the given meters
+     */
+    public ColumnarQuery setMaxAccuracy(float meters) {
+        maxAccuracy = meters;
+        hasAccuracy = true;
+        return this;
+    }
+
+    /**
+     * Selects the columns passed to the visitor, as a mask of
+     * {@link ColumnarTrackFormat#mask(int)} values. Columns that are not selected are only
+     * decoded when a predicate needs them.
+     */
+    public ColumnarQuery setColumns(int columnMask) {
+        columns = columnMask;
+        return this;
+    }
+}
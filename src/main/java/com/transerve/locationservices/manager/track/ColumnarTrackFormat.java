@@ -0,0 +1,69 @@
+package com.transerve.locationservices.manager.track;
+
+/**
+ * Constants of the columnar track file written by {@link ColumnarTrackWriter} and read by
+ * {@link ColumnarTrackReader}. The format only uses java.nio, so backends can read it with the
+ * same two classes.
+ * <p>
+ * All values are little endian. The file is a header, a sequence of chunks and a footer:
+ * <pre>
+ * header:  int magic "TTCF", short version, short reserved, int rows per chunk
+ * chunk:   int rows,
+ *          long min time, long max time,
+ *          double min lat, double max lat, double min lng, double max lng,
+ *          float min accuracy, float max accuracy,
+ *          byte column count, then per column: byte column id, byte encoding, int length,
+ *          followed by the column data in the same order
+ * footer:  int chunk count, long offset of each chunk, long offset of the footer, int magic
+ * </pre>
+ * Raw columns store one long (time) or double (lat, lng) or float (accuracy, speed) per row.
+ * Compressed columns use {@link GorillaCodec}: delta of delta for time, XOR for accuracy and
+ * speed, and delta of delta over coordinates quantized to 1e-7 degrees for lat and lng.
+ */
+public final class ColumnarTrackFormat {
+
+    public static final int MAGIC = 0x46435454; // "TTCF" little endian
+
+    public static final short VERSION = 2;
+
+    public static final int HEADER_SIZE = 12;
+
+    public static final int COLUMN_TIME = 0;
+    public static final int COLUMN_LAT = 1;
+    public static final int COLUMN_LNG = 2;
+    public static final int COLUMN_ACCURACY = 3;
+    public static final int COLUMN_SPEED = 4;
+
+    public static final int COLUMN_COUNT = 5;
+
+    /**
+     * Column mask selecting every column
+     */
+    public static final int ALL_COLUMNS = (1 << COLUMN_COUNT) - 1;
+
+    public static final int ENCODING_RAW = 0;
+
+    /**
+     * Gorilla delta of delta for longs, XOR for floating point values
+     */
+    public static final int ENCODING_GORILLA = 1;
+
+    /**
+     * Coordinates quantized to 1e-7 degrees, then Gorilla delta of delta
+     */
+    public static final int ENCODING_E7_DELTA = 2;
+
+    static final double E7 = 1e7;
+
+    // Size of the fixed part of a chunk header, before the column table
+    static final int CHUNK_STATS_SIZE = 4 + 8 * 2 + 8 * 4 + 4 * 2 + 1;
+
+    static final int COLUMN_ENTRY_SIZE = 1 + 1 + 4;
+
+    private ColumnarTrackFormat() {
+    }
+
+    public static int mask(int column) {
+        return 1 << column;
+    }
+}
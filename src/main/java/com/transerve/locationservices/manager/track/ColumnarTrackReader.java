@@ -0,0 +1,344 @@
+package com.transerve.locationservices.manager.track;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static com.transerve.locationservices.manager.track.ColumnarTrackFormat.CHUNK_STATS_SIZE;
+import static com.transerve.locationservices.manager.track.ColumnarTrackFormat.COLUMN_ACCURACY;
+import static com.transerve.locationservices.manager.track.ColumnarTrackFormat.COLUMN_COUNT;
+import static com.transerve.locationservices.manager.track.ColumnarTrackFormat.COLUMN_ENTRY_SIZE;
+import static com.transerve.locationservices.manager.track.ColumnarTrackFormat.COLUMN_LAT;
+import static com.transerve.locationservices.manager.track.ColumnarTrackFormat.COLUMN_LNG;
+import static com.transerve.locationservices.manager.track.ColumnarTrackFormat.COLUMN_SPEED;
+import static com.transerve.locationservices.manager.track.ColumnarTrackFormat.COLUMN_TIME;
+import static com.transerve.locationservices.manager.track.ColumnarTrackFormat.E7;
+import static com.transerve.locationservices.manager.track.ColumnarTrackFormat.ENCODING_E7_DELTA;
+import static com.transerve.locationservices.manager.track.ColumnarTrackFormat.ENCODING_GORILLA;
+import static com.transerve.locationservices.manager.track.ColumnarTrackFormat.ENCODING_RAW;
+import static com.transerve.locationservices.manager.track.ColumnarTrackFormat.HEADER_SIZE;
+import static com.transerve.locationservices.manager.track.ColumnarTrackFormat.MAGIC;
+import static com.transerve.locationservices.manager.track.ColumnarTrackFormat.VERSION;
+import static com.transerve.locationservices.manager.track.ColumnarTrackFormat.mask;
+
+/**
+ * Scans a columnar track file, see {@link ColumnarTrackFormat}.
+ * <p>
+ * The chunk statistics are loaded when the file is opened. A scan skips every chunk whose
+ * statistics rule out the query, skips the row checks of predicates a chunk satisfies as a
+ * whole, and only decodes the columns that are projected or still need checking.
+ */
+public class ColumnarTrackReader {
+
+    public interface RowVisitor {
+        /**
+         * Columns that were not selected are passed as {@link Long#MIN_VALUE} or NaN
+         *
+         * @return false to stop the scan
+         */
+        boolean onRow(long time, double lat, double lng, float accuracy, float speed);
+    }
+
+    // Outcome of checking chunk statistics against a predicate
+    private static final int NONE = 0;
+    private static final int SOME = 1;
+    private static final int ALL = 2;
+
+    private final MappedByteBuffer buffer;
+
+    private final int chunkCount;
+    private final long[] chunkOffset;
+    private final int[] chunkRows;
+    private final long[] minTime;
+    private final long[] maxTime;
+    private final double[] minLat;
+    private final double[] maxLat;
+    private final double[] minLng;
+    private final double[] maxLng;
+    private final float[] minAccuracy;
+    private final float[] maxAccuracy;
+    private long rowCount;
+
+    // Decoded columns of the current chunk
+    private final long[] time;
+    private final double[] lat;
+    private final double[] lng;
+    private final float[] accuracy;
+    private final float[] speed;
+
+    private int chunksScanned;
+
+    private final GorillaCodec.BitReader bits = new GorillaCodec.BitReader();
+
+    private final GorillaCodec.LongDecoder longDecoder = new GorillaCodec.LongDecoder(bits);
+
+    private final GorillaCodec.FloatDecoder floatDecoder = new GorillaCodec.FloatDecoder(bits);
+
+    public ColumnarTrackReader(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() > Integer.MAX_VALUE) {
+                throw new IOException("Columnar track file too large: " + file);
+            }
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        int size = buffer.capacity();
+        if (size < HEADER_SIZE + 16 || buffer.getInt(0) != MAGIC || buffer.getInt(size - 4) != MAGIC) {
+            throw new IOException("Not a columnar track file, or it was not closed: " + file);
+        }
+        if (buffer.getShort(4) > VERSION) {
+            throw new IOException("Unsupported columnar track version " + buffer.getShort(4));
+        }
+        int maxRows = buffer.getInt(8);
+        time = new long[maxRows];
+        lat = new double[maxRows];
+        lng = new double[maxRows];
+        accuracy = new float[maxRows];
+        speed = new float[maxRows];
+
+        long footer = buffer.getLong(size - 12);
+        if (footer < HEADER_SIZE || footer > size - 16) {
+            throw new IOException("Corrupt columnar track footer: " + file);
+        }
+        chunkCount = buffer.getInt((int) footer);
+        if (chunkCount < 0 || footer + 4 + chunkCount * 8L + 12 != size) {
+            throw new IOException("Corrupt columnar track footer: " + file);
+        }
+        chunkOffset = new long[chunkCount];
+        chunkRows = new int[chunkCount];
+        minTime = new long[chunkCount];
+        maxTime = new long[chunkCount];
+        minLat = new double[chunkCount];
+        maxLat = new double[chunkCount];
+        minLng = new double[chunkCount];
+        maxLng = new double[chunkCount];
+        minAccuracy = new float[chunkCount];
+        maxAccuracy = new float[chunkCount];
+        for (int c = 0; c < chunkCount; c++) {
+            long chunk = buffer.getLong((int) footer + 4 + c * 8);
+            if (chunk < HEADER_SIZE || chunk > footer - CHUNK_STATS_SIZE) {
+                throw new IOException("Corrupt columnar track chunk offset: " + file);
+            }
+            int offset = (int) chunk;
+            chunkOffset[c] = offset;
+            chunkRows[c] = buffer.getInt(offset);
+            minTime[c] = buffer.getLong(offset + 4);
+            maxTime[c] = buffer.getLong(offset + 12);
+            minLat[c] = buffer.getDouble(offset + 20);
+            maxLat[c] = buffer.getDouble(offset + 28);
+            minLng[c] = buffer.getDouble(offset + 36);
+            maxLng[c] = buffer.getDouble(offset + 44);
+            minAccuracy[c] = buffer.getFloat(offset + 52);
+            maxAccuracy[c] = buffer.getFloat(offset + 56);
+            rowCount += chunkRows[c];
+        }
+    }
+
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    public long getMinTime(int chunk) {
+        return minTime[chunk];
+    }
+
+    public long getMaxTime(int chunk) {
+        return maxTime[chunk];
+    }
+
+    /**
+     * @return number of chunks decoded by the last scan
+     */
+    public int getChunksScanned() {
+        return chunksScanned;
+    }
+
+    /**
+     * Visits the matching rows in file order
+     *
+     * @return number of rows visited
+     */
+    public long scan(ColumnarQuery query, RowVisitor visitor) {
+        chunksScanned = 0;
+        long visited = 0;
+        for (int c = 0; c < chunkCount; c++) {
+            int timeMatch = query.hasTime ? matchTime(c, query) : ALL;
+            int boxMatch = query.hasBoundingBox ? matchBoundingBox(c, query) : ALL;
+            int accuracyMatch = query.hasAccuracy ? matchAccuracy(c, query) : ALL;
+            if (timeMatch == NONE || boxMatch == NONE || accuracyMatch == NONE) {
+                continue;
+            }
+            int projected = query.columns;
+            int needed = projected;
+            if (timeMatch == SOME) {
+                needed |= mask(COLUMN_TIME);
+            }
+            if (boxMatch == SOME) {
+                needed |= mask(COLUMN_LAT) | mask(COLUMN_LNG);
+            }
+            if (accuracyMatch == SOME) {
+                needed |= mask(COLUMN_ACCURACY);
+            }
+            decodeChunk(c, needed);
+            chunksScanned++;
+
+            boolean withTime = (projected & mask(COLUMN_TIME)) != 0;
+            boolean withLat = (projected & mask(COLUMN_LAT)) != 0;
+            boolean withLng = (projected & mask(COLUMN_LNG)) != 0;
+            boolean withAccuracy = (projected & mask(COLUMN_ACCURACY)) != 0;
+            boolean withSpeed = (projected & mask(COLUMN_SPEED)) != 0;
+            for (int i = 0, rows = chunkRows[c]; i < rows; i++) {
+                if (timeMatch == SOME && (time[i] < query.fromTime || time[i] >= query.toTime)) {
+                    continue;
+                }
+                if (boxMatch == SOME && (lat[i] < query.minLat || lat[i] > query.maxLat
+                        || lng[i] < query.minLng || lng[i] > query.maxLng)) {
+                    continue;
+                }
+                if (accuracyMatch == SOME && !(accuracy[i] <= query.maxAccuracy)) {
+                    continue;
+                }
+                visited++;
+                if (!visitor.onRow(withTime ? time[i] : Long.MIN_VALUE,
+                        withLat ? lat[i] : Double.NaN,
+                        withLng ? lng[i] : Double.NaN,
+                        withAccuracy ? accuracy[i] : Float.NaN,
+                        withSpeed ? speed[i] : Float.NaN)) {
+                    return visited;
+                }
+            }
+        }
+        return visited;
+    }
+
+    private int matchTime(int c, ColumnarQuery query) {
+        if (maxTime[c] < query.fromTime || minTime[c] >= query.toTime) {
+            return NONE;
+        }
+        return minTime[c] >= query.fromTime && maxTime[c] < query.toTime ? ALL : SOME;
+    }
+
+    private int matchBoundingBox(int c, ColumnarQuery query) {
+        if (maxLat[c] < query.minLat || minLat[c] > query.maxLat
+                || maxLng[c] < query.minLng || minLng[c] > query.maxLng) {
+            return NONE;
+        }
+        return minLat[c] >= query.minLat && maxLat[c] <= query.maxLat
+                && minLng[c] >= query.minLng && maxLng[c] <= query.maxLng ? ALL : SOME;
+    }
+
+    private int matchAccuracy(int c, ColumnarQuery query) {
+        if (minAccuracy[c] > query.maxAccuracy) {
+            return NONE;
+        }
+        return maxAccuracy[c] <= query.maxAccuracy ? ALL : SOME;
+    }
+
+    private void decodeChunk(int c, int columns) {
+        int offset = (int) chunkOffset[c];
+        int rows = chunkRows[c];
+        int columnCount = buffer.get(offset + CHUNK_STATS_SIZE - 1);
+        int table = offset + CHUNK_STATS_SIZE;
+        int data = table + columnCount * COLUMN_ENTRY_SIZE;
+        for (int k = 0; k < columnCount; k++) {
+            int entry = table + k * COLUMN_ENTRY_SIZE;
+            int column = buffer.get(entry);
+            int encoding = buffer.get(entry + 1);
+            int length = buffer.getInt(entry + 2);
+            if (column < COLUMN_COUNT && (columns & mask(column)) != 0) {
+                decodeColumn(column, encoding, data, rows);
+            }
+            data += length;
+        }
+    }
+
+    private void decodeColumn(int column, int encoding, int data, int rows) {
+        if (encoding == ENCODING_GORILLA || encoding == ENCODING_E7_DELTA) {
+            decodeCompressedColumn(column, encoding, data, rows);
+            return;
+        }
+        if (encoding != ENCODING_RAW) {
+            throw new IllegalStateException("Unknown column encoding " + encoding);
+        }
+        switch (column) {
+            case COLUMN_TIME:
+                for (int i = 0; i < rows; i++) {
+                    time[i] = buffer.getLong(data + i * 8);
+                }
+                break;
+            case COLUMN_LAT:
+                for (int i = 0; i < rows; i++) {
+                    lat[i] = buffer.getDouble(data + i * 8);
+                }
+                break;
+            case COLUMN_LNG:
+                for (int i = 0; i < rows; i++) {
+                    lng[i] = buffer.getDouble(data + i * 8);
+                }
+                break;
+            case COLUMN_ACCURACY:
+                for (int i = 0; i < rows; i++) {
+                    accuracy[i] = buffer.getFloat(data + i * 4);
+                }
+                break;
+            case COLUMN_SPEED:
+                for (int i = 0; i < rows; i++) {
+                    speed[i] = buffer.getFloat(data + i * 4);
+                }
+                break;
+            default:
+        }
+    }
+
+    private void decodeCompressedColumn(int column, int encoding, int data, int rows) {
+        bits.reset(buffer, data);
+        longDecoder.reset();
+        floatDecoder.reset();
+        switch (column) {
+            case COLUMN_TIME:
+                for (int i = 0; i < rows; i++) {
+                    time[i] = longDecoder.decode();
+                }
+                break;
+            case COLUMN_LAT:
+                checkEncoding(encoding, ENCODING_E7_DELTA);
+                for (int i = 0; i < rows; i++) {
+                    lat[i] = longDecoder.decode() / E7;
+                }
+                break;
+            case COLUMN_LNG:
+                checkEncoding(encoding, ENCODING_E7_DELTA);
+                for (int i = 0; i < rows; i++) {
+                    lng[i] = longDecoder.decode() / E7;
+                }
+                break;
+            case COLUMN_ACCURACY:
+                for (int i = 0; i < rows; i++) {
+                    accuracy[i] = floatDecoder.decode();
+                }
+                break;
+            case COLUMN_SPEED:
+                for (int i = 0; i < rows; i++) {
+                    speed[i] = floatDecoder.decode();
+                }
+                break;
+            default:
+        }
+    }
+
+    private static void checkEncoding(int encoding, int expected) {
+        if (encoding != expected) {
+            throw new IllegalStateException("Unexpected column encoding " + encoding);
+        }
+    }
+}
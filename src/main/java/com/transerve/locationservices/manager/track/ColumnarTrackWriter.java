@@ -0,0 +1,313 @@
+package com.transerve.locationservices.manager.track;
+
+import com.transerve.locationservices.manager.LocationFix;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import static com.transerve.locationservices.manager.track.ColumnarTrackFormat.CHUNK_STATS_SIZE;
+import static com.transerve.locationservices.manager.track.ColumnarTrackFormat.COLUMN_ACCURACY;
+import static com.transerve.locationservices.manager.track.ColumnarTrackFormat.COLUMN_COUNT;
+import static com.transerve.locationservices.manager.track.ColumnarTrackFormat.COLUMN_ENTRY_SIZE;
+import static com.transerve.locationservices.manager.track.ColumnarTrackFormat.COLUMN_LAT;
+import static com.transerve.locationservices.manager.track.ColumnarTrackFormat.COLUMN_LNG;
+import static com.transerve.locationservices.manager.track.ColumnarTrackFormat.COLUMN_SPEED;
+import static com.transerve.locationservices.manager.track.ColumnarTrackFormat.COLUMN_TIME;
+import static com.transerve.locationservices.manager.track.ColumnarTrackFormat.E7;
+import static com.transerve.locationservices.manager.track.ColumnarTrackFormat.ENCODING_E7_DELTA;
+import static com.transerve.locationservices.manager.track.ColumnarTrackFormat.ENCODING_GORILLA;
+import static com.transerve.locationservices.manager.track.ColumnarTrackFormat.ENCODING_RAW;
+import static com.transerve.locationservices.manager.track.ColumnarTrackFormat.MAGIC;
+import static com.transerve.locationservices.manager.track.ColumnarTrackFormat.VERSION;
+
+/**
+ * Writes fixes into a columnar track file, see {@link ColumnarTrackFormat}. Rows are collected
+ * into a fixed size chunk and written column by column together with the chunk statistics.
+ * Compressed files quantize lat and lng to 1e-7 degrees, about a centimeter.
+ * <p>
+ * Files are mapped whole by the reader, so they are limited to 2 GB. A row that would start a
+ * chunk not sure to fit is refused with an IOException, and the file can still be closed.
+ * <p>
+ * The recorder doesn't write this format: {@link TrackRecorder} and {@link TrackRetention}
+ * keep fixed size {@link TrackSegment} records, which readers access in place. Columnar files
+ * are for archives and uploads of recorded tracks. A compressed 1 Hz walk takes about 3 bytes
+ * per fix against 48 for a segment record.
+ * <pre>
+ * ColumnarTrackWriter writer = new ColumnarTrackWriter(file, DEFAULT_CHUNK_ROWS, true);
+ * TrackReader reader = new TrackReader(recordingDirectory);
+ * while (reader.next()) {
+ *     writer.append(reader);
+ * }
+ * writer.close();
+ * </pre>
+ */
+public class ColumnarTrackWriter implements Closeable {
+
+    public static final int DEFAULT_CHUNK_ROWS = 4096;
+
+    private final RandomAccessFile file;
+
+    private final FileChannel channel;
+
+    private final int chunkRows;
+
+    private final boolean compress;
+
+    private final GorillaCodec.BitWriter bits = new GorillaCodec.BitWriter();
+
+    private final GorillaCodec.LongEncoder longEncoder = new GorillaCodec.LongEncoder(bits);
+
+    private final GorillaCodec.FloatEncoder floatEncoder = new GorillaCodec.FloatEncoder(bits);
+
+    private final ByteBuffer buffer;
+
+    private int rows;
+    private final long[] time;
+    private final double[] lat;
+    private final double[] lng;
+    private final float[] accuracy;
+    private final float[] speed;
+
+    private long[] chunkOffsets = new long[16];
+
+    private int chunkCount;
+
+    public ColumnarTrackWriter(File file) throws IOException {
+        this(file, DEFAULT_CHUNK_ROWS);
+    }
+
+    public ColumnarTrackWriter(File file, int chunkRows) throws IOException {
+        this(file, chunkRows, false);
+    }
+
+    /**
+     * @param compress true to compress the columns with {@link GorillaCodec}
+     */
+    public ColumnarTrackWriter(File file, int chunkRows, boolean compress) throws IOException {
+        this.compress = compress;
+        this.file = new RandomAccessFile(file, "rw");
+        this.file.setLength(0);
+        this.channel = this.file.getChannel();
+        this.chunkRows = chunkRows;
+        time = new long[chunkRows];
+        lat = new double[chunkRows];
+        lng = new double[chunkRows];
+        accuracy = new float[chunkRows];
+        speed = new float[chunkRows];
+        buffer = ByteBuffer.allocate(maxChunkSize(chunkRows)).order(ByteOrder.LITTLE_ENDIAN);
+
+        buffer.putInt(MAGIC);
+        buffer.putShort(VERSION);
+        buffer.putShort((short) 0);
+        buffer.putInt(chunkRows);
+        writeBuffer();
+    }
+
+    /**
+     * @return upper bound of the bytes one chunk takes in any encoding
+     */
+    private static int maxChunkSize(int chunkRows) {
+        // Worst case Gorilla value is 69 bits for longs and 44 bits for floats
+        return CHUNK_STATS_SIZE + COLUMN_COUNT * COLUMN_ENTRY_SIZE + 3 * (8 + chunkRows * 9)
+                + 2 * (4 + chunkRows * 6);
+    }
+
+    public void append(LocationFix fix) throws IOException {
+        append(fix.getTime(), fix.getLat(), fix.getLng(), fix.getAccuracy(), fix.getSpeed());
+    }
+
+    public void append(long time, double lat, double lng, float accuracy, float speed)
+            throws IOException {
+        if (rows == 0 && channel.position() + maxChunkSize(chunkRows) + footerSize(chunkCount + 1)
+                > Integer.MAX_VALUE) {
+            throw new IOException("Columnar track file can't grow past 2 GB");
+        }
+        int row = rows++;
+        this.time[row] = time;
+        this.lat[row] = lat;
+        this.lng[row] = lng;
+        this.accuracy[row] = accuracy;
+        this.speed[row] = speed;
+        if (rows == chunkRows) {
+            writeChunk();
+        }
+    }
+
+    private static long footerSize(int chunks) {
+        return 4 + chunks * 8L + 8 + 4;
+    }
+
+    private void writeChunk() throws IOException {
+        if (rows == 0) {
+            return;
+        }
+        long minTime = Long.MAX_VALUE, maxTime = Long.MIN_VALUE;
+        double minLat = Double.POSITIVE_INFINITY, maxLat = Double.NEGATIVE_INFINITY;
+        double minLng = Double.POSITIVE_INFINITY, maxLng = Double.NEGATIVE_INFINITY;
+        float minAccuracy = Float.POSITIVE_INFINITY, maxAccuracy = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < rows; i++) {
+            minTime = Math.min(minTime, time[i]);
+            maxTime = Math.max(maxTime, time[i]);
+            minLat = Math.min(minLat, lat[i]);
+            maxLat = Math.max(maxLat, lat[i]);
+            minLng = Math.min(minLng, lng[i]);
+            maxLng = Math.max(maxLng, lng[i]);
+            minAccuracy = Math.min(minAccuracy, accuracy[i]);
+            maxAccuracy = Math.max(maxAccuracy, accuracy[i]);
+        }
+
+        if (chunkCount == chunkOffsets.length) {
+            chunkOffsets = Arrays.copyOf(chunkOffsets, chunkCount * 2);
+        }
+        chunkOffsets[chunkCount++] = channel.position();
+
+        buffer.clear();
+        buffer.putInt(rows);
+        buffer.putLong(minTime);
+        buffer.putLong(maxTime);
+        buffer.putDouble(minLat);
+        buffer.putDouble(maxLat);
+        buffer.putDouble(minLng);
+        buffer.putDouble(maxLng);
+        buffer.putFloat(minAccuracy);
+        buffer.putFloat(maxAccuracy);
+        buffer.put((byte) COLUMN_COUNT);
+
+        // Column table is filled in once the column lengths are known
+        int table = buffer.position();
+        buffer.position(table + COLUMN_COUNT * COLUMN_ENTRY_SIZE);
+        for (int column = 0; column < COLUMN_COUNT; column++) {
+            int start = buffer.position();
+            int encoding = writeColumn(column);
+            int entry = table + column * COLUMN_ENTRY_SIZE;
+            buffer.put(entry, (byte) column);
+            buffer.put(entry + 1, (byte) encoding);
+            buffer.putInt(entry + 2, buffer.position() - start);
+        }
+        writeBuffer();
+        rows = 0;
+    }
+
+    /**
+     * Writes one column of the current chunk at the buffer position
+     *
+     * @return the encoding used
+     */
+    private int writeColumn(int column) {
+        if (compress) {
+            return writeCompressedColumn(column);
+        }
+        switch (column) {
+            case COLUMN_TIME:
+                for (int i = 0; i < rows; i++) {
+                    buffer.putLong(time[i]);
+                }
+                break;
+            case COLUMN_LAT:
+                for (int i = 0; i < rows; i++) {
+                    buffer.putDouble(lat[i]);
+                }
+                break;
+            case COLUMN_LNG:
+                for (int i = 0; i < rows; i++) {
+                    buffer.putDouble(lng[i]);
+                }
+                break;
+            case COLUMN_ACCURACY:
+                for (int i = 0; i < rows; i++) {
+                    buffer.putFloat(accuracy[i]);
+                }
+                break;
+            case COLUMN_SPEED:
+                for (int i = 0; i < rows; i++) {
+                    buffer.putFloat(speed[i]);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown column " + column);
+        }
+        return ENCODING_RAW;
+    }
+
+    private int writeCompressedColumn(int column) {
+        bits.reset(buffer);
+        longEncoder.reset();
+        floatEncoder.reset();
+        int encoding;
+        switch (column) {
+            case COLUMN_TIME:
+                for (int i = 0; i < rows; i++) {
+                    longEncoder.encode(time[i]);
+                }
+                encoding = ENCODING_GORILLA;
+                break;
+            case COLUMN_LAT:
+                for (int i = 0; i < rows; i++) {
+                    longEncoder.encode(Math.round(lat[i] * E7));
+                }
+                encoding = ENCODING_E7_DELTA;
+                break;
+            case COLUMN_LNG:
+                for (int i = 0; i < rows; i++) {
+                    longEncoder.encode(Math.round(lng[i] * E7));
+                }
+                encoding = ENCODING_E7_DELTA;
+                break;
+            case COLUMN_ACCURACY:
+                for (int i = 0; i < rows; i++) {
+                    floatEncoder.encode(accuracy[i]);
+                }
+                encoding = ENCODING_GORILLA;
+                break;
+            case COLUMN_SPEED:
+                for (int i = 0; i < rows; i++) {
+                    floatEncoder.encode(speed[i]);
+                }
+                encoding = ENCODING_GORILLA;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown column " + column);
+        }
+        bits.finish();
+        return encoding;
+    }
+
+    private void writeBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Writes the last partial chunk and the footer
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            writeChunk();
+            long footer = channel.position();
+            ByteBuffer tail = ByteBuffer.allocate(4 + chunkCount * 8 + 8 + 4).order(ByteOrder.LITTLE_ENDIAN);
+            tail.putInt(chunkCount);
+            for (int i = 0; i < chunkCount; i++) {
+                tail.putLong(chunkOffsets[i]);
+            }
+            tail.putLong(footer);
+            tail.putInt(MAGIC);
+            tail.flip();
+            while (tail.hasRemaining()) {
+                channel.write(tail);
+            }
+            channel.force(true);
+        } finally {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,371 @@
+package com.transerve.locationservices.manager.track;
+
+import com.transerve.locationservices.manager.LocationFix;
+import com.transerve.locationservices.manager.LocationQuality;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compact binary encoding for streams of location fixes.
+ * <p>
+ * A stream starts with a header (see {@link #writeHeader(ByteBuffer)}) followed by one record per
+ * fix. Latitude and longitude are quantized to 1e-7 degrees, accuracy to decimeters, speed to
+ * cm/s and bearing to tenths of a degree. Each record stores the difference to what the previous
+ * fixes predict, packed as zig-zag varints:
+ * <ul>
+ * <li>a tag byte with the has-speed / has-bearing flags, the quality and change flags</li>
+ * <li>time: delta of the delta in milliseconds</li>
+ * <li>lat, lng: difference to a constant velocity prediction</li>
+ * <li>offset between elapsed realtime and UTC time, accuracy: only when changed</li>
+ * <li>speed, bearing: delta to the previous value, only when present</li>
+ * </ul>
+ * A steady 1 Hz track takes 4 to 7 bytes per fix. Elapsed realtime keeps millisecond precision.
+ * <p>
+ * Encoder and decoder keep the previous fix as primitive state, so neither allocates per fix.
+ * Call {@link Encoder#reset()} / {@link Decoder#reset()} on both sides to start an independently
+ * decodable block.
+ */
+public final class FixCodec {
+
+    public static final int MAGIC = 0x54544658; // "TTFX"
+
+    public static final byte VERSION = 1;
+
+    public static final int HEADER_SIZE = 8;
+
+    /**
+     * Upper bound of the size of one encoded fix
+     */
+    public static final int MAX_RECORD_SIZE = 1 + 7 * 10;
+
+    static final int COORDINATE_DIGITS = 7;
+    static final double COORDINATE_SCALE = 1e7;
+    static final int ACCURACY_SCALE = 10;
+    static final int SPEED_SCALE = 100;
+    static final int BEARING_SCALE = 10;
+
+    private static final int TAG_HAS_SPEED = 1;
+    private static final int TAG_HAS_BEARING = 1 << 1;
+    private static final int TAG_QUALITY_SHIFT = 2;
+    private static final int TAG_QUALITY_MASK = 3 << TAG_QUALITY_SHIFT;
+    private static final int TAG_CLOCK_CHANGED = 1 << 4;
+    private static final int TAG_ACCURACY_CHANGED = 1 << 5;
+
+    private static final LocationQuality[] QUALITIES = LocationQuality.values();
+
+    private FixCodec() {
+    }
+
+    /**
+     * Writes the stream header: magic, version and the quantization used for the records
+     */
+    public static void writeHeader(ByteBuffer buffer) {
+        buffer.putInt(MAGIC);
+        buffer.put(VERSION);
+        buffer.put((byte) COORDINATE_DIGITS);
+        buffer.put((byte) ACCURACY_SCALE);
+        buffer.put((byte) 0); // reserved
+    }
+
+    /**
+     * Reads and validates the stream header
+     *
+     * @return the version of the stream
+     * @throws IllegalArgumentException if the buffer doesn't start with a supported header
+     */
+    public static int readHeader(ByteBuffer buffer) {
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+            throw new IllegalArgumentException("Not a fix stream");
+        }
+        int version = buffer.get();
+        int digits = buffer.get();
+        int accuracyScale = buffer.get();
+        buffer.get();
+        if (version > VERSION || digits != COORDINATE_DIGITS || accuracyScale != ACCURACY_SCALE) {
+            throw new IllegalArgumentException("Unsupported fix stream version " + version);
+        }
+        return version;
+    }
+
+    public static void putVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    public static long getVarLong(ByteBuffer buffer) {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    public static void putZigZag(ByteBuffer buffer, long value) {
+        putVarLong(buffer, (value << 1) ^ (value >> 63));
+    }
+
+    public static long getZigZag(ByteBuffer buffer) {
+        long raw = getVarLong(buffer);
+        return (raw >>> 1) ^ -(raw & 1);
+    }
+
+    static int quantizeCoordinate(double degrees) {
+        return (int) Math.round(degrees * COORDINATE_SCALE);
+    }
+
+    // Bearing delta wrapped into [-180, 180) degrees
+    static int wrapBearing(int delta) {
+        int full = 360 * BEARING_SCALE;
+        int half = full / 2;
+        delta %= full;
+        if (delta >= half) {
+            delta -= full;
+        } else if (delta < -half) {
+            delta += full;
+        }
+        return delta;
+    }
+
+    public static final class Encoder {
+        private long time;
+        private long timeDelta;
+        private long lat;
+        private long lng;
+        private long latDelta;
+        private long lngDelta;
+        private long clockOffset;
+        private int accuracy;
+        private int speed;
+        private int bearing;
+
+        public Encoder() {
+            reset();
+        }
+
+        /**
+         * Forgets the previous fix, the next record can be decoded by a freshly reset decoder
+         */
+        public void reset() {
+            time = 0;
+            timeDelta = 0;
+            lat = 0;
+            lng = 0;
+            latDelta = 0;
+            lngDelta = 0;
+            clockOffset = 0;
+            accuracy = 0;
+            speed = 0;
+            bearing = 0;
+        }
+
+        public void encode(LocationFix fix, ByteBuffer buffer) {
+            encode(fix.getLat(), fix.getLng(), fix.getAccuracy(), fix.getElapsedRealtimeNanos(),
+                    fix.getTime(), fix.hasSpeed(), fix.getSpeed(), fix.hasBearing(),
+                    fix.getBearing(), fix.getQuality(), buffer);
+        }
+
+        /**
+         * Appends one record at the buffer position. The buffer needs at least
+         * {@link #MAX_RECORD_SIZE} bytes remaining.
+         */
+        public void encode(double latitude, double longitude, float accuracyMeters,
+                           long elapsedRealtimeNanos, long timeMillis, boolean hasSpeed,
+                           float speedMetersPerSecond, boolean hasBearing, float bearingDegrees,
+                           LocationQuality quality, ByteBuffer buffer) {
+            int qLat = quantizeCoordinate(latitude);
+            int qLng = quantizeCoordinate(longitude);
+            int qAccuracy = Math.round(accuracyMeters * ACCURACY_SCALE);
+            long qClockOffset = elapsedRealtimeNanos / 1000000 - timeMillis;
+
+            int tag = quality.ordinal() << TAG_QUALITY_SHIFT;
+            if (hasSpeed) {
+                tag |= TAG_HAS_SPEED;
+            }
+            if (hasBearing) {
+                tag |= TAG_HAS_BEARING;
+            }
+            if (qClockOffset != clockOffset) {
+                tag |= TAG_CLOCK_CHANGED;
+            }
+            if (qAccuracy != accuracy) {
+                tag |= TAG_ACCURACY_CHANGED;
+            }
+            buffer.put((byte) tag);
+
+            long delta = timeMillis - time;
+            putZigZag(buffer, delta - timeDelta);
+            time = timeMillis;
+            timeDelta = delta;
+
+            putZigZag(buffer, qLat - lat - latDelta);
+            putZigZag(buffer, qLng - lng - lngDelta);
+            latDelta = qLat - lat;
+            lngDelta = qLng - lng;
+            lat = qLat;
+            lng = qLng;
+
+            if ((tag & TAG_CLOCK_CHANGED) != 0) {
+                putZigZag(buffer, qClockOffset - clockOffset);
+                clockOffset = qClockOffset;
+            }
+            if ((tag & TAG_ACCURACY_CHANGED) != 0) {
+                putZigZag(buffer, qAccuracy - accuracy);
+                accuracy = qAccuracy;
+            }
+            if (hasSpeed) {
+                int qSpeed = Math.round(speedMetersPerSecond * SPEED_SCALE);
+                putZigZag(buffer, qSpeed - speed);
+                speed = qSpeed;
+            }
+            if (hasBearing) {
+                int qBearing = Math.round(bearingDegrees * BEARING_SCALE) % (360 * BEARING_SCALE);
+                putZigZag(buffer, wrapBearing(qBearing - bearing));
+                bearing = qBearing;
+            }
+        }
+    }
+
+    /**
+     * Decodes records in place. After {@link #decode(ByteBuffer)} the getters return the fields
+     * of the decoded fix.
+     */
+    public static final class Decoder implements LocationFix {
+        private long time;
+        private long timeDelta;
+        private long lat;
+        private long lng;
+        private long latDelta;
+        private long lngDelta;
+        private long clockOffset;
+        private int accuracy;
+        private int speed;
+        private int bearing;
+        private int tag;
+
+        public Decoder() {
+            reset();
+        }
+
+        public void reset() {
+            time = 0;
+            timeDelta = 0;
+            lat = 0;
+            lng = 0;
+            latDelta = 0;
+            lngDelta = 0;
+            clockOffset = 0;
+            accuracy = 0;
+            speed = 0;
+            bearing = 0;
+            tag = 0;
+        }
+
+        /**
+         * Reads the record at the buffer position
+         *
+         * @return false if the buffer has no more records
+         */
+        public boolean decode(ByteBuffer buffer) {
+            if (!buffer.hasRemaining()) {
+                return false;
+            }
+            tag = buffer.get();
+
+            timeDelta += getZigZag(buffer);
+            time += timeDelta;
+
+            latDelta += getZigZag(buffer);
+            lngDelta += getZigZag(buffer);
+            lat += latDelta;
+            lng += lngDelta;
+
+            if ((tag & TAG_CLOCK_CHANGED) != 0) {
+                clockOffset += getZigZag(buffer);
+            }
+            if ((tag & TAG_ACCURACY_CHANGED) != 0) {
+                accuracy += (int) getZigZag(buffer);
+            }
+            if ((tag & TAG_HAS_SPEED) != 0) {
+                speed += (int) getZigZag(buffer);
+            }
+            if ((tag & TAG_HAS_BEARING) != 0) {
+                bearing = (bearing + (int) getZigZag(buffer) + 360 * BEARING_SCALE)
+                        % (360 * BEARING_SCALE);
+            }
+            return true;
+        }
+
+        @Override
+        public double getLat() {
+            return lat / COORDINATE_SCALE;
+        }
+
+        @Override
+        public double getLng() {
+            return lng / COORDINATE_SCALE;
+        }
+
+        @Override
+        public float getAccuracy() {
+            return accuracy / (float) ACCURACY_SCALE;
+        }
+
+        @Override
+        public long getElapsedRealtimeNanos() {
+            return (time + clockOffset) * 1000000;
+        }
+
+        @Override
+        public long getTime() {
+            return time;
+        }
+
+        @Override
+        public boolean hasSpeed() {
+            return (tag & TAG_HAS_SPEED) != 0;
+        }
+
+        @Override
+        public float getSpeed() {
+            return hasSpeed() ? speed / (float) SPEED_SCALE : 0f;
+        }
+
+        @Override
+        public boolean hasBearing() {
+            return (tag & TAG_HAS_BEARING) != 0;
+        }
+
+        @Override
+        public float getBearing() {
+            return hasBearing() ? bearing / (float) BEARING_SCALE : 0f;
+        }
+
+        @Override
+        public LocationQuality getQuality() {
+            return QUALITIES[(tag & TAG_QUALITY_MASK) >> TAG_QUALITY_SHIFT];
+        }
+
+        // Altitudes aren't encoded
+        @Override
+        public boolean hasAltitude() {
+            return false;
+        }
+
+        @Override
+        public double getAltitude() {
+            return 0;
+        }
+
+        @Override
+        public double getAltitudeMsl() {
+            return Double.NaN;
+        }
+    }
+}
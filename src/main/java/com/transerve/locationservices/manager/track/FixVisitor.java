@@ -0,0 +1,15 @@
+package com.transerve.locationservices.manager.track;
+
+import com.transerve.locationservices.manager.LocationFix;
+
+/**
+ * Receives the fixes matched by a track query. The fix is usually a flyweight that is only
+ * valid during the call.
+ */
+public interface FixVisitor {
+
+    /**
+     * @return false to stop the query
+     */
+    boolean onFix(LocationFix fix);
+}
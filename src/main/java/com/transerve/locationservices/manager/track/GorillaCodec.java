@@ -0,0 +1,381 @@
+package com.transerve.locationservices.manager.track;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Bit packed time series compression in the style of Facebook's Gorilla.
+ * <ul>
+ * <li>{@link LongEncoder} stores the delta of the delta between consecutive values in a
+ * variable width bucket, a regular 1 Hz time column takes one bit per value.</li>
+ * <li>{@link DoubleEncoder} and {@link FloatEncoder} XOR each value with the previous one and
+ * store only the meaningful bits, a repeated value takes one bit.</li>
+ * </ul>
+ * Encoders append to a {@link BitWriter} as values arrive and decoders read them back from a
+ * {@link BitReader}. A block is independently decodable from its start offset, and all classes
+ * can be reset and reused so nothing is allocated per value.
+ */
+public final class GorillaCodec {
+
+    private GorillaCodec() {
+    }
+
+    /**
+     * Writes bits most significant first into a byte buffer
+     */
+    public static final class BitWriter {
+        private ByteBuffer buffer;
+        private int current;
+        private int bitsInByte;
+        private long bitCount;
+
+        public void reset(ByteBuffer buffer) {
+            this.buffer = buffer;
+            current = 0;
+            bitsInByte = 0;
+            bitCount = 0;
+        }
+
+        public void writeBit(boolean bit) {
+            writeBits(bit ? 1 : 0, 1);
+        }
+
+        /**
+         * Writes the lowest {@code count} bits of the value, 0 to 64
+         */
+        public void writeBits(long value, int count) {
+            bitCount += count;
+            while (count > 0) {
+                int take = Math.min(8 - bitsInByte, count);
+                int bits = (int) (value >>> (count - take)) & ((1 << take) - 1);
+                current = (current << take) | bits;
+                bitsInByte += take;
+                count -= take;
+                if (bitsInByte == 8) {
+                    buffer.put((byte) current);
+                    current = 0;
+                    bitsInByte = 0;
+                }
+            }
+        }
+
+        /**
+         * Pads the last partial byte with zeros and writes it
+         */
+        public void finish() {
+            if (bitsInByte > 0) {
+                buffer.put((byte) (current << (8 - bitsInByte)));
+                current = 0;
+                bitsInByte = 0;
+            }
+        }
+
+        public long getBitCount() {
+            return bitCount;
+        }
+    }
+
+    /**
+     * Reads bits written by {@link BitWriter}, using absolute reads so the buffer position is
+     * left alone
+     */
+    public static final class BitReader {
+        private ByteBuffer buffer;
+        private int position;
+        private int current;
+        private int bitsLeft;
+
+        public void reset(ByteBuffer buffer, int offset) {
+            this.buffer = buffer;
+            this.position = offset;
+            current = 0;
+            bitsLeft = 0;
+        }
+
+        public boolean readBit() {
+            return readBits(1) != 0;
+        }
+
+        public long readBits(int count) {
+            long result = 0;
+            while (count > 0) {
+                if (bitsLeft == 0) {
+                    current = buffer.get(position++) & 0xFF;
+                    bitsLeft = 8;
+                }
+                int take = Math.min(bitsLeft, count);
+                result = (result << take) | ((current >>> (bitsLeft - take)) & ((1 << take) - 1));
+                bitsLeft -= take;
+                count -= take;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Delta of delta encoding of longs, such as timestamps or quantized coordinates
+     */
+    public static final class LongEncoder {
+        private final BitWriter out;
+        private long previous;
+        private long previousDelta;
+        private boolean first = true;
+
+        public LongEncoder(BitWriter out) {
+            this.out = out;
+        }
+
+        public void reset() {
+            previous = 0;
+            previousDelta = 0;
+            first = true;
+        }
+
+        public void encode(long value) {
+            if (first) {
+                out.writeBits(value, 64);
+                previous = value;
+                first = false;
+                return;
+            }
+            long delta = value - previous;
+            long deltaOfDelta = delta - previousDelta;
+            previous = value;
+            previousDelta = delta;
+            if (deltaOfDelta == 0) {
+                out.writeBits(0, 1);
+            } else if (deltaOfDelta >= -63 && deltaOfDelta <= 64) {
+                out.writeBits(0x2, 2);
+                out.writeBits(deltaOfDelta + 63, 7);
+            } else if (deltaOfDelta >= -255 && deltaOfDelta <= 256) {
+                out.writeBits(0x6, 3);
+                out.writeBits(deltaOfDelta + 255, 9);
+            } else if (deltaOfDelta >= -2047 && deltaOfDelta <= 2048) {
+                out.writeBits(0xE, 4);
+                out.writeBits(deltaOfDelta + 2047, 12);
+            } else if (deltaOfDelta >= -0x7FFFFFFFL && deltaOfDelta <= 0x80000000L) {
+                out.writeBits(0x1E, 5);
+                out.writeBits(deltaOfDelta + 0x7FFFFFFFL, 32);
+            } else {
+                out.writeBits(0x1F, 5);
+                out.writeBits(deltaOfDelta, 64);
+            }
+        }
+    }
+
+    public static final class LongDecoder {
+        private final BitReader in;
+        private long previous;
+        private long previousDelta;
+        private boolean first = true;
+
+        public LongDecoder(BitReader in) {
+            this.in = in;
+        }
+
+        public void reset() {
+            previous = 0;
+            previousDelta = 0;
+            first = true;
+        }
+
+        public long decode() {
+            if (first) {
+                previous = in.readBits(64);
+                first = false;
+                return previous;
+            }
+            long deltaOfDelta;
+            if (!in.readBit()) {
+                deltaOfDelta = 0;
+            } else if (!in.readBit()) {
+                deltaOfDelta = in.readBits(7) - 63;
+            } else if (!in.readBit()) {
+                deltaOfDelta = in.readBits(9) - 255;
+            } else if (!in.readBit()) {
+                deltaOfDelta = in.readBits(12) - 2047;
+            } else if (!in.readBit()) {
+                deltaOfDelta = in.readBits(32) - 0x7FFFFFFFL;
+            } else {
+                deltaOfDelta = in.readBits(64);
+            }
+            previousDelta += deltaOfDelta;
+            previous += previousDelta;
+            return previous;
+        }
+    }
+
+    /**
+     * XOR encoding of doubles
+     */
+    public static final class DoubleEncoder {
+        private final BitWriter out;
+        private long previous;
+        private int leading;
+        private int trailing;
+        private boolean first = true;
+
+        public DoubleEncoder(BitWriter out) {
+            this.out = out;
+        }
+
+        public void reset() {
+            previous = 0;
+            leading = -1;
+            trailing = 0;
+            first = true;
+        }
+
+        public void encode(double value) {
+            long bits = Double.doubleToRawLongBits(value);
+            if (first) {
+                out.writeBits(bits, 64);
+                previous = bits;
+                leading = -1;
+                first = false;
+                return;
+            }
+            long xor = bits ^ previous;
+            previous = bits;
+            if (xor == 0) {
+                out.writeBits(0, 1);
+                return;
+            }
+            int lead = Math.min(31, Long.numberOfLeadingZeros(xor));
+            int trail = Long.numberOfTrailingZeros(xor);
+            if (leading >= 0 && lead >= leading && trail >= trailing) {
+                // Fits in the previous window of meaningful bits
+                out.writeBits(0x2, 2);
+                out.writeBits(xor >>> trailing, 64 - leading - trailing);
+            } else {
+                int meaningful = 64 - lead - trail;
+                out.writeBits(0x3, 2);
+                out.writeBits(lead, 5);
+                out.writeBits(meaningful - 1, 6);
+                out.writeBits(xor >>> trail, meaningful);
+                leading = lead;
+                trailing = trail;
+            }
+        }
+    }
+
+    public static final class DoubleDecoder {
+        private final BitReader in;
+        private long previous;
+        private int leading;
+        private int trailing;
+        private boolean first = true;
+
+        public DoubleDecoder(BitReader in) {
+            this.in = in;
+        }
+
+        public void reset() {
+            previous = 0;
+            leading = 0;
+            trailing = 0;
+            first = true;
+        }
+
+        public double decode() {
+            if (first) {
+                previous = in.readBits(64);
+                first = false;
+            } else if (in.readBit()) {
+                if (in.readBit()) {
+                    leading = (int) in.readBits(5);
+                    int meaningful = (int) in.readBits(6) + 1;
+                    trailing = 64 - leading - meaningful;
+                }
+                previous ^= in.readBits(64 - leading - trailing) << trailing;
+            }
+            return Double.longBitsToDouble(previous);
+        }
+    }
+
+    /**
+     * XOR encoding of floats
+     */
+    public static final class FloatEncoder {
+        private final BitWriter out;
+        private int previous;
+        private int leading;
+        private int trailing;
+        private boolean first = true;
+
+        public FloatEncoder(BitWriter out) {
+            this.out = out;
+        }
+
+        public void reset() {
+            previous = 0;
+            leading = -1;
+            trailing = 0;
+            first = true;
+        }
+
+        public void encode(float value) {
+            int bits = Float.floatToRawIntBits(value);
+            if (first) {
+                out.writeBits(bits & 0xFFFFFFFFL, 32);
+                previous = bits;
+                leading = -1;
+                first = false;
+                return;
+            }
+            int xor = bits ^ previous;
+            previous = bits;
+            if (xor == 0) {
+                out.writeBits(0, 1);
+                return;
+            }
+            int lead = Integer.numberOfLeadingZeros(xor);
+            int trail = Integer.numberOfTrailingZeros(xor);
+            if (leading >= 0 && lead >= leading && trail >= trailing) {
+                out.writeBits(0x2, 2);
+                out.writeBits((xor >>> trailing) & 0xFFFFFFFFL, 32 - leading - trailing);
+            } else {
+                int meaningful = 32 - lead - trail;
+                out.writeBits(0x3, 2);
+                out.writeBits(lead, 5);
+                out.writeBits(meaningful - 1, 5);
+                out.writeBits((xor >>> trail) & 0xFFFFFFFFL, meaningful);
+                leading = lead;
+                trailing = trail;
+            }
+        }
+    }
+
+    public static final class FloatDecoder {
+        private final BitReader in;
+        private int previous;
+        private int leading;
+        private int trailing;
+        private boolean first = true;
+
+        public FloatDecoder(BitReader in) {
+            this.in = in;
+        }
+
+        public void reset() {
+            previous = 0;
+            leading = 0;
+            trailing = 0;
+            first = true;
+        }
+
+        public float decode() {
+            if (first) {
+                previous = (int) in.readBits(32);
+                first = false;
+            } else if (in.readBit()) {
+                if (in.readBit()) {
+                    leading = (int) in.readBits(5);
+                    int meaningful = (int) in.readBits(5) + 1;
+                    trailing = 32 - leading - meaningful;
+                }
+                previous ^= (int) in.readBits(32 - leading - trailing) << trailing;
+            }
+            return Float.intBitsToFloat(previous);
+        }
+    }
+}
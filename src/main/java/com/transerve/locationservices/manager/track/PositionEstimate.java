@@ -0,0 +1,66 @@
+package com.transerve.locationservices.manager.track;
+
+/**
+ * Interpolated position returned by {@link TrackHistory}. Instances are meant to be reused
+ * between lookups.
+ */
+public final class PositionEstimate {
+    private long time;
+    private double lat;
+    private double lng;
+    private float accuracy;
+    private float speed;
+    private float bearing;
+    private boolean interpolated;
+
+    void set(long time, double lat, double lng, float accuracy, float speed, float bearing,
+             boolean interpolated) {
+        this.time = time;
+        this.lat = lat;
+        this.lng = lng;
+        this.accuracy = accuracy;
+        this.speed = speed;
+        this.bearing = bearing;
+        this.interpolated = interpolated;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public double getLat() {
+        return lat;
+    }
+
+    public double getLng() {
+        return lng;
+    }
+
+    /**
+     * @return accuracy in meters, interpolated between the bracketing fixes
+     */
+    public float getAccuracy() {
+        return accuracy;
+    }
+
+    /**
+     * @return ground speed in meters/second between the bracketing fixes
+     */
+    public float getSpeed() {
+        return speed;
+    }
+
+    /**
+     * @return direction of travel in degrees clockwise from true north
+     */
+    public float getBearing() {
+        return bearing;
+    }
+
+    /**
+     * @return false if the time matched a recorded fix exactly
+     */
+    public boolean isInterpolated() {
+        return interpolated;
+    }
+}
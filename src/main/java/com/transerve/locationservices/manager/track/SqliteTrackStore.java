@@ -0,0 +1,489 @@
+package com.transerve.locationservices.manager.track;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteQuery;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import com.transerve.locationservices.manager.CoordinateManager;
+import com.transerve.locationservices.manager.LocationCursor;
+import com.transerve.locationservices.manager.LocationFix;
+import com.transerve.locationservices.manager.LocationQuality;
+import com.transerve.locationservices.manager.LocationSink;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * SQLite backed store of the fixes published by a {@link CoordinateManager}, for consumers that
+ * need ad-hoc queries.
+ * <p>
+ * Fixes are copied into a preallocated batch on a writer thread and inserted with one compiled
+ * statement per batch transaction, with the database in WAL mode so queries don't wait for the
+ * writer. The table is indexed on time and on a quantized spatial cell.
+ */
+public class SqliteTrackStore extends SQLiteOpenHelper implements LocationSink {
+
+    private static final String TAG = "SqliteTrackStore";
+
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String TABLE = "fixes";
+
+    // Cells per degree of the spatial index, about 1.1 km at the equator
+    private static final int CELLS_PER_DEGREE = 100;
+
+    private static final String COLUMNS = "time, elapsed, lat, lng, accuracy, speed, bearing, flags, quality";
+
+    // Cell ranges an area query is split into, taller boxes group several rows per range
+    private static final int MAX_AREA_RANGES = 32;
+
+    private static final int FLAG_HAS_SPEED = 1;
+    private static final int FLAG_HAS_BEARING = 1 << 1;
+
+    private static final LocationQuality[] QUALITIES = LocationQuality.values();
+
+    private final int batchSize;
+
+    private long commitIntervalNanos = 5L * 1000000000L;
+
+    // Batch of fixes waiting for the next transaction
+    private int pending;
+    private final long[] batchTime;
+    private final long[] batchElapsed;
+    private final double[] batchLat;
+    private final double[] batchLng;
+    private final float[] batchAccuracy;
+    private final float[] batchSpeed;
+    private final float[] batchBearing;
+    private final int[] batchFlags;
+    private final int[] batchQuality;
+
+    private SQLiteStatement insert;
+
+    private CoordinateManager manager;
+
+    private LocationCursor cursor;
+
+    private volatile Thread writer;
+
+    // Between start and stop, even if the writer thread died
+    private volatile boolean running;
+
+    // Set by the writer thread when it stopped on an error
+    private volatile boolean failed;
+
+    private long lastCommitNanos;
+
+    public SqliteTrackStore(Context context, String name) {
+        this(context, name, 256);
+    }
+
+    public SqliteTrackStore(Context context, String name, int batchSize) {
+        super(context, name, null, DATABASE_VERSION);
+        setWriteAheadLoggingEnabled(true);
+        this.batchSize = batchSize;
+        batchTime = new long[batchSize];
+        batchElapsed = new long[batchSize];
+        batchLat = new double[batchSize];
+        batchLng = new double[batchSize];
+        batchAccuracy = new float[batchSize];
+        batchSpeed = new float[batchSize];
+        batchBearing = new float[batchSize];
+        batchFlags = new int[batchSize];
+        batchQuality = new int[batchSize];
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE + " ("
+                + "time INTEGER NOT NULL, "
+                + "elapsed INTEGER NOT NULL, "
+                + "lat REAL NOT NULL, "
+                + "lng REAL NOT NULL, "
+                + "accuracy REAL NOT NULL, "
+                + "speed REAL NOT NULL, "
+                + "bearing REAL NOT NULL, "
+                + "flags INTEGER NOT NULL, "
+                + "quality INTEGER NOT NULL, "
+                + "cell INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX " + TABLE + "_time ON " + TABLE + " (time)");
+        db.execSQL("CREATE INDEX " + TABLE + "_cell ON " + TABLE + " (cell, time)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    }
+
+    public void setCommitIntervalMillis(long millis) {
+        this.commitIntervalNanos = millis * 1000000L;
+    }
+
+    /**
+     * @return spatial cell key of a position, row major so cells of one row are contiguous
+     */
+    public static long cellOf(double lat, double lng) {
+        return (cellRow(lat) << 32) | cellColumn(lng);
+    }
+
+    private static long cellRow(double lat) {
+        return (long) Math.floor((lat + 90) * CELLS_PER_DEGREE);
+    }
+
+    private static long cellColumn(double lng) {
+        return (long) Math.floor((lng + 180) * CELLS_PER_DEGREE);
+    }
+
+    /**
+     * Starts storing the fixes published by the manager. Restarts a store that stopped on an
+     * error.
+     */
+    public synchronized void start(CoordinateManager manager) {
+        if (running) {
+            if (!failed) {
+                return;
+            }
+            stop();
+        }
+        this.manager = manager;
+        cursor = manager.openCursor();
+        failed = false;
+        running = true;
+        lastCommitNanos = System.nanoTime();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, TAG);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        writer = thread;
+        thread.start();
+        manager.addSink(this);
+    }
+
+    /**
+     * Stops storing fixes and commits the pending batch. Also unregisters a store whose writer
+     * thread stopped on an error.
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        manager.removeSink(this);
+        running = false;
+        Thread thread = writer;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writer = null;
+        manager = null;
+    }
+
+    /**
+     * @return false once stopped, or if inserting failed
+     */
+    public boolean isStoring() {
+        return running && !failed;
+    }
+
+    @Override
+    public void onLocation(LocationCursor fix) {
+        LockSupport.unpark(writer);
+    }
+
+    private void writeLoop() {
+        try {
+            while (running) {
+                drain();
+                LockSupport.parkNanos(this, commitIntervalNanos);
+            }
+            drain();
+            flush();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Storing fixes stopped", e);
+            // The sink list isn't thread safe, stop() unregisters from the caller's thread
+            failed = true;
+        }
+    }
+
+    private void drain() {
+        while (cursor.next()) {
+            buffer(cursor);
+            if (!cursor.isValid()) {
+                // The ring wrapped while we were copying
+                pending--;
+            }
+            if (pending == batchSize) {
+                flush();
+            }
+        }
+        if (pending > 0 && System.nanoTime() - lastCommitNanos >= commitIntervalNanos) {
+            flush();
+        }
+    }
+
+    /**
+     * Buffers a fix from the calling thread, only while the store isn't started. Lets the
+     * benchmarks insert without a {@link CoordinateManager}.
+     */
+    void add(LocationFix fix) {
+        buffer(fix);
+        if (pending == batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Inserts what {@link #add} buffered
+     */
+    void flushPending() {
+        flush();
+    }
+
+    private void buffer(LocationFix fix) {
+        int i = pending++;
+        batchTime[i] = fix.getTime();
+        batchElapsed[i] = fix.getElapsedRealtimeNanos();
+        batchLat[i] = fix.getLat();
+        batchLng[i] = fix.getLng();
+        batchAccuracy[i] = fix.getAccuracy();
+        batchSpeed[i] = fix.getSpeed();
+        batchBearing[i] = fix.getBearing();
+        batchFlags[i] = (fix.hasSpeed() ? FLAG_HAS_SPEED : 0) | (fix.hasBearing() ? FLAG_HAS_BEARING : 0);
+        batchQuality[i] = fix.getQuality().ordinal();
+    }
+
+    /**
+     * Inserts the pending batch in a single transaction
+     */
+    private void flush() {
+        lastCommitNanos = System.nanoTime();
+        if (pending == 0) {
+            return;
+        }
+        SQLiteDatabase db = getWritableDatabase();
+        if (insert == null) {
+            insert = db.compileStatement("INSERT INTO " + TABLE + " (" + COLUMNS + ", cell)"
+                    + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        }
+        db.beginTransactionNonExclusive();
+        try {
+            for (int i = 0; i < pending; i++) {
+                insert.bindLong(1, batchTime[i]);
+                insert.bindLong(2, batchElapsed[i]);
+                insert.bindDouble(3, batchLat[i]);
+                insert.bindDouble(4, batchLng[i]);
+                insert.bindDouble(5, batchAccuracy[i]);
+                insert.bindDouble(6, batchSpeed[i]);
+                insert.bindDouble(7, batchBearing[i]);
+                insert.bindLong(8, batchFlags[i]);
+                insert.bindLong(9, batchQuality[i]);
+                insert.bindLong(10, cellOf(batchLat[i], batchLng[i]));
+                insert.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        pending = 0;
+    }
+
+    /**
+     * Visits the fixes with {@code from <= time < to}, in time order
+     */
+    public void queryTime(long from, long to, FixVisitor visitor) {
+        Arguments args = new Arguments(2);
+        args.add(from);
+        args.add(to);
+        query("SELECT " + COLUMNS + " FROM " + TABLE + " WHERE time >= ? AND time < ? ORDER BY time",
+                args, visitor);
+    }
+
+    /**
+     * Visits the fixes inside the bounding box with {@code from <= time < to}, in time order.
+     * The cell index is searched with one range of cells per row spanned by the box, or per
+     * band of rows for boxes taller than {@code MAX_AREA_RANGES} rows.
+     */
+    public void queryArea(double minLat, double minLng, double maxLat, double maxLng,
+                          long from, long to, FixVisitor visitor) {
+        long firstRow = cellRow(minLat);
+        long lastRow = cellRow(maxLat);
+        long firstColumn = cellColumn(minLng);
+        long lastColumn = cellColumn(maxLng);
+        if (lastRow < firstRow || lastColumn < firstColumn) {
+            return;
+        }
+        long rows = lastRow - firstRow + 1;
+        int ranges = (int) Math.max(1, Math.min(rows, MAX_AREA_RANGES));
+        long rowsPerRange = (rows + ranges - 1) / ranges;
+
+        StringBuilder sql = new StringBuilder("SELECT ").append(COLUMNS).append(" FROM ").append(TABLE)
+                .append(" WHERE (");
+        Arguments args = new Arguments(ranges * 2 + 6);
+        for (long row = firstRow; row <= lastRow; row += rowsPerRange) {
+            if (row > firstRow) {
+                sql.append(" OR ");
+            }
+            sql.append("cell BETWEEN ? AND ?");
+            args.add((row << 32) | firstColumn);
+            args.add((Math.min(lastRow, row + rowsPerRange - 1) << 32) | lastColumn);
+        }
+        // Unary + keeps the planner on the cell ranges rather than the time index
+        sql.append(") AND lat BETWEEN ? AND ? AND lng BETWEEN ? AND ? AND +time >= ? AND +time < ? ORDER BY time");
+        args.add(minLat);
+        args.add(maxLat);
+        args.add(minLng);
+        args.add(maxLng);
+        args.add(from);
+        args.add(to);
+        query(sql.toString(), args, visitor);
+    }
+
+    /**
+     * Deletes the fixes recorded before the given time
+     *
+     * @return number of deleted fixes
+     */
+    public int deleteBefore(long time) {
+        SQLiteStatement delete = getWritableDatabase().compileStatement("DELETE FROM " + TABLE + " WHERE time < ?");
+        try {
+            delete.bindLong(1, time);
+            return delete.executeUpdateDelete();
+        } finally {
+            delete.close();
+        }
+    }
+
+    private void query(String sql, Arguments args, FixVisitor visitor) {
+        Cursor cursor = getReadableDatabase().rawQueryWithFactory(args, sql, null, null);
+        try {
+            Row row = new Row(cursor);
+            while (cursor.moveToNext()) {
+                if (!visitor.onFix(row)) {
+                    break;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Binds numeric query arguments with their own type, rawQuery only takes strings
+    private static final class Arguments implements SQLiteDatabase.CursorFactory {
+        private final long[] longs;
+        private final double[] doubles;
+        private final boolean[] isDouble;
+        private int count;
+
+        Arguments(int capacity) {
+            longs = new long[capacity];
+            doubles = new double[capacity];
+            isDouble = new boolean[capacity];
+        }
+
+        void add(long value) {
+            longs[count++] = value;
+        }
+
+        void add(double value) {
+            isDouble[count] = true;
+            doubles[count++] = value;
+        }
+
+        @Override
+        public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver driver, String editTable,
+                                SQLiteQuery query) {
+            for (int i = 0; i < count; i++) {
+                if (isDouble[i]) {
+                    query.bindDouble(i + 1, doubles[i]);
+                } else {
+                    query.bindLong(i + 1, longs[i]);
+                }
+            }
+            return new SQLiteCursor(driver, editTable, query);
+        }
+    }
+
+    // Reads the current row of the query cursor in place
+    private static final class Row implements LocationFix {
+        private final Cursor cursor;
+
+        Row(Cursor cursor) {
+            this.cursor = cursor;
+        }
+
+        @Override
+        public long getTime() {
+            return cursor.getLong(0);
+        }
+
+        @Override
+        public long getElapsedRealtimeNanos() {
+            return cursor.getLong(1);
+        }
+
+        @Override
+        public double getLat() {
+            return cursor.getDouble(2);
+        }
+
+        @Override
+        public double getLng() {
+            return cursor.getDouble(3);
+        }
+
+        @Override
+        public float getAccuracy() {
+            return cursor.getFloat(4);
+        }
+
+        @Override
+        public float getSpeed() {
+            return cursor.getFloat(5);
+        }
+
+        @Override
+        public float getBearing() {
+            return cursor.getFloat(6);
+        }
+
+        @Override
+        public boolean hasSpeed() {
+            return (cursor.getInt(7) & FLAG_HAS_SPEED) != 0;
+        }
+
+        @Override
+        public boolean hasBearing() {
+            return (cursor.getInt(7) & FLAG_HAS_BEARING) != 0;
+        }
+
+        @Override
+        public LocationQuality getQuality() {
+            return QUALITIES[cursor.getInt(8)];
+        }
+
+        // Altitudes aren't stored
+        @Override
+        public boolean hasAltitude() {
+            return false;
+        }
+
+        @Override
+        public double getAltitude() {
+            return 0;
+        }
+
+        @Override
+        public double getAltitudeMsl() {
+            return Double.NaN;
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package com.transerve.locationservices.manager.track;
+
+import android.util.Log;
+
+import com.transerve.locationservices.manager.CoordinateManager;
+import com.transerve.locationservices.manager.LocationCursor;
+import com.transerve.locationservices.manager.LocationQuality;
+import com.transerve.locationservices.manager.LocationSink;
+import com.transerve.locationservices.manager.geo.GeoMath;
+
+import java.io.IOException;
+
+/**
+ * Splits the fixes of a {@link CoordinateManager} into trips and stops as they arrive.
+ * <p>
+ * The detector keeps a cluster of the latest fixes within the stay radius of their running
+ * centroid. When a cluster has lasted the minimum dwell time it is a stop, and the trip that
+ * led to it ends where the cluster started. When a fix falls outside a stop, the stop is
+ * reported with its centroid and dwell time and a new trip starts. A fix outside a cluster
+ * that is not a stop yet rebuilds the cluster from the newest fixes of a bounded window that
+ * are close to it, so arriving slowly still finds the start of the stop.
+ * <p>
+ * A fix that joins or leaves a cluster costs O(1). A rebuild walks back from the new fix until
+ * a fix is farther than the stay radius, so it costs O(window) per fix in the worst case, a
+ * slow drift that keeps the whole window within the radius of every new fix. While moving
+ * the walk ends after the few fixes within the radius. The window passed to the constructor
+ * bounds this cost. Nothing is allocated per fix.
+ * <p>
+ * Trips can also be appended to a {@link TripSummaryLog}, so uploads can be trip granular.
+ * {@link LocationQuality#INACCURATE} fixes are ignored.
+ */
+public class StayPointDetector implements LocationSink {
+
+    private static final String TAG = "StayPointDetector";
+
+    public static final float DEFAULT_STAY_RADIUS_METERS = 100f;
+
+    public static final long DEFAULT_MIN_DWELL_MILLIS = 5 * 60 * 1000;
+
+    public static final int DEFAULT_WINDOW = 64;
+
+    public interface Listener {
+        void onTripStart(double lat, double lng, long time);
+
+        /**
+         * @param lat            where the trip ended, the centroid of the stop it led to
+         * @param distanceMeters distance covered by the fixes of the trip
+         */
+        void onTripEnd(double lat, double lng, long startTime, long endTime, float distanceMeters);
+
+        /**
+         * Called once the device leaves the stop, dwell time is {@code departureTime - arrivalTime}
+         */
+        void onStop(double lat, double lng, long arrivalTime, long departureTime);
+    }
+
+    private final Listener listener;
+
+    private final float stayRadius;
+
+    private final long minDwell;
+
+    private final int window;
+
+    private TripSummaryLog tripLog;
+
+    // Ring of the latest fixes, fix with sequence s at s % window
+    private final double[] lat;
+    private final double[] lng;
+    private final long[] time;
+    // Distance covered up to each fix
+    private final double[] odometer;
+    private long sequence = -1;
+
+    // Cluster of fixes from clusterStart to sequence, it may outgrow the window so its first
+    // fix is copied
+    private long clusterStart;
+    private double clusterStartLat;
+    private double clusterStartLng;
+    private long clusterStartTime;
+    private double clusterStartOdometer;
+    private int clusterCount;
+    private double sumLat;
+    private double sumLng;
+
+    private boolean stopped;
+
+    private boolean inTrip;
+    private long tripFirst;
+    private long tripStart;
+    private double tripStartLat;
+    private double tripStartLng;
+    private double tripStartOdometer;
+
+    public StayPointDetector(Listener listener) {
+        this(listener, DEFAULT_STAY_RADIUS_METERS, DEFAULT_MIN_DWELL_MILLIS, DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param stayRadiusMeters fixes within this distance of the centroid belong to the stop
+     * @param minDwellMillis   time spent within the radius before it is a stop
+     * @param window           fixes kept to find where a stop began, bounds the cost of a fix
+     */
+    public StayPointDetector(Listener listener, float stayRadiusMeters, long minDwellMillis, int window) {
+        if (stayRadiusMeters <= 0 || minDwellMillis <= 0 || window < 2) {
+            throw new IllegalArgumentException("Invalid stay point parameters");
+        }
+        this.listener = listener;
+        this.stayRadius = stayRadiusMeters;
+        this.minDwell = minDwellMillis;
+        this.window = window;
+        lat = new double[window];
+        lng = new double[window];
+        time = new long[window];
+        odometer = new double[window];
+    }
+
+    /**
+     * Log each finished trip is appended to, null for none
+     */
+    public synchronized void setTripLog(TripSummaryLog tripLog) {
+        this.tripLog = tripLog;
+    }
+
+    public synchronized boolean isStopped() {
+        return stopped;
+    }
+
+    public synchronized boolean isInTrip() {
+        return inTrip;
+    }
+
+    @Override
+    public void onLocation(LocationCursor fix) {
+        if (fix.getQuality() != LocationQuality.INACCURATE) {
+            add(fix.getLat(), fix.getLng(), fix.getTime());
+        }
+    }
+
+    public synchronized void add(double fixLat, double fixLng, long fixTime) {
+        double distance = sequence < 0 ? 0 : GeoMath.fastDistance(lat(sequence), lng(sequence), fixLat, fixLng);
+        double covered = sequence < 0 ? 0 : odometer[slot(sequence)] + distance;
+        sequence++;
+        int slot = slot(sequence);
+        lat[slot] = fixLat;
+        lng[slot] = fixLng;
+        time[slot] = fixTime;
+        odometer[slot] = covered;
+
+        if (clusterCount == 0) {
+            startCluster(sequence);
+        } else if (GeoMath.fastDistance(sumLat / clusterCount, sumLng / clusterCount, fixLat, fixLng) <= stayRadius) {
+            clusterCount++;
+            sumLat += fixLat;
+            sumLng += fixLng;
+        } else if (stopped) {
+            listener.onStop(sumLat / clusterCount, sumLng / clusterCount, clusterStartTime, time(sequence - 1));
+            stopped = false;
+            startTrip(sequence - 1, lat(sequence - 1), lng(sequence - 1), time(sequence - 1),
+                    odometer[slot(sequence - 1)]);
+            startCluster(sequence);
+        } else {
+            if (!inTrip) {
+                // Moving from the very first fixes
+                startTrip(clusterStart, clusterStartLat, clusterStartLng, clusterStartTime, clusterStartOdometer);
+            }
+            rebuildCluster();
+        }
+
+        if (!stopped && fixTime - clusterStartTime >= minDwell) {
+            stopped = true;
+            if (inTrip) {
+                endTrip(clusterStart, clusterStartTime, clusterStartOdometer,
+                        sumLat / clusterCount, sumLng / clusterCount);
+            }
+        }
+    }
+
+    /**
+     * Reports the stop or trip in progress, call at the end of a recorded track
+     */
+    public synchronized void finish() {
+        if (sequence < 0) {
+            return;
+        }
+        if (stopped) {
+            listener.onStop(sumLat / clusterCount, sumLng / clusterCount, clusterStartTime, time(sequence));
+        } else if (inTrip) {
+            endTrip(sequence, time(sequence), odometer[slot(sequence)], lat(sequence), lng(sequence));
+        }
+        stopped = false;
+        inTrip = false;
+        clusterCount = 0;
+        sequence = -1;
+    }
+
+    private void startTrip(long first, double startLat, double startLng, long startTime, double startOdometer) {
+        inTrip = true;
+        tripFirst = first;
+        tripStart = startTime;
+        tripStartLat = startLat;
+        tripStartLng = startLng;
+        tripStartOdometer = startOdometer;
+        listener.onTripStart(startLat, startLng, startTime);
+    }
+
+    private void endTrip(long last, long endTime, double endOdometer, double endLat, double endLng) {
+        inTrip = false;
+        float distance = (float) (endOdometer - tripStartOdometer);
+        listener.onTripEnd(endLat, endLng, tripStart, endTime, distance);
+        TripSummaryLog log = tripLog;
+        if (log != null) {
+            try {
+                log.append(tripStart, endTime, tripStartLat, tripStartLng, endLat, endLng, distance,
+                        (int) (last - tripFirst + 1));
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to log trip", e);
+            }
+        }
+    }
+
+    private void startCluster(long first) {
+        clusterCount = 1;
+        sumLat = lat(first);
+        sumLng = lng(first);
+        setClusterStart(first);
+    }
+
+    private void setClusterStart(long first) {
+        clusterStart = first;
+        clusterStartLat = lat(first);
+        clusterStartLng = lng(first);
+        clusterStartTime = time(first);
+        clusterStartOdometer = odometer[slot(first)];
+    }
+
+    // Newest fixes close to the new one, walking back through the window, O(window)
+    private void rebuildCluster() {
+        double fixLat = lat(sequence);
+        double fixLng = lng(sequence);
+        startCluster(sequence);
+        // A stop found here ends the current trip, so it can't begin before the trip did
+        long oldest = Math.max(inTrip ? tripFirst : 0, sequence - window + 1);
+        for (long s = sequence - 1; s >= oldest; s--) {
+            if (GeoMath.fastDistance(fixLat, fixLng, lat(s), lng(s)) > stayRadius) {
+                break;
+            }
+            setClusterStart(s);
+            clusterCount++;
+            sumLat += lat(s);
+            sumLng += lng(s);
+        }
+    }
+
+    private int slot(long s) {
+        return (int) (s % window);
+    }
+
+    private double lat(long s) {
+        return lat[slot(s)];
+    }
+
+    private double lng(long s) {
+        return lng[slot(s)];
+    }
+
+    private long time(long s) {
+        return time[slot(s)];
+    }
+}
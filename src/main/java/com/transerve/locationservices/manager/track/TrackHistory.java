@@ -0,0 +1,152 @@
+package com.transerve.locationservices.manager.track;
+
+import com.transerve.locationservices.manager.geo.GeoMath;
+
+import java.io.IOException;
+
+/**
+ * Answers "where was the device at time T" over the recorded history of a {@link TrackRecorder}.
+ * <p>
+ * Lookups find the bracketing fixes through a {@link TrackTimeIndex} and interpolate along the
+ * great circle between them. Times outside the recording, or inside a gap longer than
+ * {@link #setMaxGapMillis(long)}, have no position.
+ */
+public class TrackHistory {
+
+    private final TrackTimeIndex index;
+
+    private final TrackReader reader;
+
+    private long maxGapMillis = 5 * 60 * 1000;
+
+    private final double[] point = new double[2];
+
+    public TrackHistory(TrackTimeIndex index) {
+        this.index = index;
+        this.reader = index.getReader();
+    }
+
+    public void setMaxGapMillis(long maxGapMillis) {
+        this.maxGapMillis = maxGapMillis;
+    }
+
+    /**
+     * Picks up the fixes recorded since the last call
+     */
+    public void update() throws IOException {
+        index.update();
+    }
+
+    /**
+     * @param out receives the position
+     * @return false if there is no position for the time
+     */
+    public boolean positionAt(long time, PositionEstimate out) {
+        long position = index.floorPosition(time);
+        if (position < 0) {
+            return false;
+        }
+        return interpolate(position, time, out);
+    }
+
+    /**
+     * Looks up many times in a single forward pass over the track. Entries without a position
+     * get NaN coordinates.
+     *
+     * @param times   lookup times, in ascending order
+     * @param lat     receives the latitudes, same length as times
+     * @param lng     receives the longitudes
+     * @param accuracy receives the accuracies, may be null
+     * @param speed   receives the speeds, may be null
+     * @param bearing receives the bearings, may be null
+     * @return number of times that had a position
+     * @throws IllegalArgumentException if the times are not in ascending order
+     */
+    public int positionsAt(long[] times, double[] lat, double[] lng, float[] accuracy,
+                           float[] speed, float[] bearing) {
+        PositionEstimate estimate = new PositionEstimate();
+        long count = reader.getCount();
+        long position = times.length > 0 ? index.floorPosition(times[0]) : -1;
+        int found = 0;
+        for (int i = 0; i < times.length; i++) {
+            long time = times[i];
+            if (i > 0 && time < times[i - 1]) {
+                throw new IllegalArgumentException("Times must be in ascending order");
+            }
+            // Merge step: advance while the next fix is still at or before the time
+            while (position + 1 < count) {
+                reader.moveTo(position + 1);
+                if (reader.getTime() > time) {
+                    break;
+                }
+                position++;
+            }
+            if (position >= 0 && interpolate(position, time, estimate)) {
+                lat[i] = estimate.getLat();
+                lng[i] = estimate.getLng();
+                if (accuracy != null) {
+                    accuracy[i] = estimate.getAccuracy();
+                }
+                if (speed != null) {
+                    speed[i] = estimate.getSpeed();
+                }
+                if (bearing != null) {
+                    bearing[i] = estimate.getBearing();
+                }
+                found++;
+            } else {
+                lat[i] = Double.NaN;
+                lng[i] = Double.NaN;
+                if (accuracy != null) {
+                    accuracy[i] = Float.NaN;
+                }
+                if (speed != null) {
+                    speed[i] = Float.NaN;
+                }
+                if (bearing != null) {
+                    bearing[i] = Float.NaN;
+                }
+            }
+        }
+        return found;
+    }
+
+    // Interpolates between the fix at position, the last one at or before time, and the next
+    private boolean interpolate(long position, long time, PositionEstimate out) {
+        reader.moveTo(position);
+        long t1 = reader.getTime();
+        double lat1 = reader.getLat();
+        double lng1 = reader.getLng();
+        float accuracy1 = reader.getAccuracy();
+        boolean exact = t1 == time;
+
+        if (position + 1 >= reader.getCount()) {
+            if (!exact) {
+                return false;
+            }
+            out.set(time, lat1, lng1, accuracy1, reader.getSpeed(), reader.getBearing(), false);
+            return true;
+        }
+        reader.moveTo(position + 1);
+        long t2 = reader.getTime();
+        if (t2 - t1 > maxGapMillis && !exact) {
+            return false;
+        }
+        double lat2 = reader.getLat();
+        double lng2 = reader.getLng();
+        float accuracy2 = reader.getAccuracy();
+
+        double meters = GeoMath.distance(lat1, lng1, lat2, lng2);
+        float speed = t2 > t1 ? (float) (meters * 1000 / (t2 - t1)) : 0f;
+        float bearing = (float) GeoMath.bearing(lat1, lng1, lat2, lng2);
+        if (exact) {
+            out.set(time, lat1, lng1, accuracy1, speed, bearing, false);
+            return true;
+        }
+        double fraction = (double) (time - t1) / (t2 - t1);
+        GeoMath.interpolate(lat1, lng1, lat2, lng2, fraction, point);
+        float accuracy = (float) (accuracy1 + (accuracy2 - accuracy1) * fraction);
+        out.set(time, point[0], point[1], accuracy, speed, bearing, true);
+        return true;
+    }
+}
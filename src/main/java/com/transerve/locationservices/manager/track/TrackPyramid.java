@@ -0,0 +1,163 @@
+package com.transerve.locationservices.manager.track;
+
+import com.transerve.locationservices.manager.LocationQuality;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Levels of detail of a recorded track, maintained by the {@link TrackRecorder} writer.
+ * <p>
+ * Level {@code k} is the track simplified to within {@code baseTolerance * 2^k} meters. The
+ * levels cascade: level 0 simplifies the raw fixes and every coarser level simplifies the
+ * vertices of the level below, so coarse levels see few points and their bounded
+ * {@link TrackSimplifier} windows still span long stretches of track. Each level is a chain of {@link TrackSegment}s in a
+ * {@code lod-<tolerance in cm>} directory next to the raw segments, so the levels are found
+ * again without extra metadata. Vertices keep position, accuracy and time only.
+ * <p>
+ * The simplifier windows live in memory, so after a crash each level may miss the vertices
+ * of its last window. Read the levels with a {@link TrackPyramidReader}.
+ */
+class TrackPyramid {
+
+    static final String DIRECTORY_PREFIX = "lod-";
+
+    private final Level[] levels;
+
+    TrackPyramid(File directory, int levelCount, float baseTolerance, int segmentCapacity) {
+        levels = new Level[levelCount];
+        Level next = null;
+        for (int k = levelCount - 1; k >= 0; k--) {
+            float tolerance = baseTolerance * (1 << k);
+            // Level k simplifies level k - 1 at half its own bound, the errors then add up to
+            // exactly the bound: base + base * (1 + 2 + ... + 2^(k-1)) = base * 2^k
+            float stageTolerance = k == 0 ? baseTolerance : tolerance / 2;
+            levels[k] = new Level(levelDirectory(directory, tolerance), stageTolerance,
+                    segmentCapacity, next);
+            next = levels[k];
+        }
+    }
+
+    static File levelDirectory(File directory, float tolerance) {
+        return new File(directory, String.format(Locale.US, "%s%d", DIRECTORY_PREFIX,
+                Math.round(tolerance * 100)));
+    }
+
+    static File[] listLevelDirectories(File directory) {
+        File[] directories = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isDirectory() && file.getName().startsWith(DIRECTORY_PREFIX);
+            }
+        });
+        return directories != null ? directories : new File[0];
+    }
+
+    void open() throws IOException {
+        for (Level level : levels) {
+            level.open();
+        }
+    }
+
+    /**
+     * Adds a raw record to every level
+     */
+    void add(TrackSegment source, int record) throws IOException {
+        if (source.getQuality(record) == LocationQuality.INACCURATE) {
+            return;
+        }
+        levels[0].simplifier.add(source.getLat(record), source.getLng(record),
+                source.getAccuracy(record), source.getTime(record));
+        rethrow();
+    }
+
+    void commit() {
+        for (Level level : levels) {
+            level.segment.commit();
+        }
+    }
+
+    /**
+     * Writes out the pending vertex of every level and commits
+     */
+    void close() throws IOException {
+        // In order, flushing a level may add a vertex to every coarser one
+        for (Level level : levels) {
+            level.simplifier.flush();
+            level.segment.commit();
+        }
+        rethrow();
+    }
+
+    // The vertex callbacks can't throw, a level that couldn't start a segment keeps the error
+    private void rethrow() throws IOException {
+        for (Level level : levels) {
+            IOException error = level.error;
+            if (error != null) {
+                level.error = null;
+                throw error;
+            }
+        }
+    }
+
+    private static class Level implements TrackSimplifier.VertexListener {
+
+        final File directory;
+
+        final int segmentCapacity;
+
+        final TrackSimplifier simplifier;
+
+        // Coarser level fed with the vertices of this one
+        final Level next;
+
+        TrackSegment segment;
+
+        IOException error;
+
+        Level(File directory, float tolerance, int segmentCapacity, Level next) {
+            this.directory = directory;
+            this.segmentCapacity = segmentCapacity;
+            this.simplifier = new TrackSimplifier(tolerance, this);
+            this.next = next;
+        }
+
+        void open() throws IOException {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Can't create " + directory);
+            }
+            segment = TrackRecorder.openLastSegment(directory, segmentCapacity,
+                    TrackRetention.LEVEL_DETAIL);
+            simplifier.reset();
+        }
+
+        void ensureRoom() throws IOException {
+            if (segment.isFull()) {
+                segment.commit();
+                long index = segment.getIndex() + 1;
+                segment = TrackSegment.create(TrackSegment.segmentFile(directory, index), index,
+                        segmentCapacity, TrackRetention.LEVEL_DETAIL);
+            }
+        }
+
+        @Override
+        public void onVertex(long index, double lat, double lng, float accuracy, long time) {
+            // Flushing a finer level can append here more than once
+            try {
+                ensureRoom();
+            } catch (IOException e) {
+                if (error == null) {
+                    error = e;
+                }
+                return;
+            }
+            segment.append(lat, lng, accuracy, 0, time, false, 0f, false, 0f,
+                    LocationQuality.FILTERED);
+            if (next != null) {
+                next.simplifier.add(lat, lng, accuracy, time);
+            }
+        }
+    }
+}
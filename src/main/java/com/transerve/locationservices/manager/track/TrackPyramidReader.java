@@ -0,0 +1,199 @@
+package com.transerve.locationservices.manager.track;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Viewport queries over the levels of detail written by a {@link TrackRecorder} with
+ * {@link TrackRecorder#setLevelsOfDetail(int, float)}.
+ * <p>
+ * A query picks the coarsest level whose tolerance is still below the requested scale and
+ * visits the vertices of the edges whose bounding box overlaps the viewport, so edges crossing
+ * the viewport border can be drawn. Bounding boxes of closed segments are cached, so segments
+ * away from the viewport are skipped without being read. The cache of a level is rebuilt when
+ * {@link TrackRetention} deleted some of its segments.
+ */
+public class TrackPyramidReader {
+
+    // Web mercator ground resolution at zoom 0 on the equator, 256 pixel tiles
+    private static final double METERS_PER_PIXEL_ZOOM_0 = 156543.03392;
+
+    private final float[] tolerances;
+
+    private final TrackReader[] readers;
+
+    // Per level: minLat, minLng, maxLat, maxLng of every closed segment
+    private final double[][] boxes;
+
+    private final int[] boxCount;
+
+    // Reader generation the boxes were computed for
+    private final int[] boxGeneration;
+
+    public TrackPyramidReader(File recorderDirectory) throws IOException {
+        File[] directories = TrackPyramid.listLevelDirectories(recorderDirectory);
+        int count = directories.length;
+        long[] centimeters = new long[count];
+        for (int i = 0; i < count; i++) {
+            centimeters[i] = Long.parseLong(directories[i].getName()
+                    .substring(TrackPyramid.DIRECTORY_PREFIX.length()));
+        }
+        Arrays.sort(centimeters);
+        tolerances = new float[count];
+        readers = new TrackReader[count];
+        boxes = new double[count][];
+        boxCount = new int[count];
+        boxGeneration = new int[count];
+        for (int k = 0; k < count; k++) {
+            tolerances[k] = centimeters[k] / 100f;
+            readers[k] = new TrackReader(TrackPyramid.levelDirectory(recorderDirectory, tolerances[k]));
+            boxes[k] = new double[0];
+        }
+    }
+
+    /**
+     * Ground resolution of a web map tile pixel at the given zoom and latitude
+     */
+    public static double metersPerPixel(double zoom, double lat) {
+        return METERS_PER_PIXEL_ZOOM_0 * Math.cos(Math.toRadians(lat)) / Math.pow(2, zoom);
+    }
+
+    public int getLevelCount() {
+        return readers.length;
+    }
+
+    public float getTolerance(int level) {
+        return tolerances[level];
+    }
+
+    public TrackReader getLevel(int level) {
+        return readers[level];
+    }
+
+    /**
+     * Picks up the vertices written since the last refresh
+     */
+    public void refresh() throws IOException {
+        for (TrackReader reader : readers) {
+            reader.refresh();
+        }
+    }
+
+    /**
+     * @return coarsest level with a tolerance of at most the given scale, 0 if none is that fine
+     */
+    public int levelFor(double metersPerPixel) {
+        int level = 0;
+        for (int k = 1; k < tolerances.length; k++) {
+            if (tolerances[k] <= metersPerPixel) {
+                level = k;
+            }
+        }
+        return level;
+    }
+
+    /**
+     * Visits the vertices needed to draw the track inside the viewport at the given scale
+     */
+    public void query(double minLat, double minLng, double maxLat, double maxLng,
+                      double metersPerPixel, FixVisitor visitor) {
+        if (readers.length == 0) {
+            return;
+        }
+        int level = levelFor(metersPerPixel);
+        TrackReader reader = readers[level];
+        updateBoxes(level);
+        double[] box = boxes[level];
+
+        long previous = -1;
+        double previousLat = 0;
+        double previousLng = 0;
+        long emitted = -1;
+        for (int s = 0; s < reader.getSegmentCount(); s++) {
+            long start = reader.getSegmentStart(s);
+            long end = reader.getSegmentStart(s + 1);
+            if (start == end) {
+                continue;
+            }
+            if (s < boxCount[level] && (box[s * 4] > maxLat || box[s * 4 + 2] < minLat
+                    || box[s * 4 + 1] > maxLng || box[s * 4 + 3] < minLng)) {
+                // No edge of this segment touches the viewport
+                previous = end - 1;
+                reader.moveTo(previous);
+                previousLat = reader.getLat();
+                previousLng = reader.getLng();
+                continue;
+            }
+            for (long p = start; p < end; p++) {
+                reader.moveTo(p);
+                double lat = reader.getLat();
+                double lng = reader.getLng();
+                // An edge is needed if its bounding box overlaps the viewport
+                boolean needed = previous < 0
+                        ? lat >= minLat && lat <= maxLat && lng >= minLng && lng <= maxLng
+                        : Math.min(lat, previousLat) <= maxLat && Math.max(lat, previousLat) >= minLat
+                        && Math.min(lng, previousLng) <= maxLng && Math.max(lng, previousLng) >= minLng;
+                if (needed) {
+                    if (previous >= 0 && emitted != previous) {
+                        reader.moveTo(previous);
+                        if (!visitor.onFix(reader)) {
+                            return;
+                        }
+                        reader.moveTo(p);
+                    }
+                    if (!visitor.onFix(reader)) {
+                        return;
+                    }
+                    emitted = p;
+                }
+                previous = p;
+                previousLat = lat;
+                previousLng = lng;
+            }
+        }
+    }
+
+    // Caches the bounding boxes of the closed segments of a level, the last one is still growing
+    private void updateBoxes(int level) {
+        TrackReader reader = readers[level];
+        if (boxGeneration[level] != reader.getGeneration()) {
+            boxGeneration[level] = reader.getGeneration();
+            boxes[level] = new double[0];
+            boxCount[level] = 0;
+        }
+        int closed = reader.getSegmentCount() - 1;
+        if (closed <= boxCount[level]) {
+            return;
+        }
+        double[] box = Arrays.copyOf(boxes[level], closed * 4);
+        for (int s = boxCount[level]; s < closed; s++) {
+            TrackSegment segment = reader.getSegment(s);
+            double minLat = Double.MAX_VALUE;
+            double minLng = Double.MAX_VALUE;
+            double maxLat = -Double.MAX_VALUE;
+            double maxLng = -Double.MAX_VALUE;
+            // Include the edge coming from the previous segment
+            long start = reader.getSegmentStart(s);
+            if (start > 0) {
+                reader.moveTo(start - 1);
+                minLat = maxLat = reader.getLat();
+                minLng = maxLng = reader.getLng();
+            }
+            for (int r = 0, count = segment.getCount(); r < count; r++) {
+                double lat = segment.getLat(r);
+                double lng = segment.getLng(r);
+                minLat = Math.min(minLat, lat);
+                maxLat = Math.max(maxLat, lat);
+                minLng = Math.min(minLng, lng);
+                maxLng = Math.max(maxLng, lng);
+            }
+            box[s * 4] = minLat;
+            box[s * 4 + 1] = minLng;
+            box[s * 4 + 2] = maxLat;
+            box[s * 4 + 3] = maxLng;
+        }
+        boxes[level] = box;
+        boxCount[level] = closed;
+    }
+}
@@ -0,0 +1,227 @@
+package com.transerve.locationservices.manager.track;
+
+import com.transerve.locationservices.manager.LocationFix;
+import com.transerve.locationservices.manager.LocationQuality;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Reads the fixes recorded by a {@link TrackRecorder} as one continuous sequence over all
+ * segments of its directory. The reader is a flyweight: after {@link #next()} the getters read
+ * the current record straight from the mapped segment.
+ * <p>
+ * {@link TrackRetention} rewrites and deletes closed segments. The reader keeps reading its
+ * mapped copies until the next {@link #refresh()}, which then reopens all segments, moves before
+ * the first record and increments {@link #getGeneration()}.
+ */
+public class TrackReader implements LocationFix {
+
+    private final File directory;
+
+    private TrackSegment[] segments = new TrackSegment[0];
+
+    // Position of the first record of each segment in the whole track
+    private long[] segmentStart = new long[1];
+
+    private long position = -1;
+
+    private int generation;
+
+    private int segment;
+
+    private int record;
+
+    public TrackReader(File directory) throws IOException {
+        this.directory = directory;
+        refresh();
+    }
+
+    /**
+     * Picks up the records and segments written since the reader was opened
+     */
+    public void refresh() throws IOException {
+        if (segments.length > 0) {
+            segments[segments.length - 1].refresh();
+        }
+        File[] files = TrackSegment.listSegmentFiles(directory);
+        int known = segments.length;
+        if (changed(files)) {
+            segments = new TrackSegment[0];
+            known = 0;
+            position = -1;
+            segment = 0;
+            generation++;
+        }
+        if (files.length > known) {
+            segments = Arrays.copyOf(segments, files.length);
+            for (int i = known; i < files.length; i++) {
+                segments[i] = TrackSegment.open(files[i], false);
+            }
+            segmentStart = new long[segments.length + 1];
+        }
+        for (int i = 0; i < segments.length; i++) {
+            segmentStart[i + 1] = segmentStart[i] + segments[i].getCount();
+        }
+    }
+
+    // A rewrite replaces the file with one sized for the kept records, so a known segment whose
+    // name or size differs has been compacted. Same size means every record was kept.
+    private boolean changed(File[] files) {
+        if (files.length < segments.length) {
+            return true;
+        }
+        for (int i = 0; i < segments.length; i++) {
+            if (!files[i].getName().equals(segments[i].getFile().getName())
+                    || files[i].length() != TrackSegment.HEADER_SIZE
+                    + (long) segments[i].getCapacity() * TrackSegment.RECORD_SIZE) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return incremented whenever {@link #refresh()} finds segments rewritten or deleted,
+     * positions taken before then no longer refer to the same records
+     */
+    public int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return total number of records
+     */
+    public long getCount() {
+        return segmentStart[segments.length];
+    }
+
+    public int getSegmentCount() {
+        return segments.length;
+    }
+
+    public TrackSegment getSegment(int index) {
+        return segments[index];
+    }
+
+    public long getSegmentStart(int index) {
+        return segmentStart[index];
+    }
+
+    /**
+     * @return position of the current record, -1 before the first call to {@link #next()}
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Moves to the next record
+     *
+     * @return false at the end of the track
+     */
+    public boolean next() {
+        if (position + 1 >= getCount()) {
+            return false;
+        }
+        moveTo(position + 1);
+        return true;
+    }
+
+    /**
+     * Positions the reader so the next call to {@link #next()} reads the record at the given
+     * position
+     */
+    public void seek(long position) {
+        this.position = Math.max(-1, Math.min(position, getCount()) - 1);
+        if (this.position >= 0) {
+            moveTo(this.position);
+        }
+    }
+
+    /**
+     * Makes the record at the given position current
+     */
+    public void moveTo(long position) {
+        if (position < 0 || position >= getCount()) {
+            throw new IndexOutOfBoundsException("Position " + position + " of " + getCount());
+        }
+        this.position = position;
+        if (position < segmentStart[segment] || position >= segmentStart[segment + 1]) {
+            int found = Arrays.binarySearch(segmentStart, 0, segments.length + 1, position);
+            // Skip empty segments that share the same start
+            segment = found >= 0 ? found : -found - 2;
+            while (segmentStart[segment + 1] <= position) {
+                segment++;
+            }
+        }
+        record = (int) (position - segmentStart[segment]);
+    }
+
+    @Override
+    public double getLat() {
+        return segments[segment].getLat(record);
+    }
+
+    @Override
+    public double getLng() {
+        return segments[segment].getLng(record);
+    }
+
+    @Override
+    public float getAccuracy() {
+        return segments[segment].getAccuracy(record);
+    }
+
+    @Override
+    public long getElapsedRealtimeNanos() {
+        return segments[segment].getElapsedRealtimeNanos(record);
+    }
+
+    @Override
+    public long getTime() {
+        return segments[segment].getTime(record);
+    }
+
+    @Override
+    public boolean hasSpeed() {
+        return segments[segment].hasSpeed(record);
+    }
+
+    @Override
+    public float getSpeed() {
+        return segments[segment].getSpeed(record);
+    }
+
+    @Override
+    public boolean hasBearing() {
+        return segments[segment].hasBearing(record);
+    }
+
+    @Override
+    public float getBearing() {
+        return segments[segment].getBearing(record);
+    }
+
+    @Override
+    public LocationQuality getQuality() {
+        return segments[segment].getQuality(record);
+    }
+
+    // Segments don't record altitudes
+    @Override
+    public boolean hasAltitude() {
+        return false;
+    }
+
+    @Override
+    public double getAltitude() {
+        return 0;
+    }
+
+    @Override
+    public double getAltitudeMsl() {
+        return Double.NaN;
+    }
+}
@@ -0,0 +1,244 @@
+package com.transerve.locationservices.manager.track;
+
+import android.util.Log;
+
+import com.transerve.locationservices.manager.CoordinateManager;
+import com.transerve.locationservices.manager.LocationCursor;
+import com.transerve.locationservices.manager.LocationSink;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records every fix published by a {@link CoordinateManager} into append-only
+ * {@link TrackSegment} files.
+ * <p>
+ * The location callback thread only wakes up the recorder's writer thread; the writer drains
+ * its own cursor on the location ring and copies the fixes into the mapped segment, so neither
+ * thread allocates or blocks per fix. Appended records are committed to storage in batches,
+ * every {@link #setCommitEvery(int)} records or {@link #setCommitIntervalMillis(long)},
+ * whichever comes first.
+ */
+public class TrackRecorder implements LocationSink {
+
+    private static final String TAG = "TrackRecorder";
+
+    public static final int DEFAULT_SEGMENT_CAPACITY = 65536;
+
+    private final File directory;
+
+    private final int segmentCapacity;
+
+    private int commitEvery = 64;
+
+    private long commitIntervalNanos = 10L * 1000000000L;
+
+    private CoordinateManager manager;
+
+    private LocationCursor cursor;
+
+    private volatile Thread writer;
+
+    // Between start and stop, even if the writer thread died
+    private volatile boolean running;
+
+    // Set by the writer thread when it stopped on an error
+    private volatile boolean failed;
+
+    private TrackSegment segment;
+
+    private long lastCommitNanos;
+
+    private long reportedLost;
+
+    private int lodLevels;
+
+    private float lodBaseTolerance;
+
+    private TrackPyramid pyramid;
+
+    public TrackRecorder(File directory) {
+        this(directory, DEFAULT_SEGMENT_CAPACITY);
+    }
+
+    public TrackRecorder(File directory, int segmentCapacity) {
+        this.directory = directory;
+        this.segmentCapacity = segmentCapacity;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public void setCommitEvery(int records) {
+        this.commitEvery = Math.max(1, records);
+    }
+
+    public void setCommitIntervalMillis(long millis) {
+        this.commitIntervalNanos = millis * 1000000L;
+    }
+
+    /**
+     * Also maintains the given number of levels of detail, simplified at doubling tolerances
+     * starting from the base tolerance. Takes effect on the next {@link #start}.
+     *
+     * @see TrackPyramidReader
+     */
+    public void setLevelsOfDetail(int levels, float baseToleranceMeters) {
+        this.lodLevels = levels;
+        this.lodBaseTolerance = baseToleranceMeters;
+    }
+
+    /**
+     * Starts recording the fixes published by the manager. Continues the last segment in the
+     * directory if it has room left. Restarts a recorder that stopped on an error.
+     */
+    public synchronized void start(CoordinateManager manager) throws IOException {
+        if (running) {
+            if (!failed) {
+                return;
+            }
+            stop();
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+        segment = openLastSegment(directory, segmentCapacity, TrackRetention.LEVEL_RAW);
+        pyramid = null;
+        if (lodLevels > 0) {
+            pyramid = new TrackPyramid(directory, lodLevels, lodBaseTolerance,
+                    Math.max(1, segmentCapacity / 8));
+            pyramid.open();
+        }
+        this.manager = manager;
+        cursor = manager.openCursor();
+        failed = false;
+        running = true;
+        lastCommitNanos = System.nanoTime();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, TAG);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        writer = thread;
+        thread.start();
+        manager.addSink(this);
+    }
+
+    /**
+     * Stops recording and commits everything written so far. Also unregisters a recorder whose
+     * writer thread stopped on an error.
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        manager.removeSink(this);
+        running = false;
+        Thread thread = writer;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writer = null;
+        manager = null;
+    }
+
+    /**
+     * @return false once stopped, or if writing failed
+     */
+    public boolean isRecording() {
+        return running && !failed;
+    }
+
+    @Override
+    public void onLocation(LocationCursor fix) {
+        LockSupport.unpark(writer);
+    }
+
+    static TrackSegment openLastSegment(File directory, int segmentCapacity, int level)
+            throws IOException {
+        File[] files = TrackSegment.listSegmentFiles(directory);
+        if (files.length > 0) {
+            try {
+                TrackSegment last = TrackSegment.open(files[files.length - 1], true);
+                if (!last.isFull()) {
+                    return last;
+                }
+                return createSegment(directory, last.getIndex() + 1, segmentCapacity, level);
+            } catch (IOException e) {
+                // Torn by a crash while it was created, readers can't open it either
+                File last = files[files.length - 1];
+                Log.e(TAG, "Unable to reopen " + last + ", starting a new segment", e);
+                TrackSegment.quarantine(last);
+                return createSegment(directory, TrackSegment.indexOf(last) + 1, segmentCapacity, level);
+            }
+        }
+        return createSegment(directory, 0, segmentCapacity, level);
+    }
+
+    private static TrackSegment createSegment(File directory, long index, int segmentCapacity,
+                                              int level) throws IOException {
+        return TrackSegment.create(TrackSegment.segmentFile(directory, index), index, segmentCapacity, level);
+    }
+
+    private void writeLoop() {
+        try {
+            while (running) {
+                drain();
+                LockSupport.parkNanos(this, commitIntervalNanos);
+            }
+            drain();
+            segment.commit();
+            if (pyramid != null) {
+                pyramid.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Recording stopped", e);
+            // The sink list isn't thread safe, stop() unregisters from the caller's thread
+            failed = true;
+        }
+    }
+
+    private void drain() throws IOException {
+        while (cursor.next()) {
+            if (segment.isFull()) {
+                segment.commit();
+                segment = createSegment(directory, segment.getIndex() + 1, segmentCapacity,
+                        TrackRetention.LEVEL_RAW);
+            }
+            segment.append(cursor);
+            if (!cursor.isValid()) {
+                // The ring wrapped while we were copying, the record may be torn
+                segment.dropLast();
+            } else if (pyramid != null) {
+                // Read back the copy, the ring slot may be overwritten by now
+                pyramid.add(segment, segment.getCount() - 1);
+            }
+            if (segment.getUncommittedCount() >= commitEvery) {
+                commit();
+            }
+        }
+        if (cursor.getLostCount() != reportedLost) {
+            Log.w(TAG, "Recorder fell behind, lost " + (cursor.getLostCount() - reportedLost) + " fixes");
+            reportedLost = cursor.getLostCount();
+        }
+        if (segment.getUncommittedCount() > 0
+                && System.nanoTime() - lastCommitNanos >= commitIntervalNanos) {
+            commit();
+        }
+    }
+
+    private void commit() {
+        segment.commit();
+        if (pyramid != null) {
+            pyramid.commit();
+        }
+        lastCommitNanos = System.nanoTime();
+    }
+}
@@ -0,0 +1,407 @@
+package com.transerve.locationservices.manager.track;
+
+import android.util.Log;
+
+import com.transerve.locationservices.manager.geo.GeoMath;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tiered retention for the segments of a {@link TrackRecorder} directory.
+ * <ul>
+ * <li>Segments younger than {@link #setFullRateMillis(long)} are kept as recorded.</li>
+ * <li>Older ones are rewritten as simplified segments by a {@link TrackSimplifier}, so every
+ * dropped fix stays within {@link #setSimplifyToleranceMeters(float)} of the track.</li>
+ * <li>Simplified segments older than {@link #setSimplifiedMillis(long)} are reduced to trip
+ * summaries in a {@link TripSummaryLog} and deleted.</li>
+ * </ul>
+ * Closed level of detail segments, see {@link TrackRecorder#setLevelsOfDetail(int, float)}, are
+ * deleted once all the raw fixes they cover have been summarized. They count towards
+ * {@link #setByteBudget(long)} like the raw segments. When the directory is still over the
+ * budget, the oldest segments are summarized early and finally the oldest trip summaries are
+ * dropped.
+ * <p>
+ * Compaction runs one segment per step on a background thread. The segment the recorder writes
+ * to, the one with the highest index, is never touched, so recording is never blocked.
+ * Rewrites stream record by record from the mapped source into a temporary file that replaces
+ * the segment with a rename, so memory use doesn't depend on the track size. Temporary files
+ * left by a rewrite that was interrupted are deleted by the first step. Open
+ * {@link TrackReader}s pick up the compacted segments on their next refresh.
+ * <p>
+ * The level and last fix time of each closed segment are cached, so a step that finds nothing
+ * to do doesn't map every segment again. A closed segment that can't be opened is renamed out
+ * of the way, see {@link TrackSegment#quarantine(File)}, so it doesn't stall compaction.
+ * Quarantined files count towards the budget and are the first to go when it is exceeded.
+ */
+public class TrackRetention {
+
+    private static final String TAG = "TrackRetention";
+
+    public static final int LEVEL_RAW = 0;
+
+    public static final int LEVEL_SIMPLIFIED = 1;
+
+    /**
+     * Vertices of a level of detail, written by the recorder next to the raw segments
+     */
+    public static final int LEVEL_DETAIL = 2;
+
+    private static final String TRIPS_FILE = "trips.bin";
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    private final File directory;
+
+    private final TripSummaryLog trips;
+
+    private long fullRateMillis = 24 * HOUR;
+
+    private long simplifiedMillis = 30 * 24 * HOUR;
+
+    private long byteBudget = 64L * 1024 * 1024;
+
+    private float simplifyToleranceMeters = 10f;
+
+    private long tripGapMillis = 10 * 60 * 1000L;
+
+    private volatile Thread worker;
+
+    private boolean tempFilesDeleted;
+
+    // Closed segments by path, closed segments only change through this class
+    private final Map<String, SegmentInfo> segmentInfo = new HashMap<String, SegmentInfo>();
+
+    public TrackRetention(File directory) {
+        this.directory = directory;
+        this.trips = new TripSummaryLog(new File(directory, TRIPS_FILE));
+    }
+
+    public TripSummaryLog getTrips() {
+        return trips;
+    }
+
+    public void setFullRateMillis(long millis) {
+        this.fullRateMillis = millis;
+    }
+
+    public void setSimplifiedMillis(long millis) {
+        this.simplifiedMillis = millis;
+    }
+
+    public void setByteBudget(long bytes) {
+        this.byteBudget = bytes;
+    }
+
+    /**
+     * Maximum distance of a dropped fix from the simplified track
+     */
+    public void setSimplifyToleranceMeters(float meters) {
+        this.simplifyToleranceMeters = meters;
+    }
+
+    /**
+     * A pause in recording longer than this splits trips
+     */
+    public void setTripGapMillis(long millis) {
+        this.tripGapMillis = millis;
+    }
+
+    /**
+     * Runs compaction every interval on a low priority background thread
+     */
+    public synchronized void start(final long intervalMillis) {
+        if (worker != null) {
+            return;
+        }
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (worker == Thread.currentThread()) {
+                        runOnce(System.currentTimeMillis());
+                        try {
+                            Thread.sleep(intervalMillis);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                } finally {
+                    // Lets start() run a new worker if this one died
+                    synchronized (TrackRetention.this) {
+                        if (worker == Thread.currentThread()) {
+                            worker = null;
+                        }
+                    }
+                }
+            }
+        }, TAG);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        worker = thread;
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        Thread thread = worker;
+        worker = null;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Runs compaction steps until nothing is left to do
+     */
+    public void runOnce(long now) {
+        try {
+            while (step(now)) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Compaction failed", e);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Compaction failed", e);
+        }
+    }
+
+    /**
+     * Compacts at most one segment
+     *
+     * @return true if a step was done and more work may be left
+     */
+    public synchronized boolean step(long now) throws IOException {
+        if (!tempFilesDeleted) {
+            deleteTempFiles(directory);
+            tempFilesDeleted = true;
+        }
+        File[] files = TrackSegment.listSegmentFiles(directory);
+        // The last segment belongs to the recorder
+        int closed = files.length - 1;
+        long total = trips.size();
+        for (int i = 0; i < files.length; i++) {
+            total += files[i].length();
+        }
+        File[] levels = TrackPyramid.listLevelDirectories(directory);
+        File[][] levelFiles = new File[levels.length][];
+        for (int k = 0; k < levels.length; k++) {
+            levelFiles[k] = TrackSegment.listSegmentFiles(levels[k]);
+            for (File file : levelFiles[k]) {
+                total += file.length();
+            }
+        }
+        // Quarantined segments, the oldest one goes first when over budget
+        File bad = null;
+        File[] directories = Arrays.copyOf(levels, levels.length + 1);
+        directories[levels.length] = directory;
+        for (File dir : directories) {
+            for (File file : listBadFiles(dir)) {
+                total += file.length();
+                if (bad == null || file.lastModified() < bad.lastModified()) {
+                    bad = file;
+                }
+            }
+        }
+
+        // Time of the oldest fix not summarized yet
+        long retainedFrom = Long.MAX_VALUE;
+        for (int i = 0; i < closed; i++) {
+            SegmentInfo info = getInfo(files[i]);
+            if (info == null) {
+                return true;
+            }
+            long age = info.empty ? Long.MAX_VALUE : now - info.lastTime;
+            if (info.empty || (info.level == LEVEL_SIMPLIFIED && age > simplifiedMillis)) {
+                summarize(TrackSegment.open(files[i], false));
+                return true;
+            }
+            if (info.level == LEVEL_RAW && age > fullRateMillis) {
+                simplify(TrackSegment.open(files[i], false));
+                return true;
+            }
+            retainedFrom = Math.min(retainedFrom, info.firstTime);
+        }
+        if (retainedFrom == Long.MAX_VALUE && files.length > 0) {
+            // The recorder's segment isn't cached, it's still growing
+            try {
+                TrackSegment current = TrackSegment.open(files[closed], false);
+                if (!current.isEmpty()) {
+                    retainedFrom = current.getTime(0);
+                }
+            } catch (IOException e) {
+                // Torn while the recorder created it, the recorder moves it out of the way
+                Log.w(TAG, "Can't read " + files[closed], e);
+            }
+        }
+
+        for (File[] lod : levelFiles) {
+            // The last segment of a level belongs to the recorder too
+            for (int i = 0; i < lod.length - 1; i++) {
+                SegmentInfo info = getInfo(lod[i]);
+                if (info == null) {
+                    return true;
+                }
+                if (info.empty || info.lastTime < retainedFrom) {
+                    delete(lod[i]);
+                    return true;
+                }
+            }
+        }
+
+        if (total > byteBudget) {
+            if (bad != null) {
+                delete(bad);
+                return true;
+            }
+            if (closed > 0) {
+                // Over budget, give up detail on the oldest segment first
+                summarize(TrackSegment.open(files[0], false));
+                return true;
+            }
+            // Only the recorder's segment and the summaries are left, drop the oldest trips
+            trips.trimTo(Math.max(0, byteBudget - (total - trips.size())));
+        }
+        return false;
+    }
+
+    /**
+     * @return null if the segment can't be opened, it is then quarantined
+     */
+    private SegmentInfo getInfo(File file) throws IOException {
+        SegmentInfo info = segmentInfo.get(file.getPath());
+        if (info == null || info.length != file.length()) {
+            TrackSegment segment;
+            try {
+                segment = TrackSegment.open(file, false);
+            } catch (IOException e) {
+                Log.e(TAG, "Quarantining unreadable " + file, e);
+                segmentInfo.remove(file.getPath());
+                TrackSegment.quarantine(file);
+                return null;
+            }
+            info = new SegmentInfo();
+            info.length = file.length();
+            info.level = segment.getLevel();
+            info.empty = segment.isEmpty();
+            info.firstTime = info.empty ? 0 : segment.getTime(0);
+            info.lastTime = info.empty ? 0 : segment.getTime(segment.getCount() - 1);
+            segmentInfo.put(file.getPath(), info);
+        }
+        return info;
+    }
+
+    private static File[] listBadFiles(File directory) {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(TrackSegment.BAD_SUFFIX);
+            }
+        });
+        return files != null ? files : new File[0];
+    }
+
+    private static void deleteTempFiles(File directory) {
+        File[] temps = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(TEMP_SUFFIX);
+            }
+        });
+        if (temps != null) {
+            for (File temp : temps) {
+                if (!temp.delete()) {
+                    Log.w(TAG, "Can't delete " + temp);
+                }
+            }
+        }
+    }
+
+    private void simplify(final TrackSegment source) throws IOException {
+        int count = source.getCount();
+        final int[] kept = new int[1];
+        simplify(source, new TrackSimplifier.VertexListener() {
+            @Override
+            public void onVertex(long index, double lat, double lng, float accuracy, long time) {
+                kept[0]++;
+            }
+        });
+        File temp = new File(directory, source.getFile().getName() + TEMP_SUFFIX);
+        final TrackSegment target = TrackSegment.create(temp, source.getIndex(), Math.max(1, kept[0]), LEVEL_SIMPLIFIED);
+        // Second pass gives the same vertices, now copied with all their fields
+        simplify(source, new TrackSimplifier.VertexListener() {
+            @Override
+            public void onVertex(long index, double lat, double lng, float accuracy, long time) {
+                copy(source, (int) index, target);
+            }
+        });
+        target.commit();
+        segmentInfo.remove(source.getFile().getPath());
+        replace(temp, source.getFile());
+        Log.d(TAG, "Simplified " + source.getFile().getName() + " from " + count + " to " + kept[0] + " fixes");
+    }
+
+    private void simplify(TrackSegment source, TrackSimplifier.VertexListener listener) {
+        TrackSimplifier simplifier = new TrackSimplifier(simplifyToleranceMeters, listener);
+        for (int i = 0, count = source.getCount(); i < count; i++) {
+            simplifier.add(source.getLat(i), source.getLng(i), source.getAccuracy(i), source.getTime(i));
+        }
+        simplifier.flush();
+    }
+
+    private static void copy(TrackSegment source, int i, TrackSegment target) {
+        target.append(source.getLat(i), source.getLng(i), source.getAccuracy(i),
+                source.getElapsedRealtimeNanos(i), source.getTime(i), source.hasSpeed(i),
+                source.getSpeed(i), source.hasBearing(i), source.getBearing(i),
+                source.getQuality(i));
+    }
+
+    private void summarize(TrackSegment segment) throws IOException {
+        int count = segment.getCount();
+        int start = 0;
+        double distance = 0;
+        for (int i = 1; i <= count; i++) {
+            if (i == count || segment.getTime(i) - segment.getTime(i - 1) > tripGapMillis) {
+                int end = i - 1;
+                trips.append(segment.getTime(start), segment.getTime(end),
+                        segment.getLat(start), segment.getLng(start),
+                        segment.getLat(end), segment.getLng(end), (float) distance, end - start + 1);
+                start = i;
+                distance = 0;
+            } else {
+                distance += GeoMath.fastDistance(segment.getLat(i - 1), segment.getLng(i - 1),
+                        segment.getLat(i), segment.getLng(i));
+            }
+        }
+        delete(segment.getFile());
+        Log.d(TAG, "Summarized " + segment.getFile().getName());
+    }
+
+    private void delete(File file) throws IOException {
+        segmentInfo.remove(file.getPath());
+        if (!file.delete()) {
+            throw new IOException("Can't delete " + file);
+        }
+    }
+
+    private static void replace(File temp, File target) throws IOException {
+        if (!temp.renameTo(target)) {
+            temp.delete();
+            throw new IOException("Can't replace " + target);
+        }
+    }
+
+    private static final class SegmentInfo {
+        long length;
+        int level;
+        boolean empty;
+        long firstTime;
+        long lastTime;
+    }
+}
@@ -0,0 +1,405 @@
+package com.transerve.locationservices.manager.track;
+
+import com.transerve.locationservices.manager.LocationFix;
+import com.transerve.locationservices.manager.LocationQuality;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * One memory mapped segment file of a recorded track.
+ * <p>
+ * The file is a {@link #HEADER_SIZE} byte header followed by room for a fixed number of
+ * {@link #RECORD_SIZE} byte records. Every record ends with a checksum, so after a crash the
+ * segment is recovered by scanning forward from the last committed count until the first
+ * record that doesn't check out.
+ * <p>
+ * Header layout, little endian:
+ * <pre>
+ *  0 int   magic "TTSG"
+ *  4 short version
+ *  6 short record size
+ *  8 int   capacity in records
+ * 12 int   level, 0 for raw fixes (used by retention)
+ * 16 long  segment index
+ * 24 long  creation time, millis since epoch
+ * 32 long  committed record count
+ * </pre>
+ * Record layout:
+ * <pre>
+ *  0 long   time, millis since epoch
+ *  8 long   elapsed realtime nanos
+ * 16 double lat
+ * 24 double lng
+ * 32 float  accuracy
+ * 36 float  speed
+ * 40 float  bearing
+ * 44 byte   flags, bit 0 has speed, bit 1 has bearing
+ * 45 byte   quality ordinal
+ * 46 short  checksum
+ * </pre>
+ */
+public final class TrackSegment {
+
+    public static final int MAGIC = 0x47535454; // "TTSG" little endian
+    public static final short VERSION = 1;
+    public static final int HEADER_SIZE = 64;
+    public static final int RECORD_SIZE = 48;
+
+    private static final String FILE_PREFIX = "track-";
+    private static final String FILE_SUFFIX = ".seg";
+
+    // Unreadable segments are renamed out of the way with this suffix
+    static final String BAD_SUFFIX = ".bad";
+
+    private static final int HEADER_CAPACITY = 8;
+    private static final int HEADER_LEVEL = 12;
+    private static final int HEADER_INDEX = 16;
+    private static final int HEADER_CREATED = 24;
+    private static final int HEADER_COMMITTED = 32;
+
+    private static final int TIME = 0;
+    private static final int ELAPSED = 8;
+    private static final int LAT = 16;
+    private static final int LNG = 24;
+    private static final int ACCURACY = 32;
+    private static final int SPEED = 36;
+    private static final int BEARING = 40;
+    private static final int FLAGS = 44;
+    private static final int QUALITY = 45;
+    private static final int CHECKSUM = 46;
+
+    private static final int FLAG_HAS_SPEED = 1;
+    private static final int FLAG_HAS_BEARING = 1 << 1;
+
+    // Keeps an all zero record from passing the checksum
+    private static final int CHECKSUM_SEED = 0x5A5A;
+
+    private static final LocationQuality[] QUALITIES = LocationQuality.values();
+
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private final boolean writable;
+    private final int capacity;
+    private final long index;
+    private int count;
+    private int committed;
+
+    private TrackSegment(File file, MappedByteBuffer buffer, boolean writable) {
+        this.file = file;
+        this.buffer = buffer;
+        this.writable = writable;
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        this.capacity = buffer.getInt(HEADER_CAPACITY);
+        this.index = buffer.getLong(HEADER_INDEX);
+    }
+
+    /**
+     * Creates a new, empty segment file
+     */
+    public static TrackSegment create(File file, long index, int capacity, int level)
+            throws IOException {
+        MappedByteBuffer buffer = map(file, true, HEADER_SIZE + (long) capacity * RECORD_SIZE);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(0, MAGIC);
+        buffer.putShort(4, VERSION);
+        buffer.putShort(6, (short) RECORD_SIZE);
+        buffer.putInt(HEADER_CAPACITY, capacity);
+        buffer.putInt(HEADER_LEVEL, level);
+        buffer.putLong(HEADER_INDEX, index);
+        buffer.putLong(HEADER_CREATED, System.currentTimeMillis());
+        buffer.putLong(HEADER_COMMITTED, 0);
+        buffer.force();
+        return new TrackSegment(file, buffer, true);
+    }
+
+    /**
+     * Maps an existing segment and recovers the records written after the last commit
+     *
+     * @param writable true to open for appending. Garbage left after the last valid record by
+     *                 a crash is then cleared, so it can't be mistaken for data later on.
+     */
+    public static TrackSegment open(File file, boolean writable) throws IOException {
+        MappedByteBuffer buffer = map(file, writable, file.length());
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC
+                || buffer.getShort(6) != RECORD_SIZE) {
+            throw new IOException("Not a track segment: " + file);
+        }
+        if (buffer.getShort(4) > VERSION) {
+            throw new IOException("Unsupported track segment version " + buffer.getShort(4));
+        }
+        int capacity = buffer.getInt(HEADER_CAPACITY);
+        if (capacity < 0 || buffer.capacity() < HEADER_SIZE + (long) capacity * RECORD_SIZE) {
+            throw new IOException("Truncated track segment: " + file);
+        }
+        TrackSegment segment = new TrackSegment(file, buffer, writable);
+        segment.recover();
+        return segment;
+    }
+
+    /**
+     * @return file name used for the segment with the given index
+     */
+    public static File segmentFile(File directory, long index) {
+        return new File(directory, String.format(Locale.US, "%s%012d%s", FILE_PREFIX, index, FILE_SUFFIX));
+    }
+
+    /**
+     * @return index encoded in the name of a segment file
+     */
+    public static long indexOf(File segmentFile) {
+        String name = segmentFile.getName();
+        return Long.parseLong(name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length()));
+    }
+
+    /**
+     * Renames a segment that can't be opened so it is no longer listed, or deletes it if it
+     * can't be renamed. Readers and the recorder would otherwise fail on it forever.
+     */
+    public static void quarantine(File segmentFile) throws IOException {
+        File bad = new File(segmentFile.getPath() + BAD_SUFFIX);
+        if (!segmentFile.renameTo(bad) && !segmentFile.delete()) {
+            throw new IOException("Can't move " + segmentFile + " out of the way");
+        }
+    }
+
+    /**
+     * @return segment files in the directory, ordered by index
+     */
+    public static File[] listSegmentFiles(File directory) {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX);
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        // Indices are zero padded, so name order is index order
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static MappedByteBuffer map(File file, boolean writable, long size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw" : "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            return channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+                    0, size);
+        } finally {
+            // The mapping stays valid after the channel is closed
+            raf.close();
+        }
+    }
+
+    private void recover() {
+        long headerCount = buffer.getLong(HEADER_COMMITTED);
+        int valid = (int) Math.max(0, Math.min(headerCount, capacity));
+        while (valid < capacity && isValidRecord(valid)) {
+            valid++;
+        }
+        count = valid;
+        committed = valid;
+        if (writable) {
+            for (int i = valid; i < capacity && !isZeroRecord(i); i++) {
+                clearRecord(i);
+            }
+        }
+    }
+
+    /**
+     * Re-reads the records appended by another writer since this segment was opened
+     *
+     * @return the number of new records
+     */
+    public int refresh() {
+        int before = count;
+        while (count < capacity && isValidRecord(count)) {
+            count++;
+        }
+        return count - before;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getIndex() {
+        return index;
+    }
+
+    public int getLevel() {
+        return buffer.getInt(HEADER_LEVEL);
+    }
+
+    public long getCreatedTime() {
+        return buffer.getLong(HEADER_CREATED);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public boolean isFull() {
+        return count == capacity;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * @return number of records appended since the last {@link #commit()}
+     */
+    public int getUncommittedCount() {
+        return count - committed;
+    }
+
+    public void append(LocationFix fix) {
+        append(fix.getLat(), fix.getLng(), fix.getAccuracy(), fix.getElapsedRealtimeNanos(),
+                fix.getTime(), fix.hasSpeed(), fix.getSpeed(), fix.hasBearing(), fix.getBearing(),
+                fix.getQuality());
+    }
+
+    /**
+     * Writes the next record into the mapping. The record survives a crash of the process right
+     * away, but only survives a power loss once {@link #commit()} returned.
+     */
+    public void append(double lat, double lng, float accuracy, long elapsedRealtimeNanos,
+                       long time, boolean hasSpeed, float speed, boolean hasBearing,
+                       float bearing, LocationQuality quality) {
+        if (!writable) {
+            throw new IllegalStateException("Segment is read only");
+        }
+        if (count == capacity) {
+            throw new IllegalStateException("Segment is full");
+        }
+        int offset = offset(count);
+        buffer.putLong(offset + TIME, time);
+        buffer.putLong(offset + ELAPSED, elapsedRealtimeNanos);
+        buffer.putDouble(offset + LAT, lat);
+        buffer.putDouble(offset + LNG, lng);
+        buffer.putFloat(offset + ACCURACY, accuracy);
+        buffer.putFloat(offset + SPEED, hasSpeed ? speed : 0f);
+        buffer.putFloat(offset + BEARING, hasBearing ? bearing : 0f);
+        buffer.put(offset + FLAGS, (byte) ((hasSpeed ? FLAG_HAS_SPEED : 0) | (hasBearing ? FLAG_HAS_BEARING : 0)));
+        buffer.put(offset + QUALITY, (byte) quality.ordinal());
+        buffer.putShort(offset + CHECKSUM, (short) checksum(offset));
+        count++;
+    }
+
+    /**
+     * Removes the last appended record, if it wasn't committed yet
+     */
+    public void dropLast() {
+        if (count > committed) {
+            count--;
+            clearRecord(count);
+        }
+    }
+
+    /**
+     * Flushes the appended records to storage and records their count in the header
+     */
+    public void commit() {
+        if (!writable || committed == count) {
+            return;
+        }
+        buffer.force();
+        buffer.putLong(HEADER_COMMITTED, count);
+        buffer.force();
+        committed = count;
+    }
+
+    public long getTime(int record) {
+        return buffer.getLong(offset(record) + TIME);
+    }
+
+    public long getElapsedRealtimeNanos(int record) {
+        return buffer.getLong(offset(record) + ELAPSED);
+    }
+
+    public double getLat(int record) {
+        return buffer.getDouble(offset(record) + LAT);
+    }
+
+    public double getLng(int record) {
+        return buffer.getDouble(offset(record) + LNG);
+    }
+
+    public float getAccuracy(int record) {
+        return buffer.getFloat(offset(record) + ACCURACY);
+    }
+
+    public float getSpeed(int record) {
+        return buffer.getFloat(offset(record) + SPEED);
+    }
+
+    public float getBearing(int record) {
+        return buffer.getFloat(offset(record) + BEARING);
+    }
+
+    public boolean hasSpeed(int record) {
+        return (buffer.get(offset(record) + FLAGS) & FLAG_HAS_SPEED) != 0;
+    }
+
+    public boolean hasBearing(int record) {
+        return (buffer.get(offset(record) + FLAGS) & FLAG_HAS_BEARING) != 0;
+    }
+
+    public LocationQuality getQuality(int record) {
+        return QUALITIES[buffer.get(offset(record) + QUALITY)];
+    }
+
+    private static int offset(int record) {
+        return HEADER_SIZE + record * RECORD_SIZE;
+    }
+
+    private boolean isValidRecord(int record) {
+        int offset = offset(record);
+        int quality = buffer.get(offset + QUALITY);
+        return quality >= 0 && quality < QUALITIES.length
+                && (buffer.getShort(offset + CHECKSUM) & 0xFFFF) == checksum(offset);
+    }
+
+    private boolean isZeroRecord(int record) {
+        int offset = offset(record);
+        for (int i = 0; i < RECORD_SIZE; i += 8) {
+            if (buffer.getLong(offset + i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void clearRecord(int record) {
+        int offset = offset(record);
+        for (int i = 0; i < RECORD_SIZE; i += 8) {
+            buffer.putLong(offset + i, 0);
+        }
+    }
+
+    // Fletcher-16 over the record payload
+    private int checksum(int offset) {
+        int sum1 = 0;
+        int sum2 = 0;
+        for (int i = offset, end = offset + CHECKSUM; i < end; i++) {
+            sum1 = (sum1 + (buffer.get(i) & 0xFF)) % 255;
+            sum2 = (sum2 + sum1) % 255;
+        }
+        return ((sum2 << 8) | sum1) ^ CHECKSUM_SEED;
+    }
+}
@@ -0,0 +1,178 @@
+package com.transerve.locationservices.manager.track;
+
+import com.transerve.locationservices.manager.LocationCursor;
+import com.transerve.locationservices.manager.LocationQuality;
+import com.transerve.locationservices.manager.LocationSink;
+import com.transerve.locationservices.manager.geo.GeoMath;
+
+/**
+ * Online polyline simplification within an error tolerance in meters.
+ * <p>
+ * Uses the opening window algorithm. The last emitted vertex is the anchor, and fixes are
+ * buffered while every buffered fix stays within the tolerance of the segment from the anchor
+ * to the newest fix. When a fix breaks that, the fix before it is emitted and becomes the new
+ * anchor. Every dropped fix is therefore within the tolerance of the simplified polyline.
+ * <p>
+ * The window holds at most {@link #getWindowSize()} fixes in primitive arrays. A full window
+ * forces a vertex, which keeps memory and the work per fix bounded on long straight runs.
+ * Distances are measured on a local equirectangular projection around the anchor.
+ * <p>
+ * As a {@link LocationSink} it skips {@link LocationQuality#INACCURATE} fixes. Not thread
+ * safe, feed it from one thread.
+ */
+public class TrackSimplifier implements LocationSink {
+
+    public static final int DEFAULT_WINDOW_SIZE = 256;
+
+    public interface VertexListener {
+        /**
+         * @param index position of the vertex among all fixes added to the simplifier
+         */
+        void onVertex(long index, double lat, double lng, float accuracy, long time);
+    }
+
+    private final VertexListener listener;
+
+    private final float tolerance;
+
+    private final int windowSize;
+
+    // Window of fixes after the anchor, x/y are meters east/north of the anchor
+    private final double[] x;
+    private final double[] y;
+    private final double[] lat;
+    private final double[] lng;
+    private final float[] accuracy;
+    private final long[] time;
+    private final long[] index;
+    private int count;
+
+    private boolean anchored;
+    private double anchorLat;
+    private double anchorLng;
+    private double metersPerDegreeLng;
+
+    private long inputCount;
+    private long vertexCount;
+
+    public TrackSimplifier(float toleranceMeters, VertexListener listener) {
+        this(toleranceMeters, DEFAULT_WINDOW_SIZE, listener);
+    }
+
+    public TrackSimplifier(float toleranceMeters, int windowSize, VertexListener listener) {
+        if (toleranceMeters < 0) {
+            throw new IllegalArgumentException("Tolerance must not be negative");
+        }
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("Window size must be positive");
+        }
+        this.tolerance = toleranceMeters;
+        this.windowSize = windowSize;
+        this.listener = listener;
+        x = new double[windowSize];
+        y = new double[windowSize];
+        lat = new double[windowSize];
+        lng = new double[windowSize];
+        accuracy = new float[windowSize];
+        time = new long[windowSize];
+        index = new long[windowSize];
+    }
+
+    public float getTolerance() {
+        return tolerance;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    public long getInputCount() {
+        return inputCount;
+    }
+
+    public long getVertexCount() {
+        return vertexCount;
+    }
+
+    @Override
+    public void onLocation(LocationCursor fix) {
+        if (fix.getQuality() != LocationQuality.INACCURATE) {
+            add(fix.getLat(), fix.getLng(), fix.getAccuracy(), fix.getTime());
+        }
+    }
+
+    public void add(double lat, double lng, float accuracy, long time) {
+        long i = inputCount++;
+        if (!anchored) {
+            anchor(lat, lng);
+            emit(i, lat, lng, accuracy, time);
+            return;
+        }
+        double px = GeoMath.wrapLongitude(lng - anchorLng) * metersPerDegreeLng;
+        double py = (lat - anchorLat) * GeoMath.METERS_PER_DEGREE;
+        if (count == windowSize || !fits(px, py)) {
+            // The segment to the previous fix was still good, it becomes the next vertex
+            int last = count - 1;
+            emit(index[last], this.lat[last], this.lng[last], this.accuracy[last], this.time[last]);
+            anchor(this.lat[last], this.lng[last]);
+            count = 0;
+            px = GeoMath.wrapLongitude(lng - anchorLng) * metersPerDegreeLng;
+            py = (lat - anchorLat) * GeoMath.METERS_PER_DEGREE;
+        }
+        x[count] = px;
+        y[count] = py;
+        this.lat[count] = lat;
+        this.lng[count] = lng;
+        this.accuracy[count] = accuracy;
+        this.time[count] = time;
+        index[count] = i;
+        count++;
+    }
+
+    /**
+     * Emits the newest fix as the final vertex, call at the end of a track
+     */
+    public void flush() {
+        if (count > 0) {
+            int last = count - 1;
+            emit(index[last], lat[last], lng[last], accuracy[last], time[last]);
+            anchor(lat[last], lng[last]);
+            count = 0;
+        }
+    }
+
+    /**
+     * Drops the window without emitting it and starts a new polyline with the next fix
+     */
+    public void reset() {
+        count = 0;
+        anchored = false;
+    }
+
+    // True if all buffered fixes are within tolerance of the segment from the anchor to (px, py)
+    private boolean fits(double px, double py) {
+        double toleranceSquared = (double) tolerance * tolerance;
+        for (int k = 0; k < count; k++) {
+            // The segment seen from the buffered fix
+            double t = GeoMath.projectOnSegment(-x[k], -y[k], px, py);
+            double dx = x[k] - t * px;
+            double dy = y[k] - t * py;
+            if (dx * dx + dy * dy > toleranceSquared) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void anchor(double lat, double lng) {
+        anchored = true;
+        anchorLat = lat;
+        anchorLng = lng;
+        metersPerDegreeLng = GeoMath.METERS_PER_DEGREE * Math.cos(Math.toRadians(lat));
+    }
+
+    private void emit(long i, double lat, double lng, float accuracy, long time) {
+        vertexCount++;
+        listener.onVertex(i, lat, lng, accuracy, time);
+    }
+}
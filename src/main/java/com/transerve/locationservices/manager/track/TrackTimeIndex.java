@@ -0,0 +1,162 @@
+package com.transerve.locationservices.manager.track;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Sparse in-memory time index over the records of a {@link TrackReader}.
+ * <p>
+ * One entry is kept per block of {@link #getBlockSize()} records, holding the time of the
+ * block's first record. A lookup binary searches the entries and then scans at most one block
+ * of the mapped segments. {@link #update()} only indexes the blocks appended since the last
+ * call, so keeping the index current while recording costs one entry per block.
+ * <p>
+ * Records are expected in time order. If the clock steps back, the entries keep the running
+ * maximum so the search stays well defined, and lookups around the step may land a block late.
+ * <p>
+ * When the reader picks up segments rewritten or deleted by {@link TrackRetention}, the index
+ * is rebuilt from scratch before the next lookup, so positions never point into a stale layout.
+ */
+public class TrackTimeIndex {
+
+    public static final int DEFAULT_BLOCK_SIZE = 64;
+
+    private final TrackReader reader;
+
+    private final int blockSize;
+
+    private long[] blockTime = new long[64];
+
+    private int blockCount;
+
+    // Number of records covered by the entries, the last block may still be filling up
+    private long indexedCount;
+
+    // Reader generation the entries were built for
+    private int generation;
+
+    public TrackTimeIndex(TrackReader reader) throws IOException {
+        this(reader, DEFAULT_BLOCK_SIZE);
+    }
+
+    public TrackTimeIndex(TrackReader reader, int blockSize) throws IOException {
+        this.reader = reader;
+        this.blockSize = blockSize;
+        update();
+    }
+
+    public TrackReader getReader() {
+        return reader;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Refreshes the reader and indexes the blocks appended since the last update
+     */
+    public void update() throws IOException {
+        reader.refresh();
+        index();
+    }
+
+    // Indexes the records the reader has and the entries don't, all of them after compaction
+    private void index() {
+        if (generation != reader.getGeneration()) {
+            generation = reader.getGeneration();
+            blockCount = 0;
+        }
+        long count = reader.getCount();
+        long nextBlockStart = (long) blockCount * blockSize;
+        while (nextBlockStart < count) {
+            reader.moveTo(nextBlockStart);
+            long time = reader.getTime();
+            if (blockCount > 0 && time < blockTime[blockCount - 1]) {
+                time = blockTime[blockCount - 1];
+            }
+            if (blockCount == blockTime.length) {
+                blockTime = Arrays.copyOf(blockTime, blockCount * 2);
+            }
+            blockTime[blockCount++] = time;
+            nextBlockStart += blockSize;
+        }
+        indexedCount = count;
+    }
+
+    /**
+     * @return position of the last record with {@code time <= t}, -1 if all records are later
+     */
+    public long floorPosition(long t) {
+        index();
+        int block = floorBlock(t);
+        if (block < 0) {
+            return -1;
+        }
+        long position = (long) block * blockSize;
+        long end = Math.min(position + blockSize, indexedCount);
+        long found = position;
+        for (long p = position + 1; p < end; p++) {
+            reader.moveTo(p);
+            if (reader.getTime() > t) {
+                break;
+            }
+            found = p;
+        }
+        return found;
+    }
+
+    /**
+     * @return position of the first record with {@code time >= t}, the record count if all
+     * records are earlier
+     */
+    public long ceilPosition(long t) {
+        index();
+        // Start in the last block beginning before t, earlier blocks may end with records at t
+        int block = Math.max(0, floorBlock(t - 1));
+        for (long p = (long) block * blockSize; p < indexedCount; p++) {
+            reader.moveTo(p);
+            if (reader.getTime() >= t) {
+                return p;
+            }
+        }
+        return indexedCount;
+    }
+
+    /**
+     * Positions the reader so the next call to {@link TrackReader#next()} returns the first
+     * record with {@code time >= t}
+     */
+    public void seek(long t) {
+        reader.seek(ceilPosition(t));
+    }
+
+    /**
+     * Visits the records with {@code from <= time < to} in order
+     */
+    public void queryRange(long from, long to, FixVisitor visitor) {
+        seek(from);
+        while (reader.next()) {
+            if (reader.getTime() >= to || !visitor.onFix(reader)) {
+                break;
+            }
+        }
+    }
+
+    // Last block whose first time is <= t, -1 if none
+    private int floorBlock(long t) {
+        int low = 0;
+        int high = blockCount - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (blockTime[mid] <= t) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,132 @@
+package com.transerve.locationservices.manager.track;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Append-only file of trip summaries, the coarsest retention tier of recorded tracks.
+ * <p>
+ * Each summary is a fixed {@link #RECORD_SIZE} byte little endian record: start time, end time,
+ * start lat/lng, end lat/lng, distance in meters and number of fixes.
+ */
+public class TripSummaryLog {
+
+    public static final int RECORD_SIZE = 8 * 2 + 8 * 4 + 4 + 4;
+
+    public interface TripVisitor {
+        /**
+         * @return false to stop reading
+         */
+        boolean onTrip(long startTime, long endTime, double startLat, double startLng,
+                       double endLat, double endLng, float distanceMeters, int fixCount);
+    }
+
+    private final File file;
+
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+    public TripSummaryLog(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long size() {
+        return file.length();
+    }
+
+    public synchronized void append(long startTime, long endTime, double startLat, double startLng,
+                                    double endLat, double endLng, float distanceMeters,
+                                    int fixCount) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            // Drop a partial record left by a crash before appending
+            long length = channel.size() - channel.size() % RECORD_SIZE;
+            record.clear();
+            record.putLong(startTime);
+            record.putLong(endTime);
+            record.putDouble(startLat);
+            record.putDouble(startLng);
+            record.putDouble(endLat);
+            record.putDouble(endLng);
+            record.putFloat(distanceMeters);
+            record.putInt(fixCount);
+            record.flip();
+            while (record.hasRemaining()) {
+                length += channel.write(record, length);
+            }
+            channel.truncate(length);
+            channel.force(false);
+        } finally {
+            raf.close();
+        }
+    }
+
+    public synchronized void read(TripVisitor visitor) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long count = channel.size() / RECORD_SIZE;
+            for (long i = 0; i < count; i++) {
+                readRecord(channel, i * RECORD_SIZE);
+                if (!visitor.onTrip(record.getLong(), record.getLong(), record.getDouble(),
+                        record.getDouble(), record.getDouble(), record.getDouble(),
+                        record.getFloat(), record.getInt())) {
+                    break;
+                }
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Drops the oldest summaries until the file is at most the given size
+     *
+     * @return number of bytes freed
+     */
+    public synchronized long trimTo(long maxBytes) throws IOException {
+        long size = size();
+        if (size <= maxBytes) {
+            return 0;
+        }
+        long keep = Math.max(0, maxBytes - maxBytes % RECORD_SIZE);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            long length = channel.size() - channel.size() % RECORD_SIZE;
+            long from = length - keep;
+            // Shift the newest records to the front one at a time, memory stays constant
+            for (long offset = 0; offset < keep; offset += RECORD_SIZE) {
+                readRecord(channel, from + offset);
+                record.rewind();
+                channel.write(record, offset);
+            }
+            channel.truncate(keep);
+            channel.force(false);
+        } finally {
+            raf.close();
+        }
+        return size - keep;
+    }
+
+    private void readRecord(FileChannel channel, long position) throws IOException {
+        record.clear();
+        while (record.hasRemaining()) {
+            if (channel.read(record, position + record.position()) < 0) {
+                throw new IOException("Truncated trip summary in " + file);
+            }
+        }
+        record.flip();
+    }
+}
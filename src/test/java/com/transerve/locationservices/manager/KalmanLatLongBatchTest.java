@@ -0,0 +1,88 @@
+package com.transerve.locationservices.manager;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that {@link KalmanLatLongBatch} ends every track in the exact state of a
+ * {@link KalmanLatLong} fed the same measurements.
+ */
+public class KalmanLatLongBatchTest {
+
+    private static final int TRACKS = 1500;
+
+    @Test
+    public void processPending_matchesPerTrackFilter() {
+        run(false);
+    }
+
+    @Test
+    public void processPendingOnPool_matchesPerTrackFilter() {
+        run(true);
+    }
+
+    private static void run(boolean parallel) {
+        Random random = new Random(26);
+        KalmanLatLongBatch batch = new KalmanLatLongBatch(4);
+        KalmanLatLong[] filters = new KalmanLatLong[TRACKS];
+        long[] times = new long[TRACKS];
+        for (int t = 0; t < TRACKS; t++) {
+            float q = 1 + random.nextFloat() * 5;
+            assertEquals(t, batch.addTrack(q));
+            filters[t] = new KalmanLatLong(q);
+            times[t] = random.nextInt(1000000);
+        }
+        ForkJoinPool pool = parallel ? new ForkJoinPool(4) : null;
+        try {
+            for (int round = 0; round < 20; round++) {
+                if (round % 7 == 3) {
+                    // Reset applies before the measurements queued after it
+                    int t = random.nextInt(TRACKS);
+                    batch.reset(t);
+                    filters[t] = new KalmanLatLong(1);
+                }
+                int measurements = random.nextInt(3 * TRACKS);
+                for (int i = 0; i < measurements; i++) {
+                    int t = random.nextInt(TRACKS);
+                    double lat = -90 + random.nextDouble() * 180;
+                    double lng = -180 + random.nextDouble() * 360;
+                    // Below the minimum accuracy now and then
+                    float accuracy = random.nextFloat() * 60;
+                    // Out of order now and then
+                    times[t] += random.nextInt(5000) - 500;
+                    float q = 1 + random.nextFloat() * 5;
+                    batch.submit(t, lat, lng, accuracy, times[t], q);
+                    filters[t].Process(lat, lng, accuracy, times[t], q);
+                }
+                if (parallel) {
+                    batch.processPending(pool);
+                } else {
+                    batch.processPending();
+                }
+                assertEquals(0, batch.getPendingCount());
+                for (int t = 0; t < TRACKS; t++) {
+                    assertSame(filters[t], batch, t);
+                }
+            }
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    private static void assertSame(KalmanLatLong filter, KalmanLatLongBatch batch, int track) {
+        String message = "Track " + track;
+        assertEquals(message, Double.doubleToRawLongBits(filter.get_lat()),
+                Double.doubleToRawLongBits(batch.getLat(track)));
+        assertEquals(message, Double.doubleToRawLongBits(filter.get_lng()),
+                Double.doubleToRawLongBits(batch.getLng(track)));
+        assertEquals(message, Float.floatToRawIntBits(filter.get_accuracy()),
+                Float.floatToRawIntBits(batch.getAccuracy(track)));
+        assertEquals(message, filter.get_TimeStamp(), batch.getTimeStamp(track));
+    }
+}
@@ -0,0 +1,192 @@
+package com.transerve.locationservices.manager;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Publishing into a {@link LocationRing} and reading back through {@link LocationCursor}s
+ */
+public class LocationRingTest {
+
+    @Test
+    public void publishFix_keepsAltitudeOfCursor() {
+        LocationRing source = new LocationRing(4);
+        LocationCursor fix = source.openCursor();
+        source.publish(new TTNewLocation(12.97, 77.59, 5f, 1000000000L, 1500000000000L,
+                true, 3f, true, 90f, LocationQuality.FILTERED, true, 920.5, 834.25));
+        assertTrue(fix.next());
+
+        LocationRing target = new LocationRing(4);
+        LocationCursor copy = target.openCursor();
+        target.publish(fix);
+        assertTrue(copy.next());
+        assertEquals(12.97, copy.getLat(), 0);
+        assertEquals(77.59, copy.getLng(), 0);
+        assertTrue(copy.hasAltitude());
+        assertEquals(920.5, copy.getAltitude(), 0);
+        assertEquals(834.25, copy.getAltitudeMsl(), 0);
+    }
+
+    @Test
+    public void publishFix_withoutAltitude() {
+        LocationRing ring = new LocationRing(4);
+        LocationCursor cursor = ring.openCursor();
+        ring.publish(new TTNewLocation(12.97, 77.59, 5f, 1000000000L, 1500000000000L,
+                false, 0f, false, 0f, LocationQuality.FILTERED, false, 0, Double.NaN));
+        assertTrue(cursor.next());
+        assertFalse(cursor.hasAltitude());
+        assertEquals(0, cursor.getAltitude(), 0);
+        assertTrue(Double.isNaN(cursor.getAltitudeMsl()));
+    }
+
+    @Test
+    public void next_readsInOrder() {
+        LocationRing ring = new LocationRing(8);
+        LocationCursor cursor = ring.openCursor();
+        assertFalse(cursor.next());
+        for (int i = 0; i < 5; i++) {
+            publish(ring, i);
+        }
+        assertEquals(5, cursor.available());
+        for (int i = 0; i < 5; i++) {
+            assertTrue(cursor.next());
+            assertEquals(i, cursor.getSequence());
+            assertFix(cursor, i);
+            assertTrue(cursor.isValid());
+        }
+        assertFalse(cursor.next());
+        assertEquals(0, cursor.getLostCount());
+    }
+
+    @Test
+    public void next_skipsOverwrittenFixes() {
+        LocationRing ring = new LocationRing(8);
+        LocationCursor cursor = ring.openCursor();
+        for (int i = 0; i < 20; i++) {
+            publish(ring, i);
+        }
+        // One slot of margin is kept for the fix being written
+        assertTrue(cursor.next());
+        assertEquals(13, cursor.getSequence());
+        assertEquals(13, cursor.getLostCount());
+        assertFix(cursor, 13);
+        int read = 1;
+        while (cursor.next()) {
+            read++;
+        }
+        assertEquals(7, read);
+        assertEquals(13, cursor.getLostCount());
+
+        for (int i = 20; i < 40; i++) {
+            publish(ring, i);
+        }
+        assertTrue(cursor.next());
+        assertEquals(33, cursor.getSequence());
+        assertEquals(26, cursor.getLostCount());
+    }
+
+    @Test
+    public void isValid_falseOnceSlotIsOverwritten() {
+        LocationRing ring = new LocationRing(4);
+        LocationCursor cursor = ring.openCursor();
+        publish(ring, 0);
+        assertTrue(cursor.next());
+        for (int i = 1; i < 4; i++) {
+            publish(ring, i);
+            assertTrue(cursor.isValid());
+        }
+        // Lands in the cursor's slot
+        publish(ring, 4);
+        assertFalse(cursor.isValid());
+    }
+
+    @Test
+    public void skipToEnd_startsAtNextFix() {
+        LocationRing ring = new LocationRing(4);
+        LocationCursor cursor = ring.openCursor();
+        publish(ring, 0);
+        publish(ring, 1);
+        cursor.skipToEnd();
+        assertFalse(cursor.next());
+        publish(ring, 2);
+        assertTrue(cursor.next());
+        assertEquals(2, cursor.getSequence());
+        assertEquals(0, cursor.getLostCount());
+    }
+
+    @Test
+    public void concurrentReader_neverSeesTornFixes() throws InterruptedException {
+        final LocationRing ring = new LocationRing(4);
+        final LocationCursor cursor = ring.openCursor();
+        final AtomicBoolean done = new AtomicBoolean();
+        final int fixes = 200000;
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < fixes; i++) {
+                    publish(ring, i);
+                }
+                done.set(true);
+            }
+        });
+        writer.start();
+        long valid = 0;
+        long last = -1;
+        while (!done.get() || cursor.available() > 0) {
+            if (!cursor.next()) {
+                continue;
+            }
+            long sequence = cursor.getSequence();
+            assertTrue(sequence > last);
+            last = sequence;
+            double lat = cursor.getLat();
+            double lng = cursor.getLng();
+            long time = cursor.getTime();
+            long elapsed = cursor.getElapsedRealtimeNanos();
+            float accuracy = cursor.getAccuracy();
+            double altitude = cursor.getAltitude();
+            if (cursor.isValid()) {
+                valid++;
+                assertEquals(lat(sequence), lat, 0);
+                assertEquals(lng(sequence), lng, 0);
+                assertEquals(sequence * 1000, time);
+                assertEquals(-sequence, elapsed);
+                assertEquals(sequence % 100, accuracy, 0);
+                assertEquals(sequence * 0.5, altitude, 0);
+            }
+        }
+        writer.join();
+        assertEquals(fixes - 1, last);
+        assertTrue(valid > 0);
+        assertTrue(valid + cursor.getLostCount() <= fixes);
+    }
+
+    // Every field is derived from the sequence, so a mix of two fixes shows
+    private static void publish(LocationRing ring, long sequence) {
+        ring.publish(lat(sequence), lng(sequence), sequence % 100, -sequence, sequence * 1000,
+                true, 1f, false, 0f, LocationQuality.FILTERED, true, sequence * 0.5, Double.NaN);
+    }
+
+    private static void assertFix(LocationCursor cursor, long sequence) {
+        assertEquals(lat(sequence), cursor.getLat(), 0);
+        assertEquals(lng(sequence), cursor.getLng(), 0);
+        assertEquals(sequence * 1000, cursor.getTime());
+        assertEquals(-sequence, cursor.getElapsedRealtimeNanos());
+        assertTrue(cursor.hasSpeed());
+        assertFalse(cursor.hasBearing());
+        assertEquals(LocationQuality.FILTERED, cursor.getQuality());
+    }
+
+    private static double lat(long sequence) {
+        return (sequence % 1800) / 10.0 - 90;
+    }
+
+    private static double lng(long sequence) {
+        return (sequence % 3600) / 10.0 - 180;
+    }
+}
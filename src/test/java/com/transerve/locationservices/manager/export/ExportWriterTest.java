@@ -0,0 +1,188 @@
+package com.transerve.locationservices.manager.export;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Escaping and number formatting of the text written by {@link ExportWriter}
+ */
+public class ExportWriterTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    private final ExportWriter writer = new ExportWriter();
+
+    @Test
+    public void appendXml_escapesMarkup() throws IOException {
+        assertEquals("a &amp; b &lt;c&gt; &quot;d&quot; 'e'", xml("a & b <c> \"d\" 'e'"));
+    }
+
+    @Test
+    public void appendXml_dropsInvalidControlCharacters() throws IOException {
+        StringBuilder controls = new StringBuilder();
+        for (char c = 0; c < 0x20; c++) {
+            controls.append(c);
+        }
+        assertEquals("x\t\n\ry", xml("x" + controls + "\uFFFE\uFFFFy"));
+    }
+
+    @Test
+    public void appendXml_keepsNonAscii() throws IOException {
+        assertEquals("Z\u00FCrich \u20AC \uD83D\uDE00", xml("Z\u00FCrich \u20AC \uD83D\uDE00"));
+    }
+
+    @Test
+    public void appendXml_null() throws IOException {
+        assertEquals("", xml(null));
+    }
+
+    @Test
+    public void appendJsonString_null() throws IOException {
+        writer.reset(out);
+        writer.appendJsonString(null).flush();
+        assertEquals("null", new String(out.toByteArray(), UTF_8));
+    }
+
+    @Test
+    public void export_nullName() throws IOException {
+        for (TrackExporter exporter : new TrackExporter[]{
+                new GpxExporter(), new KmlExporter(), new GeoJsonExporter()}) {
+            out.reset();
+            exporter.begin(out, null);
+            exporter.end();
+            assertEquals(0, exporter.getCount());
+        }
+    }
+
+    @Test
+    public void appendFixed_roundingCarry() throws IOException {
+        assertEquals("1", fixed(0.9999995, 6));
+        assertEquals("-1", fixed(-0.9999995, 6));
+        assertEquals("10", fixed(9.99999999, 7));
+        assertEquals("180", fixed(179.99999996, 7));
+        assertEquals("0.1", fixed(0.09999999, 7));
+        assertEquals("12.5", fixed(12.5, 7));
+        assertEquals("-0.0000001", fixed(-0.0000001, 7));
+        assertEquals("3", fixed(2.5, 0));
+    }
+
+    @Test
+    public void appendFixed_noNegativeZero() throws IOException {
+        assertEquals("0", fixed(-0.0, 7));
+        assertEquals("0", fixed(-0.00000001, 7));
+        assertEquals("0", fixed(-0.4, 0));
+    }
+
+    @Test
+    public void appendFixed_matchesParseDouble() throws IOException {
+        Random random = new Random(40);
+        for (int i = 0; i < 100000; i++) {
+            int decimals = random.nextInt(10);
+            double value;
+            switch (i % 4) {
+                case 0:
+                    value = (random.nextDouble() - 0.5) * 360;
+                    break;
+                case 1:
+                    // Just below a carry into the next digit
+                    value = (random.nextInt(2000) - 1000) + (random.nextBoolean() ? 1 : -1)
+                            * (1 - 0.4 / Math.pow(10, decimals));
+                    break;
+                case 2:
+                    value = (random.nextDouble() - 0.5) * 1e-3;
+                    break;
+                default:
+                    value = (random.nextDouble() - 0.5) * 1e9;
+                    break;
+            }
+            String text = fixed(value, decimals);
+            assertTrue(text, text.matches("-?(0|[1-9][0-9]*)(\\.[0-9]*[1-9])?"));
+            assertTrue(text, text.indexOf('.') < 0 || text.length() - text.indexOf('.') - 1 <= decimals);
+            assertTrue(text, !text.equals("-0"));
+            double half = 0.5 / Math.pow(10, decimals);
+            // Math.round works on the scaled double, allow for its rounding error
+            double slack = Math.ulp(value) * Math.pow(10, decimals) + 1e-12;
+            assertEquals(text + " for " + value, value, Double.parseDouble(text), half + slack);
+        }
+    }
+
+    @Test
+    public void appendFixed_notFinite() throws IOException {
+        assertEquals("NaN", fixed(Double.NaN, 7));
+        assertEquals("-Infinity", fixed(Double.NEGATIVE_INFINITY, 7));
+        assertEquals("1.0E20", fixed(1e20, 7));
+    }
+
+    @Test
+    public void appendIsoTime_edges() throws IOException {
+        assertEquals("1970-01-01T00:00:00.000Z", isoTime(0));
+        assertEquals("1969-12-31T23:59:59.999Z", isoTime(-1));
+        assertEquals("1968-02-29T12:00:00.000Z", isoTime(-58017600000L));
+        assertEquals("2000-02-29T00:00:00.000Z", isoTime(951782400000L));
+        assertEquals("2024-02-29T23:59:59.999Z", isoTime(1709251199999L));
+        // 1900 and 2100 aren't leap years
+        assertEquals("1900-03-01T00:00:00.000Z", isoTime(-2203891200000L));
+        assertEquals("2100-03-01T00:00:00.000Z", isoTime(4107542400000L));
+    }
+
+    @Test
+    public void appendIsoTime_matchesSimpleDateFormat() throws IOException {
+        SimpleDateFormat format = isoFormat();
+        Random random = new Random(41);
+        // Year 1 to 9999, the format has no era
+        long min = -62135596800000L;
+        long max = 253402300800000L;
+        for (int i = 0; i < 100000; i++) {
+            long millis = min + (long) (random.nextDouble() * (max - min));
+            if (i % 2 == 0) {
+                // Around midnight of a random day
+                millis = millis - millis % 86400000L + random.nextInt(2000) - 1000;
+            }
+            assertEquals(format.format(new Date(millis)), isoTime(millis));
+        }
+    }
+
+    private static SimpleDateFormat isoFormat() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        GregorianCalendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"), Locale.US);
+        calendar.setGregorianChange(new Date(Long.MIN_VALUE));
+        format.setCalendar(calendar);
+        return format;
+    }
+
+    private String fixed(double value, int decimals) throws IOException {
+        out.reset();
+        writer.reset(out);
+        writer.appendFixed(value, decimals).flush();
+        return new String(out.toByteArray(), UTF_8);
+    }
+
+    private String isoTime(long millis) throws IOException {
+        out.reset();
+        writer.reset(out);
+        writer.appendIsoTime(millis).flush();
+        return new String(out.toByteArray(), UTF_8);
+    }
+
+    private String xml(String text) throws IOException {
+        out.reset();
+        writer.reset(out);
+        writer.appendXml(text).flush();
+        return new String(out.toByteArray(), UTF_8);
+    }
+}
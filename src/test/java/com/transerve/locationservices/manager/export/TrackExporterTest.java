@@ -0,0 +1,91 @@
+package com.transerve.locationservices.manager.export;
+
+import com.transerve.locationservices.manager.LocationQuality;
+import com.transerve.locationservices.manager.TTNewLocation;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Geometry written by {@link KmlExporter} and {@link GeoJsonExporter} for short and long tracks
+ */
+public class TrackExporterTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Test
+    public void kml_emptyTrackHasNoGeometry() throws IOException {
+        assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<kml xmlns=\"http://www.opengis.net/kml/2.2\"><Document>\n"
+                + "<Placemark><name>t</name>\n"
+                + "</Placemark>\n</Document></kml>\n", export(new KmlExporter(), 0));
+    }
+
+    @Test
+    public void kml_singleFixIsPoint() throws IOException {
+        assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<kml xmlns=\"http://www.opengis.net/kml/2.2\"><Document>\n"
+                + "<Placemark><name>t</name>\n"
+                + "<Point><coordinates>7,45</coordinates></Point>"
+                + "</Placemark>\n</Document></kml>\n", export(new KmlExporter(), 1));
+    }
+
+    @Test
+    public void kml_trackIsLineString() throws IOException {
+        assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<kml xmlns=\"http://www.opengis.net/kml/2.2\"><Document>\n"
+                + "<Placemark><name>t</name>\n"
+                + "<LineString><tessellate>1</tessellate><coordinates>\n"
+                + "7,45\n7.001,45.0005\n7.002,45.001\n"
+                + "</coordinates></LineString></Placemark>\n</Document></kml>\n",
+                export(new KmlExporter(), 3));
+    }
+
+    @Test
+    public void geoJson_emptyTrackHasNullGeometry() throws IOException {
+        assertEquals("{\"type\":\"Feature\",\"geometry\":null,"
+                + "\"properties\":{\"name\":\"t\",\"count\":0}}\n", export(new GeoJsonExporter(), 0));
+    }
+
+    @Test
+    public void geoJson_singleFixIsPoint() throws IOException {
+        assertEquals("{\"type\":\"Feature\",\"geometry\":{\"type\":\"Point\",\"coordinates\":[7,45]},"
+                + "\"properties\":{\"name\":\"t\",\"startTime\":\"2017-07-14T02:40:00.000Z\","
+                + "\"endTime\":\"2017-07-14T02:40:00.000Z\",\"count\":1}}\n",
+                export(new GeoJsonExporter(), 1));
+    }
+
+    @Test
+    public void geoJson_trackIsLineString() throws IOException {
+        assertEquals("{\"type\":\"Feature\",\"geometry\":{\"type\":\"LineString\",\"coordinates\":"
+                + "[[7,45],[7.001,45.0005],[7.002,45.001]]},"
+                + "\"properties\":{\"name\":\"t\",\"startTime\":\"2017-07-14T02:40:00.000Z\","
+                + "\"endTime\":\"2017-07-14T02:40:02.000Z\",\"count\":3}}\n",
+                export(new GeoJsonExporter(), 3));
+    }
+
+    @Test
+    public void reuse_startsFromScratch() throws IOException {
+        TrackExporter exporter = new GeoJsonExporter();
+        export(exporter, 3);
+        assertEquals(export(new GeoJsonExporter(), 1), export(exporter, 1));
+    }
+
+    // Fixes heading north east, a second apart
+    private static String export(TrackExporter exporter, int fixes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        exporter.begin(out, "t");
+        for (int i = 0; i < fixes; i++) {
+            exporter.onFix(new TTNewLocation(45 + i * 0.0005, 7 + i * 0.001, 5f, 0,
+                    1500000000000L + i * 1000L, false, 0f, false, 0f, LocationQuality.FILTERED));
+        }
+        exporter.end();
+        assertEquals(fixes, exporter.getCount());
+        return new String(out.toByteArray(), UTF_8);
+    }
+}
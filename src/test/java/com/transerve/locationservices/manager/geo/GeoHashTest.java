@@ -0,0 +1,80 @@
+package com.transerve.locationservices.manager.geo;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Packed geohash cells of {@link GeoHash}
+ */
+public class GeoHashTest {
+
+    @Test
+    public void encode_knownHash() {
+        assertEquals("u4pruydqqvj", GeoHash.toString(GeoHash.encode(57.64911, 10.40744, 11)));
+        assertEquals("", GeoHash.toString(GeoHash.encode(57.64911, 10.40744, 0)));
+    }
+
+    @Test
+    public void parse_roundTrip() {
+        long hash = GeoHash.parse("tdr1w");
+        assertEquals(5, GeoHash.precision(hash));
+        assertEquals("tdr1w", GeoHash.toString(hash));
+    }
+
+    @Test
+    public void rangeEnd_worldCell() {
+        long world = GeoHash.encode(0, 0, 0);
+        assertNotEquals(GeoHash.NONE, GeoHash.rangeEnd(world));
+        assertEquals(GeoHash.MAX_PRECISION, GeoHash.precision(GeoHash.rangeEnd(world)));
+        assertTrue(GeoHash.compare(GeoHash.rangeStart(world), GeoHash.rangeEnd(world)) < 0);
+    }
+
+    @Test
+    public void range_containsExactlyTheCell() {
+        Random random = new Random(43);
+        for (int i = 0; i < 100000; i++) {
+            long cell = GeoHash.encode(randomLat(random), randomLng(random),
+                    random.nextInt(GeoHash.MAX_PRECISION + 1));
+            // Coarser hashes are never inside, the range only orders the cell's precision or finer
+            long hash = GeoHash.encode(randomLat(random), randomLng(random), GeoHash.precision(cell)
+                    + random.nextInt(GeoHash.MAX_PRECISION - GeoHash.precision(cell) + 1));
+            if (random.nextBoolean()) {
+                // Half of the pairs nested, random pairs rarely are
+                hash = GeoHash.encode(GeoHash.centerLat(cell), GeoHash.centerLng(cell),
+                        GeoHash.precision(hash));
+            }
+            boolean inRange = GeoHash.compare(GeoHash.rangeStart(cell), hash) <= 0
+                    && GeoHash.compare(hash, GeoHash.rangeEnd(cell)) <= 0;
+            assertEquals(GeoHash.toString(cell) + " " + GeoHash.toString(hash),
+                    GeoHash.contains(cell, hash), inRange);
+        }
+    }
+
+    @Test
+    public void compare_isUnsigned() {
+        long west = GeoHash.encode(10, -10, 12);
+        long east = GeoHash.encode(10, 10, 12);
+        assertTrue(east < 0);
+        assertTrue(GeoHash.compare(west, east) < 0);
+        assertEquals(0, GeoHash.compare(east, east));
+    }
+
+    @Test
+    public void neighbor_pastPole() {
+        assertEquals(GeoHash.NONE, GeoHash.neighbor(GeoHash.encode(89.99, 0, 5), 1, 0));
+        assertEquals(GeoHash.NONE, GeoHash.neighbor(GeoHash.encode(0, 0, 0), 1, 0));
+    }
+
+    private static double randomLat(Random random) {
+        return -90 + random.nextDouble() * 180;
+    }
+
+    private static double randomLng(Random random) {
+        return -180 + random.nextDouble() * 360;
+    }
+}
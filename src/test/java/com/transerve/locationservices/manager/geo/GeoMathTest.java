@@ -0,0 +1,54 @@
+package com.transerve.locationservices.manager.geo;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local plane helpers of {@link GeoMath}
+ */
+public class GeoMathTest {
+
+    @Test
+    public void metersPerDegree_matchesDistance() {
+        assertEquals(GeoMath.METERS_PER_DEGREE, GeoMath.distance(0, 0, 1, 0), 1);
+        assertEquals(GeoMath.METERS_PER_DEGREE, GeoMath.distance(0, 0, 0, 1), 1);
+    }
+
+    @Test
+    public void projectOnSegment_clamped() {
+        // Segment from (-10, 5) to (10, 5), the origin projects on its middle
+        assertEquals(0.5, GeoMath.projectOnSegment(-10, 5, 20, 0), 0);
+        // Segment from (2, 0) to (4, 0) points away from the origin
+        assertEquals(0, GeoMath.projectOnSegment(2, 0, 2, 0), 0);
+        // Segment from (-4, 0) to (-2, 0) ends before the origin
+        assertEquals(1, GeoMath.projectOnSegment(-4, 0, 2, 0), 0);
+        // Zero length
+        assertEquals(0, GeoMath.projectOnSegment(3, 4, 0, 0), 0);
+    }
+
+    @Test
+    public void projectOnSegment_closestPoint() {
+        Random random = new Random(47);
+        for (int i = 0; i < 1000; i++) {
+            double x0 = random.nextDouble() * 200 - 100;
+            double y0 = random.nextDouble() * 200 - 100;
+            double dx = random.nextDouble() * 200 - 100;
+            double dy = random.nextDouble() * 200 - 100;
+            double t = GeoMath.projectOnSegment(x0, y0, dx, dy);
+            assertTrue(t >= 0 && t <= 1);
+            double best = squared(x0 + t * dx, y0 + t * dy);
+            for (int k = 0; k <= 100; k++) {
+                double s = k / 100.0;
+                assertTrue(best <= squared(x0 + s * dx, y0 + s * dy) + 1e-9);
+            }
+        }
+    }
+
+    private static double squared(double x, double y) {
+        return x * x + y * y;
+    }
+}
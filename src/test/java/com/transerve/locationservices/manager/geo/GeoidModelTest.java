@@ -0,0 +1,112 @@
+package com.transerve.locationservices.manager.geo;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Lookups of {@link GeoidModel} in grids laid out like the NGA {@code WW15MGH.DAC}
+ */
+public class GeoidModelTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void load_fullResolutionGrid() throws IOException {
+        File file = writeGrid(721, 1440);
+        assertEquals(2076480, file.length());
+        GeoidModel geoid = GeoidModel.load(file);
+        assertEquals(0.25, geoid.getSpacing(), 0);
+        assertEquals(height(0, 0) / 100f, geoid.undulation(90, 0), 1e-4);
+        assertEquals(height(360, 1439) / 100f, geoid.undulation(0, 359.75), 1e-4);
+        assertEquals(height(720, 720) / 100f, geoid.undulation(-90, 180), 1e-4);
+    }
+
+    @Test
+    public void load_rejectsInclusiveRows() throws IOException {
+        try {
+            GeoidModel.load(writeGrid(37, 73));
+            fail();
+        } catch (IOException expected) {
+            // Rows with a duplicated 360 E column aren't the NGA layout
+        }
+    }
+
+    @Test
+    public void undulation_nodes() throws IOException {
+        GeoidModel geoid = GeoidModel.load(writeGrid(37, 72));
+        assertEquals(5.0, geoid.getSpacing(), 0);
+        for (int r = 0; r < 37; r++) {
+            for (int c = 0; c < 72; c++) {
+                assertEquals(height(r, c) / 100f, geoid.undulation(90 - r * 5, c * 5), 1e-4);
+            }
+        }
+        // West longitudes are east of 180
+        assertEquals(height(10, 71) / 100f, geoid.undulation(40, -5), 1e-4);
+    }
+
+    @Test
+    public void undulation_wrapsAtZeroEast() throws IOException {
+        GeoidModel geoid = GeoidModel.load(writeGrid(37, 72));
+        // Halfway between the last column, 355 E, and the first one, 0 E
+        double expected = (height(12, 71) + height(12, 0)) / 200.0;
+        assertEquals(expected, geoid.undulation(30, 357.5), 1e-4);
+        assertEquals(expected, geoid.undulation(30, -2.5), 1e-4);
+        // A quarter of the way into the wrapped cell
+        assertEquals((0.75 * height(12, 71) + 0.25 * height(12, 0)) / 100, geoid.undulation(30, 356.25), 1e-4);
+        // Just short of 360 E is the first column
+        assertEquals(height(12, 0) / 100f, geoid.undulation(30, -1e-12), 1e-4);
+    }
+
+    @Test
+    public void undulation_poles() throws IOException {
+        GeoidModel geoid = GeoidModel.load(writeGrid(37, 72));
+        for (double lng = -180; lng < 180; lng += 7.5) {
+            int c = (int) ((lng < 0 ? lng + 360 : lng) / 5);
+            double fc = (lng < 0 ? lng + 360 : lng) / 5 - c;
+            double north = height(0, c) + fc * (height(0, (c + 1) % 72) - height(0, c));
+            double south = height(36, c) + fc * (height(36, (c + 1) % 72) - height(36, c));
+            assertEquals(north / 100, geoid.undulation(90, lng), 1e-4);
+            assertEquals(south / 100, geoid.undulation(-90, lng), 1e-4);
+            // Latitudes beyond the poles are clamped
+            assertEquals(north / 100, geoid.undulation(91, lng), 1e-4);
+            assertEquals(south / 100, geoid.undulation(-91, lng), 1e-4);
+        }
+    }
+
+    @Test
+    public void toMeanSeaLevel_subtractsUndulation() throws IOException {
+        GeoidModel geoid = GeoidModel.load(writeGrid(37, 72));
+        assertEquals(100 - height(8, 3) / 100.0, geoid.toMeanSeaLevel(50, 15, 100), 1e-4);
+    }
+
+    // Distinct heights in cm, positive and negative, different along each row and column
+    private static short height(int r, int c) {
+        return (short) ((r * 131 + c * 17) % 20000 - 10000);
+    }
+
+    private File writeGrid(int rows, int cols) throws IOException {
+        File file = folder.newFile();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            for (int r = 0; r < rows; r++) {
+                for (int c = 0; c < cols; c++) {
+                    out.writeShort(height(r, c));
+                }
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,265 @@
+package com.transerve.locationservices.manager.geo;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Queries of {@link PoiKdTree} against a brute force scan, and its cache file
+ */
+public class PoiKdTreeTest {
+
+    private static final int POINTS = 5000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void nearest_matchesBruteForce() {
+        Random random = new Random(44);
+        for (double centerLat : new double[]{0, 12.97, -45, 75}) {
+            double[][] points = randomPoints(POINTS, centerLat, random);
+            PoiKdTree tree = build(points);
+            for (int query = 0; query < 200; query++) {
+                double lat = centerLat + (random.nextDouble() - 0.5) * 12;
+                double lng = 10 + (random.nextDouble() - 0.5) * 24;
+                assertNearest(tree, points, lat, lng, 1 + random.nextInt(20));
+            }
+        }
+    }
+
+    @Test
+    public void nearest_duplicatePoints() {
+        // Many points share a coordinate on both axes
+        double[][] points = new double[3][900];
+        for (int i = 0; i < 900; i++) {
+            points[0][i] = 45 + (i % 30) / 10 * 0.01;
+            points[1][i] = 7 + (i / 30) % 3 * 0.01;
+            points[2][i] = i;
+        }
+        PoiKdTree tree = build(points);
+        Random random = new Random(45);
+        for (int query = 0; query < 100; query++) {
+            assertNearest(tree, points, 45 + random.nextDouble() * 0.04 - 0.01,
+                    7 + random.nextDouble() * 0.04 - 0.01, 1 + random.nextInt(120));
+        }
+        assertNearest(tree, points, 45.01, 7.01, 100);
+    }
+
+    @Test
+    public void nearest_moreThanSize() {
+        double[][] points = randomPoints(10, 45, new Random(46));
+        int[] index = new int[20];
+        double[] meters = new double[20];
+        assertEquals(10, build(points).nearest(45, 10, index, meters));
+        assertEquals(0, build(new double[3][0]).nearest(45, 10, index, meters));
+        assertEquals(0, build(points).nearest(45, 10, new int[0], meters));
+    }
+
+    @Test
+    public void withinRadius_matchesBruteForce() {
+        Random random = new Random(47);
+        for (double centerLat : new double[]{0, 12.97, -45, 75}) {
+            double[][] points = randomPoints(POINTS, centerLat, random);
+            PoiKdTree tree = build(points);
+            for (int query = 0; query < 200; query++) {
+                double lat = centerLat + (random.nextDouble() - 0.5) * 12;
+                double lng = 10 + (random.nextDouble() - 0.5) * 24;
+                assertWithinRadius(tree, points, lat, lng, random.nextDouble() * 300000);
+            }
+            assertWithinRadius(tree, points, centerLat, 10, 0);
+            assertWithinRadius(tree, points, centerLat, 10, 2e7);
+        }
+    }
+
+    @Test
+    public void withinRadius_visitorStops() {
+        PoiKdTree tree = build(randomPoints(POINTS, 45, new Random(48)));
+        final int[] calls = new int[1];
+        int visited = tree.withinRadius(45, 10, 2e7, new PoiKdTree.PoiVisitor() {
+            @Override
+            public boolean onPoi(int index, long id, double lat, double lng, double meters) {
+                return ++calls[0] < 7;
+            }
+        });
+        assertEquals(7, calls[0]);
+        assertEquals(7, visited);
+    }
+
+    @Test
+    public void save_loadRoundTrip() throws IOException {
+        double[][] points = randomPoints(POINTS, 12.97, new Random(49));
+        PoiKdTree tree = build(points);
+        File file = folder.newFile();
+        tree.save(file);
+        assertEquals(PoiKdTree.HEADER_SIZE + POINTS * 24, file.length());
+        PoiKdTree loaded = PoiKdTree.load(file);
+        assertSameTree(tree, loaded);
+        Random random = new Random(50);
+        for (int query = 0; query < 50; query++) {
+            double lat = 12.97 + (random.nextDouble() - 0.5) * 12;
+            double lng = 10 + (random.nextDouble() - 0.5) * 24;
+            assertNearest(loaded, points, lat, lng, 5);
+            assertWithinRadius(loaded, points, lat, lng, 100000);
+        }
+    }
+
+    @Test
+    public void load_rejectsTruncatedFile() throws IOException {
+        File file = folder.newFile();
+        build(randomPoints(100, 45, new Random(51))).save(file);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(file.length() - 8);
+        } finally {
+            raf.close();
+        }
+        try {
+            PoiKdTree.load(file);
+            fail();
+        } catch (IOException expected) {
+            // Missing the last id
+        }
+    }
+
+    @Test
+    public void open_buildsAndReusesCache() throws IOException {
+        File csv = folder.newFile("stores.csv");
+        write(csv, "# id,lat,lng,name\n\n3,45.5,7.25,Turin\n1, -33.75 ,151.125\n2,12.97,77.59,x,y\n");
+        File cache = new File(folder.getRoot(), "stores.kdt");
+        PoiKdTree tree = PoiKdTree.open(csv, cache);
+        assertEquals(3, tree.size());
+        assertTrue(cache.exists());
+        int[] index = new int[1];
+        tree.nearest(-34, 151, index, new double[1]);
+        assertEquals(1, tree.getId(index[0]));
+        assertEquals(-33.75, tree.getLat(index[0]), 0);
+        assertEquals(151.125, tree.getLng(index[0]), 0);
+
+        // An up to date cache is used even if the file changed underneath
+        assertTrue(csv.setLastModified(cache.lastModified() - 10000));
+        write(csv, "4,0,0\n");
+        assertTrue(csv.setLastModified(cache.lastModified() - 10000));
+        assertEquals(3, PoiKdTree.open(csv, cache).size());
+
+        // A newer file rebuilds it
+        assertTrue(csv.setLastModified(cache.lastModified() + 10000));
+        tree = PoiKdTree.open(csv, cache);
+        assertEquals(1, tree.size());
+        assertEquals(4, tree.getId(0));
+    }
+
+    @Test
+    public void readCsv_rejectsInvalidLines() throws IOException {
+        File csv = folder.newFile();
+        write(csv, "1,45,7\n2,north,7\n");
+        try {
+            PoiKdTree.readCsv(csv);
+            fail();
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains("line 2"));
+        }
+    }
+
+    private static void assertNearest(PoiKdTree tree, double[][] points, double lat, double lng, int k) {
+        int[] index = new int[k];
+        double[] meters = new double[k];
+        int count = tree.nearest(lat, lng, index, meters);
+        int n = points[0].length;
+        assertEquals(Math.min(k, n), count);
+
+        double[] all = new double[n];
+        for (int i = 0; i < n; i++) {
+            all[i] = GeoMath.distance(lat, lng, points[0][i], points[1][i]);
+        }
+        Arrays.sort(all);
+        for (int i = 0; i < count; i++) {
+            // Ties may pick any of the equally near points, but never a farther one
+            assertEquals(all[i], meters[i], 1e-6);
+            assertEquals(meters[i], GeoMath.distance(lat, lng, tree.getLat(index[i]), tree.getLng(index[i])), 0);
+            if (i > 0) {
+                assertTrue(meters[i] >= meters[i - 1]);
+            }
+        }
+    }
+
+    private static void assertWithinRadius(PoiKdTree tree, double[][] points, double lat, double lng,
+                                           double radius) {
+        Set<Long> expected = new HashSet<Long>();
+        for (int i = 0; i < points[0].length; i++) {
+            if (GeoMath.distance(lat, lng, points[0][i], points[1][i]) <= radius) {
+                expected.add((long) points[2][i]);
+            }
+        }
+        final Set<Long> found = new HashSet<Long>();
+        int visited = tree.withinRadius(lat, lng, radius, new PoiKdTree.PoiVisitor() {
+            @Override
+            public boolean onPoi(int index, long id, double lat, double lng, double meters) {
+                assertTrue(found.add(id));
+                return true;
+            }
+        });
+        assertEquals(expected, found);
+        assertEquals(expected.size(), visited);
+    }
+
+    private static void assertSameTree(PoiKdTree expected, PoiKdTree actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.getId(i), actual.getId(i));
+            assertEquals(expected.getLat(i), actual.getLat(i), 0);
+            assertEquals(expected.getLng(i), actual.getLng(i), 0);
+        }
+    }
+
+    // Copies the columns, the build reorders them
+    private static PoiKdTree build(double[][] points) {
+        int n = points[0].length;
+        long[] ids = new long[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = (long) points[2][i];
+        }
+        return PoiKdTree.build(points[0].clone(), points[1].clone(), ids);
+    }
+
+    // Clustered like towns around a center, with ids in the third column
+    private static double[][] randomPoints(int count, double centerLat, Random random) {
+        double[][] points = new double[3][count];
+        double clusterLat = centerLat;
+        double clusterLng = 10;
+        for (int i = 0; i < count; i++) {
+            if (i % 100 == 0) {
+                clusterLat = centerLat + (random.nextDouble() - 0.5) * 10;
+                clusterLng = 10 + (random.nextDouble() - 0.5) * 20;
+            }
+            points[0][i] = Math.max(-89.9, Math.min(89.9, clusterLat + random.nextGaussian() * 0.1));
+            points[1][i] = clusterLng + random.nextGaussian() * 0.1;
+            points[2][i] = i;
+        }
+        return points;
+    }
+
+    private static void write(File file, String text) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(text);
+        } finally {
+            writer.close();
+        }
+    }
+}
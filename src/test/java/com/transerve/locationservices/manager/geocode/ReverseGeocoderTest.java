@@ -0,0 +1,189 @@
+package com.transerve.locationservices.manager.geocode;
+
+import com.transerve.locationservices.manager.geofence.PolygonFence;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static com.transerve.locationservices.manager.geo.GeoMath.METERS_PER_DEGREE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link ReverseGeocoder} lookups against a brute force scan of every area and street
+ */
+public class ReverseGeocoderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ReverseGeocoderBuilder builder = new ReverseGeocoderBuilder(0.01);
+
+    private final List<PolygonFence> areas = new ArrayList<PolygonFence>();
+
+    private final List<Integer> areaFeatures = new ArrayList<Integer>();
+
+    private final List<Integer> areaLevels = new ArrayList<Integer>();
+
+    private final List<double[]> streets = new ArrayList<double[]>();
+
+    private final List<Integer> streetFeatures = new ArrayList<Integer>();
+
+    @Test
+    public void lookupExact_matchesBruteForce() throws IOException {
+        Random random = new Random(1);
+        addArea(0, "State", new double[][]{ring(20, 78, 1.0, 5000, random)});
+        for (int d = 0; d < 20; d++) {
+            double lat = 19.3 + random.nextDouble() * 1.4;
+            double lng = 77.3 + random.nextDouble() * 1.4;
+            // A district with a hole
+            addArea(1, "District " + d, new double[][]{ring(lat, lng, 0.15, 1000, random),
+                    ring(lat, lng, 0.03, 100, random)});
+        }
+        for (int s = 0; s < 1000; s++) {
+            double lat = 19.5 + random.nextDouble();
+            double lng = 77.5 + random.nextDouble();
+            double[] points = new double[(2 + random.nextInt(8)) * 2];
+            for (int i = 0; i < points.length; i += 2) {
+                points[i] = lat;
+                points[i + 1] = lng;
+                lat += (random.nextDouble() - 0.5) * 0.01;
+                lng += (random.nextDouble() - 0.5) * 0.01;
+            }
+            addStreet("Street " + s, points);
+        }
+        ReverseGeocoder geocoder = write();
+
+        Address address = new Address();
+        for (int i = 0; i < 20000; i++) {
+            double lat = 18.8 + random.nextDouble() * 2.4;
+            double lng = 76.8 + random.nextDouble() * 2.4;
+            assertLookup(geocoder, lat, lng, address);
+        }
+    }
+
+    @Test
+    public void lookupExact_northEdgeOfGrid() throws IOException {
+        // A street on the equator and a snap distance of exactly 1/1024 degree make the grid one
+        // cell high, its north edge is exactly the snap distance from the street
+        builder = new ReverseGeocoderBuilder(2.0 / 1024)
+                .setStreetSnapMeters((float) (METERS_PER_DEGREE / 1024));
+        addStreet("Equator", new double[]{0, 0, 0, 0.001});
+        ReverseGeocoder geocoder = write();
+
+        Address address = new Address();
+        assertTrue(geocoder.lookupExact(1.0 / 1024, 0.0005, address));
+        assertEquals(0, address.getStreetFeature());
+        assertLookup(geocoder, 1.0 / 1024, 0.0005, address);
+        assertLookup(geocoder, -1.0 / 1024, 0.0005, address);
+    }
+
+    @Test
+    public void lookup_cachedAnswerIsTheCellCenter() throws IOException {
+        Random random = new Random(2);
+        addArea(0, "Area", new double[][]{ring(10, 10, 0.1, 500, random)});
+        ReverseGeocoder geocoder = write();
+        Address address = new Address();
+        assertTrue(geocoder.lookup(10, 10, address));
+        assertEquals("Area", address.getArea(0));
+        assertTrue(geocoder.lookup(10, 10, address));
+        assertEquals(1, geocoder.getCacheHits());
+        assertEquals(1, geocoder.getCacheMisses());
+    }
+
+    private void assertLookup(ReverseGeocoder geocoder, double lat, double lng, Address address) {
+        geocoder.lookupExact(lat, lng, address);
+        int[] expected = new int[GeocoderFormat.MAX_LEVELS];
+        Arrays.fill(expected, Address.NONE);
+        for (int a = 0; a < areas.size(); a++) {
+            int level = areaLevels.get(a);
+            if (expected[level] == Address.NONE && areas.get(a).contains(lat, lng)) {
+                expected[level] = areaFeatures.get(a);
+            }
+        }
+        for (int level = 0; level < GeocoderFormat.MAX_LEVELS; level++) {
+            assertEquals("level " + level + " at " + lat + ", " + lng, expected[level],
+                    address.getAreaFeature(level));
+        }
+        assertEquals("street at " + lat + ", " + lng, nearestStreet(geocoder, lat, lng),
+                address.getStreetFeature());
+    }
+
+    // Same local plane as the geocoder, ties go to the last street like in the file order
+    private int nearestStreet(ReverseGeocoder geocoder, double lat, double lng) {
+        double best = (double) geocoder.getStreetSnapMeters() * geocoder.getStreetSnapMeters();
+        double metersPerDegreeLng = METERS_PER_DEGREE * Math.cos(Math.toRadians(lat));
+        int street = Address.NONE;
+        for (int s = 0; s < streets.size(); s++) {
+            double[] points = streets.get(s);
+            for (int i = 0; i + 3 < points.length; i += 2) {
+                double x0 = (points[i + 1] - lng) * metersPerDegreeLng;
+                double y0 = (points[i] - lat) * METERS_PER_DEGREE;
+                double x1 = (points[i + 3] - lng) * metersPerDegreeLng;
+                double y1 = (points[i + 2] - lat) * METERS_PER_DEGREE;
+                double dx = x1 - x0;
+                double dy = y1 - y0;
+                double lengthSquared = dx * dx + dy * dy;
+                double t = lengthSquared == 0 ? 0
+                        : Math.max(0, Math.min(1, -(x0 * dx + y0 * dy) / lengthSquared));
+                double px = x0 + t * dx;
+                double py = y0 + t * dy;
+                double distance = px * px + py * py;
+                if (distance <= best) {
+                    best = distance;
+                    street = streetFeatures.get(s);
+                }
+            }
+        }
+        return street;
+    }
+
+    private void addArea(int level, String name, double[][] rings) {
+        double[][] stored = new double[rings.length][];
+        for (int r = 0; r < rings.length; r++) {
+            stored[r] = quantize(rings[r]);
+        }
+        areaFeatures.add(builder.addArea(level, name, rings));
+        areaLevels.add(level);
+        areas.add(new PolygonFence(stored));
+    }
+
+    private void addStreet(String name, double[] points) {
+        streetFeatures.add(builder.addStreet(name, points));
+        streets.add(quantize(points));
+    }
+
+    private ReverseGeocoder write() throws IOException {
+        File file = folder.newFile();
+        builder.write(file);
+        return ReverseGeocoder.open(file);
+    }
+
+    // The file keeps coordinates in 1e-7 degrees
+    private static double[] quantize(double[] points) {
+        double[] quantized = new double[points.length];
+        for (int i = 0; i < points.length; i++) {
+            quantized[i] = Math.round(points[i] * GeocoderFormat.E7) / GeocoderFormat.E7;
+        }
+        return quantized;
+    }
+
+    private static double[] ring(double lat, double lng, double radius, int points, Random random) {
+        double[] ring = new double[points * 2];
+        for (int i = 0; i < points; i++) {
+            double angle = 2 * Math.PI * i / points;
+            double r = radius * (0.995 + 0.01 * random.nextDouble());
+            ring[i * 2] = lat + r * Math.sin(angle);
+            ring[i * 2 + 1] = lng + r * Math.cos(angle) / Math.cos(Math.toRadians(lat));
+        }
+        return ring;
+    }
+}
@@ -0,0 +1,115 @@
+package com.transerve.locationservices.manager.geofence;
+
+import com.transerve.locationservices.manager.geo.GeoMath;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Times {@link GeofenceEngine} with 100k circular fences against a linear scan of all of them.
+ * Takes a few seconds, so it only runs with {@code -Pbenchmark}. The timings are in the failure
+ * message if the grid isn't much faster.
+ */
+public class GeofenceEngineBenchmark {
+
+    private static final int FENCES = 100000;
+
+    private static final int FIXES = 200000;
+
+    // The linear scan is slow, time fewer fixes
+    private static final int LINEAR_FIXES = 1000;
+
+    // Grid lookups must beat the linear scan by at least this factor
+    private static final double MIN_SPEEDUP = 20;
+
+    private final double[] fenceLat = new double[FENCES];
+
+    private final double[] fenceLng = new double[FENCES];
+
+    private final float[] fenceRadius = new float[FENCES];
+
+    private final double[] fixLat = new double[FIXES];
+
+    private final double[] fixLng = new double[FIXES];
+
+    private final int[] transitions = new int[8];
+
+    @Test
+    public void grid_versusLinearScan() {
+        Assume.assumeTrue("Benchmarks run with -Pbenchmark", Boolean.getBoolean("benchmark"));
+        // 100 to 500 m fences over 2 x 2 degrees, and a 1 Hz random walk through them
+        Random random = new Random(3);
+        for (int f = 0; f < FENCES; f++) {
+            fenceLat[f] = 18 + random.nextDouble() * 2;
+            fenceLng[f] = 72 + random.nextDouble() * 2;
+            fenceRadius[f] = 100 + random.nextFloat() * 400;
+        }
+        double lat = 19;
+        double lng = 73;
+        for (int i = 0; i < FIXES; i++) {
+            lat += (random.nextDouble() - 0.5) * 2e-4;
+            lng += (random.nextDouble() - 0.5) * 2e-4;
+            fixLat[i] = lat;
+            fixLng[i] = lng;
+        }
+
+        GeofenceEngine engine = newEngine();
+        long start = System.nanoTime();
+        for (int i = 0; i < LINEAR_FIXES; i++) {
+            engine.evaluate(fixLat[i], fixLng[i], i * 1000L);
+        }
+        long gridNanos = System.nanoTime() - start;
+        int gridEnters = transitions[GeofenceEngine.TRANSITION_ENTER];
+        int gridExits = transitions[GeofenceEngine.TRANSITION_EXIT];
+        start = System.nanoTime();
+        for (int i = LINEAR_FIXES; i < FIXES; i++) {
+            engine.evaluate(fixLat[i], fixLng[i], i * 1000L);
+        }
+        gridNanos += System.nanoTime() - start;
+
+        boolean[] inside = new boolean[FENCES];
+        int linearEnters = 0;
+        int linearExits = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < LINEAR_FIXES; i++) {
+            for (int f = 0; f < FENCES; f++) {
+                boolean now = GeoMath.fastDistance(fixLat[i], fixLng[i], fenceLat[f], fenceLng[f])
+                        <= fenceRadius[f];
+                if (now && !inside[f]) {
+                    linearEnters++;
+                } else if (!now && inside[f]) {
+                    linearExits++;
+                }
+                inside[f] = now;
+            }
+        }
+        long linearNanos = System.nanoTime() - start;
+
+        assertEquals(linearEnters, gridEnters);
+        assertEquals(linearExits, gridExits);
+        assertTrue(gridEnters > 0);
+        double gridMicros = gridNanos / 1000.0 / FIXES;
+        double linearMicros = linearNanos / 1000.0 / LINEAR_FIXES;
+        assertTrue(String.format("%d fences, grid %.2f us per fix, linear scan %.2f us per fix",
+                FENCES, gridMicros, linearMicros), gridMicros * MIN_SPEEDUP < linearMicros);
+    }
+
+    private GeofenceEngine newEngine() {
+        GeofenceEngine engine = new GeofenceEngine(new GeofenceEngine.Listener() {
+            @Override
+            public void onGeofenceTransition(int fence, int transition, double lat, double lng, long time) {
+                transitions[transition]++;
+            }
+        });
+        engine.setExitHysteresisMeters(0);
+        for (int f = 0; f < FENCES; f++) {
+            engine.addCircle(fenceLat[f], fenceLng[f], fenceRadius[f], 0);
+        }
+        return engine;
+    }
+}
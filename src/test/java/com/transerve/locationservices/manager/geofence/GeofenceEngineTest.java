@@ -0,0 +1,167 @@
+package com.transerve.locationservices.manager.geofence;
+
+import com.transerve.locationservices.manager.geo.GeoMath;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Checks the grid lookup of {@link GeofenceEngine} against a linear scan of all fences
+ */
+public class GeofenceEngineTest {
+
+    @Test
+    public void grid_matchesLinearScan() {
+        assertMatchesLinearScan(new Random(41), 20, 20, 2000, 5000, GeofenceEngine.DEFAULT_CELL_DEGREES);
+    }
+
+    @Test
+    public void grid_matchesLinearScan_largeCells() {
+        assertMatchesLinearScan(new Random(42), 20, 20, 2000, 5000, 0.5);
+    }
+
+    @Test
+    public void grid_matchesLinearScan_antimeridian() {
+        assertMatchesLinearScan(new Random(43), -17, 179.9, 500, 5000, GeofenceEngine.DEFAULT_CELL_DEGREES);
+    }
+
+    @Test
+    public void grid_matchesLinearScan_nearPole() {
+        assertMatchesLinearScan(new Random(44), 89.5, 0, 500, 5000, GeofenceEngine.DEFAULT_CELL_DEGREES);
+    }
+
+    @Test
+    public void grid_matchesLinearScan_afterRemovals() {
+        Random random = new Random(45);
+        Fences fences = new Fences(random, 20, 20, 2000, GeofenceEngine.DEFAULT_CELL_DEGREES);
+        for (int f = 0; f < fences.count; f += 3) {
+            fences.engine.remove(f);
+            fences.removed[f] = true;
+        }
+        // Fences on reused handles must start outside
+        for (int i = 0; i < fences.count / 6; i++) {
+            assertEquals(0, fences.add(random) % 3);
+        }
+        fences.walk(random, 5000);
+    }
+
+    private static void assertMatchesLinearScan(Random random, double lat, double lng, int fenceCount,
+                                                int fixCount, double cellDegrees) {
+        new Fences(random, lat, lng, fenceCount, cellDegrees).walk(random, fixCount);
+    }
+
+    // Random circles in a 0.2 degree square, with the engine and the expected state
+    private static final class Fences implements GeofenceEngine.Listener {
+
+        final GeofenceEngine engine;
+
+        final int count;
+
+        final double originLat;
+
+        final double originLng;
+
+        final double[] lat;
+
+        final double[] lng;
+
+        final float[] radius;
+
+        final boolean[] removed;
+
+        final boolean[] inside;
+
+        int enters;
+
+        int exits;
+
+        Fences(Random random, double originLat, double originLng, int count, double cellDegrees) {
+            this.engine = new GeofenceEngine(this, cellDegrees);
+            engine.setExitHysteresisMeters(0);
+            this.count = count;
+            this.originLat = originLat;
+            this.originLng = originLng;
+            lat = new double[count];
+            lng = new double[count];
+            radius = new float[count];
+            removed = new boolean[count];
+            inside = new boolean[count];
+            for (int f = 0; f < count; f++) {
+                assertEquals(f, add(random));
+            }
+        }
+
+        int add(Random random) {
+            double fenceLat = originLat + random.nextDouble() * 0.2;
+            double fenceLng = GeoMath.wrapLongitude(originLng + random.nextDouble() * 0.2);
+            float fenceRadius = 20 + random.nextFloat() * 2000;
+            int f = engine.addCircle(fenceLat, fenceLng, fenceRadius, 0);
+            lat[f] = fenceLat;
+            lng[f] = fenceLng;
+            radius[f] = fenceRadius;
+            removed[f] = false;
+            inside[f] = false;
+            return f;
+        }
+
+        void walk(Random random, int fixCount) {
+            for (int i = 0; i < fixCount; i++) {
+                double fixLat;
+                double fixLng;
+                if (i % 2 == 0) {
+                    // Right on the border of a fence, where the grid is most likely to miss it
+                    int f = random.nextInt(count);
+                    double bearing = random.nextDouble() * 2 * Math.PI;
+                    double meters = radius[f] * (0.999 + random.nextDouble() * 0.002);
+                    fixLat = lat[f] + Math.cos(bearing) * meters / GeoMath.METERS_PER_DEGREE;
+                    fixLng = lng[f] + Math.sin(bearing) * meters
+                            / (GeoMath.METERS_PER_DEGREE * Math.cos(Math.toRadians(lat[f])));
+                } else {
+                    fixLat = originLat - 0.05 + random.nextDouble() * 0.3;
+                    fixLng = originLng - 0.05 + random.nextDouble() * 0.3;
+                }
+                fixLng = GeoMath.wrapLongitude(fixLng);
+                fixLat = Math.min(90, fixLat);
+
+                int expectedEnters = 0;
+                int expectedExits = 0;
+                for (int f = 0; f < count; f++) {
+                    if (removed[f]) {
+                        continue;
+                    }
+                    boolean now = GeoMath.fastDistance(fixLat, fixLng, lat[f], lng[f]) <= radius[f];
+                    if (now && !inside[f]) {
+                        expectedEnters++;
+                    } else if (!now && inside[f]) {
+                        expectedExits++;
+                    }
+                    inside[f] = now;
+                }
+                enters = 0;
+                exits = 0;
+                engine.evaluate(fixLat, fixLng, i * 1000L);
+                assertEquals("enters at fix " + i, expectedEnters, enters);
+                assertEquals("exits at fix " + i, expectedExits, exits);
+                for (int f = 0; f < count; f++) {
+                    if (!removed[f]) {
+                        assertEquals("fence " + f + " at fix " + i, inside[f], engine.isInside(f));
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void onGeofenceTransition(int fence, int transition, double lat, double lng, long time) {
+            assertFalse(removed[fence]);
+            if (transition == GeofenceEngine.TRANSITION_ENTER) {
+                enters++;
+            } else if (transition == GeofenceEngine.TRANSITION_EXIT) {
+                exits++;
+            }
+        }
+    }
+}
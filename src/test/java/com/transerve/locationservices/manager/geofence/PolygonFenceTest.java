@@ -0,0 +1,146 @@
+package com.transerve.locationservices.manager.geofence;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static com.transerve.locationservices.manager.geo.GeoMath.METERS_PER_DEGREE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the banded point in polygon test of {@link PolygonFence} against a plain even-odd scan
+ * of every edge
+ */
+public class PolygonFenceTest {
+
+    // A wavy outer ring of 10000 vertices with a round hole, and a separate square part
+    private static final double[][] RINGS = {wavyRing(10000), circle(19, 73, 0.01, 200),
+            {19.2, 73.2, 19.2, 73.3, 19.3, 73.3, 19.3, 73.2}};
+
+    private final PolygonFence fence = new PolygonFence(RINGS);
+
+    @Test
+    public void contains_knownPoints() {
+        assertTrue(fence.contains(19.03, 73));
+        assertFalse("inside the hole", fence.contains(19, 73));
+        assertTrue("second part", fence.contains(19.25, 73.25));
+        assertFalse("between the parts", fence.contains(19.15, 73.15));
+        assertFalse("outside the box", fence.contains(20, 74));
+    }
+
+    @Test
+    public void contains_matchesEdgeScan() {
+        Random random = new Random(5);
+        for (int i = 0; i < 20000; i++) {
+            double lat = 18.9 + random.nextDouble() * 0.45;
+            double lng = 72.9 + random.nextDouble() * 0.45;
+            assertEquals(lat + ", " + lng, edgeScan(RINGS, lat, lng), fence.contains(lat, lng));
+        }
+    }
+
+    @Test
+    public void contains_matchesEdgeScan_atVertexLatitudes() {
+        // Points level with a vertex hit the band limits and the half open crossing rule
+        Random random = new Random(6);
+        for (double[] ring : RINGS) {
+            for (int i = 0; i < ring.length; i += 2) {
+                double lat = ring[i];
+                double lng = ring[i + 1] + (random.nextDouble() - 0.5) * 0.02;
+                assertEquals(lat + ", " + lng, edgeScan(RINGS, lat, lng), fence.contains(lat, lng));
+                assertEquals(edgeScan(RINGS, lat, ring[i + 1]), fence.contains(lat, ring[i + 1]));
+            }
+        }
+    }
+
+    @Test
+    public void isNearBoundary_matchesEdgeScan() {
+        Random random = new Random(7);
+        for (int i = 0; i < 2000; i++) {
+            double lat = 18.9 + random.nextDouble() * 0.45;
+            double lng = 72.9 + random.nextDouble() * 0.45;
+            float meters = 10 + random.nextFloat() * 490;
+            assertEquals(lat + ", " + lng + " within " + meters,
+                    edgeDistance(RINGS, lat, lng) <= meters, fence.isNearBoundary(lat, lng, meters));
+        }
+    }
+
+    @Test
+    public void contains_withMargin() {
+        // 50 m east of the square part
+        double lng = 73.3 + 50 / (METERS_PER_DEGREE * Math.cos(Math.toRadians(19.25)));
+        assertFalse(fence.contains(19.25, lng));
+        assertFalse(fence.contains(19.25, lng, 40));
+        assertTrue(fence.contains(19.25, lng, 60));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void ringNeedsThreePoints() {
+        new PolygonFence(new double[][]{{19, 73, 19.1, 73.1}});
+    }
+
+    private static boolean edgeScan(double[][] rings, double lat, double lng) {
+        boolean inside = false;
+        for (double[] ring : rings) {
+            int points = ring.length / 2;
+            for (int i = 0; i < points; i++) {
+                int j = (i + 1) % points;
+                double lat0 = ring[i * 2];
+                double lng0 = ring[i * 2 + 1];
+                double lat1 = ring[j * 2];
+                double lng1 = ring[j * 2 + 1];
+                if ((lat0 > lat) != (lat1 > lat)
+                        && lng < lng0 + (lat - lat0) * (lng1 - lng0) / (lat1 - lat0)) {
+                    inside = !inside;
+                }
+            }
+        }
+        return inside;
+    }
+
+    // Distance to the nearest edge on the local plane, in meters
+    private static double edgeDistance(double[][] rings, double lat, double lng) {
+        double metersPerDegreeLng = METERS_PER_DEGREE * Math.cos(Math.toRadians(lat));
+        double best = Double.MAX_VALUE;
+        for (double[] ring : rings) {
+            int points = ring.length / 2;
+            for (int i = 0; i < points; i++) {
+                int j = (i + 1) % points;
+                double x0 = (ring[i * 2 + 1] - lng) * metersPerDegreeLng;
+                double y0 = (ring[i * 2] - lat) * METERS_PER_DEGREE;
+                double x1 = (ring[j * 2 + 1] - lng) * metersPerDegreeLng;
+                double y1 = (ring[j * 2] - lat) * METERS_PER_DEGREE;
+                double dx = x1 - x0;
+                double dy = y1 - y0;
+                double lengthSquared = dx * dx + dy * dy;
+                double t = lengthSquared == 0 ? 0
+                        : Math.max(0, Math.min(1, -(x0 * dx + y0 * dy) / lengthSquared));
+                best = Math.min(best, Math.hypot(x0 + t * dx, y0 + t * dy));
+            }
+        }
+        return best;
+    }
+
+    private static double[] wavyRing(int points) {
+        Random random = new Random(4);
+        double[] ring = new double[points * 2];
+        for (int i = 0; i < points; i++) {
+            double angle = 2 * Math.PI * i / points;
+            double radius = 0.05 * (1 + 0.3 * Math.sin(angle * 37) + 0.05 * random.nextDouble());
+            ring[i * 2] = 19 + radius * Math.sin(angle);
+            ring[i * 2 + 1] = 73 + radius * Math.cos(angle);
+        }
+        return ring;
+    }
+
+    private static double[] circle(double lat, double lng, double radius, int points) {
+        double[] ring = new double[points * 2];
+        for (int i = 0; i < points; i++) {
+            double angle = 2 * Math.PI * i / points;
+            ring[i * 2] = lat + radius * Math.sin(angle);
+            ring[i * 2 + 1] = lng + radius * Math.cos(angle);
+        }
+        return ring;
+    }
+}
@@ -0,0 +1,121 @@
+package com.transerve.locationservices.manager.gps.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * When {@link DeclinationCache} evaluates the model, with the model replaced by a counter
+ */
+public class DeclinationCacheTest {
+
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    // Start of a date bucket
+    private static final long TIME = 600 * DeclinationCache.DEFAULT_DATE_BUCKET_MILLIS;
+
+    private final CountingCache cache = new CountingCache();
+
+    @Test
+    public void update_evaluatesAtCellMiddle() {
+        assertFalse(cache.hasDeclination());
+        assertEquals(12.75f, cache.update(12.9, 77.6, 900, TIME + DAY), 0);
+        assertTrue(cache.hasDeclination());
+        assertEquals(12.75f, cache.getDeclination(), 0);
+        assertEquals(1, cache.evaluations);
+        assertEquals(77.75f, cache.lng, 0);
+        assertEquals(1000f, cache.altitude, 0);
+        assertEquals(TIME + DeclinationCache.DEFAULT_DATE_BUCKET_MILLIS / 2, cache.time);
+
+        // Anywhere else in the cell
+        cache.update(12.6, 77.9, 1100, TIME + 20 * DAY);
+        assertEquals(1, cache.evaluations);
+    }
+
+    @Test
+    public void cellBorder_jitterStaysInCell() {
+        cache.update(12.999, 77.6, 0, TIME);
+        assertEquals(1, cache.evaluations);
+        // Fixes jumping a few meters across the border at 13 degrees north
+        for (int i = 0; i < 100; i++) {
+            cache.update(i % 2 == 0 ? 13.0001 : 12.9999, i % 2 == 0 ? 77.5001 : 77.4999, 0, TIME);
+        }
+        assertEquals(1, cache.evaluations);
+        assertEquals(12.75f, cache.lat, 0);
+
+        // A tenth of a cell past the border moves on, to the cell the fix is in
+        cache.update(13.06, 77.6, 0, TIME);
+        assertEquals(2, cache.evaluations);
+        assertEquals(13.25f, cache.lat, 0);
+        // And the way back needs the same margin
+        cache.update(12.96, 77.6, 0, TIME);
+        assertEquals(2, cache.evaluations);
+        cache.update(12.94, 77.6, 0, TIME);
+        assertEquals(3, cache.evaluations);
+        assertEquals(12.75f, cache.lat, 0);
+    }
+
+    @Test
+    public void dateBorder_jitterStaysInBucket() {
+        long border = TIME + DeclinationCache.DEFAULT_DATE_BUCKET_MILLIS;
+        cache.update(12.9, 77.6, 0, border - 1000);
+        // A clock stepping back and forth over the bucket boundary
+        for (int i = 0; i < 100; i++) {
+            cache.update(12.9, 77.6, 0, border + (i % 2 == 0 ? 1000 : -1000));
+        }
+        assertEquals(1, cache.evaluations);
+        cache.update(12.9, 77.6, 0, border + 2 * DAY);
+        assertEquals(1, cache.evaluations);
+        cache.update(12.9, 77.6, 0, border + 4 * DAY);
+        assertEquals(2, cache.evaluations);
+        assertEquals(border + DeclinationCache.DEFAULT_DATE_BUCKET_MILLIS / 2, cache.time);
+    }
+
+    @Test
+    public void altitudeBorder_jitterStaysInBucket() {
+        cache.update(12.9, 77.6, 499, TIME);
+        for (int i = 0; i < 100; i++) {
+            cache.update(12.9, 77.6, i % 2 == 0 ? 520 : 480, TIME);
+        }
+        assertEquals(1, cache.evaluations);
+        assertEquals(0f, cache.altitude, 0);
+        cache.update(12.9, 77.6, 650, TIME);
+        assertEquals(2, cache.evaluations);
+        assertEquals(1000f, cache.altitude, 0);
+    }
+
+    @Test
+    public void negativeCoordinates_sameMargins() {
+        cache.update(-33.9, -70.6, -10, TIME);
+        assertEquals(-33.75f, cache.lat, 0);
+        assertEquals(-70.75f, cache.lng, 0);
+        cache.update(-33.96, -70.96, 0, TIME);
+        cache.update(-33.54, -70.54, 0, TIME);
+        assertEquals(1, cache.evaluations);
+        cache.update(-34.06, -70.6, 0, TIME);
+        assertEquals(2, cache.evaluations);
+        assertEquals(-34.25f, cache.lat, 0);
+    }
+
+    // Declination is the evaluated latitude, so tests see which cell it came from
+    private static final class CountingCache extends DeclinationCache {
+
+        int evaluations;
+        float lat;
+        float lng;
+        float altitude;
+        long time;
+
+        @Override
+        float evaluate(float lat, float lng, float altitude, long time) {
+            evaluations++;
+            this.lat = lat;
+            this.lng = lng;
+            this.altitude = altitude;
+            this.time = time;
+            return lat;
+        }
+    }
+}
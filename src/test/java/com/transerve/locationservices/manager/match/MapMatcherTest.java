@@ -0,0 +1,159 @@
+package com.transerve.locationservices.manager.match;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static com.transerve.locationservices.manager.geo.GeoMath.METERS_PER_DEGREE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link RoadGraph#nearEdges} against a scan of every edge, and {@link MapMatcher} on a simulated
+ * drive through a grid of two way streets
+ */
+public class MapMatcherTest {
+
+    private static final int BLOCKS = 20;
+
+    private static final double BLOCK_DEGREES = 0.001;
+
+    private static final double LAT = 20;
+
+    private static final double LNG = 78;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private RoadGraph graph;
+
+    private double cos;
+
+    @Before
+    public void setUp() throws IOException {
+        // Square blocks of about 111 m
+        cos = Math.cos(Math.toRadians(LAT));
+        RoadGraphBuilder builder = new RoadGraphBuilder();
+        for (int i = 0; i < BLOCKS; i++) {
+            double[] row = new double[BLOCKS * 2];
+            double[] column = new double[BLOCKS * 2];
+            for (int j = 0; j < BLOCKS; j++) {
+                row[j * 2] = LAT + i * BLOCK_DEGREES;
+                row[j * 2 + 1] = LNG + j * BLOCK_DEGREES / cos;
+                column[j * 2] = LAT + j * BLOCK_DEGREES;
+                column[j * 2 + 1] = LNG + i * BLOCK_DEGREES / cos;
+            }
+            builder.addRoad(row, false);
+            builder.addRoad(column, false);
+        }
+        File file = folder.newFile();
+        builder.write(file);
+        graph = RoadGraph.load(file);
+    }
+
+    @Test
+    public void nearEdges_matchesEdgeScan() {
+        Random random = new Random(46);
+        RoadGraph.EdgeSearch search = new RoadGraph.EdgeSearch(graph, graph.getEdgeCount());
+        boolean[] found = new boolean[graph.getEdgeCount()];
+        for (int i = 0; i < 2000; i++) {
+            double lat = LAT - 0.002 + random.nextDouble() * 0.024;
+            double lng = LNG - 0.002 + random.nextDouble() * 0.024 / cos;
+            float meters = 1 + random.nextFloat() * 300;
+            int count = graph.nearEdges(lat, lng, meters, search);
+            assertFalse(search.isTruncated());
+            Arrays.fill(found, false);
+            for (int k = 0; k < count; k++) {
+                assertFalse("listed twice", found[search.getEdge(k)]);
+                found[search.getEdge(k)] = true;
+            }
+            for (int edge = 0; edge < graph.getEdgeCount(); edge++) {
+                assertEquals("edge " + edge, boxWithin(edge, lat, lng, meters), found[edge]);
+            }
+        }
+    }
+
+    @Test
+    public void nearEdges_reportsTruncation() {
+        RoadGraph.EdgeSearch search = new RoadGraph.EdgeSearch(graph, 4);
+        double lat = LAT + 10 * BLOCK_DEGREES;
+        double lng = LNG + 10 * BLOCK_DEGREES / cos;
+        assertEquals(4, graph.nearEdges(lat, lng, 300, search));
+        assertTrue(search.isTruncated());
+        // An intersection has 8 edges starting or ending at it
+        assertEquals(4, graph.nearEdges(lat, lng, 1, search));
+        assertTrue(search.isTruncated());
+        search = new RoadGraph.EdgeSearch(graph, 8);
+        assertEquals(8, graph.nearEdges(lat, lng, 1, search));
+        assertFalse(search.isTruncated());
+    }
+
+    @Test
+    public void match_staysOnTheDecidedRoad() throws IOException {
+        // Two parallel one way roads 30 m apart that never meet. The fixes run between them,
+        // closer to the south road first and then closer to the north one. Once a fix was
+        // reported on the south road, the following fixes can't be on the north one.
+        double apart = 30 / METERS_PER_DEGREE;
+        double[] south = new double[22];
+        double[] north = new double[22];
+        for (int i = 0; i < 11; i++) {
+            south[i * 2] = LAT;
+            south[i * 2 + 1] = LNG + i * BLOCK_DEGREES;
+            north[i * 2] = LAT + apart;
+            north[i * 2 + 1] = LNG + i * BLOCK_DEGREES;
+        }
+        RoadGraphBuilder builder = new RoadGraphBuilder();
+        builder.addRoad(south, true);
+        builder.addRoad(north, true);
+        File file = folder.newFile();
+        builder.write(file);
+        final RoadGraph roads = RoadGraph.load(file);
+
+        int fixes = 40;
+        double[] lat = new double[fixes];
+        double[] lng = new double[fixes];
+        long[] times = new long[fixes];
+        for (int k = 0; k < fixes; k++) {
+            lat[k] = LAT + (k < 3 ? 12 : 18) / METERS_PER_DEGREE;
+            lng[k] = LNG + 0.0005 + k * 10 / (METERS_PER_DEGREE * cos);
+            times[k] = k * 1000L;
+        }
+        for (int lag : new int[]{0, 1, 5}) {
+            final boolean[] onNorth = new boolean[fixes];
+            final int[] reported = new int[1];
+            MapMatcher matcher = new MapMatcher(roads, new MapMatcher.Listener() {
+                @Override
+                public void onMatch(long time, double lat, double lng, int edge, float fraction) {
+                    assertTrue(edge != MapMatcher.NONE);
+                    onNorth[reported[0]++] = roads.getNodeLat(roads.getEdgeFrom(edge)) > LAT;
+                }
+            }, lag, MapMatcher.DEFAULT_MAX_CANDIDATES);
+            matcher.matchAll(lat, lng, times, fixes);
+            assertEquals(fixes, reported[0]);
+            for (int k = 1; k < fixes; k++) {
+                assertEquals("lag " + lag + " fix " + k, onNorth[0], onNorth[k]);
+            }
+        }
+    }
+
+    // Same test as nearEdges, on the bounding box of the edge in 1e-7 degrees
+    private boolean boxWithin(int edge, double lat, double lng, float meters) {
+        double dLat = meters / METERS_PER_DEGREE;
+        double dLng = dLat / Math.max(Math.cos(Math.toRadians(Math.min(89, Math.abs(lat) + dLat))), 1e-6);
+        long lat0 = Math.round(graph.getNodeLat(graph.getEdgeFrom(edge)) * 1e7);
+        long lng0 = Math.round(graph.getNodeLng(graph.getEdgeFrom(edge)) * 1e7);
+        long lat1 = Math.round(graph.getNodeLat(graph.getEdgeTo(edge)) * 1e7);
+        long lng1 = Math.round(graph.getNodeLng(graph.getEdgeTo(edge)) * 1e7);
+        return Math.max(lat0, lat1) >= Math.floor((lat - dLat) * 1e7)
+                && Math.min(lat0, lat1) <= Math.ceil((lat + dLat) * 1e7)
+                && Math.max(lng0, lng1) >= Math.floor((lng - dLng) * 1e7)
+                && Math.min(lng0, lng1) <= Math.ceil((lng + dLng) * 1e7);
+    }
+}
@@ -0,0 +1,251 @@
+package com.transerve.locationservices.manager.route;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.transerve.locationservices.manager.geo.GeoMath.METERS_PER_DEGREE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * On, off and back on route transitions of {@link RouteTracker}, its search window and routes
+ * that pass the same place twice
+ */
+public class RouteTrackerTest {
+
+    // Meters per degree and the distances on the sphere differ by less than this over the routes
+    private static final double TOLERANCE = 0.5;
+
+    private final Recorder events = new Recorder();
+
+    @Test
+    public void offRoute_afterConsecutiveMisses() {
+        RouteTracker tracker = new RouteTracker(straightRoute(2000), events);
+        assertFalse(tracker.isOnRoute());
+
+        update(tracker, 100, 0, 1);
+        assertTrue(tracker.isOnRoute());
+        events.assertProgress(100, 1900, 0, 1);
+        update(tracker, 150, 10, 2);
+        events.assertProgress(150, 1850, 10, 2);
+
+        // Two misses are tolerated, the third is reported with the last matched progress
+        update(tracker, 200, 80, 3);
+        update(tracker, 250, 80, 4);
+        assertTrue(tracker.isOnRoute());
+        events.assertNone();
+        update(tracker, 300, 80, 5);
+        assertFalse(tracker.isOnRoute());
+        events.assertOffRoute(150, 5);
+
+        // Reported once
+        update(tracker, 350, 80, 6);
+        update(tracker, 400, 80, 7);
+        events.assertNone();
+
+        // Back within the off-route distance but not half of it, no flapping
+        update(tracker, 450, 30, 8);
+        events.assertNone();
+        update(tracker, 520, 20, 9);
+        assertTrue(tracker.isOnRoute());
+        events.assertBackOnRoute(520, 9);
+        events.assertProgress(520, 1480, 20, 9);
+        assertEquals(520, tracker.getTraveledMeters(), TOLERANCE);
+        assertEquals(1480, tracker.getRemainingMeters(), TOLERANCE);
+        assertEquals(5, tracker.getSegment());
+    }
+
+    @Test
+    public void missesReset_byFixOnRoute() {
+        RouteTracker tracker = new RouteTracker(straightRoute(2000), events);
+        update(tracker, 100, 0, 1);
+        events.assertProgress(100, 1900, 0, 1);
+        for (int i = 0; i < 5; i++) {
+            update(tracker, 200 + i * 100, 80, 2 + i * 2);
+            update(tracker, 250 + i * 100, 0, 3 + i * 2);
+            events.assertProgress(250 + i * 100, 1750 - i * 100, 0, 3 + i * 2);
+        }
+        assertTrue(tracker.isOnRoute());
+    }
+
+    @Test
+    public void offRoute_beforeJoining() {
+        RouteTracker tracker = new RouteTracker(straightRoute(2000), events);
+        update(tracker, 0, -300, 1);
+        update(tracker, 0, -200, 2);
+        events.assertNone();
+        update(tracker, 0, -100, 3);
+        events.assertOffRoute(0, 3);
+        update(tracker, 10, -5, 4);
+        events.assertBackOnRoute(10, 4);
+        events.assertProgress(10, 1990, 5, 4);
+    }
+
+    @Test
+    public void accuracy_widensOffRouteDistance() {
+        RouteTracker tracker = new RouteTracker(straightRoute(2000), events);
+        update(tracker, 100, 0, 1);
+        events.assertProgress(100, 1900, 0, 1);
+        for (int i = 0; i < 5; i++) {
+            tracker.update(80 / METERS_PER_DEGREE, (200 + i * 50) / METERS_PER_DEGREE, 100f, 2 + i);
+            events.assertProgress(200 + i * 50, 1800 - i * 50, 80, 2 + i);
+        }
+    }
+
+    @Test
+    public void window_doesNotJumpAhead() {
+        RouteTracker tracker = new RouteTracker(straightRoute(2000), events);
+        update(tracker, 0, 0, 1);
+        events.assertProgress(0, 2000, 0, 1);
+
+        // On the route but beyond the search distance, only the grid finds it once off route
+        update(tracker, 1500, 0, 2);
+        update(tracker, 1500, 0, 3);
+        events.assertNone();
+        update(tracker, 1500, 0, 4);
+        events.assertOffRoute(0, 4);
+        update(tracker, 1500, 0, 5);
+        events.assertBackOnRoute(1500, 5);
+        events.assertProgress(1500, 500, 0, 5);
+    }
+
+    @Test
+    public void window_followsSearchAhead() {
+        RouteTracker tracker = new RouteTracker(straightRoute(2000), events);
+        tracker.setSearchAheadMeters(2000);
+        update(tracker, 0, 0, 1);
+        events.assertProgress(0, 2000, 0, 1);
+        update(tracker, 1500, 0, 2);
+        events.assertProgress(1500, 500, 0, 2);
+    }
+
+    @Test
+    public void window_toleratesSmallStepsBack() {
+        RouteTracker tracker = new RouteTracker(straightRoute(2000), events);
+        update(tracker, 1000, 0, 1);
+        events.assertProgress(1000, 1000, 0, 1);
+        // GNSS noise behind the last match, within the segments kept behind it
+        update(tracker, 980, 0, 2);
+        events.assertProgress(980, 1020, 0, 2);
+        update(tracker, 1050, 0, 3);
+        events.assertProgress(1050, 950, 0, 3);
+    }
+
+    @Test
+    public void outAndBack_progressKeepsGrowing() {
+        // 1 km east then back on the same road
+        double[] route = new double[21 * 2 * 2 - 2];
+        for (int i = 0; i <= 40; i++) {
+            route[i * 2] = 0;
+            route[i * 2 + 1] = (i <= 20 ? i : 40 - i) * 50 / METERS_PER_DEGREE;
+        }
+        RouteTracker tracker = new RouteTracker(route, events);
+        assertEquals(2000, tracker.getLengthMeters(), TOLERANCE);
+
+        long time = 0;
+        for (int x = 0; x <= 1000; x += 25) {
+            update(tracker, x, 3, ++time);
+            events.assertProgress(x, 2000 - x, 3, time);
+        }
+        for (int x = 975; x >= 0; x -= 25) {
+            update(tracker, x, 3, ++time);
+            events.assertProgress(2000 - x, x, 3, time);
+        }
+        assertEquals(39, tracker.getSegment());
+    }
+
+    @Test
+    public void closedLoop_startsAtStartAndEndsAtEnd() {
+        // A 400 m square block, starting and ending at the same corner
+        double side = 100 / METERS_PER_DEGREE;
+        double[] route = {0, 0, 0, side, side, side, side, 0, 0, 0};
+        RouteTracker tracker = new RouteTracker(route, events);
+        assertEquals(400, tracker.getLengthMeters(), TOLERANCE);
+
+        tracker.update(0, 0, 5f, 1);
+        events.assertProgress(0, 400, 0, 1);
+        assertEquals(0, tracker.getSegment());
+        tracker.update(0, 60 / METERS_PER_DEGREE, 5f, 2);
+        tracker.update(60 / METERS_PER_DEGREE, side, 5f, 3);
+        tracker.update(side, 40 / METERS_PER_DEGREE, 5f, 4);
+        tracker.update(50 / METERS_PER_DEGREE, 0, 5f, 5);
+        events.assertProgress(60, 340, 0, 2);
+        events.assertProgress(160, 240, 0, 3);
+        events.assertProgress(260, 140, 0, 4);
+        events.assertProgress(350, 50, 0, 5);
+        tracker.update(0, 0, 5f, 6);
+        events.assertProgress(400, 0, 0, 6);
+        assertEquals(3, tracker.getSegment());
+    }
+
+    // East along the equator, a point every 100 m
+    private static double[] straightRoute(int meters) {
+        int points = meters / 100 + 1;
+        double[] route = new double[points * 2];
+        for (int i = 0; i < points; i++) {
+            route[i * 2 + 1] = i * 100 / METERS_PER_DEGREE;
+        }
+        return route;
+    }
+
+    // A fix along the straight routes, north of them by the offset
+    private static void update(RouteTracker tracker, double alongMeters, double offsetMeters, long time) {
+        tracker.update(offsetMeters / METERS_PER_DEGREE, alongMeters / METERS_PER_DEGREE, 5f, time);
+    }
+
+    private static final class Recorder implements RouteTracker.Listener {
+
+        private static final int PROGRESS = 0;
+        private static final int OFF_ROUTE = 1;
+        private static final int BACK_ON_ROUTE = 2;
+
+        // Type, traveled, remaining, offset and time of each event not asserted yet
+        private final List<double[]> events = new ArrayList<double[]>();
+
+        @Override
+        public void onProgress(double lat, double lng, double traveledMeters, double remainingMeters,
+                               float offsetMeters, long time) {
+            events.add(new double[]{PROGRESS, traveledMeters, remainingMeters, offsetMeters, time});
+        }
+
+        @Override
+        public void onOffRoute(double lat, double lng, double traveledMeters, long time) {
+            events.add(new double[]{OFF_ROUTE, traveledMeters, 0, 0, time});
+        }
+
+        @Override
+        public void onBackOnRoute(double lat, double lng, double traveledMeters, long time) {
+            events.add(new double[]{BACK_ON_ROUTE, traveledMeters, 0, 0, time});
+        }
+
+        void assertProgress(double traveled, double remaining, double offset, long time) {
+            double[] event = next(PROGRESS, time);
+            assertEquals(traveled, event[1], TOLERANCE);
+            assertEquals(remaining, event[2], TOLERANCE);
+            assertEquals(offset, event[3], TOLERANCE);
+        }
+
+        void assertOffRoute(double traveled, long time) {
+            assertEquals(traveled, next(OFF_ROUTE, time)[1], TOLERANCE);
+        }
+
+        void assertBackOnRoute(double traveled, long time) {
+            assertEquals(traveled, next(BACK_ON_ROUTE, time)[1], TOLERANCE);
+        }
+
+        void assertNone() {
+            assertEquals(0, events.size());
+        }
+
+        private double[] next(int type, long time) {
+            assertFalse("No more events", events.isEmpty());
+            double[] event = events.remove(0);
+            assertEquals(type, (int) event[0]);
+            assertEquals(time, (long) event[4]);
+            return event;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.transerve.locationservices.manager.track;
+
+import com.transerve.locationservices.manager.geo.GeoMath;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trips of {@link ColumnarTrackWriter} and {@link ColumnarTrackReader}, raw and compressed
+ */
+public class ColumnarTrackWriterTest {
+
+    private static final int CHUNK_ROWS = 64;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void roundTrip_chunkBoundaries() throws IOException {
+        int[] counts = {0, 1, CHUNK_ROWS - 1, CHUNK_ROWS, CHUNK_ROWS + 1, 3 * CHUNK_ROWS};
+        for (boolean compress : new boolean[]{false, true}) {
+            for (int count : counts) {
+                assertRoundTrip(randomTrack(count, new Random(count)), CHUNK_ROWS, compress);
+            }
+        }
+    }
+
+    @Test
+    public void roundTrip_oneRowPerChunk() throws IOException {
+        Track track = randomTrack(10, new Random(1));
+        assertRoundTrip(track, 1, false);
+        assertRoundTrip(track, 1, true);
+    }
+
+    @Test
+    public void roundTrip_specialValues() throws IOException {
+        Track track = new Track(8);
+        long[] times = {0, 1000, 1000, 1000, Long.MAX_VALUE / 2, 5, 6, -1500000000000L};
+        float[] floats = {Float.NaN, Float.NaN, 0f, -0f, Float.POSITIVE_INFINITY, 3f, 3f, 3f};
+        for (int i = 0; i < 8; i++) {
+            track.time[i] = times[i];
+            track.lat[i] = i < 4 ? 12.5 : -89.9999999;
+            track.lng[i] = i < 4 ? 77.5 : 179.9999999;
+            track.accuracy[i] = floats[i];
+            track.speed[i] = floats[7 - i];
+        }
+        assertRoundTrip(track, 3, false);
+        assertRoundTrip(track, 3, true);
+    }
+
+    @Test
+    public void timeQuery_matchesFilter() throws IOException {
+        Track track = randomTrack(1000, new Random(7));
+        File file = write(track, CHUNK_ROWS, true);
+        ColumnarTrackReader reader = new ColumnarTrackReader(file);
+        long from = track.time[300];
+        long to = track.time[700];
+        final int[] visited = new int[1];
+        long count = reader.scan(new ColumnarQuery().setTimeRange(from, to), new ColumnarTrackReader.RowVisitor() {
+            @Override
+            public boolean onRow(long time, double lat, double lng, float accuracy, float speed) {
+                visited[0]++;
+                return true;
+            }
+        });
+        int expected = 0;
+        for (int i = 0; i < track.count; i++) {
+            if (track.time[i] >= from && track.time[i] < to) {
+                expected++;
+            }
+        }
+        assertEquals(expected, count);
+        assertEquals(expected, visited[0]);
+    }
+
+    @Test
+    public void compressedWalk_tenTimesSmallerThanSegments() throws IOException {
+        Track track = walk(8 * ColumnarTrackWriter.DEFAULT_CHUNK_ROWS, new Random(36));
+        long raw = write(track, ColumnarTrackWriter.DEFAULT_CHUNK_ROWS, false).length();
+        long compressed = write(track, ColumnarTrackWriter.DEFAULT_CHUNK_ROWS, true).length();
+        long segment = TrackSegment.HEADER_SIZE + (long) track.count * TrackSegment.RECORD_SIZE;
+        assertTrue("Compressed " + compressed + " bytes, segment " + segment, compressed * 10 < segment);
+        assertTrue("Compressed " + compressed + " bytes, raw " + raw, compressed * 8 < raw);
+    }
+
+    private void assertRoundTrip(final Track track, int chunkRows, final boolean compress)
+            throws IOException {
+        ColumnarTrackReader reader = new ColumnarTrackReader(write(track, chunkRows, compress));
+        assertEquals(track.count, reader.getRowCount());
+        assertEquals((track.count + chunkRows - 1) / chunkRows, reader.getChunkCount());
+        final int[] row = new int[1];
+        reader.scan(new ColumnarQuery(), new ColumnarTrackReader.RowVisitor() {
+            @Override
+            public boolean onRow(long time, double lat, double lng, float accuracy, float speed) {
+                int i = row[0]++;
+                String message = "Row " + i + (compress ? " compressed" : " raw");
+                assertEquals(message, track.time[i], time);
+                if (compress) {
+                    // Quantized to 1e-7 degrees
+                    assertEquals(message, track.lat[i], lat, 0.5e-7);
+                    assertEquals(message, track.lng[i], lng, 0.5e-7);
+                } else {
+                    assertEquals(message, Double.doubleToRawLongBits(track.lat[i]), Double.doubleToRawLongBits(lat));
+                    assertEquals(message, Double.doubleToRawLongBits(track.lng[i]), Double.doubleToRawLongBits(lng));
+                }
+                assertEquals(message, Float.floatToRawIntBits(track.accuracy[i]), Float.floatToRawIntBits(accuracy));
+                assertEquals(message, Float.floatToRawIntBits(track.speed[i]), Float.floatToRawIntBits(speed));
+                return true;
+            }
+        });
+        assertEquals(track.count, row[0]);
+    }
+
+    private File write(Track track, int chunkRows, boolean compress) throws IOException {
+        File file = folder.newFile();
+        ColumnarTrackWriter writer = new ColumnarTrackWriter(file, chunkRows, compress);
+        for (int i = 0; i < track.count; i++) {
+            writer.append(track.time[i], track.lat[i], track.lng[i], track.accuracy[i], track.speed[i]);
+        }
+        writer.close();
+        return file;
+    }
+
+    // 1 Hz drive with gaps, repeated values and jumps
+    private static Track randomTrack(int count, Random random) {
+        Track track = new Track(count);
+        long time = 1500000000000L;
+        double lat = 12.97;
+        double lng = 77.59;
+        float accuracy = 5;
+        for (int i = 0; i < count; i++) {
+            int kind = random.nextInt(20);
+            time += kind == 0 ? random.nextInt(Integer.MAX_VALUE) * 1000L : 1000;
+            lat += kind == 1 ? random.nextDouble() - 0.5 : (random.nextDouble() - 0.5) * 1e-4;
+            lng += (random.nextDouble() - 0.5) * 1e-4;
+            if (random.nextInt(4) == 0) {
+                accuracy = random.nextFloat() * 30;
+            }
+            track.time[i] = time;
+            track.lat[i] = lat;
+            track.lng[i] = lng;
+            track.accuracy[i] = accuracy;
+            track.speed[i] = kind == 2 ? Float.NaN : random.nextInt(3) * 2.5f;
+        }
+        return track;
+    }
+
+    // 1 Hz walk with GNSS noise, accuracy and speed updated every few fixes
+    private static Track walk(int count, Random random) {
+        Track track = new Track(count);
+        double lat = 12.97;
+        double lng = 77.59;
+        double heading = 0;
+        float accuracy = 5;
+        float speed = 1.4f;
+        for (int i = 0; i < count; i++) {
+            heading += (random.nextDouble() - 0.5) * 0.3;
+            lat += Math.cos(heading) * 1.4 / GeoMath.METERS_PER_DEGREE + random.nextGaussian() * 2e-6;
+            lng += Math.sin(heading) * 1.4 / 108000 + random.nextGaussian() * 2e-6;
+            if (random.nextInt(10) == 0) {
+                accuracy = 3 + random.nextInt(8);
+            }
+            if (random.nextInt(10) == 0) {
+                speed = Math.round(random.nextFloat() * 20) / 10f;
+            }
+            track.time[i] = 1500000000000L + i * 1000L;
+            track.lat[i] = lat;
+            track.lng[i] = lng;
+            track.accuracy[i] = accuracy;
+            track.speed[i] = speed;
+        }
+        return track;
+    }
+
+    private static final class Track {
+        final int count;
+        final long[] time;
+        final double[] lat;
+        final double[] lng;
+        final float[] accuracy;
+        final float[] speed;
+
+        Track(int count) {
+            this.count = count;
+            time = new long[count];
+            lat = new double[count];
+            lng = new double[count];
+            accuracy = new float[count];
+            speed = new float[count];
+        }
+    }
+}
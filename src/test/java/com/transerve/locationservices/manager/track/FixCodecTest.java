@@ -0,0 +1,196 @@
+package com.transerve.locationservices.manager.track;
+
+import com.transerve.locationservices.manager.LocationQuality;
+import com.transerve.locationservices.manager.TTNewLocation;
+import com.transerve.locationservices.manager.geo.GeoMath;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Round trips and encoded size of {@link FixCodec}
+ */
+public class FixCodecTest {
+
+    private static final LocationQuality[] QUALITIES = LocationQuality.values();
+
+    @Test
+    public void header_roundTrip() {
+        ByteBuffer buffer = ByteBuffer.allocate(FixCodec.HEADER_SIZE);
+        FixCodec.writeHeader(buffer);
+        assertFalse(buffer.hasRemaining());
+        buffer.flip();
+        assertEquals(FixCodec.VERSION, FixCodec.readHeader(buffer));
+    }
+
+    @Test
+    public void header_rejectsOtherData() {
+        try {
+            FixCodec.readHeader(ByteBuffer.allocate(FixCodec.HEADER_SIZE));
+            fail();
+        } catch (IllegalArgumentException expected) {
+            // No magic
+        }
+    }
+
+    @Test
+    public void zigZag_extremes() {
+        long[] values = {0, 1, -1, 63, -64, 64, Integer.MAX_VALUE, Integer.MIN_VALUE,
+                Long.MAX_VALUE, Long.MIN_VALUE};
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 10);
+        for (long value : values) {
+            FixCodec.putZigZag(buffer, value);
+        }
+        buffer.flip();
+        for (long value : values) {
+            assertEquals(value, FixCodec.getZigZag(buffer));
+        }
+    }
+
+    @Test
+    public void roundTrip_steadyTrack() {
+        TTNewLocation[] fixes = steadyTrack(3600, new Random(30));
+        ByteBuffer buffer = encode(fixes);
+        assertDecodes(fixes, buffer);
+        double bytesPerFix = (double) buffer.limit() / fixes.length;
+        // The class doc promises 4 to 7 bytes per fix
+        assertTrue("Bytes per fix " + bytesPerFix, bytesPerFix >= 4 && bytesPerFix <= 7);
+    }
+
+    @Test
+    public void roundTrip_irregularTrack() {
+        Random random = new Random(31);
+        TTNewLocation[] fixes = new TTNewLocation[5000];
+        double lat = -33.85;
+        double lng = 151.2;
+        long time = 1500000000000L;
+        long clockOffset = -1400000000000L;
+        for (int i = 0; i < fixes.length; i++) {
+            int kind = random.nextInt(10);
+            if (kind == 0) {
+                // Gap of up to a day
+                time += random.nextInt(24 * 60 * 60) * 1000L;
+            } else if (kind == 1) {
+                // Clock stepped back
+                time -= random.nextInt(5000);
+            } else {
+                time += 1000;
+            }
+            if (kind == 2) {
+                // Jump in any direction, across the antimeridian now and then
+                lat = Math.max(-89, Math.min(89, lat + (random.nextDouble() - 0.5) * 20));
+                lng = lng + (random.nextDouble() - 0.5) * 40;
+                lng = lng >= 180 ? lng - 360 : lng < -180 ? lng + 360 : lng;
+            } else {
+                lat -= random.nextDouble() * 1e-4;
+                lng -= random.nextDouble() * 1e-4;
+            }
+            if (kind == 3) {
+                clockOffset += random.nextInt(2000) - 1000;
+            }
+            boolean hasSpeed = random.nextInt(3) != 0;
+            boolean hasBearing = random.nextInt(3) != 0;
+            // Bearings wander around north so deltas wrap
+            float bearing = (float) ((360 + (random.nextDouble() - 0.5) * 40) % 360);
+            fixes[i] = new TTNewLocation(lat, lng, random.nextInt(500) / 10f,
+                    (time + clockOffset) * 1000000L, time, hasSpeed, random.nextInt(5000) / 100f,
+                    hasBearing, bearing, QUALITIES[random.nextInt(QUALITIES.length)]);
+        }
+        assertDecodes(fixes, encode(fixes));
+    }
+
+    @Test
+    public void reset_startsIndependentBlock() {
+        TTNewLocation[] fixes = steadyTrack(20, new Random(32));
+        ByteBuffer buffer = ByteBuffer.allocate(fixes.length * FixCodec.MAX_RECORD_SIZE);
+        FixCodec.Encoder encoder = new FixCodec.Encoder();
+        int blockStart = 0;
+        for (int i = 0; i < fixes.length; i++) {
+            if (i == 10) {
+                encoder.reset();
+                blockStart = buffer.position();
+            }
+            encoder.encode(fixes[i], buffer);
+        }
+        buffer.flip();
+        buffer.position(blockStart);
+        FixCodec.Decoder decoder = new FixCodec.Decoder();
+        for (int i = 10; i < fixes.length; i++) {
+            assertTrue(decoder.decode(buffer));
+            assertFix(fixes[i], decoder);
+        }
+        assertFalse(decoder.decode(buffer));
+    }
+
+    // 1 Hz drive with speed and heading drifting every fix, accuracy changing now and then
+    private static TTNewLocation[] steadyTrack(int count, Random random) {
+        TTNewLocation[] fixes = new TTNewLocation[count];
+        double lat = 12.97;
+        double lng = 77.59;
+        double heading = 0;
+        float speed = 10;
+        float accuracy = 5;
+        long time = 1500000000000L;
+        for (int i = 0; i < count; i++) {
+            heading += (random.nextDouble() - 0.5) * 0.1;
+            speed = Math.max(0, Math.min(30, speed + (float) random.nextGaussian() * 0.3f));
+            if (random.nextInt(10) == 0) {
+                accuracy = 3 + random.nextInt(50) / 10f;
+            }
+            lat += Math.cos(heading) * speed / GeoMath.METERS_PER_DEGREE;
+            lng += Math.sin(heading) * speed / 108000;
+            time += 1000;
+            float bearing = (float) ((Math.toDegrees(heading) % 360 + 360) % 360);
+            fixes[i] = new TTNewLocation(lat, lng, accuracy, (time - 1400000000000L) * 1000000L, time,
+                    true, speed, true, bearing, LocationQuality.FILTERED);
+        }
+        return fixes;
+    }
+
+    private static ByteBuffer encode(TTNewLocation[] fixes) {
+        ByteBuffer buffer = ByteBuffer.allocate(fixes.length * FixCodec.MAX_RECORD_SIZE);
+        FixCodec.Encoder encoder = new FixCodec.Encoder();
+        for (TTNewLocation fix : fixes) {
+            int start = buffer.position();
+            encoder.encode(fix, buffer);
+            assertTrue(buffer.position() - start <= FixCodec.MAX_RECORD_SIZE);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void assertDecodes(TTNewLocation[] fixes, ByteBuffer buffer) {
+        FixCodec.Decoder decoder = new FixCodec.Decoder();
+        for (TTNewLocation fix : fixes) {
+            assertTrue(decoder.decode(buffer));
+            assertFix(fix, decoder);
+        }
+        assertFalse(decoder.decode(buffer));
+    }
+
+    private static void assertFix(TTNewLocation expected, FixCodec.Decoder actual) {
+        assertEquals(expected.getTime(), actual.getTime());
+        assertEquals(expected.getElapsedRealtimeNanos() / 1000000, actual.getElapsedRealtimeNanos() / 1000000);
+        assertEquals(expected.getLat(), actual.getLat(), 0.5e-7 + 1e-12);
+        assertEquals(expected.getLng(), actual.getLng(), 0.5e-7 + 1e-12);
+        assertEquals(expected.getAccuracy(), actual.getAccuracy(), 0.05 + 1e-6);
+        assertEquals(expected.hasSpeed(), actual.hasSpeed());
+        if (expected.hasSpeed()) {
+            assertEquals(expected.getSpeed(), actual.getSpeed(), 0.005 + 1e-6);
+        }
+        assertEquals(expected.hasBearing(), actual.hasBearing());
+        if (expected.hasBearing()) {
+            double error = Math.abs(expected.getBearing() - actual.getBearing()) % 360;
+            assertTrue(Math.min(error, 360 - error) <= 0.05 + 1e-4);
+        }
+        assertEquals(expected.getQuality(), actual.getQuality());
+        assertFalse(actual.hasAltitude());
+    }
+}
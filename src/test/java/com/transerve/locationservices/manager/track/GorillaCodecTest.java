@@ -0,0 +1,244 @@
+package com.transerve.locationservices.manager.track;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class GorillaCodecTest {
+
+    private final GorillaCodec.BitWriter writer = new GorillaCodec.BitWriter();
+
+    private final GorillaCodec.BitReader reader = new GorillaCodec.BitReader();
+
+    @Test
+    public void longs_bucketBoundaries() {
+        // Delta of delta on both sides of every bucket limit
+        long[] deltas = {0, 1, -1, 64, 65, -63, -64, 256, 257, -255, -256, 2048, 2049, -2047, -2048,
+                0x80000000L, 0x80000001L, -0x7FFFFFFFL, -0x80000000L, Long.MAX_VALUE, Long.MIN_VALUE};
+        long[] values = new long[deltas.length * 2 + 1];
+        long value = 1500000000000L;
+        long delta = 0;
+        int n = 0;
+        values[n++] = value;
+        for (long deltaOfDelta : deltas) {
+            delta += deltaOfDelta;
+            value += delta;
+            values[n++] = value;
+            // Back to a zero delta so the next limit is hit exactly
+            delta = 0;
+            values[n++] = value;
+        }
+        assertLongsRoundTrip(values);
+    }
+
+    @Test
+    public void longs_extremesAndJumps() {
+        assertLongsRoundTrip(new long[]{Long.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, 0, -1,
+                Long.MAX_VALUE, Long.MAX_VALUE, 1500000000000L, 1500000001000L, 1600000000000L,
+                1500000000000L});
+    }
+
+    @Test
+    public void longs_single() {
+        assertLongsRoundTrip(new long[]{42});
+    }
+
+    @Test
+    public void longs_regularSeriesTakesOneBitPerValue() {
+        long[] values = new long[1000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = 1500000000000L + i * 1000L;
+        }
+        assertLongsRoundTrip(values);
+        // First value raw, second sets the delta of 1000 in the 12 bit bucket, the rest are a
+        // zero delta of delta
+        assertEquals(64 + 4 + 12 + 998, writer.getBitCount());
+    }
+
+    @Test
+    public void longs_random() {
+        Random random = new Random(36);
+        for (int round = 0; round < 200; round++) {
+            long[] values = new long[1 + random.nextInt(500)];
+            long value = random.nextLong();
+            for (int i = 0; i < values.length; i++) {
+                switch (random.nextInt(4)) {
+                    case 0:
+                        break;
+                    case 1:
+                        value += random.nextInt(100);
+                        break;
+                    case 2:
+                        value += random.nextInt();
+                        break;
+                    default:
+                        value = random.nextLong();
+                }
+                values[i] = value;
+            }
+            assertLongsRoundTrip(values);
+        }
+    }
+
+    @Test
+    public void doubles_specialValues() {
+        assertDoublesRoundTrip(new double[]{Double.NaN, Double.NaN, 0.0, -0.0, 0.0,
+                Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.MIN_VALUE,
+                Double.MAX_VALUE, -Double.MAX_VALUE, Double.longBitsToDouble(0x7FF0000000000001L),
+                Double.longBitsToDouble(0xFFFFFFFFFFFFFFFFL), 1.0, 1.0, 1.0, 12.9716, 12.9717});
+    }
+
+    @Test
+    public void doubles_random() {
+        Random random = new Random(36);
+        for (int round = 0; round < 200; round++) {
+            double[] values = new double[1 + random.nextInt(500)];
+            double value = random.nextDouble();
+            for (int i = 0; i < values.length; i++) {
+                switch (random.nextInt(4)) {
+                    case 0:
+                        break;
+                    case 1:
+                        value += random.nextDouble() * 1e-4;
+                        break;
+                    case 2:
+                        value = Double.longBitsToDouble(random.nextLong());
+                        break;
+                    default:
+                        value = random.nextGaussian() * 1e6;
+                }
+                values[i] = value;
+            }
+            assertDoublesRoundTrip(values);
+        }
+    }
+
+    @Test
+    public void floats_specialValues() {
+        assertFloatsRoundTrip(new float[]{Float.NaN, Float.NaN, 0f, -0f, 0f,
+                Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.MIN_VALUE, Float.MAX_VALUE,
+                -Float.MAX_VALUE, Float.intBitsToFloat(0x7F800001), Float.intBitsToFloat(0xFFFFFFFF),
+                5f, 5f, 5f, 4.9f, 5.1f});
+    }
+
+    @Test
+    public void floats_equalRunTakesOneBitPerValue() {
+        float[] values = new float[100];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = 3.5f;
+        }
+        assertFloatsRoundTrip(values);
+        assertEquals(32 + 99, writer.getBitCount());
+    }
+
+    @Test
+    public void floats_random() {
+        Random random = new Random(36);
+        for (int round = 0; round < 200; round++) {
+            float[] values = new float[1 + random.nextInt(500)];
+            float value = random.nextFloat();
+            for (int i = 0; i < values.length; i++) {
+                switch (random.nextInt(4)) {
+                    case 0:
+                        break;
+                    case 1:
+                        value += random.nextFloat();
+                        break;
+                    case 2:
+                        value = Float.intBitsToFloat(random.nextInt());
+                        break;
+                    default:
+                        value = random.nextFloat() * 50;
+                }
+                values[i] = value;
+            }
+            assertFloatsRoundTrip(values);
+        }
+    }
+
+    @Test
+    public void blocksDecodeFromTheirOffset() {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.put((byte) 0x55);
+        writer.reset(buffer);
+        GorillaCodec.FloatEncoder encoder = new GorillaCodec.FloatEncoder(writer);
+        encoder.reset();
+        encoder.encode(1.5f);
+        encoder.encode(2.5f);
+        writer.finish();
+        int second = buffer.position();
+        writer.reset(buffer);
+        encoder.reset();
+        encoder.encode(7f);
+        writer.finish();
+
+        GorillaCodec.FloatDecoder decoder = new GorillaCodec.FloatDecoder(reader);
+        reader.reset(buffer, 1);
+        decoder.reset();
+        assertEquals(1.5f, decoder.decode(), 0f);
+        assertEquals(2.5f, decoder.decode(), 0f);
+        reader.reset(buffer, second);
+        decoder.reset();
+        assertEquals(7f, decoder.decode(), 0f);
+    }
+
+    private void assertLongsRoundTrip(long[] values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 9 + 16);
+        writer.reset(buffer);
+        GorillaCodec.LongEncoder encoder = new GorillaCodec.LongEncoder(writer);
+        encoder.reset();
+        for (long value : values) {
+            encoder.encode(value);
+        }
+        writer.finish();
+        assertEquals((writer.getBitCount() + 7) / 8, buffer.position());
+
+        reader.reset(buffer, 0);
+        GorillaCodec.LongDecoder decoder = new GorillaCodec.LongDecoder(reader);
+        decoder.reset();
+        for (int i = 0; i < values.length; i++) {
+            assertEquals("Value " + i, values[i], decoder.decode());
+        }
+    }
+
+    private void assertDoublesRoundTrip(double[] values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 10 + 16);
+        writer.reset(buffer);
+        GorillaCodec.DoubleEncoder encoder = new GorillaCodec.DoubleEncoder(writer);
+        encoder.reset();
+        for (double value : values) {
+            encoder.encode(value);
+        }
+        writer.finish();
+
+        reader.reset(buffer, 0);
+        GorillaCodec.DoubleDecoder decoder = new GorillaCodec.DoubleDecoder(reader);
+        decoder.reset();
+        for (int i = 0; i < values.length; i++) {
+            assertEquals("Value " + i, Double.doubleToRawLongBits(values[i]),
+                    Double.doubleToRawLongBits(decoder.decode()));
+        }
+    }
+
+    private void assertFloatsRoundTrip(float[] values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 6 + 16);
+        writer.reset(buffer);
+        GorillaCodec.FloatEncoder encoder = new GorillaCodec.FloatEncoder(writer);
+        encoder.reset();
+        for (float value : values) {
+            encoder.encode(value);
+        }
+        writer.finish();
+
+        reader.reset(buffer, 0);
+        GorillaCodec.FloatDecoder decoder = new GorillaCodec.FloatDecoder(reader);
+        decoder.reset();
+        for (int i = 0; i < values.length; i++) {
+            assertEquals("Value " + i, Float.floatToRawIntBits(values[i]),
+                    Float.floatToRawIntBits(decoder.decode()));
+        }
+    }
+}
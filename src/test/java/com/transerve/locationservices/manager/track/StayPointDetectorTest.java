@@ -0,0 +1,223 @@
+package com.transerve.locationservices.manager.track;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.transerve.locationservices.manager.geo.GeoMath.METERS_PER_DEGREE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Trip and stop events of {@link StayPointDetector} on a simulated day: a drive, a stop and a
+ * drive on, with fixes every 10 seconds
+ */
+public class StayPointDetectorTest {
+
+    private static final double LAT = 45;
+
+    private static final double LNG = 7;
+
+    private static final long START = 1500000000000L;
+
+    private static final long INTERVAL = 10000;
+
+    // Event positions within this of the expected ones, distances within a meter
+    private static final double DEGREES = 1e-9;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // East and north offsets in meters of every fix added, in order
+    private final List<double[]> fixes = new ArrayList<double[]>();
+
+    private final Recorder events = new Recorder();
+
+    private final StayPointDetector detector = new StayPointDetector(events);
+
+    @Test
+    public void driveStopDrive_pinsEvents() throws IOException {
+        TripSummaryLog log = new TripSummaryLog(new File(folder.getRoot(), "trips.bin"));
+        detector.setTripLog(log);
+
+        // Fixes 0 to 19 drive 150 m apart, 20 to 79 wait 10 minutes 3 km east, 5 m either
+        // side of the spot, then 80 to 89 drive on
+        for (int i = 0; i < 20; i++) {
+            add(i * 150, 0);
+        }
+        events.assertTripStart(0);
+        assertTrue(detector.isInTrip());
+        for (int i = 20; i < 80; i++) {
+            add(3000, i % 2 == 0 ? 5 : -5);
+            if (i < 50) {
+                // Not a stop before it lasted 5 minutes
+                events.assertNone();
+                assertFalse(detector.isStopped());
+            } else if (i == 50) {
+                events.assertTripEnd(centroid(20, 50), 0, 20, 3000);
+                assertTrue(detector.isStopped());
+                assertFalse(detector.isInTrip());
+            }
+        }
+        events.assertNone();
+        for (int i = 80; i < 90; i++) {
+            add(3000 + (i - 79) * 150, 0);
+        }
+        // The stop is over with the last fix at it, where the next trip starts
+        events.assertStop(centroid(20, 79), 20, 79);
+        events.assertTripStart(79);
+        assertFalse(detector.isStopped());
+        assertTrue(detector.isInTrip());
+        events.assertNone();
+
+        detector.finish();
+        events.assertTripEnd(fixes.get(89), 79, 89, Math.hypot(150, 5) + 9 * 150);
+        events.assertNone();
+        assertFalse(detector.isInTrip());
+
+        assertEquals(2 * TripSummaryLog.RECORD_SIZE, log.size());
+        final List<Object[]> trips = new ArrayList<Object[]>();
+        log.read(new TripSummaryLog.TripVisitor() {
+            @Override
+            public boolean onTrip(long startTime, long endTime, double startLat, double startLng,
+                                  double endLat, double endLng, float distanceMeters, int fixCount) {
+                trips.add(new Object[]{startTime, endTime, fixCount});
+                return true;
+            }
+        });
+        assertEquals(START, trips.get(0)[0]);
+        assertEquals(time(20), trips.get(0)[1]);
+        assertEquals(21, trips.get(0)[2]);
+        assertEquals(time(79), trips.get(1)[0]);
+        assertEquals(time(89), trips.get(1)[1]);
+        assertEquals(11, trips.get(1)[2]);
+    }
+
+    @Test
+    public void slowDrift_staysOneStop() {
+        for (int i = 0; i < 20; i++) {
+            add(i * 150, 0);
+        }
+        events.assertTripStart(0);
+        // Half an hour creeping east at 0.1 m/s, 180 m in all. The centroid follows halfway
+        // behind, so the fixes never get farther from it than the stay radius.
+        for (int i = 20; i < 200; i++) {
+            add(3000 + (i - 20), 0);
+            if (i == 50) {
+                events.assertTripEnd(centroid(20, 50), 0, 20, 3000);
+            }
+        }
+        events.assertNone();
+        assertTrue(detector.isStopped());
+        add(3179 + 150, 0);
+        events.assertStop(centroid(20, 199), 20, 199);
+        events.assertTripStart(199);
+        events.assertNone();
+    }
+
+    @Test
+    public void stationaryStart_noTripBeforeLeaving() {
+        for (int i = 0; i < 40; i++) {
+            add(0, i % 2 == 0 ? 5 : -5);
+        }
+        assertTrue(detector.isStopped());
+        assertFalse(detector.isInTrip());
+        events.assertNone();
+        add(150, 0);
+        events.assertStop(centroid(0, 39), 0, 39);
+        events.assertTripStart(39);
+    }
+
+    private void add(double east, double north) {
+        long time = time(fixes.size());
+        fixes.add(new double[]{east, north});
+        double[] position = position(east, north);
+        detector.add(position[0], position[1], time);
+    }
+
+    private double[] centroid(int first, int last) {
+        double east = 0;
+        double north = 0;
+        for (int i = first; i <= last; i++) {
+            east += fixes.get(i)[0];
+            north += fixes.get(i)[1];
+        }
+        int count = last - first + 1;
+        return new double[]{east / count, north / count};
+    }
+
+    private static double[] position(double east, double north) {
+        return new double[]{LAT + north / METERS_PER_DEGREE,
+                LNG + east / (METERS_PER_DEGREE * Math.cos(Math.toRadians(LAT)))};
+    }
+
+    private static long time(int fix) {
+        return START + fix * INTERVAL;
+    }
+
+    private final class Recorder implements StayPointDetector.Listener {
+
+        // Type, lat, lng, times and distance of each event not asserted yet
+        private final List<Object[]> events = new ArrayList<Object[]>();
+
+        @Override
+        public void onTripStart(double lat, double lng, long time) {
+            events.add(new Object[]{"start", lat, lng, time});
+        }
+
+        @Override
+        public void onTripEnd(double lat, double lng, long startTime, long endTime, float distanceMeters) {
+            events.add(new Object[]{"end", lat, lng, startTime, endTime, distanceMeters});
+        }
+
+        @Override
+        public void onStop(double lat, double lng, long arrivalTime, long departureTime) {
+            events.add(new Object[]{"stop", lat, lng, arrivalTime, departureTime});
+        }
+
+        // Trips start at a fix
+        void assertTripStart(int fix) {
+            Object[] event = next("start");
+            assertPosition(fixes.get(fix), event);
+            assertEquals(time(fix), event[3]);
+        }
+
+        void assertTripEnd(double[] meters, int startFix, int endFix, double distance) {
+            Object[] event = next("end");
+            assertPosition(meters, event);
+            assertEquals(time(startFix), event[3]);
+            assertEquals(time(endFix), event[4]);
+            assertEquals(distance, (Float) event[5], 1);
+        }
+
+        void assertStop(double[] meters, int arrivalFix, int departureFix) {
+            Object[] event = next("stop");
+            assertPosition(meters, event);
+            assertEquals(time(arrivalFix), event[3]);
+            assertEquals(time(departureFix), event[4]);
+        }
+
+        void assertNone() {
+            assertEquals(0, events.size());
+        }
+
+        private Object[] next(String type) {
+            assertFalse("No more events", events.isEmpty());
+            Object[] event = events.remove(0);
+            assertEquals(type, event[0]);
+            return event;
+        }
+
+        private void assertPosition(double[] meters, Object[] event) {
+            double[] expected = position(meters[0], meters[1]);
+            assertEquals(expected[0], (Double) event[1], DEGREES);
+            assertEquals(expected[1], (Double) event[2], DEGREES);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.transerve.locationservices.manager.track;
+
+import com.transerve.locationservices.manager.LocationQuality;
+import com.transerve.locationservices.manager.geo.GeoMath;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Positions interpolated by {@link TrackHistory} along the great circle between fixes, and
+ * the gaps it refuses to bridge
+ */
+public class TrackHistoryTest {
+
+    private static final long MINUTE = 60 * 1000L;
+
+    private static final long START = 1500000000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+
+    private final PositionEstimate estimate = new PositionEstimate();
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.newFolder();
+    }
+
+    @Test
+    public void positionAt_exactFix() throws IOException {
+        TrackHistory history = history(new double[][]{{45, 7, 5}, {45.001, 7, 15}}, START, START + 10000);
+        assertTrue(history.positionAt(START, estimate));
+        assertFalse(estimate.isInterpolated());
+        assertEquals(START, estimate.getTime());
+        assertEquals(45, estimate.getLat(), 0);
+        assertEquals(7, estimate.getLng(), 0);
+        assertEquals(5, estimate.getAccuracy(), 0);
+        // Speed and bearing of the leg that starts there
+        assertEquals(GeoMath.distance(45, 7, 45.001, 7) / 10, estimate.getSpeed(), 1e-3);
+        assertEquals(0, estimate.getBearing(), 1e-6);
+
+        assertTrue(history.positionAt(START + 10000, estimate));
+        assertFalse(estimate.isInterpolated());
+        assertEquals(45.001, estimate.getLat(), 0);
+        assertEquals(15, estimate.getAccuracy(), 0);
+    }
+
+    @Test
+    public void positionAt_interpolatesAlongGreatCircle() throws IOException {
+        // A quarter of the way round at 45 degrees north, where the great circle bulges well
+        // north of the parallel
+        TrackHistory history = history(new double[][]{{45, 0, 10}, {45, 90, 30}}, START, START + 4 * MINUTE);
+        assertTrue(history.positionAt(START + 2 * MINUTE, estimate));
+        assertTrue(estimate.isInterpolated());
+        assertEquals(START + 2 * MINUTE, estimate.getTime());
+        // Midway between (c, 0, c) and (0, c, c) on the unit sphere is along (1, 1, 2)
+        assertEquals(Math.toDegrees(Math.atan(Math.sqrt(2))), estimate.getLat(), 1e-9);
+        assertEquals(45, estimate.getLng(), 1e-9);
+        assertEquals(20, estimate.getAccuracy(), 1e-4);
+        // Equal distances on both sides
+        double first = GeoMath.distance(45, 0, estimate.getLat(), estimate.getLng());
+        double second = GeoMath.distance(estimate.getLat(), estimate.getLng(), 45, 90);
+        assertEquals(first, second, 1e-6);
+
+        assertTrue(history.positionAt(START + MINUTE, estimate));
+        assertEquals(GeoMath.distance(45, 0, 45, 90) / 4,
+                GeoMath.distance(45, 0, estimate.getLat(), estimate.getLng()), 1e-3);
+        assertEquals(15, estimate.getAccuracy(), 1e-4);
+        assertEquals(GeoMath.distance(45, 0, 45, 90) / 240, estimate.getSpeed(), 1e-2);
+        assertEquals(GeoMath.bearing(45, 0, 45, 90), estimate.getBearing(), 1e-4);
+    }
+
+    @Test
+    public void positionAt_acrossAntimeridian() throws IOException {
+        TrackHistory history = history(new double[][]{{-17, 179.999, 5}, {-17, -179.999, 5}}, START, START + 2000);
+        assertTrue(history.positionAt(START + 1000, estimate));
+        assertEquals(-17, estimate.getLat(), 1e-6);
+        assertEquals(180, Math.abs(estimate.getLng()), 1e-6);
+    }
+
+    @Test
+    public void positionAt_outsideRecording() throws IOException {
+        TrackHistory history = history(new double[][]{{45, 7, 5}, {45.001, 7, 5}}, START, START + 10000);
+        assertFalse(history.positionAt(START - 1, estimate));
+        assertFalse(history.positionAt(START + 10001, estimate));
+    }
+
+    @Test
+    public void positionAt_gap() throws IOException {
+        TrackHistory history = history(new double[][]{{45, 7, 5}, {45.001, 7, 5}, {45.01, 7, 5}},
+                START, START + 10000, START + 10000 + 6 * MINUTE);
+        assertTrue(history.positionAt(START + 5000, estimate));
+        // Longer than the default 5 minutes
+        assertFalse(history.positionAt(START + 10001, estimate));
+        assertFalse(history.positionAt(START + 3 * MINUTE, estimate));
+        // The fixes on either side still have a position
+        assertTrue(history.positionAt(START + 10000, estimate));
+        assertEquals(45.001, estimate.getLat(), 0);
+        assertTrue(history.positionAt(START + 10000 + 6 * MINUTE, estimate));
+        assertEquals(45.01, estimate.getLat(), 0);
+
+        history.setMaxGapMillis(10 * MINUTE);
+        assertTrue(history.positionAt(START + 10000 + 3 * MINUTE, estimate));
+        assertTrue(estimate.isInterpolated());
+        assertEquals(45.0055, estimate.getLat(), 1e-6);
+    }
+
+    @Test
+    public void positionsAt_matchesPositionAt() throws IOException {
+        int count = 200;
+        double[][] fixes = new double[count][];
+        long[] fixTimes = new long[count];
+        long time = START;
+        for (int i = 0; i < count; i++) {
+            fixes[i] = new double[]{45 + i * 1e-3, 7 + (i % 5) * 1e-3, 3 + i % 7};
+            fixTimes[i] = time;
+            // A gap now and then
+            time += i % 50 == 49 ? 10 * MINUTE : 1000 + i % 3 * 500;
+        }
+        TrackHistory history = history(fixes, fixTimes);
+
+        long[] times = new long[2000];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = START - 5000 + i * (time - START + 10000) / times.length;
+        }
+        double[] lat = new double[times.length];
+        double[] lng = new double[times.length];
+        float[] accuracy = new float[times.length];
+        int found = history.positionsAt(times, lat, lng, accuracy, null, null);
+        int expected = 0;
+        for (int i = 0; i < times.length; i++) {
+            if (history.positionAt(times[i], estimate)) {
+                expected++;
+                assertEquals(estimate.getLat(), lat[i], 0);
+                assertEquals(estimate.getLng(), lng[i], 0);
+                assertEquals(estimate.getAccuracy(), accuracy[i], 0);
+            } else {
+                assertTrue(Double.isNaN(lat[i]));
+                assertTrue(Double.isNaN(lng[i]));
+                assertTrue(Float.isNaN(accuracy[i]));
+            }
+        }
+        assertEquals(expected, found);
+        assertTrue(found > 0 && found < times.length);
+    }
+
+    @Test
+    public void positionsAt_rejectsUnorderedTimes() throws IOException {
+        TrackHistory history = history(new double[][]{{45, 7, 5}, {45.001, 7, 5}}, START, START + 10000);
+        try {
+            history.positionsAt(new long[]{START + 2000, START + 1000}, new double[2], new double[2],
+                    null, null, null);
+            fail();
+        } catch (IllegalArgumentException expected) {
+            // Not ascending
+        }
+    }
+
+    @Test
+    public void update_picksUpNewFixes() throws IOException {
+        TrackSegment segment = TrackSegment.create(TrackSegment.segmentFile(directory, 0), 0, 4,
+                TrackRetention.LEVEL_RAW);
+        append(segment, new double[]{45, 7, 5}, START);
+        TrackHistory history = new TrackHistory(new TrackTimeIndex(new TrackReader(directory)));
+        assertFalse(history.positionAt(START + 5000, estimate));
+        append(segment, new double[]{45.001, 7, 5}, START + 10000);
+        history.update();
+        assertTrue(history.positionAt(START + 5000, estimate));
+        assertEquals(45.0005, estimate.getLat(), 1e-9);
+    }
+
+    // Fixes of lat, lng and accuracy at the given times, in one segment
+    private TrackHistory history(double[][] fixes, long... times) throws IOException {
+        TrackSegment segment = TrackSegment.create(TrackSegment.segmentFile(directory, 0), 0,
+                fixes.length, TrackRetention.LEVEL_RAW);
+        for (int i = 0; i < fixes.length; i++) {
+            append(segment, fixes[i], times[i]);
+        }
+        return new TrackHistory(new TrackTimeIndex(new TrackReader(directory), 16));
+    }
+
+    private static void append(TrackSegment segment, double[] fix, long time) {
+        segment.append(fix[0], fix[1], (float) fix[2], 0, time, false, 0f, false, 0f, LocationQuality.FILTERED);
+        segment.commit();
+    }
+}
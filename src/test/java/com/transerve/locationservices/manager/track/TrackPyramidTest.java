@@ -0,0 +1,72 @@
+package com.transerve.locationservices.manager.track;
+
+import com.transerve.locationservices.manager.LocationQuality;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Levels of detail written by {@link TrackPyramid} into segments of a few records
+ */
+public class TrackPyramidTest {
+
+    private static final int LEVELS = 4;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void close_segmentsFillUpWhileFlushing() throws IOException {
+        // Every fix of a zigzag is a vertex on every level, so closing appends to all of them
+        for (int capacity = 1; capacity <= LEVELS; capacity++) {
+            for (int fixes = 1; fixes <= 2 * LEVELS; fixes++) {
+                File directory = folder.newFolder();
+                writeZigzag(directory, fixes, capacity);
+                File[] levels = TrackPyramid.listLevelDirectories(directory);
+                assertEquals(LEVELS, levels.length);
+                for (File level : levels) {
+                    assertEquals(level.getName(), fixes, countRecords(level));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void levelSegments_haveDetailLevel() throws IOException {
+        File directory = folder.newFolder();
+        writeZigzag(directory, 20, 3);
+        for (File level : TrackPyramid.listLevelDirectories(directory)) {
+            for (File file : TrackSegment.listSegmentFiles(level)) {
+                assertEquals(TrackRetention.LEVEL_DETAIL, TrackSegment.open(file, false).getLevel());
+            }
+        }
+    }
+
+    private static void writeZigzag(File directory, int fixes, int capacity) throws IOException {
+        TrackSegment raw = TrackSegment.create(TrackSegment.segmentFile(directory, 0), 0, fixes,
+                TrackRetention.LEVEL_RAW);
+        TrackPyramid pyramid = new TrackPyramid(directory, LEVELS, 1f, capacity);
+        pyramid.open();
+        for (int i = 0; i < fixes; i++) {
+            // About 110 m north and 80 m east or west per fix, far beyond the 8 m top tolerance
+            raw.append(45 + i * 1e-3, 7 + (i % 2) * 1e-3, 5f, 0, 1000L * i, false, 0f, false, 0f,
+                    LocationQuality.FILTERED);
+            pyramid.add(raw, i);
+        }
+        pyramid.close();
+    }
+
+    private static int countRecords(File level) throws IOException {
+        int count = 0;
+        for (File file : TrackSegment.listSegmentFiles(level)) {
+            count += TrackSegment.open(file, false).getCount();
+        }
+        return count;
+    }
+}
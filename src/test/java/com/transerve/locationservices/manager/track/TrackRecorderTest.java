@@ -0,0 +1,103 @@
+package com.transerve.locationservices.manager.track;
+
+import com.transerve.locationservices.manager.LocationQuality;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Restarting {@link TrackRecorder} segments over what a crash left behind
+ */
+public class TrackRecorderTest {
+
+    private static final int CAPACITY = 8;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void openLastSegment_continuesSegmentWithRoom() throws IOException {
+        File directory = folder.newFolder();
+        writeSegment(directory, 0, CAPACITY);
+        writeSegment(directory, 1, 3);
+        TrackSegment segment = TrackRecorder.openLastSegment(directory, CAPACITY, TrackRetention.LEVEL_RAW);
+        assertEquals(1, segment.getIndex());
+        assertEquals(3, segment.getCount());
+    }
+
+    @Test
+    public void openLastSegment_emptyFile() throws IOException {
+        File directory = folder.newFolder();
+        writeSegment(directory, 0, CAPACITY);
+        File last = writeSegment(directory, 1, 3);
+        truncate(last, 0);
+        assertRestartsAfter(directory, last);
+    }
+
+    @Test
+    public void openLastSegment_tornFile() throws IOException {
+        File directory = folder.newFolder();
+        writeSegment(directory, 0, CAPACITY);
+        File last = writeSegment(directory, 1, 3);
+        // The header is there but the records it promises are not
+        truncate(last, TrackSegment.HEADER_SIZE + 2 * TrackSegment.RECORD_SIZE + 5);
+        assertRestartsAfter(directory, last);
+    }
+
+    @Test
+    public void pyramidLevel_tornFile() throws IOException {
+        File directory = folder.newFolder();
+        File level = TrackPyramid.levelDirectory(directory, 1f);
+        assertTrue(level.mkdirs());
+        File last = writeSegment(level, 0, 3);
+        truncate(last, 10);
+        TrackPyramid pyramid = new TrackPyramid(directory, 1, 1f, CAPACITY);
+        pyramid.open();
+        pyramid.close();
+        assertFalse(last.exists());
+        assertEquals(1, TrackSegment.listSegmentFiles(level).length);
+    }
+
+    private static void assertRestartsAfter(File directory, File last) throws IOException {
+        TrackSegment segment = TrackRecorder.openLastSegment(directory, CAPACITY, TrackRetention.LEVEL_RAW);
+        assertEquals(2, segment.getIndex());
+        assertEquals(0, segment.getCount());
+        assertFalse(last.exists());
+        assertTrue(new File(last.getPath() + TrackSegment.BAD_SUFFIX).exists());
+
+        segment.append(46, 8, 5f, 0, 100000L, false, 0f, false, 0f, LocationQuality.FILTERED);
+        segment.commit();
+        TrackReader reader = new TrackReader(directory);
+        assertEquals(2, reader.getSegmentCount());
+        assertEquals(CAPACITY + 1, reader.getCount());
+    }
+
+    private static File writeSegment(File directory, long index, int fixes) throws IOException {
+        File file = TrackSegment.segmentFile(directory, index);
+        TrackSegment segment = TrackSegment.create(file, index, CAPACITY, TrackRetention.LEVEL_RAW);
+        for (int i = 0; i < fixes; i++) {
+            segment.append(45 + i * 1e-4, 7, 5f, 0, 1000L * (index * CAPACITY + i), false, 0f, false, 0f,
+                    LocationQuality.FILTERED);
+        }
+        segment.commit();
+        return file;
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+}
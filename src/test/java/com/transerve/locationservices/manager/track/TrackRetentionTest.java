@@ -0,0 +1,209 @@
+package com.transerve.locationservices.manager.track;
+
+import com.transerve.locationservices.manager.LocationQuality;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compaction steps of {@link TrackRetention} over segments written by hand
+ */
+public class TrackRetentionTest {
+
+    private static final long MINUTE = 60 * 1000L;
+
+    private static final long HOUR = 60 * MINUTE;
+
+    private static final long DAY = 24 * HOUR;
+
+    private static final long START = 1500000000000L;
+
+    private static final int FIXES = 100;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+
+    private TrackRetention retention;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.newFolder();
+        retention = new TrackRetention(directory);
+        retention.setFullRateMillis(DAY);
+        retention.setSimplifiedMillis(30 * DAY);
+        retention.setSimplifyToleranceMeters(10f);
+        retention.setTripGapMillis(10 * MINUTE);
+    }
+
+    @Test
+    public void step_keepsRecentSegments() throws IOException {
+        writeLine(0, START);
+        writeLine(1, START + HOUR);
+        assertFalse(retention.step(START + 2 * HOUR));
+        assertEquals(FIXES, open(0).getCount());
+        assertEquals(TrackRetention.LEVEL_RAW, open(0).getLevel());
+    }
+
+    @Test
+    public void step_simplifiesOldRawSegments() throws IOException {
+        writeLine(0, START);
+        writeLine(1, START + 2 * DAY);
+        retention.runOnce(START + 2 * DAY);
+        TrackSegment simplified = open(0);
+        assertEquals(TrackRetention.LEVEL_SIMPLIFIED, simplified.getLevel());
+        // A straight line keeps its ends
+        assertEquals(2, simplified.getCount());
+        assertEquals(START, simplified.getTime(0));
+        assertEquals(START + (FIXES - 1) * 1000L, simplified.getTime(1));
+        // The recorder's segment is never touched
+        assertEquals(TrackRetention.LEVEL_RAW, open(1).getLevel());
+        assertEquals(FIXES, open(1).getCount());
+    }
+
+    @Test
+    public void step_summarizesOldSimplifiedSegments() throws IOException {
+        TrackSegment segment = TrackSegment.create(TrackSegment.segmentFile(directory, 0), 0, 4,
+                TrackRetention.LEVEL_SIMPLIFIED);
+        // Two trips split by a 20 minute pause
+        append(segment, 45.000, START);
+        append(segment, 45.001, START + MINUTE);
+        append(segment, 45.010, START + 21 * MINUTE);
+        append(segment, 45.012, START + 22 * MINUTE);
+        segment.commit();
+        writeLine(1, START + 40 * DAY);
+
+        retention.runOnce(START + 40 * DAY);
+        assertFalse(TrackSegment.segmentFile(directory, 0).exists());
+        List<long[]> trips = readTrips(retention.getTrips());
+        assertEquals(2, trips.size());
+        assertEquals(START, trips.get(0)[0]);
+        assertEquals(START + MINUTE, trips.get(0)[1]);
+        assertEquals(2, trips.get(0)[2]);
+        assertEquals(111, trips.get(0)[3]);
+        assertEquals(START + 21 * MINUTE, trips.get(1)[0]);
+        assertEquals(222, trips.get(1)[3]);
+    }
+
+    @Test
+    public void step_quarantinesUnreadableSegments() throws IOException {
+        writeLine(0, START);
+        File torn = writeLine(1, START + HOUR);
+        writeLine(2, START + 2 * DAY);
+        truncate(torn, TrackSegment.HEADER_SIZE + 3);
+
+        retention.runOnce(START + 2 * DAY);
+        assertFalse(torn.exists());
+        assertTrue(new File(torn.getPath() + TrackSegment.BAD_SUFFIX).exists());
+        // Compaction went on past it
+        assertEquals(TrackRetention.LEVEL_SIMPLIFIED, open(0).getLevel());
+        new TrackReader(directory);
+    }
+
+    @Test
+    public void step_overBudgetDropsQuarantinedFilesFirst() throws IOException {
+        writeLine(0, START);
+        File torn = writeLine(1, START + HOUR);
+        writeLine(2, START + 2 * HOUR);
+        truncate(torn, TrackSegment.HEADER_SIZE + 3);
+        File bad = new File(torn.getPath() + TrackSegment.BAD_SUFFIX);
+
+        long segment = TrackSegment.segmentFile(directory, 0).length();
+        // Room for both readable segments, not for the quarantined file
+        retention.setByteBudget(2 * segment);
+        retention.runOnce(START + 3 * HOUR);
+        assertFalse(bad.exists());
+        assertTrue(TrackSegment.segmentFile(directory, 0).exists());
+
+        // Now only the recorder's segment and a trip summary fit
+        retention.setByteBudget(segment + TripSummaryLog.RECORD_SIZE);
+        retention.runOnce(START + 3 * HOUR);
+        assertFalse(TrackSegment.segmentFile(directory, 0).exists());
+        assertEquals(1, readTrips(retention.getTrips()).size());
+        assertTrue(TrackSegment.segmentFile(directory, 2).exists());
+
+        // Trips go last, the oldest ones first
+        retention.setByteBudget(segment);
+        retention.runOnce(START + 3 * HOUR);
+        assertEquals(0, retention.getTrips().size());
+        assertTrue(TrackSegment.segmentFile(directory, 2).exists());
+    }
+
+    @Test
+    public void step_deletesLevelsOfDetailOnceSummarized() throws IOException {
+        File level = TrackPyramid.levelDirectory(directory, 1f);
+        assertTrue(level.mkdirs());
+        // Covers the first raw segment, then the second one, then is still being written
+        File first = writeLine(level, 0, START, TrackRetention.LEVEL_DETAIL);
+        File second = writeLine(level, 1, START + 40 * DAY, TrackRetention.LEVEL_DETAIL);
+        File current = writeLine(level, 2, START + 41 * DAY, TrackRetention.LEVEL_DETAIL);
+        writeLine(directory, 0, START, TrackRetention.LEVEL_SIMPLIFIED);
+        writeLine(1, START + 40 * DAY);
+        writeLine(2, START + 41 * DAY);
+
+        retention.runOnce(START + 41 * DAY + HOUR);
+        assertFalse(TrackSegment.segmentFile(directory, 0).exists());
+        assertFalse(first.exists());
+        assertTrue(second.exists());
+        assertTrue(current.exists());
+    }
+
+    private File writeLine(long index, long start) throws IOException {
+        return writeLine(directory, index, start, TrackRetention.LEVEL_RAW);
+    }
+
+    // A straight 1 Hz drive north, about 11 m per fix
+    private static File writeLine(File directory, long index, long start, int level) throws IOException {
+        File file = TrackSegment.segmentFile(directory, index);
+        TrackSegment segment = TrackSegment.create(file, index, FIXES, level);
+        for (int i = 0; i < FIXES; i++) {
+            append(segment, 45 + i * 1e-4, start + i * 1000L);
+        }
+        segment.commit();
+        return file;
+    }
+
+    private static void append(TrackSegment segment, double lat, long time) {
+        segment.append(lat, 7, 5f, 0, time, false, 0f, false, 0f, LocationQuality.FILTERED);
+    }
+
+    private TrackSegment open(long index) throws IOException {
+        return TrackSegment.open(TrackSegment.segmentFile(directory, index), false);
+    }
+
+    // Start time, end time, fix count and distance of each trip
+    private static List<long[]> readTrips(TripSummaryLog log) throws IOException {
+        final List<long[]> trips = new ArrayList<long[]>();
+        log.read(new TripSummaryLog.TripVisitor() {
+            @Override
+            public boolean onTrip(long startTime, long endTime, double startLat, double startLng,
+                                  double endLat, double endLng, float distanceMeters, int fixCount) {
+                trips.add(new long[]{startTime, endTime, fixCount, Math.round(distanceMeters)});
+                return true;
+            }
+        });
+        return trips;
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+}
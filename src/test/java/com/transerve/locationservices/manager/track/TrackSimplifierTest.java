@@ -0,0 +1,143 @@
+package com.transerve.locationservices.manager.track;
+
+import com.transerve.locationservices.manager.geo.GeoMath;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Error bound of {@link TrackSimplifier}: every dropped fix stays within the tolerance of the
+ * emitted polyline
+ */
+public class TrackSimplifierTest {
+
+    // Projection differences between the simplifier's anchor and the checked fix
+    private static final double SLACK_METERS = 0.01;
+
+    @Test
+    public void randomWalks_withinTolerance() {
+        Random random = new Random(38);
+        for (int run = 0; run < 50; run++) {
+            float tolerance = 1 + random.nextInt(20);
+            double[][] track = walk(2000, 45 + random.nextDouble() * 20, random);
+            assertWithinTolerance(track, tolerance, TrackSimplifier.DEFAULT_WINDOW_SIZE);
+        }
+    }
+
+    @Test
+    public void smallWindow_forcedVerticesWithinTolerance() {
+        Random random = new Random(39);
+        double[][] track = walk(5000, 12.97, random);
+        int vertices = assertWithinTolerance(track, 50f, 8);
+        // Every eighth fix at least is a vertex
+        assertTrue(vertices >= 5000 / 8);
+    }
+
+    @Test
+    public void straightLine_keepsEnds() {
+        double[][] track = new double[2][100];
+        for (int i = 0; i < 100; i++) {
+            track[0][i] = 45 + i * 1e-4;
+            track[1][i] = 7;
+        }
+        assertEquals(2, assertWithinTolerance(track, 1f, TrackSimplifier.DEFAULT_WINDOW_SIZE));
+    }
+
+    @Test
+    public void acrossAntimeridian_withinTolerance() {
+        Random random = new Random(40);
+        double[][] track = walk(3000, -17, random);
+        for (int i = 0; i < track[1].length; i++) {
+            track[1][i] = GeoMath.wrapLongitude(track[1][i] + 180 - track[1][0] - 0.02);
+        }
+        assertWithinTolerance(track, 10f, TrackSimplifier.DEFAULT_WINDOW_SIZE);
+    }
+
+    @Test
+    public void zeroTolerance_keepsEveryTurn() {
+        double[][] track = new double[2][20];
+        for (int i = 0; i < 20; i++) {
+            track[0][i] = 45 + i * 1e-4;
+            track[1][i] = 7 + (i % 2) * 1e-4;
+        }
+        assertEquals(20, assertWithinTolerance(track, 0f, TrackSimplifier.DEFAULT_WINDOW_SIZE));
+    }
+
+    /**
+     * @return number of vertices
+     */
+    private static int assertWithinTolerance(final double[][] track, float tolerance, int window) {
+        final int count = track[0].length;
+        final long[] vertices = new long[count];
+        final int[] vertexCount = new int[1];
+        TrackSimplifier simplifier = new TrackSimplifier(tolerance, window, new TrackSimplifier.VertexListener() {
+            @Override
+            public void onVertex(long index, double lat, double lng, float accuracy, long time) {
+                int i = (int) index;
+                assertEquals(track[0][i], lat, 0);
+                assertEquals(track[1][i], lng, 0);
+                assertEquals(i * 1000L, time);
+                vertices[vertexCount[0]++] = index;
+            }
+        });
+        for (int i = 0; i < count; i++) {
+            simplifier.add(track[0][i], track[1][i], 5f, i * 1000L);
+        }
+        simplifier.flush();
+
+        int n = vertexCount[0];
+        assertEquals(n, simplifier.getVertexCount());
+        assertEquals(0, vertices[0]);
+        assertEquals(count - 1, vertices[n - 1]);
+        for (int v = 1; v < n; v++) {
+            int a = (int) vertices[v - 1];
+            int b = (int) vertices[v];
+            assertTrue(b > a);
+            for (int i = a + 1; i < b; i++) {
+                double error = distanceToSegment(track[0][i], track[1][i], track[0][a], track[1][a],
+                        track[0][b], track[1][b]);
+                assertTrue("Fix " + i + " is " + error + " m off, tolerance " + tolerance,
+                        error <= tolerance + SLACK_METERS);
+            }
+        }
+        return n;
+    }
+
+    // On a local plane around the fix
+    private static double distanceToSegment(double lat, double lng, double lat0, double lng0,
+                                            double lat1, double lng1) {
+        double metersPerDegreeLng = GeoMath.METERS_PER_DEGREE * Math.cos(Math.toRadians(lat));
+        double x0 = GeoMath.wrapLongitude(lng0 - lng) * metersPerDegreeLng;
+        double y0 = (lat0 - lat) * GeoMath.METERS_PER_DEGREE;
+        double dx = GeoMath.wrapLongitude(lng1 - lng) * metersPerDegreeLng - x0;
+        double dy = (lat1 - lat) * GeoMath.METERS_PER_DEGREE - y0;
+        double t = GeoMath.projectOnSegment(x0, y0, dx, dy);
+        return Math.hypot(x0 + t * dx, y0 + t * dy);
+    }
+
+    // 1 Hz drive with turns, stops and GNSS noise
+    private static double[][] walk(int count, double startLat, Random random) {
+        double[][] track = new double[2][count];
+        double lat = startLat;
+        double lng = 7;
+        double heading = random.nextDouble() * 2 * Math.PI;
+        double speed = 10;
+        for (int i = 0; i < count; i++) {
+            if (random.nextInt(50) == 0) {
+                heading += (random.nextDouble() - 0.5) * Math.PI;
+            }
+            heading += (random.nextDouble() - 0.5) * 0.1;
+            speed = random.nextInt(100) == 0 ? 0 : Math.max(0, Math.min(30, speed + random.nextGaussian()));
+            double metersPerDegreeLng = GeoMath.METERS_PER_DEGREE * Math.cos(Math.toRadians(lat));
+            lat += (Math.cos(heading) * speed + random.nextGaussian() * 2) / GeoMath.METERS_PER_DEGREE;
+            lng += (Math.sin(heading) * speed + random.nextGaussian() * 2) / metersPerDegreeLng;
+            track[0][i] = lat;
+            track[1][i] = lng;
+        }
+        return track;
+    }
+}
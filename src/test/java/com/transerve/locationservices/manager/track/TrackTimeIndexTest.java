@@ -0,0 +1,211 @@
+package com.transerve.locationservices.manager.track;
+
+import com.transerve.locationservices.manager.LocationFix;
+import com.transerve.locationservices.manager.LocationQuality;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Lookups of {@link TrackTimeIndex} against a scan of the reader, while recording and after
+ * {@link TrackRetention} compacted the segments under it
+ */
+public class TrackTimeIndexTest {
+
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    private static final long DAY = 24 * HOUR;
+
+    private static final long START = 1500000000000L;
+
+    private static final int FIXES = 100;
+
+    private static final int BLOCK_SIZE = 16;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.newFolder();
+    }
+
+    @Test
+    public void lookups_matchScan() throws IOException {
+        writeLine(0, START, 1000);
+        // Runs of three fixes at the same time, some across block boundaries
+        TrackSegment segment = TrackSegment.create(TrackSegment.segmentFile(directory, 1), 1, FIXES,
+                TrackRetention.LEVEL_RAW);
+        for (int i = 0; i < FIXES; i++) {
+            segment.append(45, 7, 5f, 0, START + FIXES * 1000L + i / 3 * 1000L, false, 0f, false, 0f,
+                    LocationQuality.FILTERED);
+        }
+        segment.commit();
+
+        TrackTimeIndex index = new TrackTimeIndex(new TrackReader(directory), BLOCK_SIZE);
+        assertEquals(2 * FIXES, index.getReader().getCount());
+        assertMatchesScan(index, START - 2000, START + 2 * FIXES * 1000L);
+    }
+
+    @Test
+    public void clockStepBack_lookupsStayOrdered() throws IOException {
+        TrackSegment segment = TrackSegment.create(TrackSegment.segmentFile(directory, 0), 0, FIXES,
+                TrackRetention.LEVEL_RAW);
+        for (int i = 0; i < FIXES; i++) {
+            long time = START + i * 1000L - (i >= 50 ? 20000 : 0);
+            segment.append(45, 7, 5f, 0, time, false, 0f, false, 0f, LocationQuality.FILTERED);
+        }
+        segment.commit();
+        TrackTimeIndex index = new TrackTimeIndex(new TrackReader(directory), BLOCK_SIZE);
+        long lastFloor = -1;
+        for (long t = START - 1000; t <= START + FIXES * 1000L; t += 250) {
+            long floor = index.floorPosition(t);
+            assertTrue(floor >= lastFloor);
+            lastFloor = floor;
+        }
+        assertEquals(FIXES - 1, lastFloor);
+        // Past the step the order is restored
+        assertEquals(89, index.floorPosition(START + 69 * 1000L));
+    }
+
+    @Test
+    public void update_indexesAppendedFixes() throws IOException {
+        TrackSegment segment = TrackSegment.create(TrackSegment.segmentFile(directory, 0), 0, FIXES,
+                TrackRetention.LEVEL_RAW);
+        TrackTimeIndex index = new TrackTimeIndex(new TrackReader(directory), BLOCK_SIZE);
+        assertEquals(-1, index.floorPosition(START));
+        assertEquals(0, index.ceilPosition(START));
+
+        for (int i = 0; i < FIXES; i++) {
+            segment.append(45, 7, 5f, 0, START + i * 1000L, false, 0f, false, 0f, LocationQuality.FILTERED);
+            segment.commit();
+            if (i % 7 == 0) {
+                index.update();
+                assertEquals(i, index.floorPosition(START + FIXES * 1000L));
+                assertEquals(i + 1, index.ceilPosition(START + FIXES * 1000L));
+            }
+        }
+        index.update();
+        assertMatchesScan(index, START - 2000, START + FIXES * 1000L + 2000);
+    }
+
+    @Test
+    public void update_rebuildsAfterCompaction() throws IOException {
+        writeLine(0, START, 1000);
+        writeLine(1, START + HOUR, 1000);
+        writeLine(2, START + 2 * DAY, 1000);
+        TrackTimeIndex index = new TrackTimeIndex(new TrackReader(directory), BLOCK_SIZE);
+        int generation = index.getReader().getGeneration();
+        assertEquals(FIXES + 50, index.floorPosition(START + HOUR + 50 * 1000L));
+
+        // Simplifies the first two segments to their ends
+        TrackRetention retention = retention();
+        retention.runOnce(START + 2 * DAY);
+        index.update();
+        assertTrue(index.getReader().getGeneration() != generation);
+        assertEquals(2 + 2 + FIXES, index.getReader().getCount());
+        // The middle of the second segment now floors to its first fix
+        assertEquals(2, index.floorPosition(START + HOUR + 50 * 1000L));
+        assertEquals(4 + 50, index.floorPosition(START + 2 * DAY + 50 * 1000L));
+        assertMatchesScan(index, START - 2000, START + 2 * DAY + FIXES * 1000L + 2000);
+
+        // Summarized segments are deleted, everything moves down
+        retention.setSimplifiedMillis(HOUR);
+        retention.runOnce(START + 2 * DAY + 2 * HOUR);
+        index.update();
+        assertEquals(FIXES, index.getReader().getCount());
+        assertEquals(50, index.floorPosition(START + 2 * DAY + 50 * 1000L));
+        assertEquals(-1, index.floorPosition(START + HOUR + 50 * 1000L));
+        assertMatchesScan(index, START - 2000, START + 2 * DAY + FIXES * 1000L + 2000);
+    }
+
+    @Test
+    public void lookup_rebuildsAfterReaderRefresh() throws IOException {
+        writeLine(0, START, 1000);
+        writeLine(1, START + HOUR, 1000);
+        writeLine(2, START + 2 * DAY, 1000);
+        TrackTimeIndex index = new TrackTimeIndex(new TrackReader(directory), BLOCK_SIZE);
+
+        retention().runOnce(START + 2 * DAY);
+        // Someone else refreshed the shared reader, the next lookup notices
+        index.getReader().refresh();
+        assertEquals(4 + 50, index.floorPosition(START + 2 * DAY + 50 * 1000L));
+        assertEquals(4 + 50, index.ceilPosition(START + 2 * DAY + 50 * 1000L));
+    }
+
+    @Test
+    public void queryRange_visitsHalfOpenRange() throws IOException {
+        writeLine(0, START, 1000);
+        writeLine(1, START + FIXES * 1000L, 1000);
+        TrackTimeIndex index = new TrackTimeIndex(new TrackReader(directory), BLOCK_SIZE);
+        final List<Long> times = new ArrayList<Long>();
+        index.queryRange(START + 90 * 1000L, START + 120 * 1000L, new FixVisitor() {
+            @Override
+            public boolean onFix(LocationFix fix) {
+                times.add(fix.getTime());
+                return true;
+            }
+        });
+        assertEquals(30, times.size());
+        assertEquals(Long.valueOf(START + 90 * 1000L), times.get(0));
+        assertEquals(Long.valueOf(START + 119 * 1000L), times.get(29));
+    }
+
+    private TrackRetention retention() {
+        TrackRetention retention = new TrackRetention(directory);
+        retention.setFullRateMillis(DAY);
+        retention.setSimplifiedMillis(30 * DAY);
+        retention.setSimplifyToleranceMeters(10f);
+        return retention;
+    }
+
+    // Every time from before the track to after it, in steps that hit records and the gaps
+    // between them
+    private static void assertMatchesScan(TrackTimeIndex index, long from, long to) {
+        TrackReader reader = index.getReader();
+        long count = reader.getCount();
+        long[] times = new long[(int) count];
+        for (int p = 0; p < count; p++) {
+            reader.moveTo(p);
+            times[p] = reader.getTime();
+        }
+        long step = Math.max(1, (to - from) / 5000);
+        for (long t = from; t <= to; t += step) {
+            long floor = -1;
+            long ceil = count;
+            for (int p = 0; p < count; p++) {
+                if (times[p] <= t) {
+                    floor = p;
+                }
+                if (times[p] >= t && ceil == count) {
+                    ceil = p;
+                }
+            }
+            assertEquals("floor of " + t, floor, index.floorPosition(t));
+            assertEquals("ceil of " + t, ceil, index.ceilPosition(t));
+        }
+    }
+
+    // A straight drive north, one fix per interval
+    private void writeLine(long index, long start, long interval) throws IOException {
+        TrackSegment segment = TrackSegment.create(TrackSegment.segmentFile(directory, index), index,
+                FIXES, TrackRetention.LEVEL_RAW);
+        for (int i = 0; i < FIXES; i++) {
+            segment.append(45 + i * 1e-4, 7, 5f, 0, start + i * interval, false, 0f, false, 0f,
+                    LocationQuality.FILTERED);
+        }
+        segment.commit();
+    }
+}
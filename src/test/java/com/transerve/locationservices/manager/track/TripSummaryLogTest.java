@@ -0,0 +1,116 @@
+package com.transerve.locationservices.manager.track;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Appending, reading and trimming a {@link TripSummaryLog}
+ */
+public class TripSummaryLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void read_missingFile() throws IOException {
+        TripSummaryLog log = new TripSummaryLog(new File(folder.getRoot(), "trips.bin"));
+        assertEquals(0, log.size());
+        assertEquals(0, startTimes(log, Integer.MAX_VALUE).size());
+    }
+
+    @Test
+    public void append_roundTrip() throws IOException {
+        TripSummaryLog log = new TripSummaryLog(new File(folder.getRoot(), "trips.bin"));
+        log.append(1000, 2000, 12.5, 77.25, -33.75, 151.125, 1234.5f, 42);
+        log.append(3000, 4000, 0, 0, 0, 0, 0f, 1);
+        assertEquals(2 * TripSummaryLog.RECORD_SIZE, log.size());
+        final List<Object[]> trips = new ArrayList<Object[]>();
+        log.read(new TripSummaryLog.TripVisitor() {
+            @Override
+            public boolean onTrip(long startTime, long endTime, double startLat, double startLng,
+                                  double endLat, double endLng, float distanceMeters, int fixCount) {
+                trips.add(new Object[]{startTime, endTime, startLat, startLng, endLat, endLng,
+                        distanceMeters, fixCount});
+                return true;
+            }
+        });
+        assertEquals(2, trips.size());
+        Object[] first = trips.get(0);
+        assertEquals(1000L, first[0]);
+        assertEquals(2000L, first[1]);
+        assertEquals(12.5, first[2]);
+        assertEquals(77.25, first[3]);
+        assertEquals(-33.75, first[4]);
+        assertEquals(151.125, first[5]);
+        assertEquals(1234.5f, first[6]);
+        assertEquals(42, first[7]);
+        assertEquals(3000L, trips.get(1)[0]);
+    }
+
+    @Test
+    public void read_visitorStops() throws IOException {
+        TripSummaryLog log = logOf(5);
+        assertEquals(2, startTimes(log, 2).size());
+    }
+
+    @Test
+    public void append_dropsPartialRecord() throws IOException {
+        TripSummaryLog log = logOf(2);
+        // A crash in the middle of an append
+        FileOutputStream out = new FileOutputStream(log.getFile(), true);
+        try {
+            out.write(new byte[TripSummaryLog.RECORD_SIZE / 2]);
+        } finally {
+            out.close();
+        }
+        log.append(2, 2, 0, 0, 0, 0, 0f, 1);
+        assertEquals(3 * TripSummaryLog.RECORD_SIZE, log.size());
+        List<Long> times = startTimes(log, Integer.MAX_VALUE);
+        assertEquals(3, times.size());
+        assertEquals(Long.valueOf(2), times.get(2));
+    }
+
+    @Test
+    public void trimTo_keepsNewest() throws IOException {
+        TripSummaryLog log = logOf(10);
+        assertEquals(0, log.trimTo(10 * TripSummaryLog.RECORD_SIZE));
+        // Rounded down to whole records
+        assertEquals(7 * TripSummaryLog.RECORD_SIZE, log.trimTo(3 * TripSummaryLog.RECORD_SIZE + 5));
+        List<Long> times = startTimes(log, Integer.MAX_VALUE);
+        assertEquals(3, times.size());
+        assertEquals(Long.valueOf(7), times.get(0));
+        assertEquals(Long.valueOf(9), times.get(2));
+        log.trimTo(0);
+        assertEquals(0, log.size());
+    }
+
+    private TripSummaryLog logOf(int trips) throws IOException {
+        TripSummaryLog log = new TripSummaryLog(folder.newFile());
+        for (int i = 0; i < trips; i++) {
+            log.append(i, i, i, i, i, i, i, i + 1);
+        }
+        return log;
+    }
+
+    private static List<Long> startTimes(TripSummaryLog log, final int limit) throws IOException {
+        final List<Long> times = new ArrayList<Long>();
+        log.read(new TripSummaryLog.TripVisitor() {
+            @Override
+            public boolean onTrip(long startTime, long endTime, double startLat, double startLng,
+                                  double endLat, double endLng, float distanceMeters, int fixCount) {
+                times.add(startTime);
+                return times.size() < limit;
+            }
+        });
+        return times;
+    }
+}